@@ -1,16 +1,65 @@
 package com.pleaseignore.pings.android;
 
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
 import android.widget.TextView;
 import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.api.client.http.*;
+import com.google.api.client.json.JsonObjectParser;
+
+import java.io.IOException;
 
 /**
- * Displays the full text of a ping when launched.
+ * Displays the full text of a ping when launched. Long pings arrive with only a preview, in
+ * which case the full text is fetched from the server.
  */
 public final class PingDetailsActivity extends AppCompatActivity implements
-		OnSuccessListener<Void> {
+		OnSuccessListener<Void>, HttpRequestInitializer {
+	/**
+	 * Creates HTTP ping text requests.
+	 */
+	private final HttpRequestFactory requestFactory;
+
+	public PingDetailsActivity() {
+		// Set up response parser as JSON
+		requestFactory = TESTLoginActivity.HTTP_TRANSPORT.createRequestFactory(this);
+	}
+	/**
+	 * Fetches the full text of a ping which was sent as a preview.
+	 *
+	 * @param pingID the ping ID
+	 * @param fetchKey the key from the ping data
+	 * @return the full ping text, or null if it could not be retrieved
+	 */
+	private String fetchPingText(final String pingID, final String fetchKey) {
+		final String dummyHost = getString(R.string.dummy_host);
+		String pingText = null;
+		try {
+			final GenericUrl pingURL = new GenericUrl("http://" + dummyHost + "/ping/" +
+				pingID);
+			pingURL.put(PingReceiverService.PING_KEY_FETCH, fetchKey);
+			final HttpRequest request = requestFactory.buildGetRequest(pingURL);
+			// Set timeout
+			request.setConnectTimeout(TESTLoginActivity.TIMEOUT);
+			request.setReadTimeout(TESTLoginActivity.TIMEOUT);
+			request.setNumberOfRetries(2);
+			final PingText text = request.execute().parseAs(PingText.class);
+			if (text != null)
+				pingText = text.message;
+		} catch (IOException e) {
+			// The preview is still shown
+			Log.w("Ping", "Error when fetching ping text", e);
+		}
+		return pingText;
+	}
+	@Override
+	public void initialize(HttpRequest request) {
+		// Server response parsed as JSON
+		request.setParser(new JsonObjectParser(TESTLoginActivity.JSON_FACTORY));
+	}
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -26,14 +75,57 @@ public final class PingDetailsActivity extends AppCompatActivity implements
 	public void onSuccess(Void ignore) {
 		// Retrieve intent extras for ping information
 		final Intent intent = getIntent();
-		final String pingText;
-		if (intent != null)
+		final String pingText, pingID, fetchKey;
+		if (intent != null) {
 			pingText = intent.getStringExtra(PingReceiverService.PING_KEY_MESSAGE);
-		else
+			pingID = intent.getStringExtra(PingReceiverService.PING_KEY_ID);
+			fetchKey = intent.getStringExtra(PingReceiverService.PING_KEY_FETCH);
+		} else {
 			pingText = null;
-		// Update text, or display empty ping if it was indeed empty
+			pingID = null;
+			fetchKey = null;
+		}
+		// Show the preview until the full text arrives
+		showPingText(pingText);
+		if (pingID != null && fetchKey != null)
+			new FetchPingTask(pingID, fetchKey).execute();
+	}
+	/**
+	 * Updates the ping text, or displays empty ping if it was indeed empty.
+	 *
+	 * @param pingText the ping text
+	 */
+	private void showPingText(final String pingText) {
 		final TextView pingDetails = (TextView)findViewById(R.id.ping_detail_text);
 		if (pingDetails != null)
 			pingDetails.setText((pingText == null) ? getString(R.string.ping_empty) : pingText);
 	}
+
+	/**
+	 * Fetches the full ping text in the background.
+	 */
+	private final class FetchPingTask extends AsyncTask<Void, Void, String> {
+		/**
+		 * The key from the ping data.
+		 */
+		private final String fetchKey;
+		/**
+		 * The ping ID.
+		 */
+		private final String pingID;
+
+		protected FetchPingTask(final String pingID, final String fetchKey) {
+			this.fetchKey = fetchKey;
+			this.pingID = pingID;
+		}
+		@Override
+		protected String doInBackground(Void... params) {
+			return fetchPingText(pingID, fetchKey);
+		}
+		@Override
+		protected void onPostExecute(final String result) {
+			if (result != null)
+				showPingText(result);
+		}
+	}
 }
@@ -21,12 +21,20 @@ import java.util.*;
  * A service which receives and notifies the user about pings.
  */
 public final class PingReceiverService extends FirebaseMessagingService {
+	/**
+	 * Key used in ping data to store the key which fetches the full text of a preview
+	 */
+	public static final String PING_KEY_FETCH = "key";
 	/**
 	 * Key used in ping data to store the ping group name
 	 */
 	private static final String PING_KEY_GROUP = "group";
 	/**
-	 * Key used in ping data to store the full ping text
+	 * Key used in ping data to store the ping ID
+	 */
+	public static final String PING_KEY_ID = "id";
+	/**
+	 * Key used in ping data to store the full ping text, or a preview if a fetch key is sent
 	 */
 	public static final String PING_KEY_MESSAGE = "message";
 
@@ -82,7 +90,19 @@ public final class PingReceiverService extends FirebaseMessagingService {
 			final NotificationManager manager = (NotificationManager)getSystemService(
 				Service.NOTIFICATION_SERVICE);
 			final long time = message.getSentTime();
-			manager.notify((int)time, makeNotification(new Date(time), group, pingText));
+			// Pings may be delivered more than once, so key the notification by ping ID to
+			// replace any copy already shown
+			long key = time;
+			if (data != null && data.containsKey(PING_KEY_ID))
+				try {
+					key = Long.parseLong(data.get(PING_KEY_ID));
+				} catch (NumberFormatException e) {
+					// Fall back to the sent time
+				}
+			// Long pings only carry a preview, the details screen fetches the rest
+			final String fetchKey = (data == null) ? null : data.get(PING_KEY_FETCH);
+			manager.notify((int)(key ^ (key >>> 32)), makeNotification(new Date(time), group,
+				pingText, (fetchKey == null) ? null : data.get(PING_KEY_ID), fetchKey));
 		}
 	}
 	/**
@@ -90,10 +110,13 @@ public final class PingReceiverService extends FirebaseMessagingService {
 	 *
 	 * @param dateOf the date the ping was sent, UTC
 	 * @param group the group target of the ping (English text, not group ID)
-	 * @param pingText the full text of the ping
+	 * @param pingText the full text of the ping, or its preview
+	 * @param pingID the ping ID if only a preview was sent, or null
+	 * @param fetchKey the key which fetches the full text if only a preview was sent, or null
 	 */
 	private Notification makeNotification(final Date dateOf, final String group,
-										  final String pingText) {
+										  final String pingText, final String pingID,
+										  final String fetchKey) {
 		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
 		// Use local format for date and time
 		final java.text.DateFormat localDate = DateFormat.getDateFormat(this), localTime =
@@ -107,10 +130,14 @@ public final class PingReceiverService extends FirebaseMessagingService {
 		final Intent detailsIntent = new Intent(this, PingDetailsActivity.class);
 		detailsIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
 		detailsIntent.putExtra(PING_KEY_MESSAGE, pingText);
+		if (pingID != null && fetchKey != null) {
+			detailsIntent.putExtra(PING_KEY_ID, pingID);
+			detailsIntent.putExtra(PING_KEY_FETCH, fetchKey);
+		}
 		final PendingIntent launchPingDetails = PendingIntent.getActivity(this, 0,
 			detailsIntent, PendingIntent.FLAG_CANCEL_CURRENT);
 		builder.setContentIntent(launchPingDetails);
-		// All pings get their own notification (spam?), so use the sent time as the key
+		// All pings get their own notification (spam?), so use the ping ID as the key
 		return builder.build();
 	}
 }
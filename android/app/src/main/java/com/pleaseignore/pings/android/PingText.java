@@ -0,0 +1,11 @@
+package com.pleaseignore.pings.android;
+
+import com.google.api.client.util.Key;
+
+/**
+ * Used for parsing the JSON response from the server with the full text of a ping.
+ */
+public final class PingText {
+	@Key
+	public String message;
+}
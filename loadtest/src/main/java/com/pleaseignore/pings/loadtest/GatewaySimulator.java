@@ -0,0 +1,479 @@
+package com.pleaseignore.pings.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Simulates many devices holding WebSocket connections to the push gateway, all served by
+ * one selector thread like the gateway itself. Each device answers heartbeats, and records
+ * the delay from when each ping was accepted by the server until it arrived.
+ */
+public final class GatewaySimulator implements Runnable {
+	/**
+	 * Used to read the pings received.
+	 */
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	/**
+	 * Logs the failure of the selector thread.
+	 */
+	private static final Logger LOGGER = Logger.getLogger(GatewaySimulator.class.getName());
+	/**
+	 * WebSocket opcodes.
+	 */
+	private static final int OP_CLOSE = 0x8, OP_PING = 0x9, OP_PONG = 0xA, OP_TEXT = 0x1;
+
+	/**
+	 * The gateway address.
+	 */
+	private final InetSocketAddress address;
+	/**
+	 * The number of devices whose handshake was accepted.
+	 */
+	private final AtomicInteger connected;
+	/**
+	 * Records the delivery delay of each ping received.
+	 */
+	private final OperationStats deliveries;
+	/**
+	 * The error which stopped the selector thread, or null if it is running or stopped
+	 * normally.
+	 */
+	private volatile Throwable error;
+	/**
+	 * The number of devices which failed to connect or were disconnected.
+	 */
+	private final AtomicInteger failed;
+	/**
+	 * The number of heartbeats answered.
+	 */
+	private final AtomicLong heartbeats;
+	/**
+	 * Devices waiting to be registered with the selector.
+	 */
+	private final Queue<Device> pending;
+	/**
+	 * Generates frame masks.
+	 */
+	private final Random random;
+	/**
+	 * The buffer into which the selector thread reads.
+	 */
+	private final ByteBuffer readBuffer;
+	/**
+	 * The number of pings received.
+	 */
+	private final AtomicLong received;
+	/**
+	 * Whether the selector thread should keep running.
+	 */
+	private volatile boolean running;
+	/**
+	 * Waits for connections and data.
+	 */
+	private final Selector selector;
+	/**
+	 * The selector thread.
+	 */
+	private final Thread thread;
+
+	/**
+	 * Creates a new gateway simulator and starts its selector thread.
+	 *
+	 * @param address the gateway address
+	 * @param deliveries records the delivery delay of each ping received
+	 * @throws IOException if the selector cannot be opened
+	 */
+	public GatewaySimulator(final InetSocketAddress address, final OperationStats deliveries)
+			throws IOException {
+		if (address == null)
+			throw new IllegalArgumentException("address");
+		if (deliveries == null)
+			throw new IllegalArgumentException("deliveries");
+		this.address = address;
+		connected = new AtomicInteger(0);
+		this.deliveries = deliveries;
+		error = null;
+		failed = new AtomicInteger(0);
+		heartbeats = new AtomicLong(0L);
+		pending = new ConcurrentLinkedQueue<>();
+		random = new Random();
+		readBuffer = ByteBuffer.allocateDirect(65536);
+		received = new AtomicLong(0L);
+		running = true;
+		selector = Selector.open();
+		thread = new Thread(this, "gateway-simulator");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	/**
+	 * Stops the simulator and closes every connection.
+	 */
+	public void close() {
+		running = false;
+		selector.wakeup();
+		try {
+			thread.join(5000L);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	/**
+	 * Connects devices, cycling through the credentials given.
+	 *
+	 * @param count the number of devices
+	 * @param usernames the usernames
+	 * @param challenges the challenge of each username
+	 */
+	public void connect(final int count, final String[] usernames, final String[] challenges) {
+		for (int i = 0; i < count; i++) {
+			final int user = i % usernames.length;
+			pending.add(new Device(usernames[user], challenges[user]));
+		}
+		selector.wakeup();
+	}
+	/**
+	 * Disconnects a device.
+	 *
+	 * @param device the device
+	 * @param failure whether the device failed, rather than the simulator stopping
+	 */
+	private void disconnect(final Device device, final boolean failure) {
+		if (device.key != null)
+			device.key.cancel();
+		try {
+			if (device.channel != null)
+				device.channel.close();
+		} catch (IOException e) {
+			// Already gone
+		}
+		if (failure)
+			failed.incrementAndGet();
+		if (device.open)
+			connected.decrementAndGet();
+		device.open = false;
+	}
+	/**
+	 * Encodes a masked WebSocket frame, as sent by clients.
+	 *
+	 * @param opcode the frame opcode
+	 * @param payload the frame payload, at most 125 bytes
+	 * @return the frame, ready to be written
+	 */
+	private ByteBuffer frame(final int opcode, final byte[] payload) {
+		final byte[] mask = new byte[4];
+		random.nextBytes(mask);
+		final ByteBuffer frame = ByteBuffer.allocate(6 + payload.length);
+		frame.put((byte)(0x80 | opcode));
+		frame.put((byte)(0x80 | payload.length));
+		frame.put(mask);
+		for (int i = 0; i < payload.length; i++)
+			frame.put((byte)(payload[i] ^ mask[i & 3]));
+		frame.flip();
+		return frame;
+	}
+	/**
+	 * Reports the number of devices connected.
+	 *
+	 * @return the number of devices whose handshake was accepted and are still connected
+	 */
+	public int getConnected() {
+		return connected.get();
+	}
+	/**
+	 * Reports why the selector thread stopped early, so that lost pushes are not mistaken for
+	 * a gateway problem.
+	 *
+	 * @return the error which stopped the simulator, or null if it has not failed
+	 */
+	public Throwable getError() {
+		return error;
+	}
+	/**
+	 * Reports the number of devices which failed to connect or were disconnected.
+	 *
+	 * @return the number of failed devices
+	 */
+	public int getFailed() {
+		return failed.get();
+	}
+	/**
+	 * Reports the number of heartbeats answered.
+	 *
+	 * @return the number of heartbeats
+	 */
+	public long getHeartbeats() {
+		return heartbeats.get();
+	}
+	/**
+	 * Reports the number of pings received by all devices.
+	 *
+	 * @return the number of pings received
+	 */
+	public long getReceived() {
+		return received.get();
+	}
+	/**
+	 * Handles the frames sent by the gateway.
+	 *
+	 * @param device the device
+	 * @param data the bytes received
+	 */
+	private void readFrames(final Device device, final ByteBuffer data) {
+		while (data.remaining() >= 2) {
+			final int start = data.position();
+			final int opcode = data.get() & 0x0F;
+			long length = data.get() & 0x7F;
+			if (length == 126 && data.remaining() >= 2)
+				length = data.getShort() & 0xFFFF;
+			else if (length == 127 && data.remaining() >= 8)
+				length = data.getLong();
+			else if (length >= 126) {
+				data.position(start);
+				break;
+			}
+			if (data.remaining() < length) {
+				data.position(start);
+				break;
+			}
+			final byte[] payload = new byte[(int)length];
+			data.get(payload);
+			if (opcode == OP_TEXT) {
+				final long now = System.currentTimeMillis(), nanos = System.nanoTime();
+				long sent = 0L;
+				try {
+					sent = MAPPER.readTree(payload).path("time").asLong(0L);
+				} catch (IOException e) {
+					// Counted as an error below
+				}
+				received.incrementAndGet();
+				// The delay is measured from when the server accepted the ping
+				deliveries.record((sent > 0L) ? nanos - (now - sent) * 1000000L : nanos,
+					sent > 0L);
+			} else if (opcode == OP_PING) {
+				heartbeats.incrementAndGet();
+				device.send(frame(OP_PONG, payload));
+			} else if (opcode == OP_CLOSE) {
+				disconnect(device, true);
+				return;
+			}
+		}
+		device.keep(data);
+	}
+	public void run() {
+		try {
+			while (running) {
+				selector.select(1000L);
+				Device device;
+				while ((device = pending.poll()) != null)
+					try {
+						device.channel = SocketChannel.open();
+						device.channel.configureBlocking(false);
+						device.channel.connect(address);
+						device.key = device.channel.register(selector, SelectionKey.OP_CONNECT,
+							device);
+					} catch (IOException e) {
+						disconnect(device, true);
+					}
+				for (final SelectionKey key : selector.selectedKeys()) {
+					device = (Device)key.attachment();
+					try {
+						if (key.isValid() && key.isConnectable() && device.channel.
+								finishConnect())
+							device.handshake();
+						if (key.isValid() && key.isReadable())
+							device.read();
+						if (key.isValid() && key.isWritable())
+							device.flush();
+					} catch (IOException | CancelledKeyException e) {
+						disconnect(device, true);
+					}
+				}
+				selector.selectedKeys().clear();
+			}
+		} catch (IOException | RuntimeException e) {
+			LOGGER.log(Level.SEVERE, "Gateway simulator stopped", e);
+			error = e;
+		} finally {
+			for (final SelectionKey key : selector.keys())
+				disconnect((Device)key.attachment(), false);
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Stopping anyway
+			}
+		}
+	}
+	/**
+	 * Waits until the requested number of devices are connected, or no more can connect.
+	 *
+	 * @param count the number of devices
+	 * @param limit the longest time to wait in milliseconds
+	 * @return the number of devices connected
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public int waitForConnected(final int count, final long limit)
+			throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + limit;
+		while (connected.get() + failed.get() < count && error == null && System.
+				currentTimeMillis() < deadline)
+			Thread.sleep(20L);
+		return connected.get();
+	}
+
+	/**
+	 * A simulated device. Only used on the selector thread.
+	 */
+	private final class Device {
+		/**
+		 * The socket.
+		 */
+		SocketChannel channel;
+		/**
+		 * The challenge.
+		 */
+		private final String challenge;
+		/**
+		 * The selection key.
+		 */
+		SelectionKey key;
+		/**
+		 * Whether the handshake was accepted.
+		 */
+		boolean open;
+		/**
+		 * Bytes received which do not yet make up a complete frame or response, or null.
+		 */
+		private byte[] partial;
+		/**
+		 * Frames waiting to be written, or null.
+		 */
+		private Deque<ByteBuffer> queue;
+		/**
+		 * The username.
+		 */
+		private final String username;
+
+		Device(final String username, final String challenge) {
+			channel = null;
+			this.challenge = challenge;
+			key = null;
+			open = false;
+			partial = null;
+			queue = null;
+			this.username = username;
+		}
+		/**
+		 * Writes as much of the queued frames as the socket accepts.
+		 *
+		 * @throws IOException if an I/O error occurs
+		 */
+		void flush() throws IOException {
+			while (queue != null && !queue.isEmpty()) {
+				final ByteBuffer frame = queue.peekFirst();
+				channel.write(frame);
+				if (frame.hasRemaining())
+					break;
+				queue.removeFirst();
+			}
+			key.interestOps((queue == null || queue.isEmpty()) ? SelectionKey.OP_READ :
+				(SelectionKey.OP_READ | SelectionKey.OP_WRITE));
+		}
+		/**
+		 * Sends the WebSocket handshake once connected.
+		 *
+		 * @throws IOException if an I/O error occurs
+		 */
+		void handshake() throws IOException {
+			final byte[] nonce = new byte[16];
+			random.nextBytes(nonce);
+			send(ByteBuffer.wrap(("GET /connect?username=" + URLEncoder.encode(username,
+				StandardCharsets.UTF_8) + "&challenge=" + URLEncoder.encode(challenge,
+				StandardCharsets.UTF_8) + " HTTP/1.1\r\nHost: " + address.getHostString() +
+				"\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: " +
+				Base64.getEncoder().encodeToString(nonce) + "\r\nSec-WebSocket-Version: " +
+				"13\r\n\r\n").getBytes(StandardCharsets.US_ASCII)));
+		}
+		/**
+		 * Keeps the unread bytes until more arrive.
+		 *
+		 * @param data the bytes received
+		 */
+		void keep(final ByteBuffer data) {
+			if (data.hasRemaining()) {
+				partial = new byte[data.remaining()];
+				data.get(partial);
+			}
+		}
+		/**
+		 * Reads whatever the gateway has sent.
+		 *
+		 * @throws IOException if an I/O error occurs
+		 */
+		void read() throws IOException {
+			readBuffer.clear();
+			final int n = channel.read(readBuffer);
+			if (n < 0) {
+				disconnect(this, true);
+				return;
+			}
+			readBuffer.flip();
+			ByteBuffer data = readBuffer;
+			if (partial != null) {
+				data = ByteBuffer.allocate(partial.length + n);
+				data.put(partial).put(readBuffer).flip();
+				partial = null;
+			}
+			if (open)
+				readFrames(this, data);
+			else {
+				final byte[] response = new byte[data.remaining()];
+				data.get(response);
+				final String text = new String(response, StandardCharsets.ISO_8859_1);
+				final int end = text.indexOf("\r\n\r\n");
+				if (end < 0)
+					partial = response;
+				else if (text.startsWith("HTTP/1.1 101")) {
+					open = true;
+					connected.incrementAndGet();
+					readFrames(this, ByteBuffer.wrap(response, end + 4, response.length -
+						end - 4));
+				} else
+					disconnect(this, true);
+			}
+		}
+		/**
+		 * Queues a frame and writes what the socket accepts.
+		 *
+		 * @param frame the frame
+		 */
+		void send(final ByteBuffer frame) {
+			if (queue == null)
+				queue = new ArrayDeque<>(2);
+			queue.addLast(frame);
+			try {
+				flush();
+			} catch (IOException | CancelledKeyException e) {
+				disconnect(this, true);
+			}
+		}
+	}
+}
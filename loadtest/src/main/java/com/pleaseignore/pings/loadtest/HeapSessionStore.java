@@ -0,0 +1,232 @@
+package com.pleaseignore.pings.loadtest;
+
+import com.pleaseignore.pings.server.GroupTopic;
+import com.pleaseignore.pings.server.PingBroadcastServer;
+
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The session store which the server used before the off-heap session table, kept as a
+ * baseline for the sessionStore scenario: a concurrent map of one object per session, each
+ * holding its strings and group arrays on the heap, and rotations planned in parallel from a
+ * copy of the map's entries. The fields and the planning work match the previous server.
+ */
+final class HeapSessionStore {
+	/**
+	 * The character set of challenge tokens.
+	 */
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	/**
+	 * The number of sessions planned by one fork/join task.
+	 */
+	private static final int PARTITION_SIZE = 4096;
+	/**
+	 * The number of milliseconds that an inactive user session remains before being removed.
+	 */
+	private static final long TTL = 86400000L * 2L;
+
+	/**
+	 * The sessions by username.
+	 */
+	private final Map<String, Session> users;
+
+	HeapSessionStore(final int expected) {
+		users = new ConcurrentHashMap<>(Math.max(128, expected));
+	}
+	/**
+	 * Starts a session, replacing any session which the user already has.
+	 *
+	 * @param username the username
+	 * @param deviceID the device ID
+	 * @param groups the IDs of the groups from which the user receives pings
+	 * @return the new session
+	 */
+	Session login(final String username, final String deviceID, final int[] groups) {
+		final Session session = new Session(deviceID, groups);
+		users.put(username, session);
+		return session;
+	}
+	/**
+	 * Plans a rotation of every session, as the previous server did from a copy of the map.
+	 *
+	 * @param current the topic of each group
+	 * @param rotate whether each group is rotated
+	 * @param pool the pool which plans the partitions
+	 * @return the number of subscription changes planned
+	 */
+	long plan(final GroupTopic[] current, final boolean[] rotate, final ForkJoinPool pool) {
+		final List<Map.Entry<String, Session>> sessions = new ArrayList<>(users.entrySet());
+		final int n = sessions.size();
+		final Plan[] parts = new Plan[(n + PARTITION_SIZE - 1) / PARTITION_SIZE];
+		pool.invoke(new PlanTask(sessions, current, rotate, parts, 0, parts.length));
+		long changes = 0L;
+		for (final Plan part : parts)
+			changes += part.getChanges();
+		return changes;
+	}
+	/**
+	 * Retrieves the number of sessions.
+	 *
+	 * @return the session count
+	 */
+	int size() {
+		return users.size();
+	}
+
+	/**
+	 * The previous on-heap user session.
+	 */
+	static final class Session {
+		/**
+		 * The challenge token bytes, cached for constant-time comparison.
+		 */
+		private final byte[] challengeBytes;
+		/**
+		 * Generated at login, used to allow client to throw out username and password.
+		 */
+		private final String challengeToken;
+		/**
+		 * The client's Firebase device ID for server side subscriptions.
+		 */
+		private final String deviceID;
+		/**
+		 * The IDs of the groups of this session, in ascending order.
+		 */
+		private final int[] groups;
+		/**
+		 * When the user last logged in.
+		 */
+		private final AtomicLong lastLogin;
+		/**
+		 * The topic epoch on which this session is confirmed subscribed to each group.
+		 */
+		private final int[] subscriptions;
+		/**
+		 * The topic codes last looked up for this session's groups, never set here.
+		 */
+		private volatile Object topicCodes;
+
+		Session(final String deviceID, final int[] groups) {
+			challengeToken = PingBroadcastServer.createTopicID();
+			challengeBytes = challengeToken.getBytes(ASCII);
+			this.deviceID = deviceID;
+			this.groups = groups.clone();
+			Arrays.sort(this.groups);
+			subscriptions = new int[groups.length];
+			lastLogin = new AtomicLong(System.currentTimeMillis());
+			topicCodes = null;
+		}
+		/**
+		 * Records that this session is subscribed to the specified topic epoch of a group.
+		 *
+		 * @param group the group ID
+		 * @param epoch the topic epoch to which the session was added
+		 */
+		synchronized void confirmSubscription(final int group, final int epoch) {
+			final int index = Arrays.binarySearch(groups, group);
+			if (index >= 0 && epoch > subscriptions[index])
+				subscriptions[index] = epoch;
+		}
+		synchronized int[] getGroups() {
+			return groups;
+		}
+		synchronized int getSubscribedEpoch(final int group) {
+			final int index = Arrays.binarySearch(groups, group);
+			return (index >= 0) ? subscriptions[index] : 0;
+		}
+		boolean isExpired() {
+			return System.currentTimeMillis() - lastLogin.get() > TTL;
+		}
+	}
+
+	/**
+	 * The subscription changes planned for one partition of sessions.
+	 */
+	private static final class Plan {
+		/**
+		 * The sessions to add to each group's new topic.
+		 */
+		private final List<List<Session>> adds;
+		/**
+		 * The sessions to remove from each group's old topic.
+		 */
+		private final List<List<Session>> removes;
+
+		Plan(final int groups) {
+			adds = new ArrayList<>(groups);
+			removes = new ArrayList<>(groups);
+			for (int i = 0; i < groups; i++) {
+				adds.add(new ArrayList<Session>(0));
+				removes.add(new ArrayList<Session>(0));
+			}
+		}
+		long getChanges() {
+			long changes = 0L;
+			for (int i = 0; i < adds.size(); i++)
+				changes += adds.get(i).size() + removes.get(i).size();
+			return changes;
+		}
+		/**
+		 * Plans the changes for one session.
+		 *
+		 * @param session the session
+		 * @param current the topic of each group
+		 * @param rotate whether each group is rotated
+		 */
+		void plan(final Session session, final GroupTopic[] current, final boolean[] rotate) {
+			final boolean expired = session.isExpired();
+			for (final int id : session.getGroups()) {
+				final GroupTopic topic = (id < current.length) ? current[id] : null;
+				if (topic != null) {
+					if ((rotate[id] || expired) && topic.hasTopic() && session.
+							getSubscribedEpoch(id) == topic.getEpoch())
+						removes.get(id).add(session);
+					if (rotate[id] && !expired)
+						adds.get(id).add(session);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Plans a range of partitions, splitting it in half until only one remains.
+	 */
+	private static final class PlanTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final GroupTopic[] current;
+		private final int from;
+		private final Plan[] parts;
+		private final boolean[] rotate;
+		private final List<Map.Entry<String, Session>> sessions;
+		private final int to;
+
+		PlanTask(final List<Map.Entry<String, Session>> sessions, final GroupTopic[] current,
+				 final boolean[] rotate, final Plan[] parts, final int from, final int to) {
+			this.current = current;
+			this.from = from;
+			this.parts = parts;
+			this.rotate = rotate;
+			this.sessions = sessions;
+			this.to = to;
+		}
+		protected void compute() {
+			if (to - from > 1) {
+				final int mid = (from + to) >>> 1;
+				invokeAll(new PlanTask(sessions, current, rotate, parts, from, mid),
+					new PlanTask(sessions, current, rotate, parts, mid, to));
+			} else if (to > from) {
+				final Plan part = new Plan(current.length);
+				final int end = Math.min(sessions.size(), to * PARTITION_SIZE);
+				for (int i = from * PARTITION_SIZE; i < end; i++)
+					part.plan(sessions.get(i).getValue(), current, rotate);
+				parts[from] = part;
+			}
+		}
+	}
+}
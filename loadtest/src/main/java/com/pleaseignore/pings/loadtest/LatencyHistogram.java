@@ -0,0 +1,133 @@
+package com.pleaseignore.pings.loadtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe latency histogram in the style of HdrHistogram. Values are recorded in
+ * microseconds into log-linear buckets: exact below 128, then 64 sub-buckets per power of two,
+ * so every reported value is within 1.6% of the recorded one while the histogram stays a fixed
+ * few kilobytes regardless of how many values are recorded.
+ */
+public final class LatencyHistogram {
+	/**
+	 * The number of sub-buckets in each power of two above the linear range.
+	 */
+	private static final int SUB_BUCKETS = 64;
+	/**
+	 * log2(SUB_BUCKETS).
+	 */
+	private static final int SUB_BUCKET_BITS = 6;
+	/**
+	 * The number of buckets, enough for any positive long.
+	 */
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + 2 * SUB_BUCKETS;
+
+	/**
+	 * Finds the bucket of a value.
+	 *
+	 * @param value the value in microseconds
+	 * @return the bucket index
+	 */
+	private static int bucketOf(final long value) {
+		final int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+		return shift * SUB_BUCKETS + (int)(value >>> shift);
+	}
+	/**
+	 * Finds the highest value which falls in a bucket.
+	 *
+	 * @param bucket the bucket index
+	 * @return the highest value of the bucket in microseconds
+	 */
+	private static long highestIn(final int bucket) {
+		final int shift = Math.max(0, (bucket >> SUB_BUCKET_BITS) - 1);
+		return ((long)(bucket - shift * SUB_BUCKETS + 1) << shift) - 1L;
+	}
+
+	/**
+	 * The number of values in each bucket.
+	 */
+	private final AtomicLongArray counts;
+	/**
+	 * The largest value recorded.
+	 */
+	private final AtomicLong max;
+	/**
+	 * The sum of all values recorded.
+	 */
+	private final AtomicLong sum;
+	/**
+	 * The number of values recorded.
+	 */
+	private final AtomicLong total;
+
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		max = new AtomicLong(0L);
+		sum = new AtomicLong(0L);
+		total = new AtomicLong(0L);
+	}
+	/**
+	 * Retrieves the number of values recorded.
+	 *
+	 * @return the value count
+	 */
+	public long getCount() {
+		return total.get();
+	}
+	/**
+	 * Retrieves the largest value recorded.
+	 *
+	 * @return the maximum in microseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+	/**
+	 * Calculates the mean of the values recorded.
+	 *
+	 * @return the mean in microseconds, or 0 if nothing was recorded
+	 */
+	public double getMean() {
+		final long n = total.get();
+		return (n == 0L) ? 0.0 : (double)sum.get() / n;
+	}
+	/**
+	 * Calculates a percentile of the values recorded.
+	 *
+	 * @param percentile the percentile from 0 to 100
+	 * @return the highest value equivalent to the percentile in microseconds, or 0 if nothing
+	 * was recorded
+	 */
+	public long getPercentile(final double percentile) {
+		final long n = total.get();
+		long ret = 0L;
+		if (n > 0L) {
+			final long target = Math.max(1L, (long)Math.ceil(percentile / 100.0 * n));
+			long seen = 0L;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts.get(i);
+				if (seen >= target) {
+					ret = Math.min(highestIn(i), max.get());
+					break;
+				}
+			}
+		}
+		return ret;
+	}
+	/**
+	 * Records a value.
+	 *
+	 * @param micros the value in microseconds; negative values are recorded as 0
+	 */
+	public void record(final long micros) {
+		final long value = Math.max(0L, micros);
+		counts.incrementAndGet(bucketOf(value));
+		total.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// Retry until this value is stored or a larger one was
+		}
+	}
+}
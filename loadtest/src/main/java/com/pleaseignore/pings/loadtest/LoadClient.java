@@ -0,0 +1,232 @@
+package com.pleaseignore.pings.loadtest;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/**
+ * Drives requests against the server under test, either closed loop (a fixed number of
+ * clients each waiting for its response) or open loop (a fixed arrival rate regardless of how
+ * the server keeps up). Open loop latency is measured from when each request was due, so a
+ * stalled server is charged for the requests it delayed rather than hiding them.
+ */
+public final class LoadClient {
+	/**
+	 * The timeout of each request.
+	 */
+	private static final Duration TIMEOUT = Duration.ofSeconds(30L);
+
+	/**
+	 * Encodes form parameters as a URL query or POST body.
+	 *
+	 * @param params the parameters
+	 * @return the encoded parameters
+	 */
+	public static String encode(final Map<String, String> params) {
+		final StringBuilder ret = new StringBuilder(64);
+		try {
+			for (final Map.Entry<String, String> entry : params.entrySet()) {
+				if (ret.length() > 0)
+					ret.append('&');
+				ret.append(URLEncoder.encode(entry.getKey(), "UTF-8"));
+				ret.append('=');
+				ret.append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+			}
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 is not supported", e);
+		}
+		return ret.toString();
+	}
+
+	/**
+	 * The base URL of the server, ending with a slash.
+	 */
+	private final String baseURL;
+	/**
+	 * The HTTP client.
+	 */
+	private final HttpClient http;
+
+	/**
+	 * Creates a new load client.
+	 *
+	 * @param baseURL the base URL of the server, ending with a slash
+	 */
+	public LoadClient(final String baseURL) {
+		if (baseURL == null)
+			throw new IllegalArgumentException("baseURL");
+		this.baseURL = baseURL;
+		http = HttpClient.newBuilder().connectTimeout(TIMEOUT).version(HttpClient.Version.
+			HTTP_1_1).build();
+	}
+	/**
+	 * Creates a GET request.
+	 *
+	 * @param path the path relative to the server root
+	 * @param params the query parameters
+	 * @return the request
+	 */
+	public HttpRequest get(final String path, final Map<String, String> params) {
+		final String query = encode(params);
+		return HttpRequest.newBuilder(URI.create(baseURL + path + ((query.length() > 0) ?
+			"?" + query : ""))).timeout(TIMEOUT).GET().build();
+	}
+	/**
+	 * Creates a form POST request.
+	 *
+	 * @param path the path relative to the server root
+	 * @param params the form parameters
+	 * @return the request
+	 */
+	public HttpRequest post(final String path, final Map<String, String> params) {
+		return post(path, encode(params));
+	}
+	/**
+	 * Creates a form POST request from an encoded body, for forms which repeat a parameter.
+	 *
+	 * @param path the path relative to the server root
+	 * @param body the encoded form parameters
+	 * @return the request
+	 */
+	public HttpRequest post(final String path, final String body) {
+		return HttpRequest.newBuilder(URI.create(baseURL + path)).timeout(TIMEOUT).header(
+			"Content-Type", "application/x-www-form-urlencoded").POST(HttpRequest.
+			BodyPublishers.ofString(body)).build();
+	}
+	/**
+	 * Runs requests closed loop: each of the clients sends its next request as soon as the
+	 * last one is answered, until the count is reached.
+	 *
+	 * @param count the total number of requests
+	 * @param clients the number of concurrent clients
+	 * @param operation the request to make
+	 * @param stats records the results
+	 * @throws InterruptedException if interrupted while waiting for the clients
+	 */
+	public void runClosed(final int count, final int clients, final Operation operation,
+						  final OperationStats stats) throws InterruptedException {
+		final AtomicLong next = new AtomicLong(0L);
+		final Thread[] threads = new Thread[Math.max(1, clients)];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					long index;
+					while ((index = next.getAndIncrement()) < count) {
+						final long start = System.nanoTime();
+						boolean ok;
+						try {
+							ok = operation.check(http.send(operation.create(index),
+								HttpResponse.BodyHandlers.ofString()));
+						} catch (IOException e) {
+							ok = false;
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							break;
+						}
+						stats.record(start, ok);
+					}
+				}
+			}, "load-client-" + i);
+			threads[i].start();
+		}
+		for (final Thread thread : threads)
+			thread.join();
+	}
+	/**
+	 * Runs requests open loop at a fixed rate. Requests which would exceed the limit on
+	 * outstanding requests fail immediately, charged with the time since they were due.
+	 *
+	 * @param rate the number of requests to start per second
+	 * @param duration the time to send requests for in nanoseconds
+	 * @param maxOutstanding the largest number of requests awaiting a response
+	 * @param operation the request to make
+	 * @param stats records the results
+	 * @throws InterruptedException if interrupted while pacing or waiting for responses
+	 */
+	public void runOpen(final double rate, final long duration, final int maxOutstanding,
+						final Operation operation, final OperationStats stats)
+			throws InterruptedException {
+		final Semaphore outstanding = new Semaphore(maxOutstanding);
+		final long start = System.nanoTime(), interval = (long)(1e9 / rate);
+		for (long index = 0L; index * interval < duration; index++) {
+			final long intended = start + index * interval;
+			long wait;
+			while ((wait = intended - System.nanoTime()) > 0L) {
+				LockSupport.parkNanos(wait);
+				if (Thread.interrupted())
+					throw new InterruptedException();
+			}
+			if (outstanding.tryAcquire()) {
+				final CompletableFuture<HttpResponse<String>> future = http.sendAsync(
+					operation.create(index), HttpResponse.BodyHandlers.ofString());
+				future.whenComplete(new BiConsumer<HttpResponse<String>, Throwable>() {
+					public void accept(final HttpResponse<String> response,
+									   final Throwable error) {
+						stats.record(intended, error == null && operation.check(response));
+						outstanding.release();
+					}
+				});
+			} else
+				stats.record(intended, false);
+		}
+		// Wait for the stragglers
+		if (outstanding.tryAcquire(maxOutstanding, TIMEOUT.toMillis() + 1000L, TimeUnit.
+				MILLISECONDS))
+			outstanding.release(maxOutstanding);
+	}
+	/**
+	 * Sends one request and waits for the response.
+	 *
+	 * @param request the request
+	 * @return the response body
+	 * @throws IOException if the request fails
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public String send(final HttpRequest request) throws IOException, InterruptedException {
+		return sendForResponse(request).body();
+	}
+	/**
+	 * Sends one request and waits for the response, including its status.
+	 *
+	 * @param request the request
+	 * @return the response
+	 * @throws IOException if the request fails
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public HttpResponse<String> sendForResponse(final HttpRequest request) throws IOException,
+			InterruptedException {
+		return http.send(request, HttpResponse.BodyHandlers.ofString());
+	}
+
+	/**
+	 * A kind of request made by a scenario.
+	 */
+	public interface Operation {
+		/**
+		 * Checks whether a response means the request succeeded.
+		 *
+		 * @param response the response
+		 * @return true if the request succeeded
+		 */
+		boolean check(HttpResponse<String> response);
+		/**
+		 * Creates the next request.
+		 *
+		 * @param index the index of the request within the run
+		 * @return the request to send
+		 */
+		HttpRequest create(long index);
+	}
+}
@@ -0,0 +1,1148 @@
+package com.pleaseignore.pings.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pleaseignore.pings.server.GroupTopic;
+import com.pleaseignore.pings.server.PingBroadcastServer;
+import com.pleaseignore.pings.server.PingServerException;
+import com.pleaseignore.pings.server.RotationPlan;
+import com.pleaseignore.pings.server.ServerSettings;
+import com.pleaseignore.pings.server.SessionTable;
+import com.pleaseignore.pings.server.TopicStore;
+import com.pleaseignore.pings.server.UserSession;
+import de.bytefish.fcmjava.client.settings.PropertiesBasedSettings;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs scripted load scenarios against an in-process ping server backed by stub FCM and
+ * Instance ID services, and writes the results as JSON so that runs can be compared.
+ *
+ * Usage: LoadTest [output file] [scenario,...] [name=value ...]
+ *
+ * Each scenario which logs in first creates its users as members of "all" through /groups,
+ * so that every login is a distinct session. The scenarios are:
+ * - logins: logins.count logins of logins.users distinct users (default logins.count) from
+ * logins.clients concurrent clients, while /forceRefresh rotates every group each
+ * logins.rotateMillis if set, then the time for the resulting subscription tasks to drain
+ * - refresh: challenge refreshes of refresh.users users at refresh.rate per second for
+ * refresh.seconds
+ * - pingStorm: pings at pingStorm.rate per second for pingStorm.seconds while /forceRefresh
+ * rotates every group each pingStorm.refreshMillis, with pingStorm.users logged in and
+ * spread in turn over pingStorm.groups more groups (default 0) named load-0 and so on
+ * - restart: pings at restart.rate per second for restart.seconds while FCM is unavailable,
+ * a stop without draining, and the time until the restarted server delivers every ping left
+ * in the write-ahead log
+ * - groupRestart: groupRestart.users users logged in and spread over groupRestart.groups
+ * groups, the first of which is deleted, then logged in again and added to one more group
+ * while the Instance ID API is unavailable, a stop without draining, and the number of
+ * devices which are not subscribed to exactly the topics of their groups once the restarted
+ * server has resumed the pending subscription tasks
+ * - badBatch: badBatch.count malformed ping batches, the same number of ping batches and
+ * of refresh batches a little over the 1 MB request limit, then the same number of well
+ * formed ping batches, each of which should be answered with 400, 413 and 200 respectively
+ * rather than left waiting
+ * - gateway: gateway.connections simulated devices of gateway.users users connected to the
+ * push gateway, then pings
+ * at gateway.rate per second for gateway.seconds while FCM is unavailable, and the delay
+ * until each device receives each ping
+ * - sessions: sessions.count logins from sessions.clients concurrent clients (default 4, so
+ * that few are shed), the heap and direct memory which the sessions keep after a full
+ * collection and how long it took, then the collections run while /forceRefresh rotates
+ * every group each sessions.refreshMillis for sessions.seconds (not run by default)
+ * - sessionStore: sessionStore.count sessions in the previous on-heap session map, then the
+ * same sessions in the off-heap session table, with for each the heap and direct memory kept,
+ * the full collection time, and sessionStore.rotations rotation plans of every group, each
+ * session being in "all" and one of sessionStore.groups more groups (default 8); no server
+ * is started (not run by default)
+ *
+ * Parameters named server.* are passed to the server settings without the prefix, and
+ * stub.fcmLatencyMillis and stub.iidLatencyMillis set the stub round trip times. Each
+ * scenario runs against a fresh server and stub.
+ */
+public final class LoadTest {
+	/**
+	 * Used to convert objects to and from JSON.
+	 */
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	/**
+	 * The most members added to a group by one request.
+	 */
+	private static final int MEMBER_BATCH = 1000;
+	/**
+	 * The password accepted by the local authentication provider.
+	 */
+	private static final String PASSWORD = "password";
+	/**
+	 * How long to wait before retrying a request shed by the server in milliseconds.
+	 */
+	private static final long SHED_RETRY_MILLIS = 100L;
+
+	/**
+	 * Deletes a directory and everything in it.
+	 *
+	 * @param dir the directory
+	 */
+	private static void deleteAll(final File dir) {
+		final File[] children = dir.listFiles();
+		if (children != null)
+			for (final File child : children)
+				deleteAll(child);
+		if (!dir.delete())
+			dir.deleteOnExit();
+	}
+	/**
+	 * Runs a full collection, as a stand-in for the longest pause that the live heap causes.
+	 *
+	 * @return the time taken in nanoseconds
+	 */
+	private static long collectGarbage() {
+		final long begin = System.nanoTime();
+		System.gc();
+		return System.nanoTime() - begin;
+	}
+	/**
+	 * Creates a random device token shaped like an FCM registration token.
+	 *
+	 * @param random the random source
+	 * @return the 152 character token
+	 */
+	private static String deviceToken(final Random random) {
+		final String chars = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz-_";
+		final char[] token = new char[152];
+		for (int i = 0; i < token.length; i++)
+			token[i] = chars.charAt(random.nextInt(chars.length()));
+		// Registration tokens start with an instance ID and a colon
+		token[22] = ':';
+		return new String(token);
+	}
+	/**
+	 * Finds a free local port for the server.
+	 *
+	 * @return the port number
+	 * @throws IOException if no port is available
+	 */
+	private static int freePort() throws IOException {
+		final ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+	/**
+	 * Retrieves the number of bytes of direct buffers in use by this JVM.
+	 *
+	 * @return the direct memory used in bytes
+	 */
+	private static long getDirectUsed() {
+		long used = 0L;
+		for (final BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(
+				BufferPoolMXBean.class))
+			if (pool.getName().equals("direct"))
+				used += pool.getMemoryUsed();
+		return used;
+	}
+	/**
+	 * Retrieves the collections run by every garbage collector of this JVM so far.
+	 *
+	 * @return the collection count and the total collection time in milliseconds
+	 */
+	private static long[] getGcTotals() {
+		final long[] totals = new long[2];
+		for (final GarbageCollectorMXBean collector : ManagementFactory.
+				getGarbageCollectorMXBeans()) {
+			totals[0] += Math.max(0L, collector.getCollectionCount());
+			totals[1] += Math.max(0L, collector.getCollectionTime());
+		}
+		return totals;
+	}
+	/**
+	 * Retrieves the number of bytes of heap in use by this JVM.
+	 *
+	 * @return the heap used in bytes
+	 */
+	private static long getHeapUsed() {
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+	public static void main(String[] args) {
+		final File out = new File((args.length > 0) ? args[0] : "loadtest-results.json");
+		final String scenarios = (args.length > 1) ? args[1] : "logins,refresh,pingStorm," +
+			"restart,groupRestart,badBatch,gateway";
+		final Map<String, String> params = new LinkedHashMap<>(16);
+		for (int i = 2; i < args.length; i++)
+			for (final String pair : args[i].trim().split("[\\s,]+")) {
+				final int index = pair.indexOf('=');
+				if (index > 0)
+					params.put(pair.substring(0, index), pair.substring(index + 1));
+			}
+		// The server enables TCP_NODELAY when its class is loaded, but the setting is fixed by
+		// the first HTTP server in the JVM, which here is the stub
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		// Keep the server quiet, its INFO logs would swamp the results
+		final Level level = Level.parse(params.getOrDefault("log", "WARNING"));
+		Logger.getLogger("").setLevel(level);
+		for (final Handler handler : Logger.getLogger("").getHandlers())
+			handler.setLevel(level);
+		try {
+			final LoadTest test = new LoadTest(params);
+			final List<ScenarioReport> reports = new ArrayList<>(4);
+			for (final String name : scenarios.split(","))
+				if (name.trim().length() > 0) {
+					System.out.println("Running " + name.trim());
+					final ScenarioReport report = test.run(name.trim());
+					print(report);
+					reports.add(report);
+				}
+			final Map<String, Object> results = new LinkedHashMap<>(8);
+			results.put("started", new Date().toString());
+			results.put("javaVersion", System.getProperty("java.version"));
+			results.put("processors", Runtime.getRuntime().availableProcessors());
+			results.put("scenarios", reports);
+			final OutputStream os = new FileOutputStream(out);
+			try {
+				MAPPER.writerWithDefaultPrettyPrinter().writeValue(os, results);
+			} finally {
+				os.close();
+			}
+			System.out.println("Results written to " + out);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		// The HTTP client and stubs leave non-daemon threads behind
+		System.exit(0);
+	}
+	/**
+	 * Prints a summary of a scenario report.
+	 *
+	 * @param report the report
+	 */
+	private static void print(final ScenarioReport report) {
+		System.out.printf("  %s: %d ms%n", report.name, report.durationMillis);
+		if (report.error != null)
+			System.out.printf("    error: %s%n", report.error);
+		for (final Map.Entry<String, OperationReport> entry : report.operations.entrySet()) {
+			final OperationReport op = entry.getValue();
+			System.out.printf("    %s: %d requests, %d errors, %.1f/s, p50 %.2f ms, p99 %.2f " +
+				"ms, p99.9 %.2f ms, max %.2f ms%n", entry.getKey(), op.count, op.errors,
+				op.throughput, op.p50Millis, op.p99Millis, op.p999Millis, op.maxMillis);
+		}
+		for (final Map.Entry<String, Long> entry : report.counters.entrySet())
+			System.out.printf("    %s = %d%n", entry.getKey(), entry.getValue());
+	}
+
+	/**
+	 * The load client for the server now running.
+	 */
+	private LoadClient client;
+	/**
+	 * The port on which the next server runs its push gateway, or 0 to disable it.
+	 */
+	private int gatewayPort;
+	/**
+	 * The scenario parameters.
+	 */
+	private final Map<String, String> params;
+	/**
+	 * The report of the scenario now running.
+	 */
+	private ScenarioReport report;
+
+	/**
+	 * Creates a new load test.
+	 *
+	 * @param params the scenario and server parameters
+	 */
+	public LoadTest(final Map<String, String> params) {
+		if (params == null)
+			throw new IllegalArgumentException("params");
+		client = null;
+		gatewayPort = 0;
+		this.params = params;
+		report = null;
+	}
+	/**
+	 * Changes a group through /groups, retrying while the request is shed.
+	 *
+	 * @param action the action, such as "create" or "members"
+	 * @param group the group name
+	 * @param add the usernames to add
+	 * @throws IOException if the request fails or the server refuses the change
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private void changeGroup(final String action, final String group,
+							 final Collection<String> add) throws IOException,
+			InterruptedException {
+		final Map<String, String> form = new LinkedHashMap<>(4);
+		form.put("action", action);
+		form.put("group", group);
+		final StringBuilder body = new StringBuilder(LoadClient.encode(form));
+		for (final String username : add)
+			body.append("&add=").append(URLEncoder.encode(username, StandardCharsets.UTF_8));
+		HttpResponse<String> response;
+		while ((response = client.sendForResponse(client.post("groups", body.toString()))).
+				statusCode() == 503)
+			Thread.sleep(SHED_RETRY_MILLIS);
+		// Changed groups are described, refused changes only have a status
+		if (response.statusCode() != 200 || !MAPPER.readTree(response.body()).has("name"))
+			throw new IOException("Unable to " + action + " group " + group + ": " +
+				response.body());
+	}
+	/**
+	 * Spreads users over the groups load-0 to load-(groups - 1) in turn, creating the groups
+	 * and adding their members in batches.
+	 *
+	 * @param users the number of users, named by username()
+	 * @param groups the number of groups
+	 * @throws IOException if the groups cannot be created
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private void createGroups(final int users, final int groups) throws IOException,
+			InterruptedException {
+		for (int group = 0; group < groups; group++) {
+			final String name = "load-" + group;
+			changeGroup("create", name, Collections.<String>emptyList());
+			final List<String> batch = new ArrayList<>(MEMBER_BATCH);
+			for (int i = group; i < users; i += groups) {
+				batch.add(username(i));
+				if (batch.size() >= MEMBER_BATCH || i + groups >= users) {
+					changeGroup("members", name, batch);
+					batch.clear();
+				}
+			}
+		}
+	}
+	/**
+	 * Creates users as members of "all", in batches.
+	 *
+	 * @param count the number of users, named by username()
+	 * @throws IOException if the members cannot be added
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private void createMembers(final int count) throws IOException, InterruptedException {
+		for (int first = 0; first < count; first += MEMBER_BATCH) {
+			final int last = Math.min(count, first + MEMBER_BATCH);
+			final List<String> batch = new ArrayList<>(last - first);
+			for (int i = first; i < last; i++)
+				batch.add(username(i));
+			changeGroup("members", "all", batch);
+		}
+	}
+	/**
+	 * Retrieves a scenario parameter and records it in the report.
+	 *
+	 * @param name the parameter name
+	 * @param def the default value
+	 * @return the parameter value
+	 */
+	private double getParam(final String name, final double def) {
+		double value = def;
+		final String text = params.get(name);
+		if (text != null)
+			value = Double.parseDouble(text);
+		report.parameters.put(name, value);
+		return value;
+	}
+	/**
+	 * Retrieves a server metric.
+	 *
+	 * @param name the top level metric name
+	 * @return the metric value, or -1 if unavailable
+	 * @throws IOException if the request fails
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private long getMetric(final String name) throws IOException, InterruptedException {
+		HttpResponse<String> response;
+		// Metrics are shed like any other request when the server is busy
+		while ((response = client.sendForResponse(client.get("metrics", Collections.
+				<String, String>emptyMap()))).statusCode() == 503)
+			Thread.sleep(SHED_RETRY_MILLIS);
+		return MAPPER.readTree(response.body()).path(name).asLong(-1L);
+	}
+	/**
+	 * Logs in users, cycling through the members with a distinct device for each login.
+	 *
+	 * @param count the number of logins
+	 * @param users the number of members to cycle through
+	 * @param clients the number of concurrent clients
+	 * @param stats records the results
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private void login(final int count, final int users, final int clients,
+					   final OperationStats stats) throws InterruptedException {
+		client.runClosed(count, clients, new LoadClient.Operation() {
+			public boolean check(final HttpResponse<String> response) {
+				return response.statusCode() == 200 && readChallenge(response.body()).
+					length() > 0;
+			}
+			public HttpRequest create(final long index) {
+				final Map<String, String> form = new LinkedHashMap<>(4);
+				form.put("username", username(index % users));
+				form.put("password", PASSWORD);
+				form.put("deviceID", "device-" + index);
+				return client.post("login", form);
+			}
+		}, stats);
+	}
+	/**
+	 * Logs in each user once, one at a time.
+	 *
+	 * @param usernames the usernames to log in
+	 * @return the challenge of each user
+	 * @throws IOException if a login fails
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private String[] loginEach(final String[] usernames) throws IOException,
+			InterruptedException {
+		final String[] challenges = new String[usernames.length];
+		for (int i = 0; i < usernames.length; i++) {
+			final Map<String, String> form = new LinkedHashMap<>(4);
+			form.put("username", usernames[i]);
+			form.put("password", PASSWORD);
+			form.put("deviceID", "device-" + i);
+			challenges[i] = readChallenge(client.send(client.post("login", form)));
+			if (challenges[i].length() == 0)
+				throw new IOException("Unable to log in " + usernames[i]);
+		}
+		return challenges;
+	}
+	/**
+	 * Fills one session store and measures the heap and direct memory it keeps, the time of a
+	 * full collection, and the time and collections of the specified rotation plans. The store
+	 * becomes unreachable on return.
+	 *
+	 * @param store "heap" for the previous on-heap session map, or "offHeap" for the table
+	 * @param count the number of sessions
+	 * @param rotations the number of rotation plans
+	 * @param current the topic of each group
+	 * @param rotate whether each group is rotated
+	 */
+	private void measureSessionStore(final String store, final int count, final int rotations,
+									 final GroupTopic[] current, final boolean[] rotate) {
+		final int extraGroups = current.length - 1;
+		collectGarbage();
+		final long heapBefore = getHeapUsed(), directBefore = getDirectUsed();
+		final HeapSessionStore heap = store.equals("heap") ? new HeapSessionStore(count) : null;
+		final SessionTable table = (heap == null) ? new SessionTable(count) : null;
+		// Both stores get the same devices, each keeping its own copy
+		final Random random = new Random(1L);
+		final long fillBegin = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			final int[] groups = { 0, 1 + i % extraGroups };
+			final String device = deviceToken(random);
+			// Confirmed on the current topics, so that plans both add and remove them
+			if (heap != null) {
+				final HeapSessionStore.Session session = heap.login(username(i), device,
+					groups);
+				for (final int group : groups)
+					session.confirmSubscription(group, 1);
+			} else {
+				final UserSession session = table.login(username(i), device, groups);
+				for (final int group : groups)
+					session.confirmSubscription(group, 1);
+			}
+		}
+		report.counters.put(store + ".fillMillis", (System.nanoTime() - fillBegin) /
+			1000000L);
+		final long fullGc = collectGarbage(), heapUsed = getHeapUsed() - heapBefore;
+		report.counters.put(store + ".heapBytes", heapUsed);
+		report.counters.put(store + ".heapBytesEach", heapUsed / Math.max(1, count));
+		report.counters.put(store + ".directBytes", getDirectUsed() - directBefore);
+		report.counters.put(store + ".fullGcMillis", fullGc / 1000000L);
+		final boolean[] resume = new boolean[current.length];
+		final long[] gcBefore = getGcTotals();
+		final long planBegin = System.nanoTime();
+		final OperationStats plans = new OperationStats(planBegin);
+		long changes = 0L;
+		for (int i = 0; i < rotations; i++) {
+			final long begin = System.nanoTime();
+			if (heap != null)
+				changes = heap.plan(current, rotate, ForkJoinPool.commonPool());
+			else {
+				final RotationPlan plan = RotationPlan.create(table, current, rotate, resume,
+					Collections.<String>emptySet(), ForkJoinPool.commonPool());
+				changes = 0L;
+				for (int j = 0; j < current.length; j++)
+					changes += plan.getAdds(j).size() + plan.getRemoves(j).size();
+			}
+			plans.record(begin, true);
+		}
+		final long[] gcAfter = getGcTotals();
+		report.operations.put(store + ".plan", plans.toReport(System.nanoTime() - planBegin));
+		report.counters.put(store + ".planChanges", changes);
+		report.counters.put(store + ".rotationGcCount", gcAfter[0] - gcBefore[0]);
+		report.counters.put(store + ".rotationGcMillis", gcAfter[1] - gcBefore[1]);
+		// Also keeps the store reachable until it has been measured
+		report.counters.put(store + ".sessions", (long)((heap != null) ? heap.size() : table.
+			size()));
+	}
+	/**
+	 * Posts the same batch many times, checks the status of each response, and reports the
+	 * results as an operation.
+	 *
+	 * @param name the operation name
+	 * @param path the batch endpoint relative to the server root
+	 * @param count the number of batches
+	 * @param body the request body
+	 * @param status the status which the server should answer with
+	 * @return the number of batches not answered with the status
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private long postBatches(final String name, final String path, final int count,
+							 final String body, final int status) throws InterruptedException {
+		final long begin = System.nanoTime();
+		final OperationStats stats = new OperationStats(begin);
+		client.runClosed(count, 1, new LoadClient.Operation() {
+			public boolean check(final HttpResponse<String> response) {
+				return response.statusCode() == status;
+			}
+			public HttpRequest create(final long index) {
+				return client.post(path, body);
+			}
+		}, stats);
+		final OperationReport result = stats.toReport(System.nanoTime() - begin);
+		report.operations.put(name, result);
+		return result.errors;
+	}
+	/**
+	 * Extracts the challenge from a login or refresh response.
+	 *
+	 * @param body the response body
+	 * @return the challenge, or an empty string if there is none
+	 */
+	private static String readChallenge(final String body) {
+		try {
+			return MAPPER.readTree(body).path("challenge").asText("");
+		} catch (IOException e) {
+			return "";
+		}
+	}
+	/**
+	 * Starts a thread which rotates every group through /forceRefresh at a fixed interval.
+	 * Rotations refused with 503 or reset are retried, and charged to the rotation.
+	 *
+	 * @param end the System.nanoTime() at which to stop, or Long.MAX_VALUE to run until
+	 * interrupted
+	 * @param interval the time between rotations in milliseconds
+	 * @param refreshes the statistics to record each rotation in
+	 * @param retries counts the requests which were retried
+	 * @return the started thread
+	 */
+	private Thread startRotator(final long end, final long interval,
+			final OperationStats refreshes, final AtomicLong retries) {
+		final Thread rotator = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (System.nanoTime() < end) {
+						final long begin = System.nanoTime();
+						boolean ok = false, retry;
+						// Shed and reset requests are retried, and charged to the rotation
+						do {
+							try {
+								final HttpResponse<String> response = client.
+									sendForResponse(client.get("forceRefresh",
+									Collections.<String, String>emptyMap()));
+								retry = response.statusCode() == 503;
+								ok = response.body().contains("done");
+							} catch (IOException e) {
+								retry = true;
+							}
+							if (retry) {
+								retries.incrementAndGet();
+								Thread.sleep(SHED_RETRY_MILLIS);
+							}
+						} while (retry && System.nanoTime() < end);
+						refreshes.record(begin, ok);
+						Thread.sleep(Math.max(0L, Math.min(interval, (end - System.
+							nanoTime()) / 1000000L)));
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "load-rotator");
+		rotator.start();
+		return rotator;
+	}
+	/**
+	 * Runs a scenario against a fresh server and stub.
+	 *
+	 * @param name the scenario name
+	 * @return the scenario report
+	 * @throws Exception if the scenario cannot be run
+	 */
+	public ScenarioReport run(final String name) throws Exception {
+		final File dir = Files.createTempDirectory("pings-loadtest").toFile();
+		final StubBackend stub = new StubBackend(64);
+		report = new ScenarioReport(name);
+		stub.setFcmLatency((long)getParam("stub.fcmLatencyMillis", 20.0));
+		stub.setIidLatency((long)getParam("stub.iidLatencyMillis", 20.0));
+		stub.start();
+		final long start = System.nanoTime();
+		try {
+			switch (name) {
+			case "badBatch":
+				runBadBatch(dir, stub);
+				break;
+			case "gateway":
+				runGateway(dir, stub, start);
+				break;
+			case "groupRestart":
+				runGroupRestart(dir, stub);
+				break;
+			case "logins":
+				runLogins(dir, stub, start);
+				break;
+			case "pingStorm":
+				runPingStorm(dir, stub, start);
+				break;
+			case "refresh":
+				runRefresh(dir, stub, start);
+				break;
+			case "restart":
+				runRestart(dir, stub, start);
+				break;
+			case "sessionStore":
+				runSessionStore();
+				break;
+			case "sessions":
+				runSessions(dir, stub, start);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown scenario: " + name);
+			}
+		} finally {
+			stub.stop();
+			deleteAll(dir);
+		}
+		report.durationMillis = (System.nanoTime() - start) / 1000000L;
+		report.counters.putAll(stub.getCounters());
+		return report;
+	}
+	/**
+	 * Posts malformed and oversized ping batches, oversized refresh batches, then well formed
+	 * ping batches, and checks that each is answered promptly with its status: 400, 413 and
+	 * 200. A body which the server gives up on without answering leaves the client waiting
+	 * until its timeout.
+	 */
+	private void runBadBatch(final File dir, final StubBackend stub) throws Exception {
+		final int count = (int)getParam("badBatch.count", 20.0);
+		final StringBuilder oversized = new StringBuilder(1100000);
+		oversized.append('[');
+		// A little over the 1 MB request limit, as fewer pings than the most in one batch
+		for (int i = 0; oversized.length() < 1100000; i++)
+			oversized.append((i > 0) ? "," : "").append("{\"group\":\"all\",\"text\":\"").
+				append(String.format("Oversized batch ping %09600d", i)).append("\"}");
+		oversized.append(']');
+		final PingBroadcastServer server = startServer(dir, stub);
+		try {
+			long errors = postBatches("malformed", "ping/batch", count, "[{\"group\":\"all\"," +
+				"\"text\":\"Truncated", 400);
+			errors += postBatches("oversized", "ping/batch", count, oversized.toString(), 413);
+			// Refresh batches share the request limit
+			errors += postBatches("oversizedRefresh", "refresh/batch", count, oversized.
+				toString(), 413);
+			// The server still accepts batches after refusing the bad ones
+			errors += postBatches("batch", "ping/batch", count, "[{\"group\":\"all\",\"text\":" +
+				"\"Batch ping\"}]", 200);
+			if (errors > 0L)
+				report.error = errors + " batches were not answered with their status";
+		} finally {
+			server.stop();
+		}
+	}
+	/**
+	 * Connects many simulated devices to the push gateway, then sends pings at a steady rate
+	 * while FCM is unavailable, so that the gateway is the only way they arrive.
+	 */
+	private void runGateway(final File dir, final StubBackend stub, final long start)
+			throws Exception {
+		final int devices = (int)getParam("gateway.connections", 1000.0), users = (int)getParam(
+			"gateway.users", 100.0);
+		final double rate = getParam("gateway.rate", 10.0);
+		final long duration = (long)(getParam("gateway.seconds", 10.0) * 1e9), limit =
+			(long)getParam("gateway.drainSeconds", 30.0) * 1000L;
+		stub.setFcmFailing(true);
+		gatewayPort = freePort();
+		final PingBroadcastServer server = startServer(dir, stub);
+		final OperationStats deliveries = new OperationStats(start);
+		final GatewaySimulator simulator = new GatewaySimulator(new InetSocketAddress(
+			"127.0.0.1", gatewayPort), deliveries);
+		try {
+			createMembers(users);
+			final String[] usernames = usernames(users), challenges = loginEach(usernames);
+			final long connecting = System.nanoTime();
+			simulator.connect(devices, usernames, challenges);
+			report.counters.put("connected", (long)simulator.waitForConnected(devices, limit));
+			report.counters.put("connectMillis", (System.nanoTime() - connecting) / 1000000L);
+			final OperationStats pings = new OperationStats(System.nanoTime());
+			client.runOpen(rate, duration, 10000, new LoadClient.Operation() {
+				public boolean check(final HttpResponse<String> response) {
+					final String body = response.body();
+					return response.statusCode() == 200 && (body.contains("\"sent\"") || body.
+						contains("\"queued\""));
+				}
+				public HttpRequest create(final long index) {
+					final Map<String, String> query = new LinkedHashMap<>(4);
+					query.put("body", "Gateway ping " + index);
+					query.put("group", "all");
+					return client.get("ping", query);
+				}
+			}, pings);
+			final OperationReport sent = pings.toReport(duration);
+			report.operations.put("ping", sent);
+			// Every device is in "all", so each accepted ping should reach all of them
+			final long expected = (sent.count - sent.errors) * simulator.getConnected(),
+				deadline = System.currentTimeMillis() + limit;
+			while (simulator.getReceived() < expected && simulator.getError() == null && System.
+					currentTimeMillis() < deadline)
+				Thread.sleep(50L);
+			report.operations.put("push", deliveries.toReport(System.nanoTime() - start));
+			report.counters.put("expected", expected);
+			report.counters.put("received", simulator.getReceived());
+			report.counters.put("disconnected", (long)simulator.getFailed());
+			report.counters.put("heartbeats", simulator.getHeartbeats());
+			// A dead simulator loses every later push, which is not the gateway's fault
+			final Throwable error = simulator.getError();
+			if (error != null)
+				report.error = "Gateway simulator stopped: " + error;
+		} finally {
+			simulator.close();
+			server.stop();
+			gatewayPort = 0;
+		}
+	}
+	/**
+	 * Deletes a group so that the IDs of the groups after it are no longer dense, queues
+	 * device updates and the adds of a new group while the Instance ID API is unavailable,
+	 * stops without draining, and checks the subscriptions left once the restarted server has
+	 * resumed them. Every device should end up subscribed to the current topics of exactly
+	 * its groups.
+	 */
+	private void runGroupRestart(final File dir, final StubBackend stub) throws Exception {
+		final int users = (int)getParam("groupRestart.users", 300.0), groups = Math.max(2,
+			(int)getParam("groupRestart.groups", 3.0));
+		final long limit = (long)getParam("groupRestart.drainSeconds", 60.0) * 1000000000L;
+		final String[] usernames = usernames(users);
+		final String added = "load-" + groups;
+		PingBroadcastServer server = startServer(dir, stub);
+		try {
+			createMembers(users);
+			createGroups(users, groups);
+			loginEach(usernames);
+			waitFor("outbox", limit);
+			// The members of load-0 are left in "all" only
+			changeGroup("delete", "load-0", Collections.<String>emptyList());
+			waitFor("outbox", limit);
+			stub.setIidFailing(true);
+			// The new group's adds and the new sessions' updates wait to be retried, and the
+			// updates already include the new group
+			changeGroup("create", added, Collections.<String>emptyList());
+			for (int first = 0; first < users; first += MEMBER_BATCH)
+				changeGroup("members", added, Arrays.asList(usernames).subList(first, Math.
+					min(users, first + MEMBER_BATCH)));
+			loginEach(usernames);
+			report.counters.put("pendingBeforeStop", getMetric("outbox"));
+			server.stop();
+			server = null;
+		} finally {
+			if (server != null)
+				server.stop();
+		}
+		stub.setIidFailing(false);
+		// Resumed adds are paced over the rotation window unless told otherwise
+		final String window = "server." + ServerSettings.ROTATION_WINDOW_MINUTES;
+		final boolean paced = params.containsKey(window);
+		if (!paced)
+			params.put(window, "0");
+		try {
+			server = startServer(dir, stub);
+		} finally {
+			if (!paced)
+				params.remove(window);
+		}
+		try {
+			report.counters.put("resumed", getMetric("outbox"));
+			report.counters.put("drainMillis", waitFor("outbox", limit) / 1000000L);
+			report.counters.put("remaining", getMetric("outbox"));
+		} finally {
+			server.stop();
+		}
+		// The stopped server left the current topic of each group in its topic store
+		final Map<String, String> topics = new HashMap<>(16);
+		final TopicStore store = new TopicStore(new File(dir, "topics.dat"));
+		try {
+			for (final TopicStore.Entry entry : store.open())
+				topics.put(entry.getTopic().getName(), entry.getTopic().getTopic());
+		} finally {
+			store.close();
+		}
+		long wrong = 0L;
+		for (int i = 0; i < users; i++) {
+			final Set<String> expected = new TreeSet<>();
+			expected.add(topics.get("all"));
+			expected.add(topics.get(added));
+			if (i % groups != 0)
+				expected.add(topics.get("load-" + (i % groups)));
+			if (!stub.getSubscriptions("device-" + i).equals(expected))
+				wrong++;
+		}
+		report.counters.put("devices", (long)users);
+		report.counters.put("wrongSubscriptions", wrong);
+		if (wrong > 0L)
+			report.error = wrong + " devices are not subscribed to exactly their groups";
+	}
+	/**
+	 * Logs in many users as fast as the server accepts them, then waits for the subscription
+	 * tasks they queued to drain.
+	 */
+	private void runLogins(final File dir, final StubBackend stub, final long start)
+			throws Exception {
+		final int count = (int)getParam("logins.count", 100000.0), users = (int)getParam(
+			"logins.users", count), clients = (int)getParam("logins.clients", 64.0);
+		final long drainLimit = (long)getParam("logins.drainSeconds", 300.0) * 1000000000L,
+			interval = (long)getParam("logins.rotateMillis", 0.0);
+		final PingBroadcastServer server = startServer(dir, stub);
+		try {
+			createMembers(users);
+			// Creating the members is not part of the measurement
+			final long begin = System.nanoTime();
+			final OperationStats stats = new OperationStats(begin), refreshes =
+				new OperationStats(begin);
+			final AtomicLong retries = new AtomicLong(0L);
+			// Rotations run until the logins finish, not for a fixed time
+			final Thread rotator = (interval > 0L) ? startRotator(Long.MAX_VALUE, interval,
+				refreshes, retries) : null;
+			try {
+				login(count, users, clients, stats);
+			} finally {
+				if (rotator != null) {
+					rotator.interrupt();
+					rotator.join();
+				}
+			}
+			final long elapsed = System.nanoTime() - begin;
+			report.operations.put("login", stats.toReport(elapsed));
+			if (rotator != null) {
+				report.operations.put("forceRefresh", refreshes.toReport(elapsed));
+				report.counters.put("forceRefreshRetries", retries.get());
+			}
+			final long loggedIn = System.nanoTime();
+			report.counters.put("subscriptionBacklog", getMetric("outbox"));
+			report.counters.put("subscriptionDrainMillis", waitFor("outbox", drainLimit) /
+				1000000L);
+			report.counters.put("subscriptionRemaining", getMetric("outbox"));
+			report.counters.put("loginToDrainMillis", (System.nanoTime() - loggedIn) /
+				1000000L);
+		} finally {
+			server.stop();
+		}
+	}
+	/**
+	 * Sends pings at a steady rate while groups are rotated repeatedly.
+	 */
+	private void runPingStorm(final File dir, final StubBackend stub, final long start)
+			throws Exception {
+		final int users = (int)getParam("pingStorm.users", 1000.0), groups = (int)getParam(
+			"pingStorm.groups", 0.0);
+		final double rate = getParam("pingStorm.rate", 200.0);
+		final long duration = (long)(getParam("pingStorm.seconds", 20.0) * 1e9), interval =
+			(long)getParam("pingStorm.refreshMillis", 2000.0);
+		final PingBroadcastServer server = startServer(dir, stub);
+		try {
+			// Subscribe some users first so that rotations have work to do
+			createMembers(users);
+			createGroups(users, groups);
+			login(users, users, 16, new OperationStats(start));
+			waitFor("outbox", 60000000000L);
+			final OperationStats pings = new OperationStats(start), refreshes =
+				new OperationStats(start);
+			final AtomicLong retries = new AtomicLong(0L);
+			final Thread rotator = startRotator(System.nanoTime() + duration, interval,
+				refreshes, retries);
+			client.runOpen(rate, duration, 10000, new LoadClient.Operation() {
+				public boolean check(final HttpResponse<String> response) {
+					final String body = response.body();
+					return response.statusCode() == 200 && (body.contains("\"sent\"") || body.
+						contains("\"queued\""));
+				}
+				public HttpRequest create(final long index) {
+					final Map<String, String> query = new LinkedHashMap<>(4);
+					query.put("body", "Storm ping " + index);
+					query.put("group", "all");
+					return client.get("ping", query);
+				}
+			}, pings);
+			rotator.join();
+			final long elapsed = System.nanoTime() - start;
+			report.operations.put("ping", pings.toReport(elapsed));
+			report.operations.put("forceRefresh", refreshes.toReport(elapsed));
+			report.counters.put("forceRefreshRetries", retries.get());
+			report.counters.put("pendingPings", getMetric("pendingPings"));
+		} finally {
+			server.stop();
+		}
+	}
+	/**
+	 * Refreshes challenges at a steady rate.
+	 */
+	private void runRefresh(final File dir, final StubBackend stub, final long start)
+			throws Exception {
+		final double rate = getParam("refresh.rate", 2000.0);
+		final long duration = (long)(getParam("refresh.seconds", 30.0) * 1e9);
+		final int users = (int)getParam("refresh.users", 100.0);
+		final PingBroadcastServer server = startServer(dir, stub);
+		try {
+			// Log in each user once to obtain challenges
+			createMembers(users);
+			final String[] usernames = usernames(users), challenges = loginEach(usernames);
+			final OperationStats stats = new OperationStats(System.nanoTime());
+			client.runOpen(rate, duration, 10000, new LoadClient.Operation() {
+				public boolean check(final HttpResponse<String> response) {
+					return response.statusCode() == 200 && readChallenge(response.body()).
+						length() > 0;
+				}
+				public HttpRequest create(final long index) {
+					final int user = (int)(index % users);
+					final Map<String, String> form = new LinkedHashMap<>(4);
+					form.put("username", usernames[user]);
+					form.put("challenge", challenges[user]);
+					return client.post("refresh", form);
+				}
+			}, stats);
+			report.operations.put("refresh", stats.toReport(duration));
+		} finally {
+			server.stop();
+		}
+	}
+	/**
+	 * Sends pings at a steady rate while FCM is unavailable, stops the server without
+	 * draining before their retries run out, and measures how long the restarted server takes
+	 * to deliver the pings left in the write-ahead log.
+	 */
+	private void runRestart(final File dir, final StubBackend stub, final long start)
+			throws Exception {
+		final double rate = getParam("restart.rate", 100.0);
+		final long duration = (long)(getParam("restart.seconds", 2.0) * 1e9), limit =
+			(long)getParam("restart.recoverySeconds", 120.0) * 1000000000L;
+		final OperationStats stats = new OperationStats(start);
+		stub.setFcmFailing(true);
+		PingBroadcastServer server = startServer(dir, stub);
+		try {
+			final LoadClient pinger = client;
+			final Thread sender = new Thread(new Runnable() {
+				public void run() {
+					try {
+						pinger.runOpen(rate, duration, 10000, new LoadClient.Operation() {
+							public boolean check(final HttpResponse<String> response) {
+								final String body = response.body();
+								return response.statusCode() == 200 && (body.contains(
+									"\"sent\"") || body.contains("\"queued\""));
+							}
+							public HttpRequest create(final long index) {
+								final Map<String, String> query = new LinkedHashMap<>(4);
+								query.put("body", "Restart ping " + index);
+								query.put("group", "all");
+								return pinger.get("ping", query);
+							}
+						}, stats);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, "load-pinger");
+			sender.start();
+			// Stop while the pings are waiting to be retried
+			Thread.sleep(duration / 1000000L);
+			report.counters.put("pendingBeforeStop", getMetric("pendingPings"));
+			server.stop();
+			server = null;
+			sender.join();
+		} finally {
+			if (server != null)
+				server.stop();
+		}
+		final OperationReport pings = stats.toReport(System.nanoTime() - start);
+		report.operations.put("ping", pings);
+		stub.setFcmFailing(false);
+		final long restart = System.nanoTime();
+		server = startServer(dir, stub);
+		try {
+			report.counters.put("restartMillis", (System.nanoTime() - restart) / 1000000L);
+			report.counters.put("resumed", getMetric("pendingPings"));
+			report.counters.put("recoveryMillis", waitFor("pendingPings", limit) / 1000000L);
+			report.counters.put("pendingAfterRecovery", getMetric("pendingPings"));
+			// Queued pings must all arrive, those cut off by the stop may have been logged or not
+			final long accepted = pings.count - pings.errors;
+			report.counters.put("accepted", accepted);
+			report.counters.put("lost", Math.max(0L, accepted - stub.getDelivered()));
+		} finally {
+			server.stop();
+		}
+	}
+	/**
+	 * Fills the previous on-heap session map and the off-heap session table in turn with the
+	 * same sessions, and measures each with the same rotation plans. No server runs, so only
+	 * the stores and their planning are measured.
+	 */
+	private void runSessionStore() {
+		final int count = (int)getParam("sessionStore.count", 1000000.0), extraGroups = Math.
+			max(1, (int)getParam("sessionStore.groups", 8.0)), rotations = (int)getParam(
+			"sessionStore.rotations", 10.0);
+		// Group 0 is "all", and every group is rotated by every plan
+		final GroupTopic[] current = new GroupTopic[extraGroups + 1];
+		final boolean[] rotate = new boolean[current.length];
+		for (int i = 0; i < current.length; i++) {
+			current[i] = new GroupTopic(i, (i == 0) ? "all" : "load-" + (i - 1),
+				PingBroadcastServer.createTopicID(), 1);
+			rotate[i] = true;
+		}
+		measureSessionStore("heap", count, rotations, current, rotate);
+		measureSessionStore("offHeap", count, rotations, current, rotate);
+	}
+	/**
+	 * Logs in many sessions, then measures the heap which they keep and the collections run
+	 * while every group is rotated repeatedly. The load test shares the JVM with the server,
+	 * so its own garbage is counted too.
+	 */
+	private void runSessions(final File dir, final StubBackend stub, final long start)
+			throws Exception {
+		final int count = (int)getParam("sessions.count", 200000.0), clients = (int)getParam(
+			"sessions.clients", 4.0);
+		final long duration = (long)(getParam("sessions.seconds", 20.0) * 1e9), interval =
+			(long)getParam("sessions.refreshMillis", 2000.0);
+		final PingBroadcastServer server = startServer(dir, stub);
+		try {
+			createMembers(count);
+			collectGarbage();
+			final long heapBefore = getHeapUsed(), directBefore = getDirectUsed();
+			final long begin = System.nanoTime();
+			final OperationStats logins = new OperationStats(begin);
+			login(count, count, clients, logins);
+			report.operations.put("login", logins.toReport(System.nanoTime() - begin));
+			waitFor("outbox", 300000000000L);
+			// Both runs count the memberships, auth cache entries and the like of each user
+			final long fullGc = collectGarbage(), heapUsed = getHeapUsed() - heapBefore,
+				sessions = getMetric("users");
+			report.counters.put("sessions", sessions);
+			report.counters.put("sessionHeapBytes", heapUsed);
+			report.counters.put("sessionHeapBytesEach", heapUsed / Math.max(1L, sessions));
+			report.counters.put("sessionDirectBytes", getDirectUsed() - directBefore);
+			report.counters.put("sessionTableBytes", getMetric("sessionBytes"));
+			report.counters.put("fullGcMillis", fullGc / 1000000L);
+			final long[] gcBefore = getGcTotals();
+			final long rotateBegin = System.nanoTime();
+			final OperationStats refreshes = new OperationStats(rotateBegin);
+			final AtomicLong retries = new AtomicLong(0L);
+			startRotator(rotateBegin + duration, interval, refreshes, retries).join();
+			final long[] gcAfter = getGcTotals();
+			report.operations.put("forceRefresh", refreshes.toReport(System.nanoTime() -
+				rotateBegin));
+			report.counters.put("forceRefreshRetries", retries.get());
+			report.counters.put("rotationGcCount", gcAfter[0] - gcBefore[0]);
+			report.counters.put("rotationGcMillis", gcAfter[1] - gcBefore[1]);
+		} finally {
+			server.stop();
+		}
+	}
+	/**
+	 * Starts a server in the scenario directory, pointed at the stub.
+	 *
+	 * @param dir the scenario directory, which holds the server's logs and journal
+	 * @param stub the stub backend
+	 * @return the running server
+	 * @throws IOException if the settings cannot be written
+	 * @throws PingServerException if the server cannot be started
+	 */
+	private PingBroadcastServer startServer(final File dir, final StubBackend stub)
+			throws IOException, PingServerException {
+		final int port = freePort();
+		final File fcmSettings = new File(dir, "fcmjava.properties");
+		Files.write(fcmSettings.toPath(), Arrays.asList("fcm.api.url=" + stub.getFcmURL(),
+			"fcm.api.key=loadtest"), StandardCharsets.UTF_8);
+		final Properties props = new Properties();
+		if (gatewayPort > 0)
+			props.setProperty(ServerSettings.GATEWAY_PORT, Integer.toString(gatewayPort));
+		props.setProperty(ServerSettings.HTTP_PORT, Integer.toString(port));
+		props.setProperty(ServerSettings.IID_URL, stub.getIidURL());
+		props.setProperty(ServerSettings.JFR_DIR, new File(dir, "recordings").getPath());
+		props.setProperty(ServerSettings.JFR_MAX_AGE, "0");
+		props.setProperty(ServerSettings.JOURNAL_DIR, new File(dir, "journal").getPath());
+		props.setProperty(ServerSettings.MEMBERS_FILE, new File(dir, "members.dat").getPath());
+		props.setProperty(ServerSettings.OUTBOX_FILE, new File(dir, "outbox").getPath());
+		props.setProperty(ServerSettings.PING_LOG_FILE, new File(dir, "pings.wal").getPath());
+		props.setProperty(ServerSettings.SHUTDOWN_DRAIN, "0");
+		props.setProperty(ServerSettings.TOPICS_FILE, new File(dir, "topics.dat").getPath());
+		props.setProperty(ServerSettings.TRACE_FILE, new File(dir, "traces.json").getPath());
+		props.setProperty(ServerSettings.TRACE_SAMPLE_RATE, "0");
+		props.setProperty(ServerSettings.TRACE_SLOW, "0");
+		for (final Map.Entry<String, String> entry : params.entrySet())
+			if (entry.getKey().startsWith("server.")) {
+				props.setProperty(entry.getKey().substring(7), entry.getValue());
+				report.parameters.put(entry.getKey(), entry.getValue());
+			}
+		final PingBroadcastServer server = new PingBroadcastServer(PropertiesBasedSettings.
+			createFromFile(fcmSettings.toPath(), StandardCharsets.UTF_8), new ServerSettings(
+			props));
+		server.start();
+		client = new LoadClient("http://127.0.0.1:" + port + "/");
+		return server;
+	}
+	/**
+	 * Names a load test user.
+	 *
+	 * @param index the user number
+	 * @return the username
+	 */
+	private static String username(final long index) {
+		return "user-" + index;
+	}
+	/**
+	 * Names the first load test users.
+	 *
+	 * @param count the number of users
+	 * @return the usernames
+	 */
+	private static String[] usernames(final int count) {
+		final String[] ret = new String[count];
+		for (int i = 0; i < count; i++)
+			ret[i] = username(i);
+		return ret;
+	}
+	/**
+	 * Waits for a server metric to reach zero.
+	 *
+	 * @param name the metric name
+	 * @param limit the longest time to wait in nanoseconds
+	 * @return the time waited in nanoseconds
+	 * @throws IOException if the metrics cannot be read
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private long waitFor(final String name, final long limit) throws IOException,
+			InterruptedException {
+		final long start = System.nanoTime();
+		while (getMetric(name) > 0L && System.nanoTime() - start < limit)
+			Thread.sleep(50L);
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,60 @@
+package com.pleaseignore.pings.loadtest;
+
+/**
+ * A JSON wrapper class for the results of one kind of request in a scenario.
+ */
+public final class OperationReport {
+	/**
+	 * The number of requests completed.
+	 */
+	public long count;
+	/**
+	 * The number of requests which failed.
+	 */
+	public long errors;
+	/**
+	 * The highest latency in milliseconds.
+	 */
+	public double maxMillis;
+	/**
+	 * The mean latency in milliseconds.
+	 */
+	public double meanMillis;
+	/**
+	 * The median latency in milliseconds.
+	 */
+	public double p50Millis;
+	/**
+	 * The 90th percentile latency in milliseconds.
+	 */
+	public double p90Millis;
+	/**
+	 * The 99th percentile latency in milliseconds.
+	 */
+	public double p99Millis;
+	/**
+	 * The 99.9th percentile latency in milliseconds.
+	 */
+	public double p999Millis;
+	/**
+	 * The mean number of requests completed per second.
+	 */
+	public double throughput;
+	/**
+	 * The number of requests completed in each second of the scenario.
+	 */
+	public long[] timeline;
+
+	public OperationReport() {
+		count = 0L;
+		errors = 0L;
+		maxMillis = 0.0;
+		meanMillis = 0.0;
+		p50Millis = 0.0;
+		p90Millis = 0.0;
+		p99Millis = 0.0;
+		p999Millis = 0.0;
+		throughput = 0.0;
+		timeline = new long[0];
+	}
+}
@@ -0,0 +1,82 @@
+package com.pleaseignore.pings.loadtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects the latency, errors and throughput over time of one kind of request in a scenario.
+ */
+public final class OperationStats {
+	/**
+	 * The longest scenario for which a throughput timeline is kept in seconds.
+	 */
+	private static final int MAX_SECONDS = 3600;
+
+	/**
+	 * Completions per second since the start of the scenario.
+	 */
+	private final AtomicLongArray completed;
+	/**
+	 * The number of requests which failed.
+	 */
+	private final AtomicLong errors;
+	/**
+	 * The latency of all requests, successful or not.
+	 */
+	private final LatencyHistogram latency;
+	/**
+	 * The scenario start time (System.nanoTime()).
+	 */
+	private final long start;
+
+	/**
+	 * Creates statistics for an operation.
+	 *
+	 * @param start the scenario start time (System.nanoTime())
+	 */
+	public OperationStats(final long start) {
+		completed = new AtomicLongArray(MAX_SECONDS);
+		errors = new AtomicLong(0L);
+		latency = new LatencyHistogram();
+		this.start = start;
+	}
+	/**
+	 * Records a finished request.
+	 *
+	 * @param intended when the request should have started (System.nanoTime()), so that
+	 * requests delayed by a stalled server are charged for the delay
+	 * @param ok whether the request succeeded
+	 */
+	public void record(final long intended, final boolean ok) {
+		final long now = System.nanoTime();
+		latency.record((now - intended) / 1000L);
+		if (!ok)
+			errors.incrementAndGet();
+		final long second = (now - start) / 1000000000L;
+		if (second >= 0L && second < MAX_SECONDS)
+			completed.incrementAndGet((int)second);
+	}
+	/**
+	 * Summarizes the statistics.
+	 *
+	 * @param elapsed the scenario duration in nanoseconds
+	 * @return the operation report
+	 */
+	public OperationReport toReport(final long elapsed) {
+		final OperationReport report = new OperationReport();
+		final int seconds = (int)Math.min(MAX_SECONDS, (elapsed + 999999999L) / 1000000000L);
+		report.count = latency.getCount();
+		report.errors = errors.get();
+		report.maxMillis = latency.getMax() / 1000.0;
+		report.meanMillis = latency.getMean() / 1000.0;
+		report.p50Millis = latency.getPercentile(50.0) / 1000.0;
+		report.p90Millis = latency.getPercentile(90.0) / 1000.0;
+		report.p99Millis = latency.getPercentile(99.0) / 1000.0;
+		report.p999Millis = latency.getPercentile(99.9) / 1000.0;
+		report.throughput = (elapsed > 0L) ? report.count * 1e9 / elapsed : 0.0;
+		report.timeline = new long[seconds];
+		for (int i = 0; i < seconds; i++)
+			report.timeline[i] = completed.get(i);
+		return report;
+	}
+}
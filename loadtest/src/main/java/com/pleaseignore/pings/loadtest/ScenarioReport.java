@@ -0,0 +1,52 @@
+package com.pleaseignore.pings.loadtest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A JSON wrapper class for the results of one load test scenario.
+ */
+public final class ScenarioReport {
+	/**
+	 * Counters observed during the scenario, such as requests seen by the stub backends.
+	 */
+	public Map<String, Long> counters;
+	/**
+	 * The scenario duration in milliseconds.
+	 */
+	public long durationMillis;
+	/**
+	 * Why the scenario could not be measured in full, or null if it ran normally.
+	 */
+	public String error;
+	/**
+	 * The scenario name.
+	 */
+	public String name;
+	/**
+	 * The results of each kind of request.
+	 */
+	public Map<String, OperationReport> operations;
+	/**
+	 * The parameters with which the scenario ran.
+	 */
+	public Map<String, Object> parameters;
+
+	public ScenarioReport() {
+		counters = new LinkedHashMap<>(16);
+		durationMillis = 0L;
+		error = null;
+		name = "";
+		operations = new LinkedHashMap<>(4);
+		parameters = new LinkedHashMap<>(8);
+	}
+	public ScenarioReport(final String name) {
+		this();
+		if (name == null)
+			throw new IllegalArgumentException("name");
+		this.name = name;
+	}
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,408 @@
+package com.pleaseignore.pings.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for FCM and the Instance ID API. FCM messages are accepted (or
+ * rejected as unavailable while failing) and the ping IDs they carry are counted, so that
+ * scenarios can check that every ping arrived exactly once. Instance ID subscriptions are kept
+ * in memory, so device updates see the results of earlier batch adds and removes. Both
+ * services can be given a fixed latency to model the round trip to Google.
+ */
+public final class StubBackend {
+	/**
+	 * Used to convert objects to and from JSON.
+	 */
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	/**
+	 * Reads a request body.
+	 *
+	 * @param exchange the HTTP request
+	 * @return the body
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static byte[] readBody(final HttpExchange exchange) throws IOException {
+		final InputStream is = exchange.getRequestBody();
+		try {
+			return is.readAllBytes();
+		} finally {
+			is.close();
+		}
+	}
+	/**
+	 * Sends a JSON response.
+	 *
+	 * @param exchange the HTTP request
+	 * @param code the HTTP status code
+	 * @param body the response object
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void send(final HttpExchange exchange, final int code, final Object body)
+			throws IOException {
+		final byte[] data = MAPPER.writeValueAsBytes(body);
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(code, data.length);
+		final OutputStream os = exchange.getResponseBody();
+		try {
+			os.write(data);
+		} finally {
+			os.close();
+		}
+	}
+	/**
+	 * Waits for the simulated round trip time.
+	 *
+	 * @param millis the latency in milliseconds
+	 */
+	private static void simulateLatency(final long millis) {
+		if (millis > 0L)
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+	}
+
+	/**
+	 * The devices which the Instance ID API reports as not found, as if uninstalled.
+	 */
+	private final Set<String> deadDevices;
+	/**
+	 * The number of dead devices reported by the Instance ID API.
+	 */
+	private final AtomicLong deadReported;
+	/**
+	 * The IDs of the pings delivered.
+	 */
+	private final Set<String> delivered;
+	/**
+	 * The number of pings delivered more than once.
+	 */
+	private final AtomicLong duplicates;
+	/**
+	 * Whether FCM rejects every message as unavailable.
+	 */
+	private volatile boolean fcmFailing;
+	/**
+	 * The simulated FCM latency in milliseconds.
+	 */
+	private volatile long fcmLatency;
+	/**
+	 * The number of FCM requests received.
+	 */
+	private final AtomicLong fcmRequests;
+	/**
+	 * The number of devices added to topics.
+	 */
+	private final AtomicLong iidAdded;
+	/**
+	 * Whether the Instance ID API rejects every request as unavailable.
+	 */
+	private volatile boolean iidFailing;
+	/**
+	 * The simulated Instance ID API latency in milliseconds.
+	 */
+	private volatile long iidLatency;
+	/**
+	 * The number of device info lookups.
+	 */
+	private final AtomicLong iidLookups;
+	/**
+	 * The number of devices removed from topics.
+	 */
+	private final AtomicLong iidRemoved;
+	/**
+	 * The number of Instance ID requests received.
+	 */
+	private final AtomicLong iidRequests;
+	/**
+	 * The HTTP server, or null if not started.
+	 */
+	private HttpServer server;
+	/**
+	 * The topics to which each device is subscribed.
+	 */
+	private final Map<String, Set<String>> subscriptions;
+	/**
+	 * Runs the stub request handlers.
+	 */
+	private final ExecutorService workers;
+
+	/**
+	 * Creates a new stub backend.
+	 *
+	 * @param threads the number of handler threads, which bounds the concurrency the stub
+	 * can serve
+	 */
+	public StubBackend(final int threads) {
+		deadDevices = ConcurrentHashMap.newKeySet();
+		deadReported = new AtomicLong(0L);
+		delivered = ConcurrentHashMap.newKeySet();
+		duplicates = new AtomicLong(0L);
+		fcmFailing = false;
+		fcmLatency = 0L;
+		fcmRequests = new AtomicLong(0L);
+		iidAdded = new AtomicLong(0L);
+		iidFailing = false;
+		iidLatency = 0L;
+		iidLookups = new AtomicLong(0L);
+		iidRemoved = new AtomicLong(0L);
+		iidRequests = new AtomicLong(0L);
+		server = null;
+		subscriptions = new ConcurrentHashMap<>(1024);
+		workers = Executors.newFixedThreadPool(threads);
+	}
+	/**
+	 * Makes the Instance ID API report a device as not found from now on, as if its app was
+	 * uninstalled.
+	 *
+	 * @param deviceID the device ID
+	 */
+	public void addDeadDevice(final String deviceID) {
+		deadDevices.add(deviceID);
+	}
+	/**
+	 * Reports the stub counters.
+	 *
+	 * @return the counters by name
+	 */
+	public Map<String, Long> getCounters() {
+		final Map<String, Long> ret = new LinkedHashMap<>(16);
+		ret.put("fcmRequests", fcmRequests.get());
+		ret.put("pingsDelivered", (long)delivered.size());
+		ret.put("pingDuplicates", duplicates.get());
+		ret.put("iidRequests", iidRequests.get());
+		ret.put("iidLookups", iidLookups.get());
+		ret.put("iidAdded", iidAdded.get());
+		ret.put("iidRemoved", iidRemoved.get());
+		ret.put("iidDeadReported", deadReported.get());
+		return ret;
+	}
+	/**
+	 * Retrieves the number of distinct pings delivered.
+	 *
+	 * @return the delivered ping count
+	 */
+	public int getDelivered() {
+		return delivered.size();
+	}
+	/**
+	 * Retrieves the URL which the server should use for FCM.
+	 *
+	 * @return the FCM send URL
+	 */
+	public String getFcmURL() {
+		return getURL() + "fcm/send";
+	}
+	/**
+	 * Retrieves the base URL which the server should use for the Instance ID API.
+	 *
+	 * @return the Instance ID base URL
+	 */
+	public String getIidURL() {
+		return getURL() + "iid/";
+	}
+	/**
+	 * Retrieves the topics to which a device is subscribed.
+	 *
+	 * @param deviceID the device ID
+	 * @return a copy of the device's topics, empty if it has none
+	 */
+	public Set<String> getSubscriptions(final String deviceID) {
+		final Set<String> topics = subscriptions.get(deviceID);
+		return (topics == null) ? new TreeSet<String>() : new TreeSet<>(topics);
+	}
+	/**
+	 * Retrieves the base URL of the stub.
+	 *
+	 * @return the base URL, ending with a slash
+	 */
+	private String getURL() {
+		if (server == null)
+			throw new IllegalStateException("Not started");
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+	}
+	/**
+	 * Makes FCM reject every message as unavailable, or accept them again.
+	 *
+	 * @param failing true to reject messages
+	 */
+	public void setFcmFailing(final boolean failing) {
+		fcmFailing = failing;
+	}
+	/**
+	 * Sets the simulated FCM latency.
+	 *
+	 * @param millis the latency in milliseconds
+	 */
+	public void setFcmLatency(final long millis) {
+		fcmLatency = millis;
+	}
+	/**
+	 * Makes the Instance ID API reject every request as unavailable, or serve them again.
+	 *
+	 * @param failing true to reject requests
+	 */
+	public void setIidFailing(final boolean failing) {
+		iidFailing = failing;
+	}
+	/**
+	 * Sets the simulated Instance ID API latency.
+	 *
+	 * @param millis the latency in milliseconds
+	 */
+	public void setIidLatency(final long millis) {
+		iidLatency = millis;
+	}
+	/**
+	 * Starts the stub on a free local port.
+	 *
+	 * @throws IOException if the server cannot be started
+	 */
+	public void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+			256);
+		server.setExecutor(workers);
+		server.createContext("/fcm/send", new FcmHandler());
+		server.createContext("/iid/", new IidHandler());
+		server.start();
+	}
+	/**
+	 * Stops the stub.
+	 */
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Accepts FCM topic messages and records the ping IDs they carry.
+	 */
+	private final class FcmHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			final JsonNode message = MAPPER.readTree(readBody(exchange));
+			fcmRequests.incrementAndGet();
+			simulateLatency(fcmLatency);
+			final Map<String, Object> response = new LinkedHashMap<>(4);
+			if (fcmFailing)
+				response.put("error", "Unavailable");
+			else {
+				final JsonNode id = message.path("data").path("id");
+				if (!id.isMissingNode() && !delivered.add(id.asText()))
+					duplicates.incrementAndGet();
+				response.put("message_id", fcmRequests.get());
+			}
+			send(exchange, 200, response);
+		}
+	}
+
+	/**
+	 * Serves device info lookups and batch topic changes.
+	 */
+	private final class IidHandler implements HttpHandler {
+		/**
+		 * Adds or removes devices from a topic.
+		 *
+		 * @param exchange the HTTP request
+		 * @param add true to add, or false to remove
+		 * @throws IOException if an I/O error occurs
+		 */
+		private void batch(final HttpExchange exchange, final boolean add) throws IOException {
+			final JsonNode request = MAPPER.readTree(readBody(exchange));
+			final String topic = request.path("to").asText().replace("/topics/", "");
+			final JsonNode tokens = request.path("registration_tokens");
+			final Map<String, Object> response = new LinkedHashMap<>(2);
+			final Object[] results = new Object[tokens.size()];
+			for (int i = 0; i < results.length; i++) {
+				final String token = tokens.get(i).asText();
+				final Map<String, Object> result = new LinkedHashMap<>(1);
+				results[i] = result;
+				if (deadDevices.contains(token)) {
+					result.put("error", "NOT_FOUND");
+					deadReported.incrementAndGet();
+				} else if (add) {
+					Set<String> topics = subscriptions.get(token);
+					if (topics == null) {
+						final Set<String> created = ConcurrentHashMap.newKeySet();
+						topics = subscriptions.putIfAbsent(token, created);
+						if (topics == null)
+							topics = created;
+					}
+					topics.add(topic);
+				} else {
+					final Set<String> topics = subscriptions.get(token);
+					if (topics != null)
+						topics.remove(topic);
+				}
+			}
+			(add ? iidAdded : iidRemoved).addAndGet(results.length);
+			response.put("results", results);
+			send(exchange, 200, response);
+		}
+		public void handle(HttpExchange exchange) throws IOException {
+			final String path = exchange.getRequestURI().getPath();
+			iidRequests.incrementAndGet();
+			simulateLatency(iidLatency);
+			if (iidFailing) {
+				readBody(exchange);
+				send(exchange, 503, new LinkedHashMap<String, Object>(1));
+			} else if (path.endsWith("v1:batchAdd"))
+				batch(exchange, true);
+			else if (path.endsWith("v1:batchRemove"))
+				batch(exchange, false);
+			else if (path.startsWith("/iid/info/"))
+				lookup(exchange, path.substring(10));
+			else
+				send(exchange, 404, new LinkedHashMap<String, Object>(1));
+		}
+		/**
+		 * Reports the topics to which a device is subscribed.
+		 *
+		 * @param exchange the HTTP request
+		 * @param token the device token
+		 * @throws IOException if an I/O error occurs
+		 */
+		private void lookup(final HttpExchange exchange, final String token)
+				throws IOException {
+			final Map<String, Object> topics = new LinkedHashMap<>(8), rel =
+				new LinkedHashMap<>(2), response = new LinkedHashMap<>(4);
+			iidLookups.incrementAndGet();
+			if (deadDevices.contains(token)) {
+				deadReported.incrementAndGet();
+				response.put("error", "No information found about this instance id.");
+				send(exchange, 404, response);
+			} else {
+				final Set<String> current = subscriptions.get(token);
+				if (current != null)
+					for (final String topic : current)
+						topics.put(topic, new LinkedHashMap<String, Object>(1));
+				rel.put("topics", topics);
+				response.put("application", "com.pleaseignore.pings");
+				response.put("rel", rel);
+				send(exchange, 200, response);
+			}
+		}
+	}
+}
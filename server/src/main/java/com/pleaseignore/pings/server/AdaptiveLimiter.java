@@ -0,0 +1,245 @@
+package com.pleaseignore.pings.server;
+
+/**
+ * Limits the number of concurrent requests to a remote service, adapting the limit to how the
+ * service responds (additive increase, multiplicative decrease). While latency stays near the
+ * best seen recently and the limit is being used, the limit grows by about one per round of
+ * requests. An overload signal (429, 5xx or a timeout) halves the limit, and latency well above
+ * the baseline trims it, so the limit settles just below the point where the service queues.
+ *
+ * Only one cut is made per round: requests which were already in flight when the limit was cut
+ * do not cut it again.
+ */
+public final class AdaptiveLimiter {
+	/**
+	 * The fraction of the limit kept when latency grows.
+	 */
+	private static final double LATENCY_BACKOFF = 0.9;
+	/**
+	 * The ratio of latency to the baseline above which the service is considered to be
+	 * queueing requests.
+	 */
+	private static final double LATENCY_TOLERANCE = 2.0;
+	/**
+	 * The fraction of the limit kept on an overload signal.
+	 */
+	private static final double OVERLOAD_BACKOFF = 0.5;
+
+	/**
+	 * The best recent latency in nanoseconds, or 0 if none has been measured.
+	 */
+	private long baseline;
+	/**
+	 * The number of requests now running.
+	 */
+	private int inFlight;
+	/**
+	 * The time (System.nanoTime()) of the last cut.
+	 */
+	private long lastCut;
+	/**
+	 * The current concurrency limit.
+	 */
+	private double limit;
+	/**
+	 * The largest limit allowed.
+	 */
+	private final int maxLimit;
+	/**
+	 * The smallest limit allowed.
+	 */
+	private final int minLimit;
+	/**
+	 * The number of overload signals received.
+	 */
+	private long overloads;
+	/**
+	 * The number of requests completed.
+	 */
+	private long requests;
+
+	/**
+	 * Creates a new adaptive limiter.
+	 *
+	 * @param initial the initial concurrency limit
+	 * @param minLimit the smallest concurrency limit
+	 * @param maxLimit the largest concurrency limit
+	 */
+	public AdaptiveLimiter(final int initial, final int minLimit, final int maxLimit) {
+		if (minLimit < 1)
+			throw new IllegalArgumentException("minLimit");
+		if (maxLimit < minLimit)
+			throw new IllegalArgumentException("maxLimit");
+		baseline = 0L;
+		inFlight = 0;
+		lastCut = System.nanoTime();
+		limit = Math.max(minLimit, Math.min(maxLimit, initial));
+		this.maxLimit = maxLimit;
+		this.minLimit = minLimit;
+		overloads = 0L;
+		requests = 0L;
+	}
+	/**
+	 * Waits until a request may be started under the current limit.
+	 *
+	 * @return the start time of the request, to be passed to release()
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized long acquire() throws InterruptedException {
+		while (inFlight >= (int)limit)
+			wait();
+		inFlight++;
+		return System.nanoTime();
+	}
+	/**
+	 * Waits until a request may be started under the current limit, or until a time has
+	 * passed.
+	 *
+	 * @param maxWait the longest time to wait in milliseconds
+	 * @return the start time of the request, to be passed to release(), or 0 if no request
+	 * could be started in time
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized long acquire(final long maxWait) throws InterruptedException {
+		final long deadline = System.nanoTime() + maxWait * 1000000L;
+		long left;
+		while (inFlight >= (int)limit) {
+			left = deadline - System.nanoTime();
+			if (left <= 0L)
+				return 0L;
+			wait(Math.max(1L, left / 1000000L));
+		}
+		inFlight++;
+		// Never 0, which would read as not acquired
+		final long start = System.nanoTime();
+		return (start == 0L) ? 1L : start;
+	}
+	/**
+	 * Cuts the limit, unless it was already cut after the request started.
+	 *
+	 * @param start the start time of the request
+	 * @param ratio the fraction of the limit to keep
+	 */
+	private void cut(final long start, final double ratio) {
+		if (start - lastCut > 0L) {
+			limit = Math.max(minLimit, limit * ratio);
+			lastCut = System.nanoTime();
+		}
+	}
+	/**
+	 * Reports the current state of this limiter.
+	 *
+	 * @return a snapshot of the limiter metrics
+	 */
+	public synchronized LimiterMetrics getMetrics() {
+		return new LimiterMetrics((int)limit, inFlight, overloads, requests, baseline /
+			1000000L);
+	}
+	/**
+	 * Records the end of a request and adjusts the limit.
+	 *
+	 * @param start the value returned by acquire()
+	 * @param outcome how the request ended
+	 */
+	public synchronized void release(final long start, final Outcome outcome) {
+		final long latency = System.nanoTime() - start;
+		final boolean saturated = inFlight >= (int)limit;
+		inFlight--;
+		requests++;
+		switch (outcome) {
+		case OVERLOAD:
+			overloads++;
+			cut(start, OVERLOAD_BACKOFF);
+			break;
+		case SUCCESS:
+			// Let the baseline drift up slowly so that one lucky response cannot pin it
+			if (baseline <= 0L || latency < baseline)
+				baseline = latency;
+			else
+				baseline += (latency - baseline) >> 6;
+			if (latency > baseline * LATENCY_TOLERANCE)
+				cut(start, LATENCY_BACKOFF);
+			else if (saturated)
+				// Only grow while the limit is actually in use
+				limit = Math.min(maxLimit, limit + 1.0 / limit);
+			break;
+		default:
+			// Failures unrelated to load say nothing about the limit
+			break;
+		}
+		notifyAll();
+	}
+	public synchronized String toString() {
+		return "Limit " + (int)limit + ", " + inFlight + " in flight";
+	}
+
+	/**
+	 * How a request ended.
+	 */
+	public enum Outcome {
+		/**
+		 * The request failed for a reason unrelated to load.
+		 */
+		DROPPED,
+		/**
+		 * The service signalled overload (429, 5xx or a timeout).
+		 */
+		OVERLOAD,
+		/**
+		 * The service answered normally.
+		 */
+		SUCCESS;
+
+		/**
+		 * Classifies an HTTP status code.
+		 *
+		 * @param code the HTTP status code
+		 * @return OVERLOAD for 429 and 5xx, otherwise SUCCESS
+		 */
+		public static Outcome fromStatus(final int code) {
+			return (code == 429 || code >= 500) ? OVERLOAD : SUCCESS;
+		}
+	}
+
+	/**
+	 * A JSON wrapper class for the state of a limiter.
+	 */
+	public static final class LimiterMetrics {
+		/**
+		 * The best recent latency in milliseconds.
+		 */
+		public long baselineMillis;
+		/**
+		 * The number of requests now running.
+		 */
+		public int inFlight;
+		/**
+		 * The current concurrency limit.
+		 */
+		public int limit;
+		/**
+		 * The number of overload signals received.
+		 */
+		public long overloads;
+		/**
+		 * The number of requests completed.
+		 */
+		public long requests;
+
+		public LimiterMetrics() {
+			baselineMillis = 0L;
+			inFlight = 0;
+			limit = 0;
+			overloads = 0L;
+			requests = 0L;
+		}
+		LimiterMetrics(final int limit, final int inFlight, final long overloads,
+					   final long requests, final long baselineMillis) {
+			this.baselineMillis = baselineMillis;
+			this.inFlight = inFlight;
+			this.limit = limit;
+			this.overloads = overloads;
+			this.requests = requests;
+		}
+	}
+}
@@ -0,0 +1,319 @@
+package com.pleaseignore.pings.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Admits or sheds HTTP requests so that the server fails fast instead of collapsing under
+ * load. Each endpoint has a concurrency limit and a bounded wait queue with a deadline;
+ * requests which cannot be admitted in time are rejected with 503 and a Retry-After header.
+ *
+ * The controller also runs the HTTP worker pool, which lets it see how long each request sat
+ * in the executor queue before a worker picked it up; requests which already waited longer
+ * than their endpoint's deadline are shed immediately. A number of worker threads are reserved
+ * for priority endpoints, so that a storm of normal requests cannot starve them.
+ */
+public final class AdmissionController implements Executor {
+	/**
+	 * Logs any unusual errors which occur in this class (most are passed upstream).
+	 */
+	private static final Logger LOGGER = Logger.getLogger(AdmissionController.class.getName());
+
+	/**
+	 * The time when the request now being handled by this thread was queued for a worker.
+	 */
+	private final ThreadLocal<Long> enqueuedAt;
+	/**
+	 * The endpoints being controlled.
+	 */
+	private final Map<String, Endpoint> endpoints;
+	/**
+	 * The number of normal priority requests running or waiting.
+	 */
+	private final AtomicInteger normalInUse;
+	/**
+	 * The maximum number of normal priority requests running or waiting.
+	 */
+	private final int normalLimit;
+	/**
+	 * The value sent in the Retry-After header of rejected requests, in seconds.
+	 */
+	private final int retryAfter;
+	/**
+	 * The HTTP worker threads.
+	 */
+	private final ThreadPoolExecutor workers;
+
+	/**
+	 * Creates a new admission controller.
+	 *
+	 * @param threads the number of HTTP worker threads
+	 * @param reserved the number of worker threads reserved for priority endpoints
+	 * @param retryAfter the Retry-After value for rejected requests in seconds
+	 */
+	public AdmissionController(final int threads, final int reserved, final int retryAfter) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads");
+		if (reserved < 0 || reserved >= threads)
+			throw new IllegalArgumentException("reserved");
+		enqueuedAt = new ThreadLocal<>();
+		endpoints = new ConcurrentHashMap<>(16);
+		normalInUse = new AtomicInteger(0);
+		normalLimit = threads - reserved;
+		this.retryAfter = Math.max(1, retryAfter);
+		workers = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>());
+	}
+	/**
+	 * Wraps a handler with admission control.
+	 *
+	 * @param name the endpoint name used in metrics
+	 * @param handler the handler to wrap
+	 * @param maxConcurrent the maximum number of requests handled at once
+	 * @param maxQueue the maximum number of requests waiting for a slot
+	 * @param maxWait the maximum time a request may wait in milliseconds, including time
+	 * spent queued for a worker thread
+	 * @param priority true if this endpoint may use the reserved worker threads
+	 * @return the wrapped handler
+	 */
+	public HttpHandler admit(final String name, final HttpHandler handler,
+							 final int maxConcurrent, final int maxQueue, final long maxWait,
+							 final boolean priority) {
+		if (name == null)
+			throw new IllegalArgumentException("name");
+		if (handler == null)
+			throw new IllegalArgumentException("handler");
+		if (maxConcurrent < 1)
+			throw new IllegalArgumentException("maxConcurrent");
+		final Endpoint endpoint = new Endpoint(name, handler, maxConcurrent, maxQueue, maxWait,
+			priority);
+		endpoints.put(name, endpoint);
+		return endpoint;
+	}
+	public void execute(final Runnable command) {
+		final long now = System.currentTimeMillis();
+		workers.execute(new Runnable() {
+			public void run() {
+				enqueuedAt.set(now);
+				try {
+					command.run();
+				} finally {
+					enqueuedAt.remove();
+				}
+			}
+		});
+	}
+	/**
+	 * Reports the current admission metrics of every endpoint.
+	 *
+	 * @return the metrics by endpoint name
+	 */
+	public Map<String, EndpointMetrics> getMetrics() {
+		final Map<String, EndpointMetrics> ret = new TreeMap<>();
+		for (final Map.Entry<String, Endpoint> entry : endpoints.entrySet())
+			ret.put(entry.getKey(), entry.getValue().getMetrics());
+		return ret;
+	}
+	/**
+	 * Rejects a request with 503 Service Unavailable.
+	 *
+	 * @param exchange the HTTP request
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void reject(final HttpExchange exchange) throws IOException {
+		exchange.getResponseHeaders().add("Retry-After", Integer.toString(retryAfter));
+		exchange.sendResponseHeaders(503, -1);
+		exchange.close();
+	}
+	/**
+	 * Stops the worker threads.
+	 */
+	public void shutdown() {
+		workers.shutdown();
+	}
+
+	/**
+	 * A handler wrapper which applies the limits of one endpoint.
+	 */
+	private final class Endpoint implements HttpHandler {
+		/**
+		 * The number of requests admitted.
+		 */
+		private final AtomicLong admitted;
+		/**
+		 * The endpoint name.
+		 */
+		private final String name;
+		/**
+		 * The wrapped handler.
+		 */
+		private final HttpHandler handler;
+		/**
+		 * The maximum number of requests waiting for a slot.
+		 */
+		private final int maxQueue;
+		/**
+		 * The maximum total time a request may wait in milliseconds.
+		 */
+		private final long maxWait;
+		/**
+		 * Slots for running requests.
+		 */
+		private final Semaphore permits;
+		/**
+		 * Whether this endpoint may use the reserved threads.
+		 */
+		private final boolean priority;
+		/**
+		 * The number of requests which had to wait for a slot.
+		 */
+		private final AtomicLong queued;
+		/**
+		 * The number of requests rejected.
+		 */
+		private final AtomicLong shed;
+		/**
+		 * The number of requests now waiting for a slot.
+		 */
+		private final AtomicInteger waiting;
+
+		Endpoint(final String name, final HttpHandler handler, final int maxConcurrent,
+				 final int maxQueue, final long maxWait, final boolean priority) {
+			admitted = new AtomicLong(0L);
+			this.name = name;
+			this.handler = handler;
+			this.maxQueue = maxQueue;
+			this.maxWait = maxWait;
+			permits = new Semaphore(maxConcurrent, true);
+			this.priority = priority;
+			queued = new AtomicLong(0L);
+			shed = new AtomicLong(0L);
+			waiting = new AtomicInteger(0);
+		}
+		/**
+		 * Tries to obtain a slot to run the request, waiting in the queue if allowed.
+		 *
+		 * @param deadline the time by which the request must be admitted
+		 * @return true if a slot was obtained, or false if the request must be shed
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		private boolean acquire(final long deadline) throws InterruptedException {
+			boolean ok = permits.tryAcquire();
+			if (!ok) {
+				final long wait = deadline - System.currentTimeMillis();
+				if (wait > 0L && waiting.incrementAndGet() <= maxQueue) {
+					queued.incrementAndGet();
+					try {
+						ok = permits.tryAcquire(wait, TimeUnit.MILLISECONDS);
+					} finally {
+						waiting.decrementAndGet();
+					}
+				} else if (wait > 0L)
+					waiting.decrementAndGet();
+			}
+			return ok;
+		}
+		/**
+		 * Takes a snapshot of the metrics.
+		 *
+		 * @return the current metrics
+		 */
+		EndpointMetrics getMetrics() {
+			return new EndpointMetrics(admitted.get(), queued.get(), shed.get(), permits.
+				availablePermits(), waiting.get());
+		}
+		public void handle(HttpExchange exchange) throws IOException {
+			final ServerEvents.HandlerEvent event = new ServerEvents.HandlerEvent();
+			event.begin();
+			final Long enqueued = enqueuedAt.get();
+			final long start = (enqueued == null) ? System.currentTimeMillis() : enqueued,
+				deadline = start + maxWait;
+			boolean ok = false, counted = false;
+			try {
+				// Normal requests may not take the threads reserved for priority requests
+				if (priority || normalInUse.incrementAndGet() <= normalLimit) {
+					counted = !priority;
+					// Requests which sat in the worker queue past the deadline are stale
+					ok = System.currentTimeMillis() <= deadline && acquire(deadline);
+				} else
+					normalInUse.decrementAndGet();
+				if (ok)
+					try {
+						admitted.incrementAndGet();
+						event.queueTime = System.currentTimeMillis() - start;
+						handler.handle(exchange);
+					} finally {
+						permits.release();
+					}
+				else {
+					shed.incrementAndGet();
+					reject(exchange);
+				}
+			} catch (InterruptedException e) {
+				LOGGER.log(Level.FINE, "Interrupted while waiting for admission");
+				Thread.currentThread().interrupt();
+				shed.incrementAndGet();
+				reject(exchange);
+			} finally {
+				if (counted)
+					normalInUse.decrementAndGet();
+				if (event.shouldCommit()) {
+					event.admitted = ok;
+					event.endpoint = name;
+					event.method = exchange.getRequestMethod();
+					event.commit();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A JSON wrapper class for the admission metrics of one endpoint.
+	 */
+	public static final class EndpointMetrics {
+		/**
+		 * The number of requests admitted.
+		 */
+		public long admitted;
+		/**
+		 * The number of free slots for running requests.
+		 */
+		public int available;
+		/**
+		 * The number of requests which had to wait for a slot.
+		 */
+		public long queued;
+		/**
+		 * The number of requests rejected with 503.
+		 */
+		public long shed;
+		/**
+		 * The number of requests now waiting for a slot.
+		 */
+		public int waiting;
+
+		public EndpointMetrics() {
+			admitted = 0L;
+			available = 0;
+			queued = 0L;
+			shed = 0L;
+			waiting = 0;
+		}
+		EndpointMetrics(final long admitted, final long queued, final long shed,
+						final int available, final int waiting) {
+			this.admitted = admitted;
+			this.available = available;
+			this.queued = queued;
+			this.shed = shed;
+			this.waiting = waiting;
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package com.pleaseignore.pings.server;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Verifies users and resolves the groups to which they belong. The server uses the local
+ * membership records unless the "auth.provider" setting names another implementation, which
+ * must have a public constructor taking the ServerSettings.
+ *
+ * Implementations must be thread safe. Group lookups may be slow, as they are cached and
+ * refreshed in the background, but authentication is checked on every login and should be
+ * cheap (such as verifying a signed token).
+ */
+public interface AuthProvider {
+	/**
+	 * Verifies a user's credentials.
+	 *
+	 * @param username the username
+	 * @param password the password or token presented at login
+	 * @return true if the credentials are valid
+	 * @throws IOException if the credentials could not be checked
+	 */
+	boolean authenticate(String username, String password) throws IOException;
+	/**
+	 * Looks up the groups to which a user belongs.
+	 *
+	 * @param username the username
+	 * @return the names of the user's groups, empty if the user is unknown
+	 * @throws IOException if the groups could not be retrieved
+	 */
+	List<String> getGroups(String username) throws IOException;
+}
@@ -0,0 +1,111 @@
+package com.pleaseignore.pings.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A JSON wrapper class for the response to a batch of pings, with one result per ping in the
+ * order they were sent.
+ */
+public final class BatchPingResponse {
+	/**
+	 * The number of pings accepted for delivery.
+	 */
+	public int accepted;
+	/**
+	 * The number of pings in the request.
+	 */
+	public int count;
+	/**
+	 * The result of each ping.
+	 */
+	public List<Result> results;
+
+	public BatchPingResponse() {
+		accepted = 0;
+		count = 0;
+		results = new ArrayList<>(0);
+	}
+	/**
+	 * Creates a new batch ping response.
+	 *
+	 * @param results the result of each ping
+	 */
+	public BatchPingResponse(final List<Result> results) {
+		if (results == null)
+			throw new IllegalArgumentException("results");
+		int accepted = 0;
+		for (final Result result : results)
+			if (result.status.equals(Result.QUEUED))
+				accepted++;
+		this.accepted = accepted;
+		count = results.size();
+		this.results = results;
+	}
+	public String toString() {
+		return accepted + " of " + count + " accepted";
+	}
+
+	/**
+	 * The result of one ping in a batch.
+	 */
+	public static final class Result {
+		/**
+		 * The status of a ping whose group does not exist.
+		 */
+		public static final String BAD_GROUP = "badGroup";
+		/**
+		 * The status of a ping which was already accepted with the same idempotency key.
+		 */
+		public static final String DUPLICATE = "duplicate";
+		/**
+		 * The status of a ping which could not be logged.
+		 */
+		public static final String FAILED = "failed";
+		/**
+		 * The status of a ping without text, or with an oversized idempotency key.
+		 */
+		public static final String INVALID = "invalid";
+		/**
+		 * The status of a ping which was logged and will be delivered.
+		 */
+		public static final String QUEUED = "queued";
+
+		/**
+		 * The ping ID, which for a duplicate is the ID of the ping accepted earlier, or 0 if
+		 * the ping was not accepted.
+		 */
+		public long id;
+		/**
+		 * The idempotency key sent with the ping, if any.
+		 */
+		public String key;
+		/**
+		 * The ping status.
+		 */
+		public String status;
+
+		public Result() {
+			id = 0L;
+			key = null;
+			status = INVALID;
+		}
+		/**
+		 * Creates a new ping result.
+		 *
+		 * @param status the ping status
+		 * @param id the ping ID, or 0 if the ping was not accepted
+		 * @param key the idempotency key, or null if none was sent
+		 */
+		public Result(final String status, final long id, final String key) {
+			if (status == null)
+				throw new IllegalArgumentException("status");
+			this.id = id;
+			this.key = key;
+			this.status = status;
+		}
+		public String toString() {
+			return status + " (" + id + ")";
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package com.pleaseignore.pings.server;
+
+/**
+ * A JSON wrapper class for the response to a batch refresh. The per-entry results are sent
+ * as a compact bitmap instead of one object per entry.
+ */
+public final class BatchRefreshResponse {
+	/**
+	 * The number of entries in the request.
+	 */
+	public int count;
+	/**
+	 * The number of sessions renewed.
+	 */
+	public int renewed;
+	/**
+	 * Base64 encoded bitmap of results; bit (i % 8) of byte (i / 8) is set if entry i was
+	 * renewed. Trailing zero bytes are omitted.
+	 */
+	public String results;
+
+	public BatchRefreshResponse() {
+		count = 0;
+		renewed = 0;
+		results = "";
+	}
+	/**
+	 * Creates a new batch refresh response.
+	 *
+	 * @param count the number of entries
+	 * @param renewed the number of sessions renewed
+	 * @param results the Base64 encoded result bitmap
+	 */
+	public BatchRefreshResponse(final int count, final int renewed, final String results) {
+		if (results == null)
+			throw new IllegalArgumentException("results");
+		this.count = count;
+		this.renewed = renewed;
+		this.results = results;
+	}
+	public String toString() {
+		return renewed + " of " + count + " renewed";
+	}
+}
@@ -0,0 +1,115 @@
+package com.pleaseignore.pings.server;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stops calls to a failing service for a while, so that callers fail fast instead of waiting
+ * on requests which are unlikely to succeed. After enough consecutive failures the breaker
+ * opens; once the cooldown passes, a single trial call is let through (half open), and the
+ * breaker closes again if it succeeds or stays open for another cooldown if it fails.
+ */
+public final class CircuitBreaker {
+	/**
+	 * Logs any unusual errors which occur in this class (most are passed upstream).
+	 */
+	private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+	/**
+	 * How long the breaker stays open before allowing a trial call, in milliseconds.
+	 */
+	private final long cooldown;
+	/**
+	 * The number of consecutive failures.
+	 */
+	private int failures;
+	/**
+	 * The service name used in log messages.
+	 */
+	private final String name;
+	/**
+	 * The time at which the breaker last opened.
+	 */
+	private long openedAt;
+	/**
+	 * The number of consecutive failures which opens the breaker.
+	 */
+	private final int threshold;
+	/**
+	 * Whether the trial call of the half open state is in progress.
+	 */
+	private boolean trial;
+
+	/**
+	 * Creates a new circuit breaker, initially closed.
+	 *
+	 * @param name the service name used in log messages
+	 * @param threshold the number of consecutive failures which opens the breaker
+	 * @param cooldown how long the breaker stays open in milliseconds
+	 */
+	public CircuitBreaker(final String name, final int threshold, final long cooldown) {
+		if (name == null)
+			throw new IllegalArgumentException("name");
+		if (threshold < 1)
+			throw new IllegalArgumentException("threshold");
+		this.cooldown = Math.max(0L, cooldown);
+		failures = 0;
+		this.name = name;
+		openedAt = 0L;
+		this.threshold = threshold;
+		trial = false;
+	}
+	/**
+	 * Checks to see if a call may be made. If the breaker is half open, the caller which is
+	 * allowed through makes the trial call and must report its outcome.
+	 *
+	 * @return true if the call may proceed, or false if it should fail fast
+	 */
+	public synchronized boolean allow() {
+		boolean ok = failures < threshold;
+		if (!ok && !trial && System.currentTimeMillis() - openedAt >= cooldown) {
+			trial = true;
+			ok = true;
+		}
+		return ok;
+	}
+	/**
+	 * Reports that a call failed.
+	 */
+	public synchronized void failure() {
+		failures++;
+		if (failures == threshold || trial) {
+			openedAt = System.currentTimeMillis();
+			LOGGER.log(Level.WARNING, "Circuit to " + name + " opened after " + failures +
+				" failures");
+		}
+		trial = false;
+	}
+	/**
+	 * Reports the breaker state.
+	 *
+	 * @return "closed", "open" or "halfOpen"
+	 */
+	public synchronized String getState() {
+		final String state;
+		if (failures < threshold)
+			state = "closed";
+		else if (trial || System.currentTimeMillis() - openedAt >= cooldown)
+			state = "halfOpen";
+		else
+			state = "open";
+		return state;
+	}
+	/**
+	 * Reports that a call succeeded, closing the breaker.
+	 */
+	public synchronized void success() {
+		if (failures >= threshold)
+			LOGGER.log(Level.INFO, "Circuit to " + name + " closed");
+		failures = 0;
+		trial = false;
+	}
+	public String toString() {
+		return "Circuit breaker for " + name + " (" + getState() + ")";
+	}
+}
@@ -0,0 +1,174 @@
+package com.pleaseignore.pings.server;
+
+import java.util.*;
+
+/**
+ * Collects the device IDs which the Instance ID API reported as unknown or invalid, such as
+ * those of uninstalled apps. Their sessions are evicted in bulk, and the most recent ones are
+ * remembered so that subscription changes queued before the eviction skip them. A device ID
+ * is forgotten again as soon as the Instance ID API answers for it, such as after a reinstall
+ * which restored the same ID.
+ */
+public final class DeadTokens {
+	/**
+	 * The number of device IDs reported dead.
+	 */
+	private long detected;
+	/**
+	 * The number of sessions evicted because their device ID was dead.
+	 */
+	private long evicted;
+	/**
+	 * The dead device IDs remembered, oldest first.
+	 */
+	private final Set<String> known;
+	/**
+	 * The maximum number of dead device IDs remembered.
+	 */
+	private final int maxTokens;
+	/**
+	 * The dead device IDs whose sessions have not yet been evicted.
+	 */
+	private Set<String> pending;
+
+	/**
+	 * Creates a new dead token set.
+	 *
+	 * @param maxTokens the maximum number of dead device IDs remembered
+	 */
+	public DeadTokens(final int maxTokens) {
+		if (maxTokens < 1)
+			throw new IllegalArgumentException("maxTokens");
+		detected = 0L;
+		evicted = 0L;
+		known = new LinkedHashSet<>(256);
+		this.maxTokens = maxTokens;
+		pending = new HashSet<>(64);
+	}
+	/**
+	 * Records a device ID reported dead.
+	 *
+	 * @param deviceID the device ID
+	 */
+	public synchronized void add(final String deviceID) {
+		if (deviceID == null)
+			throw new IllegalArgumentException("deviceID");
+		if (known.add(deviceID)) {
+			detected++;
+			if (known.size() > maxTokens) {
+				// Forget the oldest, whose sessions are long gone
+				final Iterator<String> it = known.iterator();
+				it.next();
+				it.remove();
+			}
+		}
+		// Even if known, a new session may have logged in with it since the last eviction
+		pending.add(deviceID);
+	}
+	/**
+	 * Records that the Instance ID API answered for a device ID, so that it is no longer
+	 * skipped or evicted if it was reported dead before.
+	 *
+	 * @param deviceID the device ID
+	 */
+	public synchronized void alive(final String deviceID) {
+		if (deviceID == null)
+			throw new IllegalArgumentException("deviceID");
+		known.remove(deviceID);
+		pending.remove(deviceID);
+	}
+	/**
+	 * Checks whether a device ID was recently reported dead.
+	 *
+	 * @param deviceID the device ID
+	 * @return true if the device ID is dead
+	 */
+	public synchronized boolean contains(final String deviceID) {
+		return known.contains(deviceID);
+	}
+	/**
+	 * Takes the dead device IDs whose sessions have not yet been evicted.
+	 *
+	 * @return the device IDs reported dead since the last call
+	 */
+	public synchronized Set<String> drain() {
+		final Set<String> ret = pending;
+		if (!ret.isEmpty())
+			pending = new HashSet<>(64);
+		return ret;
+	}
+	/**
+	 * Records that sessions were evicted because their device ID was dead.
+	 *
+	 * @param count the number of sessions evicted
+	 */
+	public synchronized void evicted(final int count) {
+		evicted += count;
+	}
+	/**
+	 * Removes the dead device IDs from a list of devices.
+	 *
+	 * @param deviceIDs the device IDs
+	 * @return the device IDs which are not known to be dead, or the original collection if
+	 * none are
+	 */
+	public synchronized Collection<String> filter(final Collection<String> deviceIDs) {
+		Collection<String> ret = deviceIDs;
+		if (!known.isEmpty())
+			for (final String deviceID : deviceIDs)
+				if (known.contains(deviceID)) {
+					// Copy only when needed, most batches have no dead devices
+					ret = new ArrayList<>(deviceIDs.size());
+					for (final String live : deviceIDs)
+						if (!known.contains(live))
+							ret.add(live);
+					break;
+				}
+		return ret;
+	}
+	/**
+	 * Reports how many dead device IDs were detected and evicted.
+	 *
+	 * @return the dead token metrics
+	 */
+	public synchronized DeadTokenMetrics getMetrics() {
+		return new DeadTokenMetrics(detected, evicted, pending.size());
+	}
+	public String toString() {
+		return "Dead tokens (" + getMetrics().detected + " detected)";
+	}
+
+	/**
+	 * A JSON wrapper class reporting the dead device IDs detected and pruned.
+	 */
+	public static final class DeadTokenMetrics {
+		/**
+		 * The number of device IDs reported dead.
+		 */
+		public long detected;
+		/**
+		 * The number of sessions evicted because their device ID was dead.
+		 */
+		public long evicted;
+		/**
+		 * The number of dead device IDs awaiting eviction.
+		 */
+		public int pending;
+
+		public DeadTokenMetrics() {
+			this(0L, 0L, 0);
+		}
+		/**
+		 * Creates a new dead token metrics snapshot.
+		 *
+		 * @param detected the number of device IDs reported dead
+		 * @param evicted the number of sessions evicted
+		 * @param pending the number of dead device IDs awaiting eviction
+		 */
+		public DeadTokenMetrics(final long detected, final long evicted, final int pending) {
+			this.detected = detected;
+			this.evicted = evicted;
+			this.pending = pending;
+		}
+	}
+}
@@ -0,0 +1,377 @@
+package com.pleaseignore.pings.server;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches the groups of each user from an authentication provider, so that logins rarely wait
+ * for a slow service. The cache holds a bounded number of users, evicting the least recently
+ * used, and entries expire after a fixed time. An entry used shortly before it expires is
+ * refreshed in the background, so active users keep hitting the cache.
+ *
+ * Concurrent lookups of the same user share a single request to the provider, and callers
+ * wait for it only up to a timeout. Provider calls go through a circuit breaker; while the
+ * provider is failing or the breaker is open, expired entries are still used, and users with
+ * no entry cannot be resolved.
+ */
+public final class GroupCache {
+	/**
+	 * Logs any unusual errors which occur in this class (most are passed upstream).
+	 */
+	private static final Logger LOGGER = Logger.getLogger(GroupCache.class.getName());
+
+	/**
+	 * Stops lookups while the provider is failing.
+	 */
+	private final CircuitBreaker breaker;
+	/**
+	 * The cached groups by username, in access order.
+	 */
+	private final Map<String, CachedGroups> entries;
+	/**
+	 * Runs provider lookups.
+	 */
+	private final ThreadPoolExecutor executor;
+	/**
+	 * The number of provider lookups which failed.
+	 */
+	private long failures;
+	/**
+	 * Incremented on every invalidation, so that lookups started before it are not cached.
+	 */
+	private long generation;
+	/**
+	 * The number of requests answered by an unexpired entry.
+	 */
+	private long hits;
+	/**
+	 * The lookups in progress by username.
+	 */
+	private final Map<String, FutureTask<List<String>>> inFlight;
+	/**
+	 * The number of provider lookups started.
+	 */
+	private long loads;
+	/**
+	 * The number of requests with no unexpired entry.
+	 */
+	private long misses;
+	/**
+	 * The provider of user groups.
+	 */
+	private final AuthProvider provider;
+	/**
+	 * How long before expiry a used entry is refreshed, in milliseconds.
+	 */
+	private final long refreshAhead;
+	/**
+	 * The number of lookups not started because the circuit breaker was open.
+	 */
+	private long rejected;
+	/**
+	 * The number of requests answered by an expired entry, as the provider could not answer.
+	 */
+	private long stale;
+	/**
+	 * The longest time a request waits for the provider, in milliseconds.
+	 */
+	private final long timeout;
+	/**
+	 * The number of requests which stopped waiting for the provider.
+	 */
+	private long timeouts;
+	/**
+	 * How long entries remain valid, in milliseconds.
+	 */
+	private final long ttl;
+
+	/**
+	 * Creates a new group cache.
+	 *
+	 * @param provider the provider of user groups
+	 * @param breaker the circuit breaker for provider lookups
+	 * @param threads the number of threads for provider lookups
+	 * @param maxSize the maximum number of users cached
+	 * @param ttl how long entries remain valid in milliseconds
+	 * @param refreshAhead how long before expiry a used entry is refreshed in milliseconds
+	 * @param timeout the longest time a request waits for the provider in milliseconds
+	 */
+	public GroupCache(final AuthProvider provider, final CircuitBreaker breaker,
+					  final int threads, final int maxSize, final long ttl,
+					  final long refreshAhead, final long timeout) {
+		if (provider == null)
+			throw new IllegalArgumentException("provider");
+		if (breaker == null)
+			throw new IllegalArgumentException("breaker");
+		if (maxSize < 1)
+			throw new IllegalArgumentException("maxSize");
+		this.breaker = breaker;
+		entries = new LinkedHashMap<String, CachedGroups>(Math.min(maxSize, 1024), 0.75f,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(final Map.Entry<String, CachedGroups>
+													eldest) {
+				return size() > maxSize;
+			}
+		};
+		executor = new MonitoredThreadPool(Math.max(1, threads));
+		failures = 0L;
+		generation = 0L;
+		hits = 0L;
+		inFlight = new HashMap<>(32);
+		loads = 0L;
+		misses = 0L;
+		this.provider = provider;
+		this.refreshAhead = Math.max(0L, refreshAhead);
+		rejected = 0L;
+		stale = 0L;
+		this.timeout = Math.max(0L, timeout);
+		timeouts = 0L;
+		this.ttl = Math.max(0L, ttl);
+	}
+	/**
+	 * Retrieves the groups of a user, from the cache if possible. Only the first request for
+	 * a user which is not cached waits for the provider.
+	 *
+	 * @param username the username
+	 * @return the names of the user's groups, or null if they could not be retrieved in time
+	 */
+	public List<String> get(final String username) {
+		if (username == null)
+			throw new IllegalArgumentException("username");
+		final long now = System.currentTimeMillis();
+		final CachedGroups entry;
+		final FutureTask<List<String>> task;
+		synchronized (this) {
+			entry = entries.get(username);
+			if (entry != null && now < entry.expires) {
+				hits++;
+				if (now >= entry.expires - refreshAhead)
+					lookup(username);
+				return entry.groups;
+			}
+			misses++;
+			task = lookup(username);
+		}
+		List<String> ret = null;
+		if (task != null)
+			try {
+				ret = task.get(timeout, TimeUnit.MILLISECONDS);
+			} catch (ExecutionException e) {
+				LOGGER.log(Level.FINE, "Unable to look up groups of \"" + username + "\"",
+					e.getCause());
+			} catch (TimeoutException e) {
+				// The lookup continues, and caches its result when it finishes
+				synchronized (this) {
+					timeouts++;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		if (ret == null && entry != null) {
+			synchronized (this) {
+				stale++;
+			}
+			ret = entry.groups;
+		}
+		return ret;
+	}
+	/**
+	 * Reports the cache statistics.
+	 *
+	 * @return the cache metrics
+	 */
+	public synchronized CacheMetrics getMetrics() {
+		return new CacheMetrics(breaker.getState(), entries.size(), hits, misses, loads,
+			failures, timeouts, stale, rejected);
+	}
+	/**
+	 * Drops the cached entries of the specified users, as their groups have changed.
+	 *
+	 * @param usernames the users whose entries are dropped
+	 */
+	public synchronized void invalidate(final Collection<String> usernames) {
+		if (usernames == null)
+			throw new IllegalArgumentException("usernames");
+		if (usernames.size() > 0) {
+			for (final String username : usernames)
+				entries.remove(username);
+			generation++;
+		}
+	}
+	/**
+	 * Starts a provider lookup for the user, unless one is already in progress or the circuit
+	 * breaker is open. Must hold the cache lock.
+	 *
+	 * @param username the username
+	 * @return the lookup in progress, or null if no lookup could be started
+	 */
+	private FutureTask<List<String>> lookup(final String username) {
+		FutureTask<List<String>> task = inFlight.get(username);
+		if (task == null) {
+			if (breaker.allow()) {
+				task = new FutureTask<>(new Lookup(username, generation));
+				try {
+					executor.execute(task);
+					inFlight.put(username, task);
+					loads++;
+				} catch (RejectedExecutionException e) {
+					// Shutting down, do not leave a half open trial hanging
+					breaker.failure();
+					task = null;
+				}
+			} else
+				rejected++;
+		}
+		return task;
+	}
+	/**
+	 * Stops the lookup threads. Requests made afterwards use only cached entries.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+	public String toString() {
+		return "Group cache (" + getMetrics().entries + " users)";
+	}
+
+	/**
+	 * Reports the statistics of a group cache.
+	 */
+	public static final class CacheMetrics {
+		/**
+		 * The circuit breaker state: "closed", "open" or "halfOpen".
+		 */
+		public String breaker;
+		/**
+		 * The number of users cached.
+		 */
+		public int entries;
+		/**
+		 * The number of provider lookups which failed.
+		 */
+		public long failures;
+		/**
+		 * The number of requests answered by an unexpired entry.
+		 */
+		public long hits;
+		/**
+		 * The number of provider lookups started, including refreshes ahead of expiry.
+		 */
+		public long loads;
+		/**
+		 * The number of requests with no unexpired entry.
+		 */
+		public long misses;
+		/**
+		 * The number of lookups not started because the circuit breaker was open.
+		 */
+		public long rejected;
+		/**
+		 * The number of requests answered by an expired entry.
+		 */
+		public long stale;
+		/**
+		 * The number of requests which stopped waiting for the provider.
+		 */
+		public long timeouts;
+
+		public CacheMetrics() {
+			breaker = "closed";
+			entries = 0;
+			failures = 0L;
+			hits = 0L;
+			loads = 0L;
+			misses = 0L;
+			rejected = 0L;
+			stale = 0L;
+			timeouts = 0L;
+		}
+		CacheMetrics(final String breaker, final int entries, final long hits,
+					 final long misses, final long loads, final long failures,
+					 final long timeouts, final long stale, final long rejected) {
+			this.breaker = breaker;
+			this.entries = entries;
+			this.failures = failures;
+			this.hits = hits;
+			this.loads = loads;
+			this.misses = misses;
+			this.rejected = rejected;
+			this.stale = stale;
+			this.timeouts = timeouts;
+		}
+	}
+
+	/**
+	 * The cached groups of a user.
+	 */
+	private static final class CachedGroups {
+		/**
+		 * The time at which the entry expires.
+		 */
+		final long expires;
+		/**
+		 * The names of the user's groups.
+		 */
+		final List<String> groups;
+
+		CachedGroups(final List<String> groups, final long expires) {
+			this.expires = expires;
+			this.groups = groups;
+		}
+	}
+
+	/**
+	 * Looks up the groups of a user from the provider and caches them.
+	 */
+	private final class Lookup implements Callable<List<String>> {
+		/**
+		 * The cache generation when the lookup started.
+		 */
+		private final long generation;
+		/**
+		 * The username.
+		 */
+		private final String username;
+
+		Lookup(final String username, final long generation) {
+			this.generation = generation;
+			this.username = username;
+		}
+		public List<String> call() throws IOException {
+			boolean ok = false;
+			try {
+				final List<String> groups = Collections.unmodifiableList(new ArrayList<>(
+					provider.getGroups(username)));
+				ok = true;
+				synchronized (GroupCache.this) {
+					// An invalidation during the lookup may have made this answer outdated
+					if (generation == GroupCache.this.generation)
+						entries.put(username, new CachedGroups(groups, System.
+							currentTimeMillis() + ttl));
+				}
+				return groups;
+			} finally {
+				if (ok)
+					breaker.success();
+				else
+					breaker.failure();
+				synchronized (GroupCache.this) {
+					inFlight.remove(username);
+					if (!ok)
+						failures++;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package com.pleaseignore.pings.server;
+
+import java.util.*;
+
+/**
+ * Interns group names to dense integer IDs and stores the current topic of each group by ID.
+ * Everything past the HTTP handlers works with group IDs; names are only resolved here.
+ * Removed groups leave an empty slot, so IDs are never reused while the server runs and
+ * sessions cannot be confused by a stale ID.
+ *
+ * Every change copies the groups and publishes them as a new immutable snapshot. Changes are
+ * not thread safe, so writers must synchronize on the dictionary, but readers may take the
+ * current snapshot without any lock.
+ */
+public final class GroupDictionary {
+	/**
+	 * The groups as of the last change. Replaced, never modified.
+	 */
+	private volatile GroupSnapshot snapshot;
+
+	public GroupDictionary() {
+		snapshot = GroupSnapshot.EMPTY;
+	}
+	/**
+	 * Adds a group if it does not already exist.
+	 *
+	 * @param name the group name
+	 * @return the group, with no topic assigned if it was just created
+	 */
+	public GroupTopic add(final String name) {
+		if (name == null)
+			throw new IllegalArgumentException("name");
+		GroupTopic group = get(name);
+		if (group == null) {
+			final GroupSnapshot last = snapshot;
+			final int id = last.size();
+			final GroupTopic[] byID = Arrays.copyOf(last.getGroups(), id + 1);
+			final Map<String, Integer> ids = new HashMap<>(last.getIDs());
+			group = new GroupTopic(id, name);
+			byID[id] = group;
+			ids.put(name, id);
+			publish(byID, ids);
+		}
+		return group;
+	}
+	/**
+	 * Retrieves a group by ID.
+	 *
+	 * @param id the group ID
+	 * @return the group, or null if there is no group with that ID or it was removed
+	 */
+	public GroupTopic get(final int id) {
+		return snapshot.get(id);
+	}
+	/**
+	 * Retrieves a group by name.
+	 *
+	 * @param name the group name
+	 * @return the group, or null if there is no group with that name
+	 */
+	public GroupTopic get(final String name) {
+		return snapshot.get(name);
+	}
+	/**
+	 * Publishes the groups after a change as the next snapshot.
+	 *
+	 * @param byID the groups indexed by ID, which must not be modified afterwards
+	 * @param ids the group IDs by name, which must not be modified afterwards
+	 */
+	private void publish(final GroupTopic[] byID, final Map<String, Integer> ids) {
+		snapshot = new GroupSnapshot(snapshot.getVersion() + 1L, byID, ids);
+	}
+	/**
+	 * Removes a group. Its ID is not reused.
+	 *
+	 * @param id the group ID
+	 * @return the removed group, or null if there is no group with that ID
+	 */
+	public GroupTopic remove(final int id) {
+		final GroupSnapshot last = snapshot;
+		final GroupTopic group = last.get(id);
+		if (group != null) {
+			final GroupTopic[] byID = last.getGroups().clone();
+			final Map<String, Integer> ids = new HashMap<>(last.getIDs());
+			ids.remove(group.getName());
+			byID[id] = null;
+			publish(byID, ids);
+		}
+		return group;
+	}
+	/**
+	 * Renames a group, keeping its ID and topic.
+	 *
+	 * @param id the group ID
+	 * @param newName the new group name
+	 * @return the renamed group, or null if there is no group with that ID or the new name is
+	 * already taken
+	 */
+	public GroupTopic rename(final int id, final String newName) {
+		if (newName == null)
+			throw new IllegalArgumentException("newName");
+		final GroupSnapshot last = snapshot;
+		GroupTopic group = last.get(id);
+		if (group != null && last.get(newName) == null) {
+			final GroupTopic[] byID = last.getGroups().clone();
+			final Map<String, Integer> ids = new HashMap<>(last.getIDs());
+			ids.remove(group.getName());
+			group = group.rename(newName);
+			byID[id] = group;
+			ids.put(newName, id);
+			publish(byID, ids);
+		} else
+			group = null;
+		return group;
+	}
+	/**
+	 * Keeps the group IDs below a limit from being issued to new groups, as if groups had
+	 * been created and removed with them. Used on startup for the IDs of removed groups which
+	 * pending work still names.
+	 *
+	 * @param limit the lowest ID which new groups may be given
+	 */
+	public void reserve(final int limit) {
+		final GroupSnapshot last = snapshot;
+		if (limit > last.size())
+			publish(Arrays.copyOf(last.getGroups(), limit), last.getIDs());
+	}
+	/**
+	 * Resolves group names to a sorted array of group IDs, ignoring unknown names.
+	 *
+	 * @param names the group names
+	 * @return the IDs of the groups which exist, sorted and without duplicates
+	 */
+	public int[] resolve(final Collection<String> names) {
+		return snapshot.resolve(names);
+	}
+	/**
+	 * Restores a group at the ID which it had before a restart. The IDs of groups removed
+	 * since it was stored are left as empty slots, and are not issued to new groups.
+	 *
+	 * @param group the stored group, with its ID and topic
+	 * @return the restored group
+	 */
+	public GroupTopic restore(final GroupTopic group) {
+		if (group == null)
+			throw new IllegalArgumentException("group");
+		final GroupSnapshot last = snapshot;
+		final int id = group.getID();
+		if (id < 0 || last.get(id) != null || last.get(group.getName()) != null)
+			throw new IllegalArgumentException("id");
+		final GroupTopic[] byID = Arrays.copyOf(last.getGroups(), Math.max(id + 1, last.
+			size()));
+		final Map<String, Integer> ids = new HashMap<>(last.getIDs());
+		byID[id] = group;
+		ids.put(group.getName(), id);
+		publish(byID, ids);
+		return group;
+	}
+	/**
+	 * Reports the number of group IDs issued. Group IDs range from 0 to size() - 1, including
+	 * the IDs of removed groups.
+	 *
+	 * @return the number of group IDs
+	 */
+	public int size() {
+		return snapshot.size();
+	}
+	/**
+	 * Retrieves the groups as of the last change. May be called without holding the lock.
+	 *
+	 * @return the current group snapshot
+	 */
+	public GroupSnapshot snapshot() {
+		return snapshot;
+	}
+	/**
+	 * Replaces the stored topic of a group, usually after a rotation.
+	 *
+	 * @param group the new group topic (ID must already exist)
+	 */
+	public void update(final GroupTopic group) {
+		update(Collections.singletonList(group));
+	}
+	/**
+	 * Replaces the stored topics of several groups at once, so that readers see all of them
+	 * change in the same snapshot.
+	 *
+	 * @param changed the new group topics (IDs must already exist)
+	 */
+	public void update(final Collection<GroupTopic> changed) {
+		final GroupSnapshot last = snapshot;
+		final GroupTopic[] byID = last.getGroups().clone();
+		for (final GroupTopic group : changed) {
+			final int id = group.getID();
+			if (id >= byID.length || byID[id] == null || !byID[id].getName().equals(group.
+					getName()))
+				throw new IllegalArgumentException("group");
+			byID[id] = group;
+		}
+		// Names are unchanged, so the name index is shared with the last snapshot
+		publish(byID, last.getIDs());
+	}
+}
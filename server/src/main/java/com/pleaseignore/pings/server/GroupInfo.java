@@ -0,0 +1,69 @@
+package com.pleaseignore.pings.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A JSON wrapper class describing a group for the group admin API. The topic ID itself is
+ * never reported, as knowing it is enough to receive the group's pings.
+ */
+public final class GroupInfo {
+	/**
+	 * The number of users added by the request.
+	 */
+	public int added;
+	/**
+	 * The topic epoch, which increases with every rotation.
+	 */
+	public int epoch;
+	/**
+	 * The number of members.
+	 */
+	public int memberCount;
+	/**
+	 * The usernames of the members, if requested.
+	 */
+	public List<String> members;
+	/**
+	 * Whether devices are still being moved from the previous topic.
+	 */
+	public boolean migrating;
+	/**
+	 * The group name.
+	 */
+	public String name;
+	/**
+	 * The number of users removed by the request.
+	 */
+	public int removed;
+
+	public GroupInfo() {
+		added = 0;
+		epoch = 0;
+		memberCount = 0;
+		members = new ArrayList<>(0);
+		migrating = false;
+		name = "";
+		removed = 0;
+	}
+	/**
+	 * Creates a new group description.
+	 *
+	 * @param topic the group
+	 * @param memberCount the number of members
+	 */
+	public GroupInfo(final GroupTopic topic, final int memberCount) {
+		if (topic == null)
+			throw new IllegalArgumentException("topic");
+		added = 0;
+		epoch = topic.getEpoch();
+		this.memberCount = memberCount;
+		members = new ArrayList<>(0);
+		migrating = topic.isMigrating();
+		name = topic.getName();
+		removed = 0;
+	}
+	public String toString() {
+		return name + " (" + memberCount + " members)";
+	}
+}
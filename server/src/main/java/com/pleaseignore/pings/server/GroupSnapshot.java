@@ -0,0 +1,129 @@
+package com.pleaseignore.pings.server;
+
+import java.util.*;
+
+/**
+ * An immutable view of every group and its current topic, as published by the group
+ * dictionary after a change. Each snapshot carries a version which increases with every
+ * publication, so that values derived from one snapshot can be cached until the next.
+ *
+ * Snapshots are never modified once published, so readers may use one without any lock and
+ * always see the groups exactly as one change left them.
+ */
+public final class GroupSnapshot {
+	/**
+	 * The snapshot before any group is created.
+	 */
+	public static final GroupSnapshot EMPTY = new GroupSnapshot(0L, new GroupTopic[0],
+		Collections.<String, Integer>emptyMap());
+
+	/**
+	 * The groups indexed by ID, null for removed groups.
+	 */
+	private final GroupTopic[] byID;
+	/**
+	 * Maps group names to IDs.
+	 */
+	private final Map<String, Integer> ids;
+	/**
+	 * The publication number of this snapshot.
+	 */
+	private final long version;
+
+	/**
+	 * Creates a group snapshot. The arguments are not copied, and must not be modified
+	 * afterwards.
+	 *
+	 * @param version the publication number
+	 * @param byID the groups indexed by ID
+	 * @param ids the group IDs by name
+	 */
+	GroupSnapshot(final long version, final GroupTopic[] byID, final Map<String, Integer> ids) {
+		if (byID == null)
+			throw new IllegalArgumentException("byID");
+		if (ids == null)
+			throw new IllegalArgumentException("ids");
+		this.byID = byID;
+		this.ids = ids;
+		this.version = version;
+	}
+	/**
+	 * Retrieves a group by ID.
+	 *
+	 * @param id the group ID
+	 * @return the group, or null if there is no group with that ID or it was removed
+	 */
+	public GroupTopic get(final int id) {
+		return (id >= 0 && id < byID.length) ? byID[id] : null;
+	}
+	/**
+	 * Retrieves a group by name.
+	 *
+	 * @param name the group name
+	 * @return the group, or null if there is no group with that name
+	 */
+	public GroupTopic get(final String name) {
+		final Integer id = ids.get(name);
+		return (id == null) ? null : byID[id];
+	}
+	/**
+	 * Retrieves the groups indexed by ID. Shared with the dictionary, so callers must only
+	 * copy it.
+	 *
+	 * @return the groups, null for removed groups
+	 */
+	GroupTopic[] getGroups() {
+		return byID;
+	}
+	/**
+	 * Retrieves the group IDs by name. Shared with the dictionary, so callers must only copy
+	 * it.
+	 *
+	 * @return the group IDs by name
+	 */
+	Map<String, Integer> getIDs() {
+		return ids;
+	}
+	/**
+	 * Retrieves the publication number of this snapshot.
+	 *
+	 * @return the version, greater than that of any snapshot published before it
+	 */
+	public long getVersion() {
+		return version;
+	}
+	/**
+	 * Resolves group names to a sorted array of group IDs, ignoring unknown names.
+	 *
+	 * @param names the group names
+	 * @return the IDs of the groups which exist, sorted and without duplicates
+	 */
+	public int[] resolve(final Collection<String> names) {
+		final int[] ret = new int[names.size()];
+		int count = 0;
+		for (final String name : names) {
+			final Integer id = ids.get(name);
+			if (id != null)
+				ret[count++] = id;
+		}
+		Arrays.sort(ret, 0, count);
+		// Remove duplicates in place
+		int unique = 0;
+		for (int i = 0; i < count; i++)
+			if (unique == 0 || ret[unique - 1] != ret[i])
+				ret[unique++] = ret[i];
+		return Arrays.copyOf(ret, unique);
+	}
+	/**
+	 * Reports the number of group IDs issued. Group IDs range from 0 to size() - 1, including
+	 * the IDs of removed groups.
+	 *
+	 * @return the number of group IDs
+	 */
+	public int size() {
+		return byID.length;
+	}
+	public String toString() {
+		return "Group snapshot v" + version + " (" + ids.size() + " groups)";
+	}
+}
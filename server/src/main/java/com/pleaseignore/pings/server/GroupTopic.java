@@ -0,0 +1,168 @@
+package com.pleaseignore.pings.server;
+
+/**
+ * An immutable binding of a ping group to its current randomized FCM topic. Each rotation
+ * produces a new binding with the next epoch, so that sessions can record which topic
+ * generation they are confirmed on.
+ *
+ * While devices are being moved to a new topic, the binding also remembers the previous
+ * topic, so that pings reach devices which have not been moved yet.
+ */
+public final class GroupTopic {
+	/**
+	 * The topic generation, starting at 0 (no topic yet) and increasing on each rotation.
+	 */
+	private final int epoch;
+	/**
+	 * The dense group ID used to index per-session subscription state.
+	 */
+	private final int id;
+	/**
+	 * The group name.
+	 */
+	private final String name;
+	/**
+	 * The topic from which devices are still being moved, or an empty string if none.
+	 */
+	private final String previous;
+	/**
+	 * The FCM topic ID, or an empty string if no topic has been assigned yet.
+	 */
+	private final String topic;
+
+	/**
+	 * Creates a new group with no topic assigned.
+	 *
+	 * @param id the group ID
+	 * @param name the group name
+	 */
+	public GroupTopic(final int id, final String name) {
+		this(id, name, "", 0, "");
+	}
+	/**
+	 * Creates a group with a known topic and epoch, such as one restored from disk.
+	 *
+	 * @param id the group ID
+	 * @param name the group name
+	 * @param topic the FCM topic ID, or an empty string if none
+	 * @param epoch the topic epoch
+	 */
+	public GroupTopic(final int id, final String name, final String topic, final int epoch) {
+		this(id, name, topic, epoch, "");
+	}
+	/**
+	 * Creates a group with a known topic and epoch, which may still be moving devices from
+	 * its previous topic.
+	 *
+	 * @param id the group ID
+	 * @param name the group name
+	 * @param topic the FCM topic ID, or an empty string if none
+	 * @param epoch the topic epoch
+	 * @param previous the topic from which devices are still being moved, or an empty
+	 * string if none
+	 */
+	public GroupTopic(final int id, final String name, final String topic, final int epoch,
+					  final String previous) {
+		if (id < 0)
+			throw new IllegalArgumentException("id");
+		if (name == null)
+			throw new IllegalArgumentException("name");
+		if (topic == null)
+			throw new IllegalArgumentException("topic");
+		if (previous == null)
+			throw new IllegalArgumentException("previous");
+		this.epoch = epoch;
+		this.id = id;
+		this.name = name;
+		this.previous = previous;
+		this.topic = topic;
+	}
+	/**
+	 * Retrieves the topic epoch.
+	 *
+	 * @return the topic generation
+	 */
+	public int getEpoch() {
+		return epoch;
+	}
+	/**
+	 * Retrieves the group ID.
+	 *
+	 * @return the dense group ID
+	 */
+	public int getID() {
+		return id;
+	}
+	/**
+	 * Retrieves the group name.
+	 *
+	 * @return the group name
+	 */
+	public String getName() {
+		return name;
+	}
+	/**
+	 * Retrieves the topic from which devices are still being moved.
+	 *
+	 * @return the previous topic ID, or an empty string if no devices are being moved
+	 */
+	public String getPrevious() {
+		return previous;
+	}
+	/**
+	 * Retrieves the FCM topic ID.
+	 *
+	 * @return the topic ID, or an empty string if none has been assigned
+	 */
+	public String getTopic() {
+		return topic;
+	}
+	/**
+	 * Returns true if an FCM topic has been assigned to this group.
+	 *
+	 * @return whether the topic is valid
+	 */
+	public boolean hasTopic() {
+		return topic.length() > 0;
+	}
+	/**
+	 * Returns true if devices are still being moved from the previous topic.
+	 *
+	 * @return whether pings should also be sent to the previous topic
+	 */
+	public boolean isMigrating() {
+		return previous.length() > 0;
+	}
+	/**
+	 * Creates a copy of this group with a new name, keeping its topics and epoch.
+	 *
+	 * @param newName the new group name
+	 * @return the renamed group
+	 */
+	public GroupTopic rename(final String newName) {
+		return new GroupTopic(id, newName, topic, epoch, previous);
+	}
+	/**
+	 * Marks the move from the previous topic as finished.
+	 *
+	 * @return this group without a previous topic
+	 */
+	public GroupTopic retire() {
+		return isMigrating() ? new GroupTopic(id, name, topic, epoch, "") : this;
+	}
+	/**
+	 * Creates the next generation of this group with a new topic. The current topic becomes
+	 * the previous topic until the move is finished; if a move was already in progress, its
+	 * older topic is no longer sent to.
+	 *
+	 * @param newTopic the new FCM topic ID
+	 * @return the rotated group
+	 */
+	public GroupTopic rotate(final String newTopic) {
+		return new GroupTopic(id, name, newTopic, epoch + 1, topic);
+	}
+	public String toString() {
+		return "Group \"" + name + "\" => " + topic + " (epoch " + epoch + (isMigrating() ?
+			", moving from " + previous + ")" : ")");
+	}
+}
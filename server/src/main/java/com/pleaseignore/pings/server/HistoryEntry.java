@@ -0,0 +1,61 @@
+package com.pleaseignore.pings.server;
+
+/**
+ * A JSON wrapper class for one ping recorded in the ping history journal.
+ */
+public final class HistoryEntry {
+	/**
+	 * The group which was pinged.
+	 */
+	public String group;
+	/**
+	 * The unique ping ID.
+	 */
+	public long id;
+	/**
+	 * The full ping text.
+	 */
+	public String message;
+	/**
+	 * The result returned by FCM ("sent" or the failure reason).
+	 */
+	public String result;
+	/**
+	 * The time when the ping was sent in milliseconds (UTC).
+	 */
+	public long time;
+
+	public HistoryEntry() {
+		group = "";
+		id = 0L;
+		message = "";
+		result = "";
+		time = 0L;
+	}
+	/**
+	 * Creates a new history entry.
+	 *
+	 * @param id the ping ID
+	 * @param time the time the ping was sent
+	 * @param group the group which was pinged
+	 * @param message the ping text
+	 * @param result the FCM result
+	 */
+	public HistoryEntry(final long id, final long time, final String group,
+						final String message, final String result) {
+		if (group == null)
+			throw new IllegalArgumentException("group");
+		if (message == null)
+			throw new IllegalArgumentException("message");
+		if (result == null)
+			throw new IllegalArgumentException("result");
+		this.group = group;
+		this.id = id;
+		this.message = message;
+		this.result = result;
+		this.time = time;
+	}
+	public String toString() {
+		return "Ping #" + id + " to " + group;
+	}
+}
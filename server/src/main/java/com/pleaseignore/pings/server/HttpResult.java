@@ -0,0 +1,78 @@
+package com.pleaseignore.pings.server;
+
+/**
+ * The outcome of an outbound HTTP request, with enough of the response to decide whether and
+ * when to try again.
+ */
+public final class HttpResult {
+	/**
+	 * The response body, or null if none was read.
+	 */
+	private final String body;
+	/**
+	 * The HTTP status code.
+	 */
+	private final int code;
+	/**
+	 * The delay requested by the server's Retry-After header in milliseconds, or -1 if none.
+	 */
+	private final long retryAfter;
+
+	/**
+	 * Creates a new HTTP result.
+	 *
+	 * @param code the HTTP status code
+	 * @param body the response body, or null if none was read
+	 * @param retryAfter the Retry-After delay in milliseconds, or -1 if none was sent
+	 */
+	public HttpResult(final int code, final String body, final long retryAfter) {
+		this.body = body;
+		this.code = code;
+		this.retryAfter = retryAfter;
+	}
+	/**
+	 * Retrieves the response body.
+	 *
+	 * @return the response body, or null if none was read
+	 */
+	public String getBody() {
+		return body;
+	}
+	/**
+	 * Retrieves the HTTP status code.
+	 *
+	 * @return the status code
+	 */
+	public int getCode() {
+		return code;
+	}
+	/**
+	 * Retrieves the delay the server asked for before the next request.
+	 *
+	 * @return the Retry-After delay in milliseconds, or -1 if none was sent
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+	/**
+	 * Reports whether the request succeeded.
+	 *
+	 * @return true if the status code was 200
+	 */
+	public boolean isOK() {
+		return code == 200;
+	}
+	/**
+	 * Reports whether the same request could succeed later. Rate limiting (429) and server
+	 * errors (5xx) are retryable; other errors will fail again the same way.
+	 *
+	 * @return true if the request should be retried
+	 */
+	public boolean isRetryable() {
+		return code == 429 || code >= 500;
+	}
+	public String toString() {
+		return "HTTP " + code + ((retryAfter >= 0L) ? ", retry after " + retryAfter + " ms" :
+			"");
+	}
+}
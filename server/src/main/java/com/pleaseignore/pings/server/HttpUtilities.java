@@ -1,20 +1,33 @@
 package com.pleaseignore.pings.server;
 
 import com.sun.net.httpserver.HttpExchange;
-import org.apache.http.HttpStatus;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.util.EntityUtils;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -56,6 +69,33 @@ public final class HttpUtilities {
 		HTTP = HttpClientBuilder.create().setDefaultRequestConfig(config);
 	}
 
+	/**
+	 * Waits for a limiter slot to make an outbound request.
+	 *
+	 * @param limiter the limiter for the target service
+	 * @return the request start time, to be passed back to the limiter
+	 * @throws IOException if interrupted while waiting
+	 */
+	private static long acquire(final AdaptiveLimiter limiter) throws IOException {
+		try {
+			return limiter.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for " + limiter);
+		}
+	}
+	/**
+	 * Parses the query parameters of the exchange.
+	 *
+	 * @param exchange the HTTP request
+	 * @return the query parameters, empty if the URL has no query
+	 */
+	public static List<NameValuePair> getQueryParams(final HttpExchange exchange) {
+		final String query = exchange.getRequestURI().getRawQuery();
+		// The URL should be 7-bit safe anyways
+		return (query == null) ? Collections.<NameValuePair>emptyList() : URLEncodedUtils.
+			parse(query, Charset.forName(ENCODING));
+	}
 	/**
 	 * Retrieves the request body of the exchange as a string.
 	 *
@@ -75,7 +115,7 @@ public final class HttpUtilities {
 			// Default length if none given
 			len = BUFFER_LEN;
 		if (len > MAX_REQUEST_LEN)
-			throw new IOException("Request length is too long");
+			throw new RequestTooLargeException("Request length is too long");
 		// Fetch entire request body
 		final InputStream is = exchange.getRequestBody();
 		final ByteArrayOutputStream out = new ByteArrayOutputStream(len);
@@ -86,7 +126,7 @@ public final class HttpUtilities {
 				// Write to buffer, and avoid going over length
 				total += read;
 				if (total > MAX_REQUEST_LEN)
-					throw new IOException("Request body is too long");
+					throw new RequestTooLargeException("Request body is too long");
 				out.write(buffer, 0, read);
 			}
 		} finally {
@@ -97,42 +137,93 @@ public final class HttpUtilities {
 		return new String(out.toByteArray(), ENCODING);
 	}
 	/**
-	 * Makes a GET HTTP request to the specified URL with the API key provided in the
-	 * Authorization header and the specified request body.
+	 * Retrieves the request body of the exchange as a stream for incremental parsing. The
+	 * stream fails with a RequestTooLargeException if more than the maximum request length is
+	 * read.
 	 *
-	 * @param url the URL to request
-	 * @param apiKey the application's API key
-	 * @return the response content, or null if the request failed
+	 * @param exchange the HTTP request
+	 * @return the request body stream
+	 */
+	public static InputStream getRequestStream(final HttpExchange exchange) {
+		return new LimitedInputStream(exchange.getRequestBody(), MAX_REQUEST_LEN);
+	}
+	/**
+	 * Executes an outbound request within the service's concurrency limit, once any hold
+	 * requested by the service has passed. A Retry-After header in the response holds further
+	 * requests to the service.
+	 *
+	 * @param request the request to make
+	 * @param limiter limits concurrent requests to the target service
+	 * @param lane the quota lane of the target service
+	 * @return the result of the request
 	 * @throws IOException if an I/O error occurs
 	 */
-	public static String makeGetRequest(final String url, final String apiKey)
-			throws IOException {
-		String ret = null;
-		final CloseableHttpClient client = HTTP.build();
+	private static HttpResult execute(final HttpUriRequest request,
+									  final AdaptiveLimiter limiter,
+									  final QuotaScheduler.Lane lane) throws IOException {
+		final HttpResult ret;
+		try {
+			lane.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for " + lane);
+		}
+		final long start = acquire(limiter);
+		AdaptiveLimiter.Outcome outcome = AdaptiveLimiter.Outcome.DROPPED;
+		CloseableHttpClient client = null;
+		final ServerEvents.RemoteCallEvent event = ServerEvents.remoteCall(lane.getName(),
+			request.getMethod());
+		int code = 0;
 		try {
-			final HttpGet request = new HttpGet(url);
-			// Add authorization header with API key
-			request.addHeader("Authorization", "key=" + apiKey);
+			client = HTTP.build();
 			final CloseableHttpResponse response = client.execute(request);
 			try {
-				final int code = response.getStatusLine().getStatusCode();
-				if (code == HttpStatus.SC_OK)
-					// Read body of request as a String
-					ret = EntityUtils.toString(response.getEntity());
-				else {
-					LOGGER.log(Level.INFO, "Server returned code " + code + " for request \"" +
-						url + "\"");
-					// Ensure request has been fully read so that it can be discarded
-					EntityUtils.consume(response.getEntity());
-				}
+				code = response.getStatusLine().getStatusCode();
+				outcome = AdaptiveLimiter.Outcome.fromStatus(code);
+				// Read body of request as a String, which also allows it to be discarded
+				final HttpEntity entity = response.getEntity();
+				ret = new HttpResult(code, (entity == null) ? null : EntityUtils.toString(
+					entity, ENCODING), parseRetryAfter(response.getFirstHeader("Retry-After")));
+				// Emit diagnostic if not 200
+				if (!ret.isOK())
+					LOGGER.log(Level.INFO, "Server returned " + ret + " for request \"" +
+						request.getURI() + "\"");
+				lane.holdFor(ret.getRetryAfter());
 			} finally {
 				response.close();
 			}
+		} catch (ConnectTimeoutException | SocketTimeoutException e) {
+			// Timeouts are the clearest sign of an overloaded service
+			outcome = AdaptiveLimiter.Outcome.OVERLOAD;
+			throw e;
 		} finally {
-			client.close();
+			event.finish(code, outcome);
+			limiter.release(start, outcome);
+			if (client != null)
+				client.close();
 		}
 		return ret;
 	}
+	/**
+	 * Makes a GET HTTP request to the specified URL with the API key provided in the
+	 * Authorization header.
+	 *
+	 * @param url the URL to request
+	 * @param apiKey the application's API key
+	 * @param limiter limits concurrent requests to the target service
+	 * @param lane the quota lane of the target service
+	 * @return the result of the request
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static HttpResult makeGetRequest(final String url, final String apiKey,
+											final AdaptiveLimiter limiter,
+											final QuotaScheduler.Lane lane)
+			throws IOException {
+		final HttpGet request = new HttpGet(url);
+		// Add authorization header with API key
+		request.addHeader("Authorization", "key=" + apiKey);
+		return execute(request, limiter, lane);
+	}
 	/**
 	 * Makes a POST HTTP request to the specified URL with the API key provided in the
 	 * Authorization header and the specified request body.
@@ -140,37 +231,42 @@ public final class HttpUtilities {
 	 * @param url the URL to request
 	 * @param apiKey the application's API key
 	 * @param body the request body to send
-	 * @return true if the request was OK, or false otherwise
+	 * @param limiter limits concurrent requests to the target service
+	 * @param lane the quota lane of the target service
+	 * @return the result of the request
 	 * @throws IOException if an I/O error occurs
 	 */
-	public static boolean makePostRequest(final String url, final String apiKey,
-										  final String body) throws IOException {
-		boolean ok;
-		final CloseableHttpClient client = HTTP.build();
-		try {
-			final HttpPost request = new HttpPost(url);
-			// Add authorization header with API key
-			request.addHeader("Authorization", "key=" + apiKey);
-			request.addHeader("Content-Type", "application/json");
-			if (body != null)
-				request.setEntity(new StringEntity(body));
-			final CloseableHttpResponse response = client.execute(request);
+	public static HttpResult makePostRequest(final String url, final String apiKey,
+											 final String body, final AdaptiveLimiter limiter,
+											 final QuotaScheduler.Lane lane)
+			throws IOException {
+		final HttpPost request = new HttpPost(url);
+		// Add authorization header with API key
+		request.addHeader("Authorization", "key=" + apiKey);
+		request.addHeader("Content-Type", "application/json");
+		if (body != null)
+			request.setEntity(new StringEntity(body, ENCODING));
+		return execute(request, limiter, lane);
+	}
+	/**
+	 * Parses a Retry-After header, which holds either a delay in seconds or an HTTP date.
+	 *
+	 * @param header the header, or null if none was sent
+	 * @return the delay in milliseconds, or -1 if the header is missing or invalid
+	 */
+	public static long parseRetryAfter(final Header header) {
+		long ret = -1L;
+		if (header != null) {
+			final String value = header.getValue().trim();
 			try {
-				final int code = response.getStatusLine().getStatusCode();
-				// Emit diagnostic if not 200
-				ok = code == HttpStatus.SC_OK;
-				if (!ok)
-					LOGGER.log(Level.INFO, "Server returned code " + code + " for request \"" +
-						url + "\"");
-				// Ensure request has been fully read so that it can be discarded
-				EntityUtils.consume(response.getEntity());
-			} finally {
-				response.close();
+				ret = Math.max(0L, Long.parseLong(value) * 1000L);
+			} catch (NumberFormatException e) {
+				final Date date = DateUtils.parseDate(value);
+				if (date != null)
+					ret = Math.max(0L, date.getTime() - System.currentTimeMillis());
 			}
-		} finally {
-			client.close();
 		}
-		return ok;
+		return ret;
 	}
 	/**
 	 * Sends the response to the user.
@@ -181,8 +277,18 @@ public final class HttpUtilities {
 	 */
 	public static void sendResponse(final HttpExchange exchange, final String response)
 		throws IOException {
-		final byte[] data = response.getBytes(HttpUtilities.ENCODING);
-		// Encode as UTF-8 and set length
+		// Encode as UTF-8
+		sendResponse(exchange, response.getBytes(HttpUtilities.ENCODING));
+	}
+	/**
+	 * Sends a response already encoded as UTF-8 JSON to the user.
+	 *
+	 * @param exchange the HTTP request
+	 * @param data the response body
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void sendResponse(final HttpExchange exchange, final byte[] data)
+		throws IOException {
 		exchange.getResponseHeaders().add("Content-Type", "application/json");
 		exchange.sendResponseHeaders(200, data.length);
 		final OutputStream os = exchange.getResponseBody();
@@ -193,4 +299,61 @@ public final class HttpUtilities {
 			os.close();
 		}
 	}
+	/**
+	 * Sends a status with no body and ends the exchange. Any request body left unread is
+	 * discarded, so this may be used while a body is only partly read.
+	 *
+	 * @param exchange the HTTP request
+	 * @param code the HTTP status code
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void sendStatus(final HttpExchange exchange, final int code)
+		throws IOException {
+		exchange.sendResponseHeaders(code, -1);
+		exchange.close();
+	}
+
+	/**
+	 * Wraps an input stream to avoid DoS attacks by failing when too many bytes are read.
+	 */
+	private static final class LimitedInputStream extends FilterInputStream {
+		/**
+		 * The number of bytes which may still be read.
+		 */
+		private long remaining;
+
+		LimitedInputStream(final InputStream in, final long limit) {
+			super(in);
+			remaining = limit;
+		}
+		/**
+		 * Deducts bytes read from the remaining allowance.
+		 *
+		 * @param count the number of bytes read (negative at end of stream)
+		 * @throws RequestTooLargeException if the limit was exceeded
+		 */
+		private void consumed(final long count) throws IOException {
+			if (count > 0L) {
+				remaining -= count;
+				if (remaining < 0L)
+					throw new RequestTooLargeException("Request body is too long");
+			}
+		}
+		public int read() throws IOException {
+			final int ret = super.read();
+			if (ret >= 0)
+				consumed(1L);
+			return ret;
+		}
+		public int read(byte[] b, int off, int len) throws IOException {
+			final int ret = super.read(b, off, len);
+			consumed(ret);
+			return ret;
+		}
+		public long skip(long n) throws IOException {
+			final long ret = super.skip(n);
+			consumed(ret);
+			return ret;
+		}
+	}
 }
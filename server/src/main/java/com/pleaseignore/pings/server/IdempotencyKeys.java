@@ -0,0 +1,120 @@
+package com.pleaseignore.pings.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the idempotency keys of recently accepted pings, so that a relay which resends a
+ * batch (for example after a timeout) does not ping anyone twice. Keys are kept for a fixed
+ * window and at most a fixed number are remembered, the oldest being forgotten first. Keys
+ * are only kept in memory, so a resend after a restart is accepted again.
+ */
+public final class IdempotencyKeys {
+	/**
+	 * The ping ID and acceptance time of each key, oldest first.
+	 */
+	private final Map<String, Reservation> keys;
+	/**
+	 * The maximum number of keys remembered.
+	 */
+	private final int maxKeys;
+	/**
+	 * How long keys are remembered in milliseconds.
+	 */
+	private final long window;
+
+	/**
+	 * Creates a new idempotency key store.
+	 *
+	 * @param window how long keys are remembered in milliseconds
+	 * @param maxKeys the maximum number of keys remembered
+	 */
+	public IdempotencyKeys(final long window, final int maxKeys) {
+		if (maxKeys < 1)
+			throw new IllegalArgumentException("maxKeys");
+		keys = new LinkedHashMap<>(256);
+		this.maxKeys = maxKeys;
+		this.window = Math.max(0L, window);
+	}
+	/**
+	 * Forgets keys which are past the window, and the oldest keys until there is room for one
+	 * more. Must hold the store lock.
+	 *
+	 * @param now the current time
+	 */
+	private void expire(final long now) {
+		final Iterator<Reservation> it = keys.values().iterator();
+		int excess = keys.size() - maxKeys + 1;
+		while (it.hasNext()) {
+			final Reservation reservation = it.next();
+			if (excess <= 0 && now - reservation.time < window)
+				break;
+			it.remove();
+			excess--;
+		}
+	}
+	/**
+	 * Forgets a key whose ping could not be accepted after all, so that it can be resent.
+	 *
+	 * @param key the idempotency key
+	 * @param id the ping ID which reserved it
+	 */
+	public synchronized void release(final String key, final long id) {
+		final Reservation reservation = keys.get(key);
+		if (reservation != null && reservation.id == id)
+			keys.remove(key);
+	}
+	/**
+	 * Reserves a key for a new ping, unless a ping with the same key was accepted within the
+	 * window.
+	 *
+	 * @param key the idempotency key
+	 * @param id the ID of the new ping
+	 * @return 0 if the key was reserved for the new ping, or the ID of the earlier ping
+	 */
+	public synchronized long reserve(final String key, final long id) {
+		if (key == null)
+			throw new IllegalArgumentException("key");
+		final long now = System.currentTimeMillis();
+		expire(now);
+		final Reservation existing = keys.get(key);
+		final long ret;
+		if (existing == null) {
+			keys.put(key, new Reservation(id, now));
+			ret = 0L;
+		} else
+			ret = existing.id;
+		return ret;
+	}
+	/**
+	 * Gets the number of keys remembered.
+	 *
+	 * @return the number of keys
+	 */
+	public synchronized int size() {
+		return keys.size();
+	}
+	public String toString() {
+		return "Idempotency keys (" + size() + " remembered)";
+	}
+
+	/**
+	 * The ping which reserved a key.
+	 */
+	private static final class Reservation {
+		/**
+		 * The ping ID.
+		 */
+		final long id;
+		/**
+		 * The time at which the key was reserved.
+		 */
+		final long time;
+
+		Reservation(final long id, final long time) {
+			this.id = id;
+			this.time = time;
+		}
+	}
+}
@@ -16,7 +16,12 @@ import java.util.logging.Logger;
  */
 public final class InstanceIDManager {
 	/**
-	 * The base URL for HTTP requests made through this library.
+	 * The maximum number of devices which can be added to or removed from a topic in one
+	 * request.
+	 */
+	public static final int MAX_BATCH = 1000;
+	/**
+	 * The default base URL for HTTP requests made through this library.
 	 */
 	private static final String BASE_URL = "https://iid.googleapis.com/iid/";
 	/**
@@ -28,22 +33,35 @@ public final class InstanceIDManager {
 	 */
 	private static final ObjectMapper MAPPER = new ObjectMapper();
 
+	/**
+	 * Per-token errors of topic changes which mean that the device ID will never be valid
+	 * again.
+	 */
+	private static final Set<String> DEAD_ERRORS = new HashSet<>(Arrays.asList("NOT_FOUND",
+		"INVALID_ARGUMENT"));
+	/**
+	 * Errors of a 400 response to a device lookup which name the device ID as invalid or
+	 * unregistered. Any other 400 is a fault in the request, not in the device.
+	 */
+	private static final Set<String> DEAD_LOOKUP_ERRORS = new HashSet<>(Arrays.asList(
+		"InvalidToken", "NotRegistered", "UNREGISTERED"));
+	/**
+	 * The result reported for a topic change which had no live devices left to send.
+	 */
+	private static final HttpResult NOTHING_SENT = new HttpResult(200, null, -1L);
+
 	/**
 	 * Creates a JSON body that will subscribe/unsubscribe the specified clients from the topic.
 	 *
-	 * @param clients the clients to modify
+	 * @param clients the device IDs of the clients to modify
 	 * @param target the target topic ID
 	 * @return the appopriate JSON body content listing these users
 	 */
-	private static String createRequestBody(final Collection<UserSession> clients,
+	private static String createRequestBody(final Collection<String> clients,
 											final String target) {
 		String ret;
 		// Convert clients to string array
-		final int numClients = clients.size();
-		int i = 0;
-		final String[] clientIDs = new String[numClients];
-		for (final UserSession session : clients)
-			clientIDs[i++] = session.getDeviceID();
+		final String[] clientIDs = clients.toArray(new String[clients.size()]);
 		// Header: topic
 		try {
 			ret = MAPPER.writeValueAsString(new TopicModifyRequest("/topics/" + target,
@@ -55,42 +73,144 @@ public final class InstanceIDManager {
 		}
 		return ret;
 	}
+	/**
+	 * Checks whether the response to a device lookup means that the device ID is dead: the
+	 * device is not found, or the request is rejected with an error naming the device ID.
+	 *
+	 * @param result the lookup response
+	 * @return whether the device ID will never be valid again
+	 */
+	private static boolean isDeadLookup(final HttpResult result) {
+		final int code = result.getCode();
+		boolean dead = code == 404;
+		if (code == 400 && result.getBody() != null)
+			try {
+				dead = DEAD_LOOKUP_ERRORS.contains(MAPPER.readTree(result.getBody()).path(
+					"error").asText(""));
+			} catch (IOException e) {
+				// Not a JSON error, so it names nothing
+			}
+		return dead;
+	}
 
 	/**
 	 * The API key for this application.
 	 */
 	private final String apiKey;
+	/**
+	 * The base URL of the Instance ID API, ending with a slash.
+	 */
+	private final String baseURL;
+	/**
+	 * Collects the device IDs which the Instance ID API reports as unknown or invalid.
+	 */
+	private final DeadTokens deadTokens;
+	/**
+	 * Holds requests while the Instance ID API has asked us to wait.
+	 */
+	private final QuotaScheduler.Lane lane;
+	/**
+	 * Limits concurrent requests to the Instance ID API.
+	 */
+	private final AdaptiveLimiter limiter;
 
 	/**
 	 * Creates a new instance ID manager using the provided FCM API key.
 	 *
 	 * @param settings the settings containing the FCM API key
+	 * @param baseURL the base URL of the Instance ID API, or null to use Google's
+	 * @param limiter limits concurrent requests to the Instance ID API
+	 * @param lane the quota lane which holds requests to the Instance ID API
+	 * @param deadTokens collects the device IDs reported as unknown or invalid
 	 */
-	public InstanceIDManager(final PropertiesBasedSettings settings) {
+	public InstanceIDManager(final PropertiesBasedSettings settings, final String baseURL,
+							 final AdaptiveLimiter limiter, final QuotaScheduler.Lane lane,
+							 final DeadTokens deadTokens) {
+		if (deadTokens == null)
+			throw new IllegalArgumentException("deadTokens");
+		if (limiter == null)
+			throw new IllegalArgumentException("limiter");
+		if (lane == null)
+			throw new IllegalArgumentException("lane");
 		apiKey = settings.getApiKey();
+		if (baseURL == null)
+			this.baseURL = BASE_URL;
+		else
+			this.baseURL = baseURL.endsWith("/") ? baseURL : baseURL + "/";
+		this.deadTokens = deadTokens;
+		this.lane = lane;
+		this.limiter = limiter;
 	}
 	/**
-	 * Adds all of these clients to the specified topic ID.
+	 * Adds all of these clients to the specified topic ID. Clients already known to be dead
+	 * are skipped, and any which the Instance ID API reports as unknown or invalid are
+	 * recorded as dead.
 	 *
-	 * @param clients the clients to add
+	 * @param clients the device IDs of the clients to add
 	 * @param topicID the FCM topic ID to subscribe
 	 * @throws IOException if an I/O error occurs during the change
-	 * @return true if the request succeeded, or false if it failed
+	 * @return the result of the request
 	 */
-	public boolean addClientsToTopic(final Collection<UserSession> clients,
+	public HttpResult addClientsToTopic(final Collection<String> clients,
 									 final String topicID) throws IOException {
-		return HttpUtilities.makePostRequest(BASE_URL + "v1:batchAdd", apiKey,
-			createRequestBody(clients, topicID));
+		return modifyTopic("v1:batchAdd", clients, topicID);
+	}
+	/**
+	 * Collects the clients whose per-token result in a topic change response means that
+	 * their device ID is dead.
+	 *
+	 * @param clients the device IDs sent, in request order
+	 * @param body the response body
+	 */
+	private void findDeadClients(final Collection<String> clients, final String body) {
+		try {
+			final TopicModifyResponse response = MAPPER.readValue(body, TopicModifyResponse.
+				class);
+			final List<TopicModifyResponse.TokenResult> results = (response == null) ? null :
+				response.results;
+			if (results != null) {
+				final Iterator<TopicModifyResponse.TokenResult> it = results.iterator();
+				for (final String deviceID : clients) {
+					if (!it.hasNext())
+						break;
+					final TopicModifyResponse.TokenResult result = it.next();
+					if (result != null && DEAD_ERRORS.contains(result.error)) {
+						LOGGER.log(Level.FINE, "Device \"" + deviceID + "\" is dead: " +
+							result.error);
+						deadTokens.add(deviceID);
+					}
+				}
+			}
+		} catch (IOException e) {
+			// The change itself succeeded, only the per-token results are lost
+			LOGGER.log(Level.WARNING, "Failed to parse JSON body from Instance ID API \"" +
+				body + "\"", e);
+		}
 	}
 	/**
-	 * Lists the topic subscriptions for the device ID.
+	 * Lists the topic subscriptions for the device ID. If the Instance ID API does not know
+	 * the device or rejects its ID as invalid or unregistered, it is recorded as dead, and if
+	 * it answers, any earlier report that the device is dead is forgotten. Other rejections
+	 * are logged as request errors.
 	 *
 	 * @param deviceID the device ID to query
 	 * @return a list of topics to which it is subscribed, or null if the request failed
 	 */
 	public Collection<String> listTopics(final String deviceID) throws IOException {
-		final String body = HttpUtilities.makeGetRequest(BASE_URL + "info/" +  deviceID +
-			"?details=true", apiKey);
+		final HttpResult result = HttpUtilities.makeGetRequest(baseURL + "info/" +  deviceID +
+			"?details=true", apiKey, limiter, lane);
+		final int code = result.getCode();
+		final String body = result.isOK() ? result.getBody() : null;
+		if (isDeadLookup(result)) {
+			// Uninstalled apps are not found, and malformed IDs are rejected as invalid
+			LOGGER.log(Level.FINE, "Device \"" + deviceID + "\" is dead: " + result);
+			deadTokens.add(deviceID);
+		} else if (code == 400)
+			// Says nothing about the device, so keep it
+			LOGGER.log(Level.WARNING, "Instance ID API rejected lookup of \"" + deviceID +
+				"\": " + result + " \"" + result.getBody() + "\"");
+		else if (result.isOK())
+			deadTokens.alive(deviceID);
 		Collection<String> ret = null;
 		// If request had a body, parse it
 		if (body != null)
@@ -121,16 +241,40 @@ public final class InstanceIDManager {
 		return ret;
 	}
 	/**
-	 * Removes all of these clients from the specified topic ID.
+	 * Sends a topic change for the clients not already known to be dead, and records any
+	 * which the Instance ID API reports as dead.
+	 *
+	 * @param method the batch method name
+	 * @param clients the device IDs of the clients to change
+	 * @param topicID the FCM topic ID to change
+	 * @throws IOException if an I/O error occurs during the change
+	 * @return the result of the request
+	 */
+	private HttpResult modifyTopic(final String method, final Collection<String> clients,
+								   final String topicID) throws IOException {
+		final Collection<String> live = deadTokens.filter(clients);
+		HttpResult result = NOTHING_SENT;
+		if (!live.isEmpty()) {
+			result = HttpUtilities.makePostRequest(baseURL + method, apiKey,
+				createRequestBody(live, topicID), limiter, lane);
+			final String body = result.getBody();
+			if (result.isOK() && body != null)
+				findDeadClients(live, body);
+		}
+		return result;
+	}
+	/**
+	 * Removes all of these clients from the specified topic ID. Clients already known to be
+	 * dead are skipped, and any which the Instance ID API reports as unknown or invalid are
+	 * recorded as dead.
 	 *
-	 * @param clients the clients to remove
+	 * @param clients the device IDs of the clients to remove
 	 * @param topicID the FCM topic ID to unsubscribe
 	 * @throws IOException if an I/O error occurs during the change
-	 * @return true if the request succeeded, or false if it failed
+	 * @return the result of the request
 	 */
-	public boolean removeClientsFromTopic(final Collection<UserSession> clients,
+	public HttpResult removeClientsFromTopic(final Collection<String> clients,
 										  final String topicID) throws IOException {
-		return HttpUtilities.makePostRequest(BASE_URL + "v1:batchRemove", apiKey,
-			createRequestBody(clients, topicID));
+		return modifyTopic("v1:batchRemove", clients, topicID);
 	}
 }
@@ -0,0 +1,39 @@
+package com.pleaseignore.pings.server;
+
+import java.util.List;
+
+/**
+ * Authenticates users against the server's own membership records. Every user shares a dummy
+ * password, so this is only suitable for testing.
+ */
+public final class LocalAuthProvider implements AuthProvider {
+	/**
+	 * Dummy password for testing.
+	 */
+	private static final String PASSWORD = "password";
+
+	/**
+	 * The group membership records.
+	 */
+	private final MembershipStore memberships;
+
+	/**
+	 * Creates a new local authentication provider.
+	 *
+	 * @param memberships the store which records the members of each group
+	 */
+	public LocalAuthProvider(final MembershipStore memberships) {
+		if (memberships == null)
+			throw new IllegalArgumentException("memberships");
+		this.memberships = memberships;
+	}
+	public boolean authenticate(final String username, final String password) {
+		return username != null && PASSWORD.equals(password);
+	}
+	public List<String> getGroups(final String username) {
+		return memberships.getGroups(username);
+	}
+	public String toString() {
+		return "Local authentication";
+	}
+}
@@ -0,0 +1,322 @@
+package com.pleaseignore.pings.server;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A durable record of which users belong to each group. Every change is appended as a record
+ * of the users added to or removed from one group (or the removal or renaming of the whole
+ * group) and waits until it is on disk, so that membership changed through the admin API
+ * survives restarts. A change is only applied in memory once its record is on disk, so
+ * readers never see membership which a crash could lose.
+ *
+ * The file is compacted to one record per group when it grows past a modest size.
+ */
+public final class MembershipStore {
+	/**
+	 * The file size above which the store is compacted.
+	 */
+	private static final long COMPACT_SIZE = 1024L * 1024L;
+	/**
+	 * Logs any unusual errors which occur in this class (most are passed upstream).
+	 */
+	private static final Logger LOGGER = Logger.getLogger(MembershipStore.class.getName());
+	/**
+	 * Record kinds.
+	 */
+	private static final byte RECORD_ADD = 1, RECORD_DELETE = 3, RECORD_REMOVE = 2,
+		RECORD_RENAME = 4;
+
+	/**
+	 * Encodes a record payload.
+	 *
+	 * @param kind the record kind
+	 * @param group the group name
+	 * @param names the usernames added or removed, or the new group name if renamed
+	 * @return the record payload
+	 */
+	private static byte[] toRecord(final byte kind, final String group,
+								   final Collection<String> names) {
+		final ByteArrayOutputStream payload = new ByteArrayOutputStream(64 + 16 * names.size());
+		try {
+			final DataOutputStream record = new DataOutputStream(payload);
+			record.writeByte(kind);
+			record.writeUTF(group);
+			record.writeInt(names.size());
+			for (final String name : names)
+				record.writeUTF(name);
+			record.flush();
+		} catch (IOException e) {
+			// Should never happen
+			throw new IllegalStateException(e);
+		}
+		return payload.toByteArray();
+	}
+
+	/**
+	 * Held while a change is recorded and applied, so that changes are applied in the order
+	 * of their records without blocking readers on the disk.
+	 */
+	private final Object changeLock;
+	/**
+	 * The store file.
+	 */
+	private final RecordFile file;
+	/**
+	 * The members of each group, by group name.
+	 */
+	private final Map<String, Set<String>> members;
+
+	/**
+	 * Creates a new membership store. No I/O is performed until open() is called.
+	 *
+	 * @param file the store file
+	 */
+	public MembershipStore(final File file) {
+		changeLock = new Object();
+		this.file = new RecordFile(file);
+		members = new HashMap<>(32);
+	}
+	/**
+	 * Adds users to a group and waits until the change is on disk.
+	 *
+	 * @param group the group name
+	 * @param usernames the users to add
+	 * @return the users which were not already members
+	 * @throws IOException if the change could not be made durable
+	 */
+	public List<String> add(final String group, final Collection<String> usernames)
+			throws IOException {
+		return change(RECORD_ADD, group, usernames);
+	}
+	/**
+	 * Applies a record to the in-memory membership.
+	 *
+	 * @param kind the record kind
+	 * @param group the group name
+	 * @param names the usernames added or removed, or the new group name if renamed
+	 * @return the names which changed membership
+	 */
+	private List<String> apply(final byte kind, final String group,
+							   final Collection<String> names) {
+		final List<String> changed = new ArrayList<>(names.size());
+		Set<String> current = members.get(group);
+		switch (kind) {
+		case RECORD_ADD:
+			if (current == null) {
+				current = new HashSet<>(Math.max(16, names.size() * 2));
+				members.put(group, current);
+			}
+			for (final String name : names)
+				if (current.add(name))
+					changed.add(name);
+			break;
+		case RECORD_REMOVE:
+			if (current != null)
+				for (final String name : names)
+					if (current.remove(name))
+						changed.add(name);
+			break;
+		case RECORD_DELETE:
+			if (current != null) {
+				changed.addAll(current);
+				members.remove(group);
+			}
+			break;
+		case RECORD_RENAME:
+			if (current != null && names.size() == 1) {
+				members.remove(group);
+				members.put(names.iterator().next(), current);
+				changed.addAll(current);
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("kind");
+		}
+		return changed;
+	}
+	/**
+	 * Records a change and waits until it is on disk, then applies it. Changes which affect
+	 * nobody are not recorded.
+	 *
+	 * @param kind the record kind
+	 * @param group the group name
+	 * @param names the usernames added or removed, or the new group name if renamed
+	 * @return the names which changed membership
+	 * @throws IOException if the change could not be made durable
+	 */
+	private List<String> change(final byte kind, final String group,
+								final Collection<String> names) throws IOException {
+		if (group == null)
+			throw new IllegalArgumentException("group");
+		if (names == null)
+			throw new IllegalArgumentException("names");
+		final List<String> changed;
+		synchronized (changeLock) {
+			synchronized (this) {
+				changed = changes(kind, group, names);
+			}
+			if (changed.size() > 0) {
+				file.commit(file.append(toRecord(kind, group, (kind == RECORD_ADD || kind ==
+					RECORD_REMOVE) ? changed : names)));
+				synchronized (this) {
+					apply(kind, group, names);
+					if (file.size() > COMPACT_SIZE) {
+						final List<byte[]> records = new ArrayList<>(members.size());
+						for (final Map.Entry<String, Set<String>> entry : members.entrySet())
+							records.add(toRecord(RECORD_ADD, entry.getKey(), entry.getValue()));
+						file.rewrite(records);
+					}
+				}
+			}
+		}
+		return changed;
+	}
+	/**
+	 * Lists the names which a change would affect, without applying it. Must hold the store
+	 * lock.
+	 *
+	 * @param kind the record kind
+	 * @param group the group name
+	 * @param names the usernames added or removed, or the new group name if renamed
+	 * @return the names which would change membership
+	 */
+	private List<String> changes(final byte kind, final String group,
+								 final Collection<String> names) {
+		// Names may be repeated, but each only changes once
+		final Set<String> changed = new LinkedHashSet<>(Math.max(16, names.size() * 2));
+		final Set<String> current = members.get(group);
+		switch (kind) {
+		case RECORD_ADD:
+			for (final String name : names)
+				if (current == null || !current.contains(name))
+					changed.add(name);
+			break;
+		case RECORD_REMOVE:
+			if (current != null)
+				for (final String name : names)
+					if (current.contains(name))
+						changed.add(name);
+			break;
+		case RECORD_DELETE:
+			if (current != null)
+				changed.addAll(current);
+			break;
+		case RECORD_RENAME:
+			if (current != null && names.size() == 1)
+				changed.addAll(current);
+			break;
+		default:
+			throw new IllegalArgumentException("kind");
+		}
+		return new ArrayList<>(changed);
+	}
+	/**
+	 * Flushes and closes the store.
+	 */
+	public void close() {
+		file.close();
+	}
+	/**
+	 * Removes every member of a group, as the group itself was removed, and waits until the
+	 * change is on disk.
+	 *
+	 * @param group the group name
+	 * @return the users which were members
+	 * @throws IOException if the change could not be made durable
+	 */
+	public List<String> delete(final String group) throws IOException {
+		return change(RECORD_DELETE, group, Collections.<String>emptyList());
+	}
+	/**
+	 * Lists the groups to which a user belongs.
+	 *
+	 * @param username the username
+	 * @return the names of the groups of which the user is a member
+	 */
+	public synchronized List<String> getGroups(final String username) {
+		final List<String> ret = new ArrayList<>(4);
+		for (final Map.Entry<String, Set<String>> entry : members.entrySet())
+			if (entry.getValue().contains(username))
+				ret.add(entry.getKey());
+		return ret;
+	}
+	/**
+	 * Counts the members of a group.
+	 *
+	 * @param group the group name
+	 * @return the number of members
+	 */
+	public synchronized int getMemberCount(final String group) {
+		final Set<String> current = members.get(group);
+		return (current == null) ? 0 : current.size();
+	}
+	/**
+	 * Lists the members of a group.
+	 *
+	 * @param group the group name
+	 * @return the usernames of the members, sorted
+	 */
+	public synchronized List<String> getMembers(final String group) {
+		final Set<String> current = members.get(group);
+		final List<String> ret = (current == null) ? new ArrayList<String>(0) :
+			new ArrayList<>(current);
+		Collections.sort(ret);
+		return ret;
+	}
+	/**
+	 * Opens the store, replaying every recorded change.
+	 *
+	 * @return true if the store had any records, or false if it is new
+	 * @throws IOException if the store cannot be opened
+	 */
+	public synchronized boolean open() throws IOException {
+		members.clear();
+		final List<byte[]> records = file.open();
+		for (final byte[] payload : records) {
+			final DataInputStream record = new DataInputStream(new ByteArrayInputStream(
+				payload));
+			try {
+				final byte kind = record.readByte();
+				final String group = record.readUTF();
+				final String[] names = new String[record.readInt()];
+				for (int i = 0; i < names.length; i++)
+					names[i] = record.readUTF();
+				apply(kind, group, Arrays.asList(names));
+			} catch (EOFException | IllegalArgumentException e) {
+				LOGGER.log(Level.WARNING, "Skipping malformed membership record");
+			}
+		}
+		LOGGER.log(Level.FINE, "Opened membership store with " + members.size() + " groups");
+		return records.size() > 0;
+	}
+	/**
+	 * Removes users from a group and waits until the change is on disk.
+	 *
+	 * @param group the group name
+	 * @param usernames the users to remove
+	 * @return the users which were members
+	 * @throws IOException if the change could not be made durable
+	 */
+	public List<String> remove(final String group, final Collection<String> usernames)
+			throws IOException {
+		return change(RECORD_REMOVE, group, usernames);
+	}
+	/**
+	 * Moves the members of a group to its new name and waits until the change is on disk.
+	 *
+	 * @param oldName the previous group name
+	 * @param newName the new group name
+	 * @throws IOException if the change could not be made durable
+	 */
+	public void rename(final String oldName, final String newName) throws IOException {
+		if (newName == null)
+			throw new IllegalArgumentException("newName");
+		change(RECORD_RENAME, oldName, Collections.singletonList(newName));
+	}
+	public String toString() {
+		return "Membership store (" + members.size() + " groups)";
+	}
+}
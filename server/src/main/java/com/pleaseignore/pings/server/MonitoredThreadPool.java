@@ -0,0 +1,109 @@
+package com.pleaseignore.pings.server;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A scheduled thread pool which emits a Flight Recorder event for every task run, recording
+ * how long the task waited past the time it was due (for tasks submitted to run now, the time
+ * from enqueue to start) and how long it ran.
+ */
+public final class MonitoredThreadPool extends ScheduledThreadPoolExecutor {
+	/**
+	 * Creates a new monitored thread pool.
+	 *
+	 * @param threads the number of threads
+	 */
+	public MonitoredThreadPool(final int threads) {
+		super(threads);
+	}
+	/**
+	 * Names a task for its events.
+	 *
+	 * @param task the submitted task
+	 * @return the task class name without its package
+	 */
+	private static String nameOf(final Object task) {
+		final String name = task.getClass().getName();
+		return name.substring(name.lastIndexOf('.') + 1);
+	}
+	protected <V> RunnableScheduledFuture<V> decorateTask(final Runnable runnable,
+														  final RunnableScheduledFuture<V> task) {
+		return new MonitoredTask<>(nameOf(runnable), task);
+	}
+	protected <V> RunnableScheduledFuture<V> decorateTask(final Callable<V> callable,
+														  final RunnableScheduledFuture<V> task) {
+		return new MonitoredTask<>(nameOf(callable), task);
+	}
+
+	/**
+	 * Wraps a scheduled task to time each of its runs.
+	 *
+	 * @param <V> the result type of the task
+	 */
+	private static final class MonitoredTask<V> implements RunnableScheduledFuture<V> {
+		/**
+		 * The task name.
+		 */
+		private final String name;
+		/**
+		 * The wrapped task.
+		 */
+		private final RunnableScheduledFuture<V> task;
+
+		MonitoredTask(final String name, final RunnableScheduledFuture<V> task) {
+			this.name = name;
+			this.task = task;
+		}
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			return task.cancel(mayInterruptIfRunning);
+		}
+		public int compareTo(final Delayed other) {
+			// The queue only holds monitored tasks, compare what they wrap
+			return task.compareTo((other instanceof MonitoredTask) ? ((MonitoredTask<?>)other).
+				task : other);
+		}
+		public V get() throws InterruptedException, ExecutionException {
+			return task.get();
+		}
+		public V get(final long timeout, final TimeUnit unit) throws InterruptedException,
+				ExecutionException, TimeoutException {
+			return task.get(timeout, unit);
+		}
+		public long getDelay(final TimeUnit unit) {
+			return task.getDelay(unit);
+		}
+		public boolean isCancelled() {
+			return task.isCancelled();
+		}
+		public boolean isDone() {
+			return task.isDone();
+		}
+		public boolean isPeriodic() {
+			return task.isPeriodic();
+		}
+		public void run() {
+			final ServerEvents.TaskEvent event = new ServerEvents.TaskEvent();
+			if (event.isEnabled()) {
+				// Negative delay is how late the task is starting
+				event.queueTime = Math.max(0L, -task.getDelay(TimeUnit.NANOSECONDS));
+				event.task = name;
+				event.begin();
+				try {
+					task.run();
+				} finally {
+					event.commit();
+				}
+			} else
+				task.run();
+		}
+		public String toString() {
+			return name;
+		}
+	}
+}
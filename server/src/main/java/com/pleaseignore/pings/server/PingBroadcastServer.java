@@ -1,11 +1,20 @@
 package com.pleaseignore.pings.server;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import de.bytefish.fcmjava.client.FcmClient;
 import de.bytefish.fcmjava.client.settings.PropertiesBasedSettings;
+import de.bytefish.fcmjava.exceptions.FcmAuthenticationException;
+import de.bytefish.fcmjava.exceptions.FcmBadRequestException;
+import de.bytefish.fcmjava.exceptions.FcmGeneralException;
+import de.bytefish.fcmjava.exceptions.FcmRetryAfterException;
+import de.bytefish.fcmjava.model.enums.ErrorCodeEnum;
 import de.bytefish.fcmjava.model.enums.PriorityEnum;
 import de.bytefish.fcmjava.model.options.FcmMessageOptions;
 import de.bytefish.fcmjava.model.topics.Topic;
@@ -14,13 +23,22 @@ import de.bytefish.fcmjava.responses.TopicMessageResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.*;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,14 +57,75 @@ public final class PingBroadcastServer implements Runnable {
 	 * Used to convert objects to and from JSON.
 	 */
 	private static final ObjectMapper MAPPER = new ObjectMapper();
+	/**
+	 * The maximum number of pings in one batch.
+	 */
+	private static final int BATCH_PING_MAX = 1000;
+	/**
+	 * The maximum number of entries in one batch refresh.
+	 */
+	private static final int BATCH_REFRESH_MAX = 10000;
+	/**
+	 * The maximum number of dead device IDs remembered to skip in queued subscription changes.
+	 */
+	private static final int DEAD_TOKENS_MAX = 100000;
+	/**
+	 * How often the sessions of dead devices are evicted in milliseconds.
+	 */
+	private static final long DEAD_TOKEN_SWEEP_INTERVAL = 60000L;
+	/**
+	 * The longest time a ping request waits for room under the FCM concurrency limit in
+	 * milliseconds, after which the ping is left to a delivery task.
+	 */
+	private static final long FCM_REQUEST_WAIT = 1000L;
+	/**
+	 * The maximum length of a ping idempotency key.
+	 */
+	private static final int IDEMPOTENCY_KEY_MAX = 128;
+	/**
+	 * The default number of pings returned from a history query.
+	 */
+	private static final int HISTORY_LIMIT = 100;
+	/**
+	 * The maximum number of pings which can be requested in one history query.
+	 */
+	private static final int HISTORY_MAX_LIMIT = 1000;
+	/**
+	 * How often old journal segments are purged in milliseconds.
+	 */
+	private static final long JOURNAL_PURGE_INTERVAL = 3600000L;
+	/**
+	 * The maximum size of a journal segment in megabytes.
+	 */
+	private static final long JOURNAL_SEGMENT_MAX = 1024L;
+	/**
+	 * How often the subscription outbox is synced to disk in milliseconds.
+	 */
+	private static final long OUTBOX_SYNC_INTERVAL = 100L;
+	/**
+	 * The system property which enables TCP_NODELAY on HTTP server connections.
+	 */
+	private static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+	/**
+	 * Key used in ping data to store the key which fetches the full text of a preview.
+	 */
+	private static final String PING_KEY_FETCH = "key";
 	/**
 	 * Key used in ping data to store the ping group name.
 	 */
 	private static final String PING_KEY_GROUP = "group";
 	/**
-	 * Key used in ping data to store the full ping text.
+	 * Key used in ping data to store the ping ID, which lets clients drop duplicates.
+	 */
+	private static final String PING_KEY_ID = "id";
+	/**
+	 * Key used in ping data to store the full ping text, or its preview.
 	 */
 	private static final String PING_KEY_MESSAGE = "message";
+	/**
+	 * How long devices may cache the full text of a ping, which never changes, in seconds.
+	 */
+	private static final long PING_TEXT_MAX_AGE = 365L * 86400L;
 	/**
 	 * The maximum number of retries allowed for a background request.
 	 */
@@ -56,18 +135,35 @@ public final class PingBroadcastServer implements Runnable {
 	 */
 	private static final long RETRY_INTERVAL = 2000L;
 	/**
-	 * Port used to run the server.
+	 * How often every group is rotated to a new topic in milliseconds.
+	 */
+	private static final long ROTATION_INTERVAL = 24L * 3600000L;
+	/**
+	 * Default port used to run the server.
 	 */
 	private static final int SERVER_PORT = 8080;
 	/**
 	 * Characters to be used in random topic names.
 	 */
 	private static final String TOPIC_CHARS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+	/**
+	 * The most distinct group lists whose topics are cached at once.
+	 */
+	private static final int TOPIC_CODES_MAX = 4096;
 	/**
 	 * Number of characters in a random topic name.
 	 */
 	private static final int TOPIC_LEN = 24;
 
+	static {
+		// Responses are written as headers, then body; without TCP_NODELAY every request on a
+		// kept-alive connection stalls on a delayed ACK. The JDK reads the property once, when
+		// the first HttpServer in the JVM is created, so it must be set before any server is
+		// made, and may still be overridden on the command line
+		if (System.getProperty(NODELAY_PROPERTY) == null)
+			System.setProperty(NODELAY_PROPERTY, "true");
+	}
+
 	/**
 	 * Creates a new topic ID. Currently 24 alphanumeric characters from CH_CHARS.
 	 *
@@ -81,9 +177,42 @@ public final class PingBroadcastServer implements Runnable {
 			ret.append(TOPIC_CHARS.charAt(seed.nextInt(maxLen)));
 		return ret.toString();
 	}
+	/**
+	 * Encodes the full details of a ping as JSON, as served from /ping/{id} and /stream.
+	 *
+	 * @param ping the ping
+	 * @return the ping group, ID, text and time as JSON
+	 */
+	private static byte[] encodePing(final PingLog.Entry ping) {
+		final Map<String, Object> body = new LinkedHashMap<>(8);
+		body.put("group", ping.getGroup());
+		body.put("id", ping.getID());
+		body.put("message", ping.getText());
+		body.put("time", ping.getTime());
+		try {
+			return MAPPER.writeValueAsBytes(body);
+		} catch (JsonProcessingException e) {
+			// Should never happen
+			throw new IllegalStateException(e);
+		}
+	}
+	/**
+	 * Shortens ping text to a preview, without splitting a surrogate pair.
+	 *
+	 * @param text the full ping text
+	 * @param length the maximum number of characters kept
+	 * @return the preview, ending with an ellipsis
+	 */
+	private static String truncate(final String text, final int length) {
+		int end = Math.min(length, text.length());
+		if (end > 0 && Character.isHighSurrogate(text.charAt(end - 1)))
+			end--;
+		return text.substring(0, end) + "\u2026";
+	}
 	public static void main(String[] args) {
 		try {
-			final PingBroadcastServer server = new PingBroadcastServer();
+			final PingBroadcastServer server = new PingBroadcastServer(PropertiesBasedSettings.
+				createFromDefault(), ServerSettings.createFromDefault());
 			server.start();
 			// Use interrupt() to stop
 			do {
@@ -95,7 +224,12 @@ public final class PingBroadcastServer implements Runnable {
 					break;
 				}
 				// Send a dummy ping
-				server.sendPing("Ping was sent at " + new Date().toString(), "all");
+				final Tracer.Trace trace = server.tracer.start("ping.scheduled");
+				try {
+					server.sendPing("Ping was sent at " + new Date().toString(), "all", trace);
+				} finally {
+					trace.finish();
+				}
 			} while (true);
 			server.stop();
 		} catch (PingServerException e) {
@@ -107,6 +241,35 @@ public final class PingBroadcastServer implements Runnable {
 		}
 	}
 
+	/**
+	 * Parses a local time of day setting.
+	 *
+	 * @param value the time in "HH:mm" format, or null if unset
+	 * @return the time, or null if unset or invalid
+	 */
+	private static LocalTime parseTime(final String value) {
+		LocalTime ret = null;
+		if (value != null && value.length() > 0)
+			try {
+				ret = LocalTime.parse(value);
+			} catch (DateTimeParseException e) {
+				LOGGER.log(Level.WARNING, "Invalid time \"" + value + "\", ignoring");
+			}
+		return ret;
+	}
+
+	/**
+	 * Sheds HTTP requests when the server is overloaded.
+	 */
+	private final AdmissionController admission;
+	/**
+	 * Verifies users at login.
+	 */
+	private final AuthProvider auth;
+	/**
+	 * Caches the groups of each user from the authentication provider.
+	 */
+	private final GroupCache authCache;
 	/**
 	 * The Firebase client used for sending messages.
 	 *
@@ -115,263 +278,1993 @@ public final class PingBroadcastServer implements Runnable {
 	 * fcm.api.key = "api key"
 	 */
 	private final FcmClient client;
+	/**
+	 * Collects the device IDs which the Instance ID API reports as unknown or invalid.
+	 */
+	private final DeadTokens deadTokens;
+	/**
+	 * Holds requests while FCM has asked us to wait.
+	 */
+	private final QuotaScheduler.Lane fcmLane;
+	/**
+	 * Limits concurrent requests to FCM.
+	 */
+	private final AdaptiveLimiter fcmLimiter;
+	/**
+	 * Delivers pings directly to connected devices, independently of FCM.
+	 */
+	private final PushGateway gateway;
+	/**
+	 * Remembers the idempotency keys of recent batched pings.
+	 */
+	private final IdempotencyKeys idempotency;
+	/**
+	 * Holds requests while the Instance ID API has asked us to wait.
+	 */
+	private final QuotaScheduler.Lane iidLane;
+	/**
+	 * Limits concurrent requests to the Instance ID API.
+	 */
+	private final AdaptiveLimiter iidLimiter;
+	/**
+	 * Records the history of all pings sent.
+	 */
+	private final PingJournal journal;
+	/**
+	 * The last ping ID issued.
+	 */
+	private final AtomicLong lastPingID;
 	/**
 	 * Manages the topic subscriptions for all users.
 	 */
 	private final InstanceIDManager manager;
+	/**
+	 * Records which users belong to each group.
+	 */
+	private final MembershipStore memberships;
+	/**
+	 * Whether the pacer dropped the changes of a move since the last rotation, so that the
+	 * groups keep their previous topics until the next rotation moves the rest of their
+	 * devices. Guarded by the rotation lock.
+	 */
+	private boolean moveAborted;
+	/**
+	 * The usernames of sessions which logged in or changed groups while a rotation is being
+	 * planned, or null if none is. Guarded by the groups lock.
+	 */
+	private Set<String> planChanges;
+	/**
+	 * Records subscription tasks so that they survive shutdowns and crashes.
+	 */
+	private final SubscriptionOutbox outbox;
+	/**
+	 * Spreads the subscription changes of rotations over the rotation window.
+	 */
+	private final RotationPacer pacer;
+	/**
+	 * Records accepted pings until they are delivered.
+	 */
+	private final PingLog pingLog;
+	/**
+	 * The full text of recent pings sent as a preview.
+	 */
+	private final PingTextCache pingTexts;
+	/**
+	 * The number of characters of ping text sent in the payload, or 0 to send the full text.
+	 */
+	private final int previewChars;
+	/**
+	 * Manages Flight Recorder recordings of the server.
+	 */
+	private final ProfilingRecorder profiler;
+	/**
+	 * Holds back requests to Google APIs which have asked us to slow down.
+	 */
+	private final QuotaScheduler quota;
+	/**
+	 * Held while a rotation is planned and published, so that only one runs at a time.
+	 */
+	private final Object rotationLock;
+	/**
+	 * The local time at which the daily rotation window opens, or null to rotate a day after
+	 * the last rotation.
+	 */
+	private final LocalTime rotationStart;
+	/**
+	 * The device IDs of user updates resumed from the outbox which have not logged in again
+	 * since. A login takes over its device, so a resumed update must no longer change it.
+	 * Filled before the server listens, and only shrinks afterwards.
+	 */
+	private final Set<String> resumedDevices;
+	/**
+	 * The length of the rotation window in milliseconds.
+	 */
+	private final long rotationWindow;
 	/**
 	 * HTTP server instance for ping command listening.
 	 */
 	private HttpServer server;
+	/**
+	 * Tunable settings for the server.
+	 */
+	private final ServerSettings serverSettings;
+	/**
+	 * Streams sent pings to connected dashboards and bots.
+	 */
+	private final PingStream stream;
 	/**
 	 * Thread pool for handling routine tasks.
 	 */
 	private final ScheduledExecutorService threadPool;
 	/**
-	 * Maps groups to randomized topic IDs.
+	 * Caches the topics of the group lists of sessions being updated.
+	 */
+	private final TopicCodeCache topicCodes;
+	/**
+	 * Records the current topic of each group so that it survives restarts.
+	 */
+	private final TopicStore topicStore;
+	/**
+	 * Records the time spent in each stage of pings, rotations and device updates.
 	 */
-	private final Map<String, String> topicMap;
+	private final Tracer tracer;
 	/**
-	 * Stores active sessions. In a real server this needs to be a file or database object.
+	 * Maps group names and IDs to their randomized topic IDs. Writers hold its lock, while
+	 * readers such as pings and device updates use its current snapshot without one.
 	 */
-	private final Map<String, UserSession> users;
+	private final GroupDictionary groups;
+	/**
+	 * Stores active sessions off the heap. In a real server this needs to be a file or
+	 * database object. Writers hold the groups lock, but readers such as refresh do not need
+	 * to.
+	 */
+	private final SessionTable users;
 
-	private PingBroadcastServer() {
-		final PropertiesBasedSettings settings = PropertiesBasedSettings.createFromDefault();
+	/**
+	 * Creates a new ping broadcast server. The server does not listen until it is started.
+	 *
+	 * @param settings the FCM settings, with the API key and FCM URL
+	 * @param serverSettings the tunable server settings
+	 */
+	public PingBroadcastServer(final PropertiesBasedSettings settings,
+							   final ServerSettings serverSettings) {
+		if (settings == null)
+			throw new IllegalArgumentException("settings");
+		if (serverSettings == null)
+			throw new IllegalArgumentException("serverSettings");
+		this.serverSettings = serverSettings;
+		admission = new AdmissionController(serverSettings.getInt(ServerSettings.HTTP_THREADS,
+			16), serverSettings.getInt(ServerSettings.HTTP_RESERVED_THREADS, 4), serverSettings.
+			getInt(ServerSettings.ADMISSION_RETRY_AFTER, 2));
 		client = new FcmClient(settings);
-		manager = new InstanceIDManager(settings);
+		deadTokens = new DeadTokens(DEAD_TOKENS_MAX);
+		quota = new QuotaScheduler();
+		fcmLane = quota.lane("fcm");
+		fcmLimiter = new AdaptiveLimiter(4, 1, serverSettings.getInt(ServerSettings.
+			FCM_MAX_CONCURRENCY, 32));
+		gateway = new PushGateway(new GatewayAuthenticator(), serverSettings.getInt(
+			ServerSettings.GATEWAY_MAX_CONNECTIONS, 100000), serverSettings.getLong(
+			ServerSettings.GATEWAY_HEARTBEAT, 30L) * 1000L);
+		idempotency = new IdempotencyKeys(serverSettings.getLong(ServerSettings.
+			PING_IDEMPOTENCY_WINDOW, 60L) * 60000L, serverSettings.getInt(ServerSettings.
+			PING_IDEMPOTENCY_KEYS, 100000));
+		iidLane = quota.lane("iid");
+		iidLimiter = new AdaptiveLimiter(2, 1, serverSettings.getInt(ServerSettings.
+			IID_MAX_CONCURRENCY, 16));
+		// Segments are memory mapped, which limits each to 2 GB
+		final long segmentSize = serverSettings.getLong(ServerSettings.JOURNAL_SEGMENT_SIZE,
+			16L);
+		if (segmentSize < 1L || segmentSize > JOURNAL_SEGMENT_MAX)
+			throw new IllegalArgumentException(ServerSettings.JOURNAL_SEGMENT_SIZE);
+		journal = new PingJournal(new File(serverSettings.getString(ServerSettings.JOURNAL_DIR,
+			"journal")), (int)(segmentSize << 20),
+			serverSettings.getLong(ServerSettings.JOURNAL_MAX_AGE, 24L * 30L) * 3600000L,
+			serverSettings.getLong(ServerSettings.JOURNAL_MAX_SIZE, 1024L) << 20);
+		lastPingID = new AtomicLong(0L);
+		manager = new InstanceIDManager(settings, serverSettings.getString(ServerSettings.IID_URL,
+			null), iidLimiter, iidLane, deadTokens);
+		memberships = new MembershipStore(new File(serverSettings.getString(ServerSettings.
+			MEMBERS_FILE, "members.dat")));
+		// Needs the membership store for the local provider
+		auth = createAuthProvider();
+		authCache = new GroupCache(auth, new CircuitBreaker("the authentication provider",
+			serverSettings.getInt(ServerSettings.AUTH_BREAKER_FAILURES, 5), serverSettings.
+			getLong(ServerSettings.AUTH_BREAKER_COOLDOWN, 30L) * 1000L), serverSettings.getInt(
+			ServerSettings.AUTH_THREADS, 4), serverSettings.getInt(ServerSettings.
+			AUTH_CACHE_SIZE, 10000), serverSettings.getLong(ServerSettings.AUTH_CACHE_TTL,
+			300L) * 1000L, serverSettings.getLong(ServerSettings.AUTH_REFRESH_AHEAD, 60L) *
+			1000L, serverSettings.getLong(ServerSettings.AUTH_TIMEOUT, 2000L));
+		outbox = new SubscriptionOutbox(new File(serverSettings.getString(ServerSettings.
+			OUTBOX_FILE, "subscriptions.outbox")));
+		pingLog = new PingLog(new File(serverSettings.getString(ServerSettings.PING_LOG_FILE,
+			"pings.wal")));
+		pingTexts = new PingTextCache(serverSettings.getLong(ServerSettings.
+			PING_TEXT_CACHE_SIZE, 16L) << 20);
+		moveAborted = false;
+		planChanges = null;
+		previewChars = Math.max(0, serverSettings.getInt(ServerSettings.PING_PREVIEW_CHARS,
+			0));
+		profiler = new ProfilingRecorder(new File(serverSettings.getString(ServerSettings.
+			JFR_DIR, "recordings")), serverSettings.getLong(ServerSettings.JFR_MAX_AGE, 30L) *
+			60000L, serverSettings.getLong(ServerSettings.JFR_MAX_SIZE, 64L) << 20);
+		rotationLock = new Object();
+		rotationStart = parseTime(serverSettings.getString(ServerSettings.
+			ROTATION_WINDOW_START, null));
+		rotationWindow = Math.max(0L, serverSettings.getLong(ServerSettings.
+			ROTATION_WINDOW_MINUTES, 60L)) * 60000L;
 		server = null;
-		threadPool = Executors.newScheduledThreadPool(2);
-		topicMap = new HashMap<>(32);
-		users = new HashMap<>(128);
+		stream = new PingStream(serverSettings.getInt(ServerSettings.STREAM_THREADS, 4),
+			serverSettings.getInt(ServerSettings.STREAM_MAX_CLIENTS, 256), serverSettings.getInt(
+			ServerSettings.STREAM_BUFFER, 256), serverSettings.getInt(ServerSettings.
+			STREAM_REPLAY, 1000));
+		// Enough threads for the IID limiter to grow, plus the periodic tasks
+		threadPool = new MonitoredThreadPool(2 + serverSettings.getInt(ServerSettings.
+			IID_MAX_CONCURRENCY, 16));
+		// Needs the thread pool to release tasks
+		pacer = new RotationPacer(threadPool, new Runnable() {
+			public void run() {
+				retireTopics();
+			}
+		});
+		topicCodes = new TopicCodeCache(TOPIC_CODES_MAX);
+		topicStore = new TopicStore(new File(serverSettings.getString(ServerSettings.
+			TOPICS_FILE, "topics.dat")));
+		tracer = new Tracer(new File(serverSettings.getString(ServerSettings.TRACE_FILE,
+			"traces.json")), serverSettings.getDouble(ServerSettings.TRACE_SAMPLE_RATE, 0.01),
+			serverSettings.getLong(ServerSettings.TRACE_SLOW, 1000L), serverSettings.getLong(
+			ServerSettings.TRACE_MAX_SIZE, 64L) << 20, serverSettings.getInt(ServerSettings.
+			TRACE_MAX_FILES, 4));
+		groups = new GroupDictionary();
+		resumedDevices = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(64));
+		users = new SessionTable(128);
 	}
 	/**
-	 * Filters the sessions, reporting only those subscribed to the specified group name
-	 * (English name, not FCM ID). Assumes that the topicMap is locked to prevent sessions
-	 * from being modified during the search.
+	 * Splits the sessions of a rotation plan for one group into subscription tasks. Device
+	 * IDs are decoded once here, as the outbox records them with each task; sessions which
+	 * ended since the plan use the device IDs kept when they expired, or are left out.
 	 *
-	 * @param group the group to check
-	 * @return all sessions subscribed to this group (no expiry check)
+	 * @param members the sessions to change
+	 * @param topic the topic to or from which the sessions are moved
+	 * @param add true to add the sessions to the topic, or false to remove them
+	 * @param skipped the keys of sessions to leave out
+	 * @param ended the device IDs of expired sessions by key
+	 * @param tasks the list to which the tasks are added
+	 * @return the number of sessions in the tasks
 	 */
-	private Collection<UserSession> filterSessions(final String group) {
-		final Collection<UserSession> ret;
-		if (group == null)
-			ret = users.values();
-		else {
-			// Look for users
-			ret = new LinkedList<>();
-			for (final UserSession session : users.values()) {
-				// Search for group in the list (case sensitive)
-				boolean found = false;
-				for (final String subscribed : session.getGroups())
-					if (group.equals(subscribed)) {
-						found = true;
-						break;
-					}
-				if (found)
-					ret.add(session);
+	private int batchMembers(final RotationPlan.Members members, final GroupTopic topic,
+							 final boolean add, final Set<Long> skipped,
+							 final Map<Long, String> ended, final List<OutboxTask> tasks) {
+		final int size = members.size(), batch = InstanceIDManager.MAX_BATCH;
+		int count = 0;
+		for (int i = 0; i < size; i += batch) {
+			final int end = Math.min(i + batch, size);
+			final int[] records = new int[end - i], generations = new int[end - i];
+			final List<String> deviceIDs = new ArrayList<>(end - i);
+			for (int j = i; j < end; j++) {
+				final int record = members.getRecord(j), generation = members.getGeneration(j);
+				final Long key = sessionKey(record, generation);
+				String deviceID = null;
+				if (!skipped.contains(key)) {
+					deviceID = users.getDeviceID(record, generation);
+					if (deviceID == null)
+						deviceID = ended.get(key);
+				}
+				if (deviceID != null) {
+					records[deviceIDs.size()] = record;
+					generations[deviceIDs.size()] = generation;
+					deviceIDs.add(deviceID);
+				}
+			}
+			final int n = deviceIDs.size();
+			if (n > 0) {
+				final int[] r = Arrays.copyOf(records, n), g = Arrays.copyOf(generations, n);
+				tasks.add(add ? new AddClientsToTopicTask(r, g, deviceIDs, topic) :
+					new RemoveClientsFromTopicTask(r, g, deviceIDs, topic));
+				count += n;
+			}
+		}
+		return count;
+	}
+	/**
+	 * Caches the full text of a ping sent as a preview, if not already cached by an earlier
+	 * attempt, so that devices can fetch it from /ping/{id}.
+	 *
+	 * @param ping the ping being sent
+	 * @return the cached entry, with the fetch key
+	 */
+	private PingTextCache.Entry cachePingText(final PingLog.Entry ping) {
+		PingTextCache.Entry entry = pingTexts.get(ping.getID());
+		if (entry == null)
+			entry = pingTexts.add(ping.getID(), PingTextCache.createKey(), encodePing(ping));
+		return entry;
+	}
+	/**
+	 * Adds users to and removes users from a group. Only the group's topic is touched: active
+	 * sessions of added users are subscribed to it, and those of removed users unsubscribed.
+	 *
+	 * @param name the group name
+	 * @param add the usernames to add
+	 * @param remove the usernames to remove
+	 * @return the group, with the number of users added and removed, or a status if the group
+	 * does not exist
+	 * @throws IOException if the change could not be recorded
+	 */
+	private Object changeMembers(final String name, final Collection<String> add,
+								 final Collection<String> remove) throws IOException {
+		final Object ret;
+		final ServerEvents.GroupsLockEvent lockEvent = ServerEvents.lockGroups(
+			"changeMembers");
+		try {
+			synchronized (groups) {
+				lockEvent.acquired();
+				final GroupTopic topic = groups.get(name);
+				if (topic == null)
+					ret = new StatusResponse("notFound");
+				else {
+					final List<String> added = memberships.add(name, add), removed = memberships.
+						remove(name, remove);
+					authCache.invalidate(added);
+					authCache.invalidate(removed);
+					submitChanges(joinSessions(topic.getID(), added), topic, true);
+					submitChanges(leaveSessions(topic.getID(), removed), topic, false);
+					final GroupInfo info = new GroupInfo(topic, memberships.getMemberCount(name));
+					info.added = added.size();
+					info.removed = removed.size();
+					LOGGER.log(Level.INFO, "Group \"" + name + "\": " + info.added + " added, " +
+						info.removed + " removed");
+					ret = info;
+				}
+			}
+		} finally {
+			lockEvent.released();
+		}
+		return ret;
+	}
+	/**
+	 * Creates the authentication provider named in the server settings, or the local provider
+	 * backed by the membership store if none is named.
+	 *
+	 * @return the authentication provider
+	 */
+	private AuthProvider createAuthProvider() {
+		final String name = serverSettings.getString(ServerSettings.AUTH_PROVIDER, null);
+		final AuthProvider ret;
+		if (name == null)
+			ret = new LocalAuthProvider(memberships);
+		else
+			try {
+				ret = Class.forName(name).asSubclass(AuthProvider.class).getConstructor(
+					ServerSettings.class).newInstance(serverSettings);
+			} catch (ReflectiveOperationException | ClassCastException e) {
+				throw new IllegalArgumentException(ServerSettings.AUTH_PROVIDER, e);
+			}
+		LOGGER.log(Level.INFO, "Using " + ret);
+		return ret;
+	}
+	/**
+	 * Creates the demonstration groups on the first start: "caps" and "supers", each with the
+	 * user of the same name, and "all" with both.
+	 *
+	 * @throws IOException if the membership could not be recorded
+	 */
+	private void createDemoGroups() throws IOException {
+		final ServerEvents.GroupsLockEvent lockEvent = ServerEvents.lockGroups(
+			"createDemoGroups");
+		try {
+			synchronized (groups) {
+				lockEvent.acquired();
+				groups.add("all");
+				groups.add("caps");
+				groups.add("supers");
+				memberships.add("all", Arrays.asList("caps", "supers"));
+				memberships.add("caps", Collections.singletonList("caps"));
+				memberships.add("supers", Collections.singletonList("supers"));
 			}
+		} finally {
+			lockEvent.released();
+		}
+		LOGGER.log(Level.INFO, "Created demonstration groups");
+	}
+	/**
+	 * Adds an HTTP context behind admission control. The limits can be overridden in the
+	 * server settings.
+	 *
+	 * @param path the context path
+	 * @param handler the request handler
+	 * @param maxConcurrent the default maximum number of requests handled at once
+	 * @param maxQueue the default maximum number of requests waiting
+	 * @param maxWait the default maximum wait for admission in milliseconds
+	 * @param priority true if the endpoint may use the threads reserved for priority requests
+	 */
+	private void createContext(final String path, final HttpHandler handler,
+							   final int maxConcurrent, final int maxQueue, final long maxWait,
+							   final boolean priority) {
+		final String prefix = ServerSettings.ADMISSION_PREFIX + path;
+		server.createContext(path, admission.admit(path, handler, serverSettings.getInt(prefix +
+			".maxConcurrent", maxConcurrent), serverSettings.getInt(prefix + ".maxQueue",
+			maxQueue), serverSettings.getLong(prefix + ".maxWaitMillis", maxWait), priority));
+	}
+	/**
+	 * Creates a group with a new topic and optionally some members, whose active sessions are
+	 * subscribed to it. No other group is touched.
+	 *
+	 * @param name the group name
+	 * @param add the usernames of the initial members
+	 * @return the new group, or a status if the group already exists
+	 * @throws IOException if the group could not be recorded
+	 */
+	private Object createGroup(final String name, final Collection<String> add)
+			throws IOException {
+		final Object ret;
+		final ServerEvents.GroupsLockEvent lockEvent = ServerEvents.lockGroups("createGroup");
+		try {
+			synchronized (groups) {
+				lockEvent.acquired();
+				if (groups.get(name) != null)
+					ret = new StatusResponse("exists");
+				else {
+					final GroupTopic topic = groups.add(name).rotate(createTopicID());
+					groups.update(topic);
+					// Make the topic durable before any device is subscribed to it
+					topicStore.record(Collections.singletonList(topic), System.currentTimeMillis());
+					final List<String> added = memberships.add(name, add);
+					authCache.invalidate(added);
+					submitChanges(joinSessions(topic.getID(), added), topic, true);
+					final GroupInfo info = new GroupInfo(topic, added.size());
+					info.added = added.size();
+					LOGGER.log(Level.INFO, "Created " + topic + " with " + info.added + " members");
+					ret = info;
+				}
+			}
+		} finally {
+			lockEvent.released();
 		}
 		return ret;
 	}
 	/**
-	 * Retrieves a list of topic codes to which the specified session should be subscribed.
+	 * Deletes a group, unsubscribing the active sessions of its members from its topics. Pings
+	 * to the group are rejected from then on.
 	 *
-	 * @param session the session to query
-	 * @return the FCM topic IDs to which this session should be subscribed
+	 * @param name the group name
+	 * @return the deleted group, with the number of members removed, or a status if the group
+	 * does not exist
+	 * @throws IOException if the deletion could not be recorded
 	 */
-	private Set<String> getTopicCodes(final UserSession session) {
-		final Collection<String> groups = session.getGroups();
-		// Add to set for fast lookup by name
-		final Set<String> topics = new HashSet<String>(groups.size() * 2);
-		synchronized (topicMap) {
-			for (final String group : groups)
-				if (topicMap.containsKey(group)) {
-					final String topicCode = topicMap.get(group);
-					if (topicCode != null)
-						topics.add(topicCode);
+	private Object deleteGroup(final String name) throws IOException {
+		final Object ret;
+		final ServerEvents.GroupsLockEvent lockEvent = ServerEvents.lockGroups("deleteGroup");
+		try {
+			synchronized (groups) {
+				lockEvent.acquired();
+				final GroupTopic topic = groups.get(name);
+				if (topic == null)
+					ret = new StatusResponse("notFound");
+				else {
+					final int id = topic.getID();
+					// Sessions keep the group if the removal could not be made durable
+					final List<String> removed = memberships.delete(name);
+					final List<UserSession> left = users.leaveAll(id);
+					authCache.invalidate(removed);
+					topicStore.remove(name);
+					groups.remove(id);
+					submitChanges(left, topic, false);
+					final GroupInfo info = new GroupInfo(topic, 0);
+					info.removed = removed.size();
+					LOGGER.log(Level.INFO, "Deleted " + topic);
+					ret = info;
 				}
+			}
+		} finally {
+			lockEvent.released();
 		}
-		return topics;
+		return ret;
 	}
 	/**
-	 * Rotates all groups to new topic names, mass unsubscribes all known clients from the
-	 * old names, and resubscribes all non-expired users to the new names. Implicitly destroys
-	 * users which have expired.
+	 * Stops recording the sessions which change during a rotation plan, as the plan failed
+	 * before it was published.
 	 */
-	private void rotateGroups() {
-		synchronized (topicMap) {
-			LOGGER.log(Level.FINE, "Refreshing groups");
-			// Create a temporary list of the new topic IDs
-			final Map<String, String> newGroupMap = new HashMap<>(topicMap.size());
-			final Collection<UserSession> allUsers = users.values();
-			for (final Map.Entry<String, String> entry : topicMap.entrySet()) {
-				final String topic = entry.getValue(), group = entry.getKey();
-				// Unsubscribe users from this topic even if expired
-				if (topic.length() > 0 && allUsers.size() > 0)
-					threadPool.submit(new RemoveClientsFromTopicTask(allUsers, topic));
-				// Generate new topic IDs for the groups
-				final String topicID = createTopicID();
-				newGroupMap.put(group, topicID);
-				LOGGER.log(Level.FINE, "Group \"" + group + "\" => " + topicID);
-			}
-			// Load new topic IDs
-			topicMap.clear();
-			for (final Map.Entry<String, String> entry : newGroupMap.entrySet())
-				topicMap.put(entry.getKey(), entry.getValue());
-			// Clear out users whose refresh has expired
-			final Collection<String> userList = new LinkedList<>(users.keySet());
-			for (final String user : userList)
-				if (users.get(user).isExpired()) {
-					users.remove(user);
-					LOGGER.log(Level.FINE, "Expired user \"" + user + "\"");
-				}
-			// Selective subscribe sessions to each topic in bulk
-			for (final Map.Entry<String, String> entry : topicMap.entrySet()) {
-				final Collection<UserSession> sessions = filterSessions(entry.getKey());
-				if (sessions.size() > 0)
-					threadPool.submit(new AddClientsToTopicTask(sessions, entry.getValue()));
+	private void discardPlanChanges() {
+		final ServerEvents.GroupsLockEvent lockEvent = ServerEvents.lockGroups(
+			"discardPlanChanges");
+		try {
+			synchronized (groups) {
+				lockEvent.acquired();
+				planChanges = null;
 			}
+		} finally {
+			lockEvent.released();
 		}
 	}
-	public void run() {
-		rotateGroups();
+	/**
+	 * Evicts the sessions of devices which the Instance ID API reported as dead, so that
+	 * rotations no longer carry them. Sessions which expire meanwhile are left for the next
+	 * rotation.
+	 */
+	private void evictDeadDevices() {
+		final Set<String> dead = deadTokens.drain();
+		if (!dead.isEmpty()) {
+			int evicted = 0;
+			final ServerEvents.GroupsLockEvent lockEvent = ServerEvents.lockGroups(
+				"evictDeadDevices");
+			try {
+				synchronized (groups) {
+					lockEvent.acquired();
+					for (final String username : users.removeDevices(dead)) {
+						gateway.disconnect(username);
+						evicted++;
+					}
+				}
+			} finally {
+				lockEvent.released();
+			}
+			deadTokens.evicted(evicted);
+			LOGGER.log(Level.INFO, "Evicted " + evicted + " sessions of " + dead.size() +
+				" dead devices");
+		}
 	}
 	/**
-	 * Sends a ping to the specified group.
+	 * Delivers a logged ping to FCM, and also to the group's previous topic while devices are
+	 * being moved from it. Once FCM accepts or rejects the ping, it is completed in
+	 * the ping log and recorded in the history journal. If the request itself fails or FCM
+	 * reports a temporary error, the ping stays in the log and delivery is retried, no sooner
+	 * than FCM asked. Callers which must not wait for FCM leave the ping to a delivery task
+	 * while FCM traffic is held or at its concurrency limit, without using up a retry.
 	 *
-	 * @param text the ping text
-	 * @param group the group to ping
-	 * @throws PingFailedException if the request for ping fails
+	 * @param ping the ping to deliver
+	 * @param retries the number of retries so far
+	 * @param wait true to wait out FCM holds and the FCM concurrency limit
+	 * @param trace the trace of this delivery attempt
+	 * @return true if the ping was delivered, or false if it will be retried
+	 * @throws PingFailedException if FCM rejected the ping, or all retries failed
 	 */
-	private void sendPing(final String text, final String group) throws PingFailedException {
-		synchronized (topicMap) {
-			// Find matching topic
-			if (topicMap.containsKey(group)) {
-				final String topicCode = topicMap.get(group);
+	private boolean deliverPing(final PingLog.Entry ping, final int retries, final boolean wait,
+								final Tracer.Trace trace) throws PingFailedException {
+		final String group = ping.getGroup();
+		// Find matching topic, without waiting for logins or rotations
+		final GroupTopic topic = groups.snapshot().get(group);
+		String result = null;
+		boolean deferred = false;
+		trace.tag("ping.id", ping.getID()).tag("retries", retries);
+		try {
+			if (topic == null)
+				result = "Invalid ping group: " + group;
+			else {
+				final Tracer.Span buildSpan = trace.span("payload.build");
 				// Set up message options - high priority (allow device wake)
 				final FcmMessageOptions options = FcmMessageOptions.builder().
 					setPriorityEnum(PriorityEnum.High).build();
 				// Create message payload
 				final Map<String, Object> payload = new HashMap<String, Object>(8);
 				payload.put(PING_KEY_GROUP, group);
-				payload.put(PING_KEY_MESSAGE, text);
-				// Send to the randomized group ID
-				final TopicUnicastMessage message = new TopicUnicastMessage(options,
-					new Topic(topicCode), payload);
-				final TopicMessageResponse response = client.send(message);
-				if (response.getErrorCode() != null)
-					throw new PingFailedException("Response error: " + response.getErrorCode());
+				payload.put(PING_KEY_ID, Long.toString(ping.getID()));
+				final String text = ping.getText();
+				if (previewChars > 0 && text.length() > previewChars) {
+					// Devices fetch the full text by ID, keeping long pings within FCM limits
+					payload.put(PING_KEY_FETCH, cachePingText(ping).getKey());
+					payload.put(PING_KEY_MESSAGE, truncate(text, previewChars));
+				} else
+					payload.put(PING_KEY_MESSAGE, text);
+				final TopicUnicastMessage message = new TopicUnicastMessage(options, new Topic(
+					topic.getTopic()), payload);
+				buildSpan.finish();
+				// Send to the randomized group ID, outside the lock as it may wait for FCM
+				TopicMessageResponse response = sendMessage(message, wait, trace);
+				ErrorCodeEnum error = (response == null) ? null : response.getErrorCode();
+				if (response != null && error == null && topic.isMigrating()) {
+					// Devices not moved yet are still on the previous topic, and clients
+					// drop the duplicate by ping ID
+					response = sendMessage(new TopicUnicastMessage(options, new Topic(topic.
+						getPrevious()), payload), wait, trace);
+					error = (response == null) ? null : response.getErrorCode();
+				}
+				if (response == null)
+					deferred = true;
+				else if (error == null)
+					result = "sent";
+				else if (isOverloaded(error))
+					LOGGER.log(Level.INFO, "FCM returned " + error + " for " + ping +
+						" (retrying)");
+				else
+					result = "Response error: " + error;
+			}
+		} catch (InterruptedException e) {
+			// Shutting down, the ping log will resume it on the next start
+			Thread.currentThread().interrupt();
+			LOGGER.log(Level.INFO, "Deferring " + ping + " until restart");
+			return false;
+		} catch (FcmAuthenticationException | FcmBadRequestException e) {
+			// Requests rejected outright would fail the same way again
+			result = "Request error: " + e.getMessage();
+		} catch (FcmGeneralException e) {
+			if (e.getHttpStatusCode() != 429 && e.getHttpStatusCode() < 500)
+				result = "Request error: HTTP " + e.getHttpStatusCode();
+			else
+				LOGGER.log(Level.INFO, "Error sending " + ping + " (retrying)", e);
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.INFO, "Error sending " + ping + " (retrying)", e);
+		}
+		if (result == null) {
+			if (deferred) {
+				// Not sent yet, so the delivery task makes the same attempt once FCM allows
+				trace.tag("deferred", true);
+				try {
+					threadPool.schedule(new PingDeliveryTask(ping, retries, false, trace.
+						getTraceID()), fcmLane.getDelay(), TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException e) {
+					// Shutting down, the ping log will resume it on the next start
+					LOGGER.log(Level.INFO, "Deferring " + ping + " until restart");
+				}
+			} else if (retries < RETRY_COUNT)
+				try {
+					// Wait at least as long as FCM asked
+					threadPool.schedule(new PingDeliveryTask(ping, retries + 1, false, trace.
+						getTraceID()), Math.max(
+						RETRY_INTERVAL * retries, fcmLane.getDelay()), TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException e) {
+					// Shutting down, the ping log will resume it on the next start
+					LOGGER.log(Level.INFO, "Deferring " + ping + " until restart");
+				}
+			else
+				result = "error";
+		}
+		if (result != null) {
+			final Tracer.Span journalSpan = trace.span("journal.record");
+			pingLog.complete(ping.getID());
+			journal.record(ping.getID(), group, ping.getText(), result);
+			journalSpan.finish();
+			trace.tag("result", result);
+			if (!result.equals("sent"))
+				throw new PingFailedException(result);
+		}
+		return result != null;
+	}
+	/**
+	 * Reports whether an FCM error code means that FCM is overloaded or rate limiting us, in
+	 * which case the message can be retried later.
+	 *
+	 * @param error the FCM error code
+	 * @return true if the error is temporary
+	 */
+	private static boolean isOverloaded(final ErrorCodeEnum error) {
+		return error == ErrorCodeEnum.DeviceMessageRateExceeded || error == ErrorCodeEnum.
+			InternalServerError || error == ErrorCodeEnum.TopicsMessageRateExceeded ||
+			error == ErrorCodeEnum.Unavailable;
+	}
+	/**
+	 * Adds a group to the active sessions of users who just joined it. Must hold the groups
+	 * lock.
+	 *
+	 * @param id the group ID
+	 * @param usernames the users who joined the group
+	 * @return the sessions which joined the group
+	 */
+	private List<UserSession> joinSessions(final int id, final Collection<String> usernames) {
+		final List<UserSession> ret = new ArrayList<>(usernames.size());
+		for (final String username : usernames) {
+			final UserSession session = users.get(username);
+			if (session != null && session.join(id)) {
+				gateway.regroup(username, session.getGroups());
+				recordPlanChange(username);
+				ret.add(session);
+			}
+		}
+		return ret;
+	}
+	/**
+	 * Removes a group from the active sessions of users who just left it. Must hold the
+	 * groups lock.
+	 *
+	 * @param id the group ID
+	 * @param usernames the users who left the group
+	 * @return the sessions which left the group
+	 */
+	private List<UserSession> leaveSessions(final int id, final Collection<String> usernames) {
+		final List<UserSession> ret = new ArrayList<>(usernames.size());
+		for (final String username : usernames) {
+			final UserSession session = users.get(username);
+			if (session != null && session.leave(id)) {
+				gateway.regroup(username, session.getGroups());
+				recordPlanChange(username);
+				ret.add(session);
+			}
+		}
+		return ret;
+	}
+	/**
+	 * Issues a new ping ID. IDs are derived from the current time so that they remain unique
+	 * and increasing across restarts.
+	 *
+	 * @return the next ping ID
+	 */
+	private long nextPingID() {
+		final long now = System.currentTimeMillis() * 1000L;
+		long last, id;
+		do {
+			last = lastPingID.get();
+			id = Math.max(now, last + 1L);
+		} while (!lastPingID.compareAndSet(last, id));
+		return id;
+	}
+	/**
+	 * Calculates when the daily rotation is due. Without a rotation window, it is due a day
+	 * after the last rotation. With one, it is due now if the window is open and the groups
+	 * have not been rotated since it opened, otherwise when the window next opens.
+	 *
+	 * @param last the time of the last rotation
+	 * @param now the current time
+	 * @return the time at which to rotate
+	 */
+	private long nextRotation(final long last, final long now) {
+		final long due;
+		if (rotationStart == null)
+			due = last + ROTATION_INTERVAL;
+		else {
+			final ZonedDateTime opened = windowOpened(now);
+			final long openedMillis = opened.toInstant().toEpochMilli();
+			if (last < openedMillis && now < openedMillis + rotationWindow)
+				due = now;
+			else
+				due = opened.plusDays(1L).toInstant().toEpochMilli();
+		}
+		return due;
+	}
+	/**
+	 * Publishes a logged ping to the connected devices and event streams of its group, which
+	 * get it at once whether or not FCM is working.
+	 *
+	 * @param ping the ping to publish
+	 * @param trace the trace of the ping
+	 */
+	private void publishPing(final PingLog.Entry ping, final Tracer.Trace trace) {
+		final GroupTopic topic = groups.snapshot().get(ping.getGroup());
+		if (topic != null) {
+			final byte[] encoded = encodePing(ping);
+			trace.tag("gateway", gateway.publish(topic.getID(), encoded));
+			stream.publish(ping.getID(), ping.getGroup(), encoded);
+		}
+	}
+	/**
+	 * Publishes a rotation plan. Under the groups lock, the new topics are recorded and
+	 * installed, and the expired and dead sessions which were not replaced since the snapshot
+	 * are removed. The planned changes are then queued without the lock; the rotation lock
+	 * keeps the old topics from being retired until they are. Groups removed since the
+	 * snapshot are skipped. Sessions which logged in or changed groups since the snapshot, or
+	 * which a refresh renewed as they were planned to expire, are updated individually.
+	 *
+	 * @param plan the rotation plan
+	 * @param current the topic of each group when the snapshot was taken
+	 * @param rotate whether each group is rotated
+	 * @param resume whether each group finishes an aborted move to its current topic
+	 * @param deadline the time by which the subscription changes should be sent
+	 * @param trace the trace of the rotation
+	 */
+	private void publishRotation(final RotationPlan plan, final GroupTopic[] current,
+								 final boolean[] rotate, final boolean[] resume,
+								 final long deadline, final Tracer.Trace trace) {
+		final int n = current.length;
+		final GroupTopic[] published = new GroupTopic[n];
+		final Set<String> changed;
+		final Map<Long, String> ended = new HashMap<>(plan.getExpired().size() * 2);
+		final Set<Long> revived = new HashSet<>(16);
+		int evicted = 0;
+		final Tracer.Span lockSpan = trace.span("publish.wait");
+		final ServerEvents.GroupsLockEvent lockEvent = ServerEvents.lockGroups("rotateGroups");
+		try {
+			synchronized (groups) {
+				lockEvent.acquired();
+				lockSpan.finish();
+				final Tracer.Span recordSpan = trace.span("topics.record");
+				final List<GroupTopic> rotated = new ArrayList<>(n);
+				for (int i = 0; i < n; i++) {
+					// Renamed groups keep their topic, removed ones are skipped
+					published[i] = (current[i] != null) ? groups.get(i) : null;
+					if (rotate[i] && published[i] != null) {
+						// Generate a new topic ID, which no session can be confirmed on yet
+						published[i] = published[i].rotate(createTopicID());
+						rotated.add(published[i]);
+					}
+				}
+				// Readers see every rotated group change in the same snapshot
+				groups.update(rotated);
+				try {
+					// Make the new topics durable before any device is subscribed to them
+					topicStore.record(rotated, System.currentTimeMillis());
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Unable to record new topics, they will be " +
+						"replaced on the next start", e);
+				}
+				recordSpan.finish();
+				// Sessions replaced by a login since the snapshot are left alone
+				for (final Map.Entry<String, UserSession> entry : plan.getDead())
+					if (users.remove(entry.getKey(), entry.getValue())) {
+						gateway.disconnect(entry.getKey());
+						evicted++;
+					}
+				for (final Map.Entry<String, UserSession> entry : plan.getExpired()) {
+					final UserSession session = entry.getValue();
+					// Expiry claims the lease, so a racing refresh either wins or fails
+					if (users.expire(entry.getKey(), session)) {
+						// Its record is freed, so the device ID is kept for the removes
+						ended.put(sessionKey(session.getRecord(), session.getGeneration()),
+							session.getDeviceID());
+						gateway.disconnect(entry.getKey());
+						LOGGER.log(Level.FINE, "Expired user \"" + entry.getKey() + "\"");
+					} else if (!session.isExpired()) {
+						// Refreshed since the snapshot, so it keeps its topics and is brought
+						// up to date like a session which changed during the plan
+						revived.add(sessionKey(session.getRecord(), session.getGeneration()));
+						recordPlanChange(entry.getKey());
+					}
+				}
+				changed = planChanges;
+				planChanges = null;
+			}
+		} finally {
+			lockEvent.released();
+		}
+		deadTokens.evicted(evicted);
+		final Tracer.Span submitSpan = trace.span("submit");
+		final ServerEvents.RotationEvent submitEvent = ServerEvents.rotation("submit");
+		final List<OutboxTask> adds = new ArrayList<>(n), removes = new ArrayList<>(n);
+		int removed = 0, added = 0;
+		for (int i = 0; i < n; i++)
+			if (published[i] != null) {
+				final int groupRemoved = batchMembers(plan.getRemoves(i), current[i], false,
+					revived, ended, removes);
+				removed += groupRemoved;
+				// Resumed groups add the devices left behind to the topic they already have
+				if (rotate[i] || resume[i]) {
+					final int groupAdded = batchMembers(plan.getAdds(i), published[i], true,
+						Collections.<Long>emptySet(), Collections.<Long, String>emptyMap(),
+						adds);
+					added += groupAdded;
+					LOGGER.log(Level.FINE, published[i].toString() + ": " + groupRemoved +
+						" removed, " + groupAdded + " added");
+				}
+			}
+		// Devices join the new topics before leaving the old ones
+		adds.addAll(removes);
+		queueTasks(adds, deadline);
+		for (final String username : changed) {
+			final UserSession session = users.get(username);
+			if (session != null)
+				submitTask(new UpdateUserTask(session));
+		}
+		submitSpan.tag("removed", removed).tag("added", added).tag("batches", adds.size()).
+			tag("evicted", evicted).tag("changed", changed.size()).finish();
+		submitEvent.finish(removed + added);
+	}
+	/**
+	 * Records subscription tasks in the outbox, then queues them to be released evenly until
+	 * the deadline.
+	 *
+	 * @param tasks the tasks to run, in order
+	 * @param deadline the time by which the tasks should be released
+	 */
+	private void queueTasks(final List<OutboxTask> tasks, final long deadline) {
+		for (final OutboxTask task : tasks) {
+			task.outboxID = outbox.add(task.toEntry());
+			task.paced = true;
+		}
+		pacer.submit(tasks, deadline);
+	}
+	/**
+	 * Records that a session logged in or changed groups, if a rotation is being planned, so
+	 * that it is updated once the rotation is published. Must hold the groups lock.
+	 *
+	 * @param username the user whose session changed
+	 */
+	private void recordPlanChange(final String username) {
+		if (planChanges != null)
+			planChanges.add(username);
+	}
+	/**
+	 * Verifies a refresh challenge and, if correct, extends the session's lease. Takes no
+	 * lock, so refreshes never wait for logins, evictions or rotation planning.
+	 *
+	 * @param username the user refreshing
+	 * @param challenge the challenge token presented
+	 * @return true if the session was renewed, or false if the user is unknown, expired, or
+	 * the challenge is wrong
+	 */
+	private boolean refreshSession(final String username, final String challenge) {
+		// Renewed with a compare-and-set, so rotation cannot expire the session in between
+		final boolean ok = users.refresh(username, challenge);
+		if (ok)
+			LOGGER.log(Level.FINE, "Renewed user \"" + username + "\"");
+		return ok;
+	}
+	/**
+	 * Renames a group. The group keeps its ID, topic and members, so no device is touched.
+	 *
+	 * @param name the group name
+	 * @param newName the new group name
+	 * @return the renamed group, or a status if the group does not exist or the new name is
+	 * taken
+	 * @throws IOException if the change could not be recorded
+	 */
+	private Object renameGroup(final String name, final String newName) throws IOException {
+		final Object ret;
+		final ServerEvents.GroupsLockEvent lockEvent = ServerEvents.lockGroups("renameGroup");
+		try {
+			synchronized (groups) {
+				lockEvent.acquired();
+				final GroupTopic topic = groups.get(name);
+				if (topic == null)
+					ret = new StatusResponse("notFound");
+				else if (groups.get(newName) != null)
+					ret = new StatusResponse("exists");
+				else {
+					final GroupTopic renamed = groups.rename(topic.getID(), newName);
+					topicStore.rename(name, renamed);
+					memberships.rename(name, newName);
+					authCache.invalidate(memberships.getMembers(newName));
+					LOGGER.log(Level.INFO, "Renamed group \"" + name + "\" to \"" + newName + "\"");
+					ret = new GroupInfo(renamed, memberships.getMemberCount(newName));
+				}
+			}
+		} finally {
+			lockEvent.released();
+		}
+		return ret;
+	}
+	/**
+	 * Restores the topics which the groups were using when the server last stopped, so that
+	 * a restart does not resubscribe every device. Groups keep the IDs under which they were
+	 * stored, as the pending outbox tasks name groups by ID. The IDs of removed groups which
+	 * pending tasks still name are not issued to new groups, so those tasks cannot reach them.
+	 *
+	 * @param stored the stored group bindings
+	 * @param pending the pending outbox entries
+	 * @return the time of the oldest restored rotation, or 0 if no topics were restored
+	 */
+	private long restoreTopics(final List<TopicStore.Entry> stored,
+							   final Collection<SubscriptionOutbox.Entry> pending) {
+		long oldest = 0L;
+		int limit = 0;
+		for (final SubscriptionOutbox.Entry entry : pending)
+			if (entry.getType() == SubscriptionOutbox.TYPE_UPDATE) {
+				for (final int id : entry.getGroups())
+					limit = Math.max(limit, id + 1);
+			} else
+				limit = Math.max(limit, entry.getTopic().getID() + 1);
+		final ServerEvents.GroupsLockEvent lockEvent = ServerEvents.lockGroups("restoreTopics");
+		try {
+			synchronized (groups) {
+				lockEvent.acquired();
+				for (final TopicStore.Entry entry : stored) {
+					final GroupTopic topic = entry.getTopic();
+					if (groups.get(topic.getID()) == null)
+						groups.restore(topic);
+					else {
+						// Stores written before groups kept their IDs may repeat an ID
+						final GroupTopic group = groups.add(topic.getName());
+						groups.update(new GroupTopic(group.getID(), topic.getName(), topic.
+							getTopic(), topic.getEpoch(), topic.getPrevious()));
+						LOGGER.log(Level.WARNING, "Moved " + topic + " to group ID " + group.
+							getID());
+					}
+					if (topic.hasTopic() && (oldest == 0L || entry.getRotated() < oldest))
+						oldest = entry.getRotated();
+					LOGGER.log(Level.INFO, "Restored " + topic);
+				}
+				groups.reserve(limit);
+			}
+		} finally {
+			lockEvent.released();
+		}
+		return oldest;
+	}
+	/**
+	 * Resumes the subscription tasks which were pending in the outbox when the server last
+	 * stopped. Adds to topics which have since been rotated are turned into removals, as the
+	 * devices may already have been partly subscribed to the stale topic. Unfinished topic
+	 * changes of a rotation are paced again over the rest of the rotation window.
+	 *
+	 * @param pending the pending outbox entries by outbox ID
+	 */
+	private void resumeTasks(final Map<Long, SubscriptionOutbox.Entry> pending) {
+		final List<OutboxTask> paced = new ArrayList<>(pending.size());
+		for (final Map.Entry<Long, SubscriptionOutbox.Entry> pair : pending.entrySet()) {
+			final long id = pair.getKey();
+			final SubscriptionOutbox.Entry entry = pair.getValue();
+			final OutboxTask task;
+			switch (entry.getType()) {
+			case SubscriptionOutbox.TYPE_ADD:
+				final GroupTopic topic = entry.getTopic(), current = groups.snapshot().get(
+					topic.getID());
+				if (current != null && current.getEpoch() == topic.getEpoch() && current.
+						getTopic().equals(topic.getTopic()))
+					task = new AddClientsToTopicTask(id, entry);
+				else
+					task = new RemoveClientsFromTopicTask(id, entry);
+				break;
+			case SubscriptionOutbox.TYPE_REMOVE:
+				task = new RemoveClientsFromTopicTask(id, entry);
+				break;
+			default:
+				task = new UpdateUserTask(id, entry);
+				resumedDevices.add(entry.getDeviceIDs().get(0));
+				break;
+			}
+			LOGGER.log(Level.INFO, "Resuming " + task);
+			if (task instanceof ClientChangeTask) {
+				task.paced = true;
+				paced.add(task);
 			} else
-				throw new PingFailedException("Invalid ping group: " + group);
+				threadPool.submit(task);
+		}
+		pacer.submit(paced, rotationDeadline(System.currentTimeMillis()));
+	}
+	/**
+	 * Stops sending pings to the previous topics of groups once the pacer has finished moving
+	 * devices from them. After an abort, the previous topics are kept until a rotation has
+	 * moved the devices left behind.
+	 */
+	private void retireTopics() {
+		final List<GroupTopic> retired = new ArrayList<>(4);
+		// A rotation which published its topics may not have queued its changes yet
+		synchronized (rotationLock) {
+			final ServerEvents.GroupsLockEvent lockEvent = ServerEvents.lockGroups(
+				"retireTopics");
+			try {
+				synchronized (groups) {
+					lockEvent.acquired();
+					// A rotation may have queued more changes since the pacer went idle
+					if (pacer.isIdle() && !moveAborted)
+						for (int i = 0; i < groups.size(); i++) {
+							final GroupTopic topic = groups.get(i);
+							if (topic != null && topic.isMigrating())
+								retired.add(topic.retire());
+						}
+					if (retired.size() > 0) {
+						groups.update(retired);
+						try {
+							topicStore.update(retired);
+						} catch (IOException e) {
+							LOGGER.log(Level.WARNING, "Unable to record finished moves, previous " +
+								"topics will be sent to again after a restart", e);
+						}
+					}
+				}
+			} finally {
+				lockEvent.released();
+			}
+		}
+		for (final GroupTopic topic : retired)
+			LOGGER.log(Level.INFO, "Finished moving devices to " + topic);
+	}
+	/**
+	 * Rotates groups to new topic names, then subscribes and unsubscribes only the sessions
+	 * whose confirmed subscriptions differ from what they should have. Sessions confirmed on
+	 * a rotated group's old topic are removed from it, and non-expired members are added to
+	 * the new topic. Implicitly destroys users which have expired, removing them from the
+	 * current topics of any groups which were not rotated. Sessions of devices reported dead
+	 * are evicted without being unsubscribed, as the Instance ID API no longer knows them.
+	 *
+	 * The changes are planned in parallel over the session table without holding the groups
+	 * lock, so logins, pings and refreshes continue meanwhile. The lock is only held to copy
+	 * the topics and to swap in the new ones; sessions which logged in or changed
+	 * groups in between are updated individually once the new topics are published. One
+	 * rotation runs at a time. The changes are split into Instance ID batches
+	 * and paced to finish by the deadline, adds before removes, while pings also go to the
+	 * previous topics until every device has moved.
+	 *
+	 * @param groupIDs the IDs of the groups to rotate, or null to rotate all groups
+	 * @param deadline the time by which the subscription changes should be sent
+	 */
+	private void rotateGroups(final int[] groupIDs, final long deadline) {
+		final Tracer.Trace trace = tracer.start("rotate");
+		try {
+			runRotation(groupIDs, deadline, trace);
+		} finally {
+			trace.finish();
+		}
+	}
+	/**
+	 * Rotates the groups which do not have a topic yet, such as every group on the first
+	 * start. Groups restored with their topics are left alone.
+	 *
+	 * @return true if any groups were rotated
+	 */
+	private boolean rotateNewGroups() {
+		final int[] ids;
+		int count = 0;
+		final ServerEvents.GroupsLockEvent lockEvent = ServerEvents.lockGroups(
+			"rotateNewGroups");
+		try {
+			synchronized (groups) {
+				lockEvent.acquired();
+				ids = new int[groups.size()];
+				for (int i = 0; i < ids.length; i++) {
+					final GroupTopic group = groups.get(i);
+					if (group != null && !group.hasTopic())
+						ids[count++] = i;
+				}
+			}
+		} finally {
+			lockEvent.released();
+		}
+		if (count > 0)
+			// New groups have no devices to move, so there is nothing to pace
+			rotateGroups(Arrays.copyOf(ids, count), System.currentTimeMillis());
+		return count > 0;
+	}
+	/**
+	 * Calculates the deadline of a rotation starting now: the end of the rotation window if
+	 * it is open, otherwise the window length from now.
+	 *
+	 * @param now the current time
+	 * @return the time by which the subscription changes should be sent
+	 */
+	private long rotationDeadline(final long now) {
+		long deadline = now + rotationWindow;
+		if (rotationStart != null) {
+			final long closes = windowOpened(now).toInstant().toEpochMilli() + rotationWindow;
+			if (closes > now)
+				deadline = closes;
+		}
+		return deadline;
+	}
+	/**
+	 * Rotates every group, pacing the subscription changes over the rotation window, then
+	 * schedules the next rotation.
+	 */
+	public void run() {
+		final long now = System.currentTimeMillis(), deadline = rotationDeadline(now);
+		LOGGER.log(Level.INFO, "Rotating all groups, moving devices by " + new Date(deadline));
+		try {
+			rotateGroups(null, deadline);
+		} finally {
+			scheduleRotation(now);
+		}
+	}
+	/**
+	 * Plans and publishes a rotation, then retires the previous topics if no devices need to
+	 * be moved. Groups still moving devices from their previous topic are not rotated again,
+	 * as their unmoved devices would miss pings; after an abort, the rotation moves those
+	 * devices instead.
+	 *
+	 * @param groupIDs the IDs of the groups to rotate, or null to rotate all groups
+	 * @param deadline the time by which the subscription changes should be sent
+	 * @param trace the trace of the rotation
+	 */
+	private void runRotation(final int[] groupIDs, final long deadline,
+							 final Tracer.Trace trace) {
+		synchronized (rotationLock) {
+			final Tracer.Span lockSpan = trace.span("lock.wait");
+			final ServerEvents.GroupsLockEvent lockEvent = ServerEvents.lockGroups(
+				"rotateSnapshot");
+			final int n;
+			final GroupTopic[] current;
+			final boolean[] rotate, resume;
+			final List<GroupTopic> moving = new ArrayList<>(4);
+			try {
+				synchronized (groups) {
+					lockEvent.acquired();
+					lockSpan.finish();
+					n = groups.size();
+					current = new GroupTopic[n];
+					rotate = new boolean[n];
+					resume = new boolean[n];
+					for (int i = 0; i < n; i++) {
+						// Removed groups leave empty slots
+						current[i] = groups.get(i);
+						rotate[i] = groupIDs == null && current[i] != null;
+					}
+					if (groupIDs != null)
+						for (final int id : groupIDs)
+							if (id >= 0 && id < n && current[id] != null)
+								rotate[id] = true;
+					for (int i = 0; i < n; i++)
+						if (current[i] != null && current[i].isMigrating()) {
+							// A new topic would replace the one that unmoved devices still have
+							if (rotate[i] && !moveAborted)
+								moving.add(current[i]);
+							rotate[i] = false;
+							resume[i] = moveAborted;
+						}
+					// Sessions changed from now on are updated again after the plan is published
+					planChanges = new HashSet<>(64);
+				}
+			} finally {
+				lockEvent.released();
+			}
+			LOGGER.log(Level.FINE, "Refreshing groups");
+			final Tracer.Span planSpan = trace.span("plan");
+			final ServerEvents.RotationEvent planEvent = ServerEvents.rotation("plan");
+			for (final GroupTopic topic : moving)
+				LOGGER.log(Level.INFO, "Not rotating " + topic + " until its devices have moved");
+			boolean published = false;
+			try {
+				final RotationPlan plan = RotationPlan.create(users, current, rotate, resume,
+					deadTokens.drain(), ForkJoinPool.commonPool());
+				planSpan.tag("groups", n).tag("users", users.size()).tag("partitions", plan.
+					getPartitions()).finish();
+				planEvent.finish(users.size());
+				publishRotation(plan, current, rotate, resume, deadline, trace);
+				published = true;
+			} finally {
+				if (!published)
+					// Logins would otherwise record changes for a plan which never comes
+					discardPlanChanges();
+			}
+			// The devices left behind by an abort are now queued to move
+			moveAborted = false;
+		}
+		// With no devices to move, nothing will report that the move has finished
+		retireTopics();
+	}
+	/**
+	 * Schedules the next daily rotation.
+	 *
+	 * @param last the time of the last rotation
+	 */
+	private void scheduleRotation(final long last) {
+		final long now = System.currentTimeMillis();
+		try {
+			threadPool.schedule(this, Math.max(0L, nextRotation(last, now) - now), TimeUnit.
+				MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Shutting down
+			LOGGER.log(Level.FINE, "Not scheduling rotation after shutdown");
+		}
+	}
+	/**
+	 * Sends a message to FCM within the FCM concurrency limit, which adapts to the responses,
+	 * once any hold FCM asked for has passed. Callers which must not wait give up instead if
+	 * FCM traffic is held, or if the limit stays reached for FCM_REQUEST_WAIT.
+	 *
+	 * @param message the message to send
+	 * @param wait true to wait for as long as FCM traffic is held or the limit is reached
+	 * @param trace the trace of the ping being sent
+	 * @return the FCM response, or null if the message was not sent as it would have to wait
+	 * @throws InterruptedException if interrupted while waiting for the limit
+	 */
+	private TopicMessageResponse sendMessage(final TopicUnicastMessage message,
+											 final boolean wait, final Tracer.Trace trace)
+			throws InterruptedException {
+		AdaptiveLimiter.Outcome outcome = AdaptiveLimiter.Outcome.DROPPED;
+		final Tracer.Span queueSpan = trace.span("fcm.queue");
+		final long start;
+		if (wait) {
+			fcmLane.await();
+			start = fcmLimiter.acquire();
+		} else
+			start = (fcmLane.getDelay() > 0L) ? 0L : fcmLimiter.acquire(FCM_REQUEST_WAIT);
+		queueSpan.tag("acquired", start != 0L).finish();
+		if (start == 0L)
+			return null;
+		final Tracer.Span sendSpan = trace.span("fcm.send");
+		final ServerEvents.RemoteCallEvent event = ServerEvents.remoteCall(fcmLane.getName(),
+			"send");
+		int status = 0;
+		try {
+			final TopicMessageResponse response = client.send(message);
+			status = 200;
+			sendSpan.tag("error", response.getErrorCode());
+			if (isOverloaded(response.getErrorCode()))
+				outcome = AdaptiveLimiter.Outcome.OVERLOAD;
+			else
+				outcome = AdaptiveLimiter.Outcome.SUCCESS;
+			return response;
+		} catch (FcmRetryAfterException e) {
+			status = e.getHttpStatusCode();
+			outcome = AdaptiveLimiter.Outcome.OVERLOAD;
+			// Hold all FCM traffic until the requested time
+			if (e.getRetryDelay() != null)
+				fcmLane.holdFor(e.getRetryDelay().toMillis());
+			throw e;
+		} catch (FcmGeneralException e) {
+			status = e.getHttpStatusCode();
+			outcome = AdaptiveLimiter.Outcome.fromStatus(status);
+			throw e;
+		} finally {
+			event.finish(status, outcome);
+			fcmLimiter.release(start, outcome);
+			sendSpan.tag("outcome", outcome).finish();
+		}
+	}
+	/**
+	 * Sends a ping to the specified group. The ping is committed to the ping log before any
+	 * attempt to deliver it, so an accepted ping is delivered even if the server dies first.
+	 *
+	 * @param text the ping text
+	 * @param group the group to ping
+	 * @param trace the trace of the ping request
+	 * @return true if the ping was delivered, or false if it was logged and will be retried
+	 * @throws PingFailedException if the ping could not be logged or was rejected
+	 */
+	private boolean sendPing(final String text, final String group, final Tracer.Trace trace)
+			throws PingFailedException {
+		if (groups.snapshot().get(group) == null)
+			throw new PingFailedException("Invalid ping group: " + group);
+		final PingLog.Entry ping;
+		final Tracer.Span logSpan = trace.span("wal.append");
+		try {
+			ping = pingLog.append(nextPingID(), group, text);
+		} catch (IOException e) {
+			throw new PingFailedException("Unable to log ping", e);
+		} finally {
+			logSpan.finish();
+		}
+		publishPing(ping, trace);
+		// Requests never wait out an FCM hold, a delivery task sends the ping after it
+		return deliverPing(ping, 0, false, trace);
+	}
+	/**
+	 * Combines a record number and generation into a key which identifies a session.
+	 *
+	 * @param record the record number
+	 * @param generation the generation of the session
+	 * @return the session key
+	 */
+	private static Long sessionKey(final int record, final int generation) {
+		return ((long)generation << 32) | (record & 0xFFFFFFFFL);
+	}
+	/**
+	 * Starts a ping broadcast server.
+	 *
+	 * @throws PingServerException if an error occurs during startup
+	 */
+	public void start() throws PingServerException {
+		try {
+			profiler.startContinuous();
+			journal.open();
+			// Keep the topics from before the restart, to which devices are still subscribed
+			final Map<Long, SubscriptionOutbox.Entry> pending = outbox.open();
+			final long rotated = restoreTopics(topicStore.open(), pending.values());
+			if (!memberships.open())
+				createDemoGroups();
+			resumeTasks(pending);
+			// Moves which finished just before the restart may not have been recorded
+			retireTopics();
+			threadPool.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					outbox.sync();
+					pingLog.sync();
+					tracer.flush();
+				}
+			}, OUTBOX_SYNC_INTERVAL, OUTBOX_SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+			// Assign topics to new groups before any logged pings are resent
+			final long now = System.currentTimeMillis();
+			if (rotateNewGroups())
+				LOGGER.log(Level.INFO, "Assigned topics to new groups");
+			// Add rotation task, in the next rotation window or a day after the restored
+			// topics were minted
+			scheduleRotation((rotated > 0L) ? rotated : now);
+			for (final PingLog.Entry ping : pingLog.open()) {
+				LOGGER.log(Level.INFO, "Resuming delivery of " + ping);
+				threadPool.submit(new PingDeliveryTask(ping, 0, true, null));
+			}
+			threadPool.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					journal.purge();
+				}
+			}, JOURNAL_PURGE_INTERVAL, JOURNAL_PURGE_INTERVAL, TimeUnit.MILLISECONDS);
+			threadPool.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					evictDeadDevices();
+				}
+			}, DEAD_TOKEN_SWEEP_INTERVAL, DEAD_TOKEN_SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+			// Could use HttpsServer, but this is a demo anyways and it would cause certificate
+			// problems
+			server = HttpServer.create(new InetSocketAddress(serverSettings.getInt(ServerSettings.
+				HTTP_PORT, SERVER_PORT)), serverSettings.getInt(ServerSettings.HTTP_BACKLOG, 128));
+			server.setExecutor(admission);
+			// Pings always have priority over logins and everything else
+			createContext("/forceRefresh", new ForceRefreshHandler(), 1, 0, 1000L, false);
+			createContext("/groups", new GroupsHandler(), 1, 8, 2000L, false);
+			createContext("/history", new HistoryHandler(), 2, 8, 2000L, false);
+			createContext("/login", new LoginHandler(), 4, 16, 2000L, false);
+			createContext("/metrics", new MetricsHandler(), 1, 4, 1000L, false);
+			createContext("/ping", new PingHandler(), 8, 64, 5000L, true);
+			createContext("/ping/", new PingTextHandler(), 8, 4096, 5000L, false);
+			createContext("/ping/batch", new BatchPingHandler(), 2, 16, 10000L, true);
+			createContext("/recording", new RecordingHandler(), 1, 0, 5000L, false);
+			createContext("/refresh", new ChallengeHandler(), 8, 64, 1000L, false);
+			createContext("/refresh/batch", new BatchChallengeHandler(), 2, 4, 2000L, false);
+			createContext("/rotation", new RotationHandler(), 1, 4, 1000L, false);
+			createContext("/stream", new StreamHandler(), 2, 16, 1000L, false);
+			server.start();
+			final int gatewayPort = serverSettings.getInt(ServerSettings.GATEWAY_PORT, 0);
+			if (gatewayPort > 0)
+				gateway.start(new InetSocketAddress(gatewayPort), serverSettings.getInt(
+					ServerSettings.HTTP_BACKLOG, 128));
+		} catch (IOException e) {
+			throw new PingServerException("When starting ping server", e);
+		}
+	}
+	/**
+	 * Stops the server.
+	 *
+	 * @throws PingServerException if an error occurs during shutdown
+	 */
+	public void stop() throws PingServerException {
+		try {
+			// Disconnect event stream clients, which would otherwise hold up the web server
+			stream.shutdown();
+			gateway.shutdown();
+			// Stop the web server
+			if (server != null)
+				server.stop(2);
+			admission.shutdown();
+			authCache.shutdown();
+			// Paced changes not released yet stay in the outbox for the next start
+			final int queued = pacer.shutdown();
+			// Let subscription tasks, pings and their retries drain, within the budget
+			final long deadline = System.currentTimeMillis() + 1000L * serverSettings.getLong(
+				ServerSettings.SHUTDOWN_DRAIN, 10L);
+			while ((outbox.size() > queued || pingLog.size() > 0) && System.currentTimeMillis()
+					< deadline)
+				Thread.sleep(OUTBOX_SYNC_INTERVAL);
+			// Stop any outstanding tasks, which stay in their logs for the next start
+			threadPool.shutdownNow();
+			threadPool.awaitTermination(2L, TimeUnit.SECONDS);
+			if (outbox.size() > 0)
+				LOGGER.log(Level.INFO, outbox.size() + " subscription tasks will resume on " +
+					"the next start");
+			if (pingLog.size() > 0)
+				LOGGER.log(Level.INFO, pingLog.size() + " pings will be resent on the next start");
+			outbox.close();
+			pingLog.close();
+			topicStore.close();
+			memberships.close();
+			journal.close();
+			tracer.close();
+			profiler.close();
+			client.close();
+		} catch (Exception e) {
+			throw new PingServerException("When shutting down", e);
+		}
+	}
+	/**
+	 * Subscribes or unsubscribes sessions from one group's topic in Instance ID batches.
+	 * Unsubscribing also covers the previous topic if devices are still being moved from it.
+	 *
+	 * @param sessions the sessions to change
+	 * @param topic the group topic
+	 * @param add true to subscribe, or false to unsubscribe
+	 */
+	private void submitChanges(final List<UserSession> sessions, final GroupTopic topic,
+							   final boolean add) {
+		final int batch = InstanceIDManager.MAX_BATCH, n = sessions.size();
+		for (int i = 0; i < n; i += batch) {
+			final List<UserSession> chunk = sessions.subList(i, Math.min(i + batch, n));
+			if (add)
+				submitTask(new AddClientsToTopicTask(chunk, topic));
+			else {
+				submitTask(new RemoveClientsFromTopicTask(chunk, topic));
+				if (topic.isMigrating())
+					submitTask(new RemoveClientsFromTopicTask(chunk, new GroupTopic(topic.
+						getID(), topic.getName(), topic.getPrevious(), topic.getEpoch() - 1)));
+			}
+		}
+	}
+	/**
+	 * Records a subscription task in the outbox, then runs it on the thread pool.
+	 *
+	 * @param task the task to run
+	 */
+	private void submitTask(final OutboxTask task) {
+		task.outboxID = outbox.add(task.toEntry());
+		threadPool.submit(task);
+	}
+	/**
+	 * Finds when the most recent rotation window opened, at or before the specified time.
+	 * Only valid if a rotation window is configured.
+	 *
+	 * @param now the current time
+	 * @return the local time at which the window last opened
+	 */
+	private ZonedDateTime windowOpened(final long now) {
+		final ZonedDateTime time = Instant.ofEpochMilli(now).atZone(ZoneId.systemDefault());
+		ZonedDateTime opened = time.with(rotationStart);
+		if (opened.isAfter(time))
+			opened = opened.minusDays(1L);
+		return opened;
+	}
+
+	/**
+	 * Handles challenge responses from clients and refreshes their login timeout if they do
+	 * so successfully. If the challenge is wrong, do not expire the user immediately, or else
+	 * there is an easy avenue for a DoS attack.
+	 */
+	private final class ChallengeHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			if ("POST".equals(exchange.getRequestMethod())) {
+				// Obtain POST data if the method is POST
+				String token = "", username = null, challenge = null;
+				final List<NameValuePair> postData = URLEncodedUtils.parse(HttpUtilities.
+					getRequestBody(exchange), Charset.forName(HttpUtilities.ENCODING));
+				for (final NameValuePair param : postData) {
+					final String key = param.getName(), value = param.getValue();
+					// Extract parameters of the login request
+					if (key.equals("username"))
+						username = value;
+					else if (key.equals("challenge"))
+						challenge = value;
+				}
+				// Verify the challenge; if good, give them another lease on life
+				if (username != null && challenge != null && refreshSession(username,
+						challenge))
+					token = challenge;
+				HttpUtilities.sendResponse(exchange, MAPPER.writeValueAsString(new
+					LoginResponse(token)));
+			} else
+				// Bad request!
+				exchange.sendResponseHeaders(400, 0);
+		}
+	}
+
+	/**
+	 * Handles batched challenge responses relayed by gateways. The POST body is either a JSON
+	 * array of {"username", "challenge"} objects or the same objects separated by newlines,
+	 * and is parsed as a stream. The whole batch is parsed before any session is renewed, so
+	 * a malformed or oversized batch is rejected without side effects. Each entry is checked
+	 * exactly as a single refresh would be, and the results are returned as a bitmap in
+	 * request order.
+	 */
+	private final class BatchChallengeHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			if ("POST".equals(exchange.getRequestMethod())) {
+				final List<String> usernames = new ArrayList<>(64), challenges =
+					new ArrayList<>(64);
+				boolean ok = true, tooLarge = false;
+				try {
+					final JsonParser parser = MAPPER.getFactory().createParser(HttpUtilities.
+						getRequestStream(exchange));
+					try {
+						JsonToken token;
+						while (ok && (token = parser.nextToken()) != null)
+							if (token == JsonToken.START_OBJECT && usernames.size() <
+									BATCH_REFRESH_MAX) {
+								String username = null, challenge = null;
+								while (parser.nextToken() == JsonToken.FIELD_NAME) {
+									final String key = parser.getCurrentName();
+									// Ignore unknown fields and non-string values
+									if (parser.nextToken() != JsonToken.VALUE_STRING)
+										parser.skipChildren();
+									else if (key.equals("username"))
+										username = parser.getText();
+									else if (key.equals("challenge"))
+										challenge = parser.getText();
+								}
+								usernames.add(username);
+								challenges.add(challenge);
+							} else
+								// Only an optional enclosing array is allowed around the
+								// entries
+								ok = token == JsonToken.START_ARRAY || token == JsonToken.
+									END_ARRAY;
+					} finally {
+						parser.close();
+					}
+				} catch (RequestTooLargeException e) {
+					ok = false;
+					tooLarge = true;
+				} catch (IOException e) {
+					// Malformed JSON
+					ok = false;
+				}
+				if (ok) {
+					final BitSet results = new BitSet();
+					final int count = usernames.size();
+					int renewed = 0;
+					for (int i = 0; i < count; i++) {
+						final String username = usernames.get(i), challenge = challenges.get(i);
+						if (username != null && challenge != null && refreshSession(username,
+								challenge)) {
+							results.set(i);
+							renewed++;
+						}
+					}
+					HttpUtilities.sendResponse(exchange, MAPPER.writeValueAsString(new
+						BatchRefreshResponse(count, renewed, Base64.getEncoder().
+						encodeToString(results.toByteArray()))));
+				} else
+					// Bad request, or too large to accept
+					HttpUtilities.sendStatus(exchange, tooLarge ? 413 : 400);
+			} else
+				// Bad request!
+				HttpUtilities.sendStatus(exchange, 400);
+		}
+	}
+
+	/**
+	 * Handles batches of pings relayed by integrations. The POST body is either a JSON array of
+	 * {"group", "text", "idempotencyKey"} objects or the same objects separated by newlines,
+	 * and is parsed as a stream. Each ping is checked as a single ping would be, the accepted
+	 * pings are logged with one shared commit and then delivered in the background, and the
+	 * result of each ping is returned in request order. A ping whose idempotency key was
+	 * accepted recently is reported as a duplicate with the earlier ping ID, and not sent.
+	 */
+	private final class BatchPingHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			if ("POST".equals(exchange.getRequestMethod())) {
+				final Tracer.Trace trace = tracer.start("ping.batch");
+				try {
+					handleBatch(exchange, trace);
+				} finally {
+					trace.finish();
+				}
+			} else
+				// Bad request!
+				HttpUtilities.sendStatus(exchange, 400);
+		}
+		/**
+		 * Checks, logs and queues the pings in the batch.
+		 *
+		 * @param requests the parsed pings
+		 * @param trace the trace of this request
+		 * @return the result of each ping
+		 */
+		private List<BatchPingResponse.Result> acceptBatch(final List<BatchPingRequest>
+				requests, final Tracer.Trace trace) {
+			final int n = requests.size();
+			final List<BatchPingResponse.Result> results = new ArrayList<>(n);
+			final List<PingLog.Entry> accepted = new ArrayList<>(n);
+			// Every ping in the batch is checked against the same groups
+			final GroupSnapshot snapshot = groups.snapshot();
+			for (final BatchPingRequest request : requests) {
+				String status = BatchPingResponse.Result.INVALID;
+				if (request.text != null && request.text.length() > 1 && (request.key ==
+						null || request.key.length() <= IDEMPOTENCY_KEY_MAX))
+					status = (snapshot.get(request.group) != null) ? BatchPingResponse.
+						Result.QUEUED : BatchPingResponse.Result.BAD_GROUP;
+				results.add(new BatchPingResponse.Result(status, 0L, request.key));
+			}
+			final long now = System.currentTimeMillis();
+			for (int i = 0; i < n; i++) {
+				final BatchPingResponse.Result result = results.get(i);
+				if (result.status.equals(BatchPingResponse.Result.QUEUED)) {
+					final BatchPingRequest request = requests.get(i);
+					final long id = nextPingID(), earlier = (result.key == null) ? 0L :
+						idempotency.reserve(result.key, id);
+					if (earlier == 0L) {
+						accepted.add(new PingLog.Entry(id, now, request.group, request.text));
+						result.id = id;
+					} else {
+						result.id = earlier;
+						result.status = BatchPingResponse.Result.DUPLICATE;
+					}
+				}
+			}
+			trace.tag("count", n).tag("accepted", accepted.size());
+			if (accepted.size() > 0) {
+				final Tracer.Span logSpan = trace.span("wal.append");
+				boolean logged = false;
+				try {
+					pingLog.append(accepted);
+					logged = true;
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Unable to log batch of " + accepted.size() +
+						" pings", e);
+				} finally {
+					logSpan.finish();
+				}
+				if (logged)
+					queueBatch(accepted, trace);
+				else
+					for (final BatchPingResponse.Result result : results)
+						if (result.status.equals(BatchPingResponse.Result.QUEUED)) {
+							// Let the relay resend these pings with the same keys
+							if (result.key != null)
+								idempotency.release(result.key, result.id);
+							result.id = 0L;
+							result.status = BatchPingResponse.Result.FAILED;
+						}
+			}
+			return results;
+		}
+		/**
+		 * Parses, accepts and responds to a batch of pings.
+		 *
+		 * @param exchange the HTTP request
+		 * @param trace the trace of this request
+		 * @throws IOException if an I/O error occurs
+		 */
+		private void handleBatch(final HttpExchange exchange, final Tracer.Trace trace)
+				throws IOException {
+			final List<BatchPingRequest> requests = new ArrayList<>(64);
+			boolean ok = true, tooLarge = false;
+			final Tracer.Span parseSpan = trace.span("http.parse");
+			try {
+				final JsonParser parser = MAPPER.getFactory().createParser(HttpUtilities.
+					getRequestStream(exchange));
+				try {
+					JsonToken token;
+					while (ok && (token = parser.nextToken()) != null)
+						if (token == JsonToken.START_OBJECT && requests.size() <
+								BATCH_PING_MAX) {
+							// Default group to "all"
+							String group = "all", text = null, key = null;
+							while (parser.nextToken() == JsonToken.FIELD_NAME) {
+								final String name = parser.getCurrentName();
+								// Ignore unknown fields and non-string values
+								if (parser.nextToken() != JsonToken.VALUE_STRING)
+									parser.skipChildren();
+								else if (name.equals("group")) {
+									if (parser.getTextLength() > 0)
+										group = parser.getText();
+								} else if (name.equals("text"))
+									text = parser.getText();
+								else if (name.equals("idempotencyKey"))
+									key = parser.getText();
+							}
+							requests.add(new BatchPingRequest(group, text, key));
+						} else
+							// Only an optional enclosing array is allowed around the entries
+							ok = token == JsonToken.START_ARRAY || token == JsonToken.
+								END_ARRAY;
+				} finally {
+					parser.close();
+				}
+			} catch (RequestTooLargeException e) {
+				ok = false;
+				tooLarge = true;
+			} catch (IOException e) {
+				// Malformed JSON
+				ok = false;
+			} finally {
+				parseSpan.finish();
+			}
+			if (ok) {
+				final BatchPingResponse response = new BatchPingResponse(acceptBatch(requests,
+					trace));
+				final Tracer.Span writeSpan = trace.span("response.write");
+				exchange.getResponseHeaders().add("X-Trace-Id", trace.getTraceID());
+				HttpUtilities.sendResponse(exchange, MAPPER.writeValueAsString(response));
+				writeSpan.finish();
+			} else {
+				trace.tag("status", tooLarge ? 413 : 400);
+				// Bad request, or too large to accept
+				HttpUtilities.sendStatus(exchange, tooLarge ? 413 : 400);
+			}
+		}
+		/**
+		 * Hands logged pings to the thread pool for delivery. Pings which cannot be queued
+		 * stay in the ping log and are sent on the next start.
+		 *
+		 * @param pings the logged pings
+		 * @param trace the trace of this request, which the deliveries continue
+		 */
+		private void queueBatch(final List<PingLog.Entry> pings, final Tracer.Trace trace) {
+			for (final PingLog.Entry ping : pings)
+				try {
+					threadPool.execute(new PingDeliveryTask(ping, 0, true, trace.
+						getTraceID()));
+				} catch (RejectedExecutionException e) {
+					// Shutting down, the ping log will resume it on the next start
+					LOGGER.log(Level.INFO, "Deferring " + ping + " until restart");
+				}
+		}
+	}
+
+	/**
+	 * A ping parsed from a batch, not yet checked.
+	 */
+	private static final class BatchPingRequest {
+		/**
+		 * The group to ping.
+		 */
+		final String group;
+		/**
+		 * The idempotency key, or null if none was sent.
+		 */
+		final String key;
+		/**
+		 * The ping text, or null if none was sent.
+		 */
+		final String text;
+
+		BatchPingRequest(final String group, final String text, final String key) {
+			this.group = group;
+			this.key = key;
+			this.text = text;
 		}
 	}
+
 	/**
-	 * Starts a ping broadcast server.
-	 *
-	 * @throws PingServerException if an error occurs during startup
+	 * Lets devices connect to the push gateway with the username and challenge which they
+	 * would use to refresh. Connecting renews the session like a refresh does.
 	 */
-	private void start() throws PingServerException {
-		// Create some dummy groups
-		synchronized (topicMap) {
-			topicMap.put("all", "");
-			topicMap.put("caps", "");
-			topicMap.put("supers", "");
-		}
-		// Add rotation task - TODO move to downtime every day
-		threadPool.scheduleAtFixedRate(this, 0L, 1L, TimeUnit.DAYS);
-		try {
-			// Could use HttpsServer, but this is a demo anyways and it would cause certificate
-			// problems
-			server = HttpServer.create(new InetSocketAddress(SERVER_PORT), 32);
-			server.createContext("/forceRefresh", new ForceRefreshHandler());
-			server.createContext("/login", new LoginHandler());
-			server.createContext("/ping", new PingHandler());
-			server.createContext("/refresh", new ChallengeHandler());
-			server.start();
-		} catch (IOException e) {
-			throw new PingServerException("When starting ping server", e);
+	private final class GatewayAuthenticator implements PushGateway.Authenticator {
+		public int[] authenticate(final String username, final String challenge) {
+			final UserSession session = refreshSession(username, challenge) ? users.get(
+				username) : null;
+			return (session != null) ? session.getGroups() : null;
 		}
 	}
+
 	/**
-	 * Stops the server.
-	 *
-	 * @throws PingServerException if an error occurs during shutdown
+	 * Handles force refresh commands by cycling the topic IDs. If one or more groups are
+	 * specified, only those groups are cycled. Any paced rotation still in progress is sent
+	 * at once. This command is meant for debugging only.
 	 */
-	private void stop() throws PingServerException {
-		try {
-			// Stop the web server
-			if (server != null)
-				server.stop(2);
-			// Stop any outstanding tasks
-			threadPool.shutdown();
-			threadPool.awaitTermination(2L, TimeUnit.SECONDS);
-			client.close();
-		} catch (Exception e) {
-			throw new PingServerException("When shutting down", e);
+	private final class ForceRefreshHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			Collection<String> names = null;
+			final List<NameValuePair> getData = HttpUtilities.getQueryParams(exchange);
+			for (final NameValuePair param : getData)
+				if (param.getName().equals("group") && param.getValue() != null) {
+					if (names == null)
+						names = new LinkedList<>();
+					names.add(param.getValue());
+				}
+			final int[] groupIDs;
+			if (names == null)
+				groupIDs = null;
+			else {
+				final ServerEvents.GroupsLockEvent lockEvent = ServerEvents.lockGroups(
+					"forceRefresh");
+				try {
+					synchronized (groups) {
+						lockEvent.acquired();
+						groupIDs = groups.resolve(names);
+					}
+				} finally {
+					lockEvent.released();
+				}
+			}
+			// Debugging only, so send the changes at once
+			rotateGroups(groupIDs, System.currentTimeMillis());
+			HttpUtilities.sendResponse(exchange, MAPPER.writeValueAsString(new StatusResponse(
+				"done")));
 		}
 	}
 
 	/**
-	 * Handles challenge responses from clients and refreshes their login timeout if they do
-	 * so successfully. If the challenge is wrong, do not expire the user immediately, or else
-	 * there is an easy avenue for a DoS attack.
+	 * Administers groups. GET lists every group, or with group= describes one group with its
+	 * members. POST takes form parameters: action=create creates the group named by group=,
+	 * with optional initial members in repeated add= parameters; action=delete deletes it;
+	 * action=rename renames it to name=; and action=members adds the users in repeated add=
+	 * parameters and removes those in repeated remove= parameters. Every change applies only
+	 * to the affected group's topic and members. Meant for administrators only, like
+	 * /forceRefresh.
 	 */
-	private final class ChallengeHandler implements HttpHandler {
+	private final class GroupsHandler implements HttpHandler {
 		public void handle(HttpExchange exchange) throws IOException {
+			Object response;
 			if ("POST".equals(exchange.getRequestMethod())) {
-				// Obtain POST data if the method is POST
-				String token = "", username = null, challenge = null;
+				String action = null, group = null, newName = null;
+				final Collection<String> add = new ArrayList<>(16), remove =
+					new ArrayList<>(16);
 				final List<NameValuePair> postData = URLEncodedUtils.parse(HttpUtilities.
 					getRequestBody(exchange), Charset.forName(HttpUtilities.ENCODING));
 				for (final NameValuePair param : postData) {
-					final String key = param.getName(), value = param.getValue();
-					// Extract parameters of the login request
-					if (key.equals("username"))
-						username = value;
-					else if (key.equals("challenge"))
-						challenge = value;
+					final String value = param.getValue();
+					if (value == null || value.length() == 0)
+						continue;
+					switch (param.getName()) {
+					case "action":
+						action = value;
+						break;
+					case "group":
+						group = value;
+						break;
+					case "name":
+						newName = value;
+						break;
+					case "add":
+						add.add(value);
+						break;
+					case "remove":
+						remove.add(value);
+						break;
+					default:
+						break;
+					}
+				}
+				try {
+					if (group == null || action == null)
+						response = new StatusResponse("invalid");
+					else if (action.equals("create"))
+						response = createGroup(group, add);
+					else if (action.equals("delete"))
+						response = deleteGroup(group);
+					else if (action.equals("rename") && newName != null)
+						response = renameGroup(group, newName);
+					else if (action.equals("members"))
+						response = changeMembers(group, add, remove);
+					else
+						response = new StatusResponse("invalid");
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Group " + action + " of \"" + group +
+						"\" failed", e);
+					response = new StatusResponse("failed: " + e.getMessage());
 				}
-				if (username != null && challenge != null)
-					synchronized (topicMap) {
-						// Verify the challenge; if good, give them another lease on life
-						final UserSession session = users.get(username);
-						final String correct = session.getChallengeToken();
-						if (!session.isExpired() && correct.equals(challenge)) {
-							session.updateLogin();
-							LOGGER.log(Level.FINE, "Renewed user \"" + username + "\"");
-							token = challenge;
+			} else {
+				String group = null;
+				for (final NameValuePair param : HttpUtilities.getQueryParams(exchange))
+					if (param.getName().equals("group"))
+						group = param.getValue();
+				final ServerEvents.GroupsLockEvent lockEvent = ServerEvents.lockGroups(
+					"listGroups");
+				try {
+					synchronized (groups) {
+						lockEvent.acquired();
+						if (group == null) {
+							final List<GroupInfo> list = new ArrayList<>(groups.size());
+							for (int i = 0; i < groups.size(); i++) {
+								final GroupTopic topic = groups.get(i);
+								if (topic != null)
+									list.add(new GroupInfo(topic, memberships.getMemberCount(
+										topic.getName())));
+							}
+							response = list;
+						} else {
+							final GroupTopic topic = groups.get(group);
+							if (topic == null)
+								response = new StatusResponse("notFound");
+							else {
+								final GroupInfo info = new GroupInfo(topic, 0);
+								info.members = memberships.getMembers(group);
+								info.memberCount = info.members.size();
+								response = info;
+							}
 						}
 					}
-				HttpUtilities.sendResponse(exchange, MAPPER.writeValueAsString(new
-					LoginResponse(token)));
-			} else
-				// Bad request!
-				exchange.sendResponseHeaders(400, 0);
+				} finally {
+					lockEvent.released();
+				}
+			}
+			HttpUtilities.sendResponse(exchange, MAPPER.writeValueAsString(response));
 		}
 	}
 
 	/**
-	 * Handles force refresh commands by cycling the topic IDs. This command is meant for
-	 * debugging only.
+	 * Handles ping history queries. Takes an optional group (all groups if omitted), the
+	 * earliest time to report in milliseconds (UTC), and the maximum number of pings to
+	 * return.
 	 */
-	private final class ForceRefreshHandler implements HttpHandler {
+	private final class HistoryHandler implements HttpHandler {
 		public void handle(HttpExchange exchange) throws IOException {
-			rotateGroups();
-			HttpUtilities.sendResponse(exchange, MAPPER.writeValueAsString(new StatusResponse(
-				"done")));
+			if ("GET".equals(exchange.getRequestMethod())) {
+				String group = null;
+				long since = 0L;
+				int limit = HISTORY_LIMIT;
+				boolean ok = true;
+				final List<NameValuePair> getData = HttpUtilities.getQueryParams(exchange);
+				for (final NameValuePair param : getData) {
+					final String key = param.getName(), value = param.getValue();
+					// Extract parameters of the query
+					try {
+						switch (key) {
+						case "group":
+							if (value != null && value.length() > 0)
+								group = value;
+							break;
+						case "since":
+							since = Long.parseLong(value);
+							break;
+						case "limit":
+							limit = Math.min(Integer.parseInt(value), HISTORY_MAX_LIMIT);
+							break;
+						default:
+							break;
+						}
+					} catch (NumberFormatException e) {
+						ok = false;
+					}
+				}
+				if (ok)
+					HttpUtilities.sendResponse(exchange, MAPPER.writeValueAsString(journal.
+						query(group, since, limit)));
+				else
+					// Bad request!
+					HttpUtilities.sendStatus(exchange, 400);
+			} else
+				// Bad request!
+				HttpUtilities.sendStatus(exchange, 400);
 		}
 	}
 
 	/**
-	 * Handles logins (stub class) and adds them to the ping list.
+	 * Handles logins (stub class) and adds them to the ping list. Any user who is a member of
+	 * at least one group may log in, and receives pings from all of their groups.
 	 */
 	private final class LoginHandler implements HttpHandler {
-		/**
-		 * Dummy password for testing.
-		 */
-		private static final String PASSWORD = "password";
-
 		public void handle(HttpExchange exchange) throws IOException {
 			if ("POST".equals(exchange.getRequestMethod())) {
 				// Obtain POST data if the method is POST
@@ -395,21 +2288,45 @@ public final class PingBroadcastServer implements Runnable {
 						break;
 					}
 				}
-				// If username and password are valid
-				if (PASSWORD.equals(password) && username != null && topicMap.containsKey(
-						username) && deviceID != null && !username.equals("all")) {
-					final Collection<String> groups = new LinkedList<>();
-					// TODO Subscribe to group matching username
-					groups.add(username);
-					groups.add("all");
-					final UserSession session = new UserSession(deviceID, groups);
-					token = session.getChallengeToken();
-					synchronized (topicMap) {
-						users.put(username, session);
+				boolean valid = false;
+				// Longer names would not fit in the session table
+				if (username != null && password != null && deviceID != null && username.
+						length() <= SessionTable.MAX_LENGTH && deviceID.length() <=
+						SessionTable.MAX_LENGTH)
+					try {
+						valid = auth.authenticate(username, password);
+					} catch (IOException e) {
+						LOGGER.log(Level.WARNING, "Unable to authenticate \"" + username + "\"",
+							e);
+					}
+				// Groups are looked up outside of the groups lock, usually from the cache
+				final List<String> names = valid ? authCache.get(username) : null;
+				if (names != null) {
+					UserSession session = null;
+					final ServerEvents.GroupsLockEvent lockEvent = ServerEvents.lockGroups(
+						"login");
+					try {
+						synchronized (groups) {
+							lockEvent.acquired();
+							// Only members of at least one group may log in
+							final int[] groupIDs = groups.resolve(names);
+							if (groupIDs.length > 0) {
+								session = users.login(username, deviceID, groupIDs);
+								token = session.getChallengeToken();
+								resumedDevices.remove(deviceID);
+								// Devices connected with the old session follow the new groups
+								gateway.regroup(username, groupIDs);
+								recordPlanChange(username);
+							}
+						}
+					} finally {
+						lockEvent.released();
+					}
+					if (session != null) {
+						LOGGER.log(Level.FINE, "User \"" + username + "\" logged in");
+						// Get the user integrated on a separate task
+						submitTask(new UpdateUserTask(session));
 					}
-					LOGGER.log(Level.FINE, "User \"" + username + "\" logged in");
-					// Get the user integrated on a separate task
-					threadPool.submit(new UpdateUserTask(session));
 				}
 				HttpUtilities.sendResponse(exchange, MAPPER.writeValueAsString(new
 					LoginResponse(token)));
@@ -420,92 +2337,456 @@ public final class PingBroadcastServer implements Runnable {
 	}
 
 	/**
-	 * Handles ping commands and actually sends out pings!
+	 * Reports server metrics as JSON.
+	 */
+	private final class MetricsHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			final Map<String, Object> metrics = new LinkedHashMap<>(16);
+			metrics.put("admission", admission.getMetrics());
+			metrics.put("auth", authCache.getMetrics());
+			metrics.put("deadTokens", deadTokens.getMetrics());
+			metrics.put("gateway", gateway.getMetrics());
+			metrics.put("idempotencyKeys", idempotency.size());
+			final Map<String, AdaptiveLimiter.LimiterMetrics> limits = new LinkedHashMap<>(4);
+			limits.put("fcm", fcmLimiter.getMetrics());
+			limits.put("iid", iidLimiter.getMetrics());
+			metrics.put("limits", limits);
+			metrics.put("quotaHolds", quota.getMetrics());
+			metrics.put("outbox", outbox.size());
+			metrics.put("pendingPings", pingLog.size());
+			metrics.put("pingTexts", pingTexts.size());
+			metrics.put("rotation", pacer.getProgress());
+			metrics.put("sessionBytes", users.getMemoryUsed());
+			metrics.put("stream", stream.getMetrics());
+			metrics.put("topicCodes", topicCodes.size());
+			metrics.put("users", users.size());
+			HttpUtilities.sendResponse(exchange, MAPPER.writeValueAsString(metrics));
+		}
+	}
+
+	/**
+	 * Handles ping commands and actually sends out pings! Each ping is traced, and the trace
+	 * ID is returned in the X-Trace-Id header.
 	 */
 	private final class PingHandler implements HttpHandler {
 		public void handle(HttpExchange exchange) throws IOException {
 			if ("GET".equals(exchange.getRequestMethod())) {
-				String response = "invalid", group = null, pingText = null;
-				// The URL should be 7-bit safe anyways
-				final List<NameValuePair> getData = URLEncodedUtils.parse(exchange.
-					getRequestURI().getQuery(), Charset.forName(HttpUtilities.ENCODING));
-				for (final NameValuePair param : getData) {
-					final String key = param.getName(), value = param.getValue();
-					// Extract parameters of the ping
-					switch (key) {
-					case "body":
-						pingText = value;
-						break;
-					case "group":
-						group = value;
-						break;
-					default:
-						break;
-					}
+				final Tracer.Trace trace = tracer.start("ping");
+				try {
+					handlePing(exchange, trace);
+				} finally {
+					trace.finish();
+				}
+			} else
+				// Bad request!
+				exchange.sendResponseHeaders(400, 0);
+		}
+		/**
+		 * Parses and sends a ping, recording each stage in the trace.
+		 *
+		 * @param exchange the HTTP request
+		 * @param trace the trace of this request
+		 * @throws IOException if an I/O error occurs
+		 */
+		private void handlePing(final HttpExchange exchange, final Tracer.Trace trace)
+				throws IOException {
+			String response = "invalid", group = null, pingText = null;
+			final Tracer.Span parseSpan = trace.span("http.parse");
+			final List<NameValuePair> getData = HttpUtilities.getQueryParams(exchange);
+			for (final NameValuePair param : getData) {
+				final String key = param.getName(), value = param.getValue();
+				// Extract parameters of the ping
+				switch (key) {
+				case "body":
+					pingText = value;
+					break;
+				case "group":
+					group = value;
+					break;
+				default:
+					break;
 				}
-				if (pingText != null && pingText.length() > 1) {
-					final boolean ok;
-					// Default group to "all"
-					if (group == null || group.length() < 1)
-						group = "all";
-					synchronized (topicMap) {
-						ok = topicMap.containsKey(group);
+			}
+			parseSpan.finish();
+			if (pingText != null && pingText.length() > 1) {
+				// Default group to "all"
+				if (group == null || group.length() < 1)
+					group = "all";
+				if (groups.snapshot().get(group) != null)
+					// Valid group, ping it out
+					try {
+						// Logged pings which could not be sent yet will be retried
+						response = sendPing(pingText, group, trace) ? "sent" : "queued";
+					} catch (PingFailedException e) {
+						// Ping failed, tell the user
+						response = "failed: " + e.getMessage();
 					}
-					if (ok)
-						// Valid group, ping it out
-						try {
-							sendPing(pingText, group);
-							response = "sent";
-						} catch (PingFailedException e) {
-							// Ping failed, tell the user
-							response = "failed: " + e.getMessage();
-						}
+				else
+					// Group name not found
+					response = "badGroup";
+			}
+			trace.tag("group", group).tag("response", response);
+			final Tracer.Span writeSpan = trace.span("response.write");
+			exchange.getResponseHeaders().add("X-Trace-Id", trace.getTraceID());
+			HttpUtilities.sendResponse(exchange, MAPPER.writeValueAsString(new StatusResponse(
+				response)));
+			writeSpan.finish();
+		}
+	}
+
+	/**
+	 * Serves the full text of a ping sent as a preview, from /ping/{id}?key={key} with the key
+	 * from the ping payload. The text never changes, so responses carry an entity tag and may
+	 * be cached indefinitely. Pings which are unknown, evicted or requested with the wrong key
+	 * are not found.
+	 */
+	private final class PingTextHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			if ("GET".equals(exchange.getRequestMethod())) {
+				final String path = exchange.getRequestURI().getPath();
+				String key = null;
+				PingTextCache.Entry entry = null;
+				for (final NameValuePair param : HttpUtilities.getQueryParams(exchange))
+					if (param.getName().equals("key"))
+						key = param.getValue();
+				try {
+					entry = pingTexts.get(Long.parseLong(path.substring(path.lastIndexOf('/') +
+						1)));
+				} catch (NumberFormatException e) {
+					// Not a ping ID
+				}
+				if (entry != null && entry.matches(key)) {
+					final String etag = entry.getETag(), match = exchange.getRequestHeaders().
+						getFirst("If-None-Match");
+					final Headers headers = exchange.getResponseHeaders();
+					headers.add("Cache-Control", "private, max-age=" + PING_TEXT_MAX_AGE +
+						", immutable");
+					headers.add("ETag", etag);
+					if (match != null && match.contains(etag))
+						sendEmptyResponse(exchange, 304);
 					else
-						// Group name not found
-						response = "badGroup";
+						HttpUtilities.sendResponse(exchange, entry.getBody());
+				} else
+					sendEmptyResponse(exchange, 404);
+			} else
+				// Bad request!
+				sendEmptyResponse(exchange, 400);
+		}
+		/**
+		 * Sends a response without a body, keeping the connection open for the next request.
+		 *
+		 * @param exchange the HTTP request
+		 * @param code the HTTP status code
+		 * @throws IOException if an I/O error occurs
+		 */
+		private void sendEmptyResponse(final HttpExchange exchange, final int code)
+				throws IOException {
+			// The connection is only reused if the request was read to the end
+			exchange.getRequestBody().close();
+			exchange.sendResponseHeaders(code, -1);
+		}
+	}
+
+	/**
+	 * Controls Flight Recorder recordings. With action=start, starts an on-demand recording
+	 * using the JFR settings named by the optional settings parameter ("profile" if omitted);
+	 * action=dump dumps the on-demand recording if running, otherwise the continuous one; and
+	 * action=stop stops and dumps the on-demand recording. Responds with the file written.
+	 */
+	private final class RecordingHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			String action = null, settings = "profile", response;
+			final List<NameValuePair> getData = HttpUtilities.getQueryParams(exchange);
+			for (final NameValuePair param : getData)
+				if (param.getName().equals("action"))
+					action = param.getValue();
+				else if (param.getName().equals("settings") && param.getValue() != null)
+					settings = param.getValue();
+			try {
+				if ("start".equals(action))
+					response = profiler.start(settings) ? "started" : "alreadyRunning";
+				else if ("dump".equals(action))
+					response = profiler.dump().getPath();
+				else if ("stop".equals(action))
+					response = profiler.stop().getPath();
+				else
+					response = "invalid";
+			} catch (IOException e) {
+				LOGGER.log(Level.INFO, "Recording " + action + " failed", e);
+				response = "failed: " + e.getMessage();
+			}
+			HttpUtilities.sendResponse(exchange, MAPPER.writeValueAsString(new StatusResponse(
+				response)));
+		}
+	}
+
+	/**
+	 * Controls the paced rotation in progress. With action=pause, stops sending subscription
+	 * changes; action=resume spreads the rest over the time left before the deadline; and
+	 * action=abort drops the changes not sent yet, so the devices they would have moved
+	 * follow on their next login or the next rotation. Responds with the rotation progress
+	 * (the default action is status).
+	 */
+	private final class RotationHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			String action = "status";
+			final List<NameValuePair> getData = HttpUtilities.getQueryParams(exchange);
+			for (final NameValuePair param : getData)
+				if (param.getName().equals("action") && param.getValue() != null)
+					action = param.getValue();
+			final Object response;
+			if ("pause".equals(action)) {
+				pacer.pause();
+				response = pacer.getProgress();
+			} else if ("resume".equals(action)) {
+				pacer.resume();
+				response = pacer.getProgress();
+			} else if ("abort".equals(action)) {
+				synchronized (rotationLock) {
+					// Devices not moved yet still need the previous topics
+					moveAborted = true;
 				}
-				HttpUtilities.sendResponse(exchange, MAPPER.writeValueAsString(new
-					StatusResponse(response)));
+				for (final Runnable task : pacer.abort())
+					outbox.complete(((OutboxTask)task).outboxID);
+				response = pacer.getProgress();
+			} else if ("status".equals(action))
+				response = pacer.getProgress();
+			else
+				response = new StatusResponse("invalid");
+			HttpUtilities.sendResponse(exchange, MAPPER.writeValueAsString(response));
+		}
+	}
+
+	/**
+	 * Streams sent pings as Server-Sent Events, from /stream?groups={a,b} or to all groups if
+	 * none are specified. A client which reconnects with Last-Event-ID first receives the
+	 * recent pings it missed. Clients are refused with 503 once the stream is full.
+	 */
+	private final class StreamHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			if ("GET".equals(exchange.getRequestMethod())) {
+				Set<String> names = null;
+				long lastID = 0L;
+				boolean ok = true;
+				final List<NameValuePair> getData = HttpUtilities.getQueryParams(exchange);
+				for (final NameValuePair param : getData) {
+					final String value = param.getValue();
+					if (param.getName().equals("groups") && value != null && value.length() > 0)
+						names = new HashSet<>(Arrays.asList(value.split(",")));
+				}
+				final String lastEvent = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+				if (lastEvent != null)
+					try {
+						lastID = Long.parseLong(lastEvent.trim());
+					} catch (NumberFormatException e) {
+						ok = false;
+					}
+				if (ok && names != null) {
+					final GroupSnapshot snapshot = groups.snapshot();
+					for (final String name : names)
+						ok &= snapshot.get(name) != null;
+				}
+				if (!ok)
+					// Bad request!
+					HttpUtilities.sendStatus(exchange, 400);
+				else if (!stream.subscribe(exchange, names, lastID))
+					// Too many clients
+					HttpUtilities.sendStatus(exchange, 503);
 			} else
 				// Bad request!
-				exchange.sendResponseHeaders(400, 0);
+				HttpUtilities.sendStatus(exchange, 400);
+		}
+	}
+
+	/**
+	 * A task which delivers a logged ping, used for batches, for retries, for pings which
+	 * arrived while FCM traffic was held, and for pings resumed from the ping log on startup.
+	 * Retries continue the trace of the original request. Unlike requests, these tasks wait
+	 * out FCM holds and the FCM concurrency limit.
+	 */
+	private final class PingDeliveryTask extends RetriableTask {
+		/**
+		 * The ping to deliver.
+		 */
+		private final PingLog.Entry ping;
+		/**
+		 * Whether the ping must first be published to the push gateway and streams.
+		 */
+		private final boolean publish;
+		/**
+		 * The trace ID of the original request, or null if it did not survive a restart.
+		 */
+		private final String traceID;
+
+		public PingDeliveryTask(final PingLog.Entry ping, final int retries,
+								final boolean publish, final String traceID) {
+			super(retries);
+			if (ping == null)
+				throw new IllegalArgumentException("ping");
+			this.ping = ping;
+			this.publish = publish;
+			this.traceID = traceID;
+		}
+		public void run() {
+			final Tracer.Trace trace = tracer.start((traceID == null) ? "ping.resume" :
+				"ping.retry", traceID);
+			try {
+				if (publish)
+					publishPing(ping, trace);
+				deliverPing(ping, getRetries(), true, trace);
+			} catch (PingFailedException e) {
+				LOGGER.log(Level.WARNING, "Unable to deliver " + ping + " (trace " + trace.
+					getTraceID() + "): " + e.getMessage());
+			} finally {
+				trace.finish();
+			}
+		}
+	}
+
+	/**
+	 * A subscription task which is recorded in the outbox before it runs, and marked done once
+	 * it succeeds or runs out of retries. Tasks still pending when the server stops are resumed
+	 * on the next start.
+	 */
+	private abstract class OutboxTask extends RetriableTask {
+		/**
+		 * The outbox ID of this task, shared by all of its retries.
+		 */
+		protected long outboxID;
+		/**
+		 * Whether the rotation pacer released this task and waits for it to finish.
+		 */
+		protected boolean paced;
+
+		protected OutboxTask(final int retries, final long outboxID) {
+			super(retries);
+			this.outboxID = outboxID;
+			paced = false;
+		}
+		/**
+		 * Marks this task done if it succeeded, failed permanently or has no retries left,
+		 * otherwise schedules a retry after the interval, or after any hold requested by the
+		 * Instance ID API if that is longer.
+		 *
+		 * @param ok whether the task succeeded
+		 * @param retryable whether a failure could succeed if retried
+		 */
+		protected void finish(final boolean ok, final boolean retryable) {
+			final int n = getRetries();
+			if (ok || !retryable || n >= RETRY_COUNT) {
+				if (!ok)
+					LOGGER.log(Level.WARNING, "Giving up after " + n + " retries: " + this);
+				outbox.complete(outboxID);
+				if (paced)
+					pacer.finished();
+			} else
+				try {
+					threadPool.schedule(retry(), Math.max(RETRY_INTERVAL * n, iidLane.
+						getDelay()), TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException e) {
+					// Shutting down, the outbox will resume it on the next start
+					LOGGER.log(Level.INFO, "Deferring retry until restart: " + this);
+				}
 		}
+		/**
+		 * Creates the next retry of this task.
+		 *
+		 * @return a copy of this task with the retry count incremented
+		 */
+		protected abstract OutboxTask retry();
+		/**
+		 * Describes this task for the outbox.
+		 *
+		 * @return the outbox entry which can recreate this task
+		 */
+		protected abstract SubscriptionOutbox.Entry toEntry();
 	}
 
 	/**
 	 * A task which unsubscribes the user from all of its current topics, then resubscribes it
-	 * to the appropriate topics that it owns.
+	 * to the appropriate topics that it owns. When resumed from the outbox there is no live
+	 * session, so the device is only unsubscribed from the topics which are not the current
+	 * topics of its stored groups. If the device logs in again first, the update of the new
+	 * session takes over and the resumed task does nothing more.
 	 */
-	private final class UpdateUserTask extends RetriableTask {
+	private final class UpdateUserTask extends OutboxTask {
+		/**
+		 * The device ID to update.
+		 */
+		private final String deviceID;
+		/**
+		 * The IDs of the groups to which the user belongs.
+		 */
+		private final int[] groupIDs;
 		/**
-		 * The client to update.
+		 * The client to update, or null if it did not survive a restart.
 		 */
 		private final UserSession session;
 
 		public UpdateUserTask(final UserSession session) {
-			super(0);
-			if (session == null)
-				throw new IllegalArgumentException("session");
+			this(0, 0L, session.getDeviceID(), session.getGroups(), session);
+		}
+		public UpdateUserTask(final long outboxID, final SubscriptionOutbox.Entry entry) {
+			this(0, outboxID, entry.getDeviceIDs().get(0), entry.getGroups(), null);
+		}
+		private UpdateUserTask(final int retries, final long outboxID, final String deviceID,
+							   final int[] groupIDs, final UserSession session) {
+			super(retries, outboxID);
+			if (deviceID == null)
+				throw new IllegalArgumentException("deviceID");
+			this.deviceID = deviceID;
+			this.groupIDs = groupIDs;
 			this.session = session;
 		}
-		private UpdateUserTask(final UpdateUserTask original) {
-			super(original.getRetries() + 1);
-			session = original.session;
+		/**
+		 * Checks whether the device of a resumed task logged in again, after which the update
+		 * of its new session sets its topics.
+		 *
+		 * @return true if this task must no longer change the device
+		 */
+		private boolean isTakenOver() {
+			return session == null && !resumedDevices.contains(deviceID);
+		}
+		protected OutboxTask retry() {
+			return new UpdateUserTask(getRetries() + 1, outboxID, deviceID, groupIDs, session);
 		}
 		public void run() {
-			boolean ok = false;
-			final Collection<UserSession> sessions = Collections.singletonList(session);
-			final Set<String> shouldHave = getTopicCodes(session);
-			// Get list of current subscriptions
+			boolean ok = false, retryable = true;
+			final Collection<String> devices = Collections.singletonList(deviceID);
+			final Map<String, GroupTopic> shouldHave;
+			final Tracer.Trace trace = tracer.start("user.update").tag("retries", getRetries()).
+				tag("resumed", session == null);
 			try {
-				final Collection<String> topics = manager.listTopics(session.getDeviceID());
-				if (topics != null) {
+				shouldHave = topicCodes.get(groups.snapshot(), groupIDs);
+				Collection<String> topics = null;
+				if (!isTakenOver()) {
+					// Get list of current subscriptions
+					final Tracer.Span listSpan = trace.span("iid.list");
+					try {
+						topics = manager.listTopics(deviceID);
+					} finally {
+						listSpan.finish();
+					}
+				}
+				if (isTakenOver()) {
+					// Retries too, or they would undo the subscriptions of the new session
+					LOGGER.log(Level.FINE, "Skipping resumed update of device \"" + deviceID +
+						"\", which logged in again");
+					ok = true;
+				} else if (topics == null && deadTokens.contains(deviceID)) {
+					// Uninstalled, the session will be evicted and there is nothing to change
+					LOGGER.log(Level.FINE, "Skipping update of dead device \"" + deviceID +
+						"\"");
+					ok = true;
+				} else if (topics != null) {
 					// If null, then request failed and needs to be retried (could be empty)
+					// Without a session, only the topics it should not have are changed
 					final Collection<String> toRemove = new LinkedList<>(), toAdd =
-						new HashSet<>(shouldHave);
+						new HashSet<>((session == null) ? Collections.<String>emptySet() :
+						shouldHave.keySet());
 					LOGGER.log(Level.FINE, "Current topics: " + topics.toString());
 					for (final String topic : topics) {
-						if (shouldHave.contains(topic))
+						if (shouldHave.containsKey(topic))
 							// If topic should exist and is already subscribed, do not resub
 							toAdd.remove(topic);
 						else
@@ -518,21 +2799,52 @@ public final class PingBroadcastServer implements Runnable {
 					// Remove from old groups - if some of these fail, then the task as a whole
 					// will be retried, and the ones which did succeed will be reflected in the
 					// new session list to avoid redoing work
-					for (final String topic : toRemove)
-						ok = ok && manager.removeClientsFromTopic(sessions, topic);
+					final Iterator<String> remove = toRemove.iterator(), add = toAdd.
+						iterator();
+					while (ok && remove.hasNext() && !isTakenOver()) {
+						final Tracer.Span span = trace.span("iid.remove");
+						final HttpResult result;
+						try {
+							result = manager.removeClientsFromTopic(devices, remove.next());
+							span.tag("code", result.getCode());
+						} finally {
+							span.finish();
+						}
+						ok = result.isOK();
+						retryable = result.isRetryable();
+					}
 					// Add to new ones
-					for (final String topic : toAdd)
-						ok = ok && manager.addClientsToTopic(sessions, topic);
+					while (ok && add.hasNext()) {
+						final Tracer.Span span = trace.span("iid.add");
+						final HttpResult result;
+						try {
+							result = manager.addClientsToTopic(devices, add.next());
+							span.tag("code", result.getCode());
+						} finally {
+							span.finish();
+						}
+						ok = result.isOK();
+						retryable = result.isRetryable();
+					}
+					// A device reported dead meanwhile was skipped, so is not subscribed
+					if (ok && session != null && !deadTokens.contains(deviceID))
+						// Record the confirmed subscriptions for delta rotation
+						for (final GroupTopic topic : shouldHave.values())
+							session.confirmSubscription(topic.getID(), topic.getEpoch());
 				}
 			} catch (IOException e) {
-				LOGGER.log(Level.INFO, "Error updating user \"" + session + "\" (retrying)",
+				LOGGER.log(Level.INFO, "Error updating device \"" + deviceID + "\" (retrying)",
 					e);
+			} finally {
+				trace.tag("ok", ok).finish();
 			}
-			final int n = getRetries();
-			// Retry if possible after the interval
-			if (!ok && n < RETRY_COUNT)
-				threadPool.schedule(new UpdateUserTask(this), RETRY_INTERVAL * n,
-					TimeUnit.MILLISECONDS);
+			finish(ok, retryable);
+		}
+		protected SubscriptionOutbox.Entry toEntry() {
+			return new SubscriptionOutbox.Entry(deviceID, groupIDs);
+		}
+		public String toString() {
+			return "Update of device \"" + deviceID + "\"";
 		}
 	}
 
@@ -540,34 +2852,89 @@ public final class PingBroadcastServer implements Runnable {
 	 * A task which adds or removes clients to/from topics. Intended to be run on the thread
 	 * pool, and schedules up to the specified retry limit if an error occurs.
 	 */
-	private static abstract class ClientChangeTask extends RetriableTask {
+	private abstract class ClientChangeTask extends OutboxTask {
+		/**
+		 * The device IDs to be changed.
+		 */
+		protected final List<String> deviceIDs;
 		/**
-		 * The device IDs to be added.
+		 * The generation of each session in records.
 		 */
-		protected final Collection<UserSession> sessions;
+		protected final int[] generations;
 		/**
-		 * The topic to which the sessions will be (un)subscribed.
+		 * The records of the sessions whose confirmed subscriptions are updated on success, in
+		 * the order of their device IDs. Empty if the task was resumed from the outbox.
 		 */
-		protected final String topic;
+		protected final int[] records;
+		/**
+		 * The group topic to which the sessions will be (un)subscribed.
+		 */
+		protected final GroupTopic topic;
 
 		/**
 		 * Creates a new client change task.
 		 *
 		 * @param sessions the clients to change
-		 * @param topic the target topic
+		 * @param topic the target group topic
 		 */
-		protected ClientChangeTask(final Collection<UserSession> sessions, final String topic) {
-			super(0);
+		protected ClientChangeTask(final Collection<UserSession> sessions,
+								   final GroupTopic topic) {
+			super(0, 0L);
 			if (sessions == null)
 				throw new IllegalArgumentException("sessions");
 			if (topic == null)
 				throw new IllegalArgumentException("topic");
-			this.sessions = sessions;
+			final int n = sessions.size();
+			deviceIDs = new ArrayList<>(n);
+			generations = new int[n];
+			records = new int[n];
+			for (final UserSession session : sessions) {
+				generations[deviceIDs.size()] = session.getGeneration();
+				records[deviceIDs.size()] = session.getRecord();
+				deviceIDs.add(session.getDeviceID());
+			}
+			this.topic = topic;
+		}
+		/**
+		 * Creates a new client change task for sessions of a rotation plan.
+		 *
+		 * @param records the record numbers of the sessions
+		 * @param generations the generation of each session
+		 * @param deviceIDs the device ID of each session
+		 * @param topic the target group topic
+		 */
+		protected ClientChangeTask(final int[] records, final int[] generations,
+								   final List<String> deviceIDs, final GroupTopic topic) {
+			super(0, 0L);
+			if (records == null || generations == null || deviceIDs == null || records.
+					length != generations.length || records.length != deviceIDs.size())
+				throw new IllegalArgumentException("records");
+			if (topic == null)
+				throw new IllegalArgumentException("topic");
+			this.deviceIDs = deviceIDs;
+			this.generations = generations;
+			this.records = records;
 			this.topic = topic;
 		}
+		/**
+		 * Creates a client change task resumed from the outbox.
+		 *
+		 * @param outboxID the outbox ID of the task
+		 * @param entry the outbox entry
+		 */
+		protected ClientChangeTask(final long outboxID, final SubscriptionOutbox.Entry entry) {
+			super(0, outboxID);
+			deviceIDs = entry.getDeviceIDs();
+			generations = new int[0];
+			records = new int[0];
+			topic = entry.getTopic();
+		}
 		protected ClientChangeTask(final ClientChangeTask original) {
-			super(original.getRetries() + 1);
-			sessions = original.sessions;
+			super(original.getRetries() + 1, original.outboxID);
+			paced = original.paced;
+			deviceIDs = original.deviceIDs;
+			generations = original.generations;
+			records = original.records;
 			topic = original.topic;
 		}
 	}
@@ -577,26 +2944,64 @@ public final class PingBroadcastServer implements Runnable {
 	 */
 	private final class AddClientsToTopicTask extends ClientChangeTask {
 		public AddClientsToTopicTask(final Collection<UserSession> sessions,
-									 final String topic) {
+									 final GroupTopic topic) {
 			super(sessions, topic);
 		}
+		public AddClientsToTopicTask(final int[] records, final int[] generations,
+									 final List<String> deviceIDs, final GroupTopic topic) {
+			super(records, generations, deviceIDs, topic);
+		}
+		public AddClientsToTopicTask(final long outboxID, final SubscriptionOutbox.Entry entry) {
+			super(outboxID, entry);
+		}
 		private AddClientsToTopicTask(final ClientChangeTask original) {
 			super(original);
 		}
+		protected OutboxTask retry() {
+			return new AddClientsToTopicTask(this);
+		}
+		/**
+		 * Lists the devices to add, leaving out the sessions which left the group since the
+		 * task was created.
+		 *
+		 * @return the device IDs to add
+		 */
+		private Collection<String> getMembers() {
+			Collection<String> ret = deviceIDs;
+			if (records.length > 0) {
+				final int id = topic.getID();
+				ret = new ArrayList<>(records.length);
+				for (int i = 0; i < records.length; i++)
+					if (users.isMember(records[i], generations[i], id))
+						ret.add(deviceIDs.get(i));
+			}
+			return ret;
+		}
 		public void run() {
-			boolean ok = false;
+			boolean ok = false, retryable = true;
 			try {
-				// Perform the request
-				ok = manager.addClientsToTopic(sessions, topic);
+				// Paced adds may run long after a member left, which must not resubscribe it
+				final HttpResult result = manager.addClientsToTopic(getMembers(), topic.
+					getTopic());
+				ok = result.isOK();
+				retryable = result.isRetryable();
+				if (ok)
+					for (int i = 0; i < records.length; i++)
+						// Devices known to be dead were skipped, and remain unsubscribed
+						if (!deadTokens.contains(deviceIDs.get(i)))
+							users.confirmSubscription(records[i], generations[i], topic.
+								getID(), topic.getEpoch());
 			} catch (IOException e) {
-				LOGGER.log(Level.INFO, "Error when adding users to topic \"" + topic +
-					"\" (retrying)", e);
+				LOGGER.log(Level.INFO, "Error when adding users to topic \"" +
+					topic.getTopic() + "\" (retrying)", e);
 			}
-			final int n = getRetries();
-			// Retry if possible after the interval
-			if (!ok && getRetries() < RETRY_COUNT)
-				threadPool.schedule(new AddClientsToTopicTask(this), RETRY_INTERVAL * n,
-					TimeUnit.MILLISECONDS);
+			finish(ok, retryable);
+		}
+		protected SubscriptionOutbox.Entry toEntry() {
+			return new SubscriptionOutbox.Entry(SubscriptionOutbox.TYPE_ADD, topic, deviceIDs);
+		}
+		public String toString() {
+			return "Add of " + deviceIDs.size() + " devices to " + topic;
 		}
 	}
 
@@ -605,26 +3010,48 @@ public final class PingBroadcastServer implements Runnable {
 	 */
 	private final class RemoveClientsFromTopicTask extends ClientChangeTask {
 		public RemoveClientsFromTopicTask(final Collection<UserSession> sessions,
-										  final String topic) {
+										  final GroupTopic topic) {
 			super(sessions, topic);
 		}
+		public RemoveClientsFromTopicTask(final int[] records, final int[] generations,
+										  final List<String> deviceIDs,
+										  final GroupTopic topic) {
+			super(records, generations, deviceIDs, topic);
+		}
+		public RemoveClientsFromTopicTask(final long outboxID,
+										  final SubscriptionOutbox.Entry entry) {
+			super(outboxID, entry);
+		}
 		private RemoveClientsFromTopicTask(final ClientChangeTask original) {
 			super(original);
 		}
+		protected OutboxTask retry() {
+			return new RemoveClientsFromTopicTask(this);
+		}
 		public void run() {
-			boolean ok = false;
+			boolean ok = false, retryable = true;
 			try {
 				// Perform the request
-				ok = manager.removeClientsFromTopic(sessions, topic);
+				final HttpResult result = manager.removeClientsFromTopic(deviceIDs, topic.
+					getTopic());
+				ok = result.isOK();
+				retryable = result.isRetryable();
+				if (ok)
+					for (int i = 0; i < records.length; i++)
+						users.clearSubscription(records[i], generations[i], topic.getID(),
+							topic.getEpoch());
 			} catch (IOException e) {
-				LOGGER.log(Level.INFO, "Error when removing users from topic \"" + topic +
-					"\" (retrying)", e);
+				LOGGER.log(Level.INFO, "Error when removing users from topic \"" +
+					topic.getTopic() + "\" (retrying)", e);
 			}
-			final int n = getRetries();
-			// Retry if possible after the interval
-			if (!ok && n < RETRY_COUNT)
-				threadPool.schedule(new RemoveClientsFromTopicTask(this), RETRY_INTERVAL * n,
-					TimeUnit.MILLISECONDS);
+			finish(ok, retryable);
+		}
+		protected SubscriptionOutbox.Entry toEntry() {
+			return new SubscriptionOutbox.Entry(SubscriptionOutbox.TYPE_REMOVE, topic,
+				deviceIDs);
+		}
+		public String toString() {
+			return "Removal of " + deviceIDs.size() + " devices from " + topic;
 		}
 	}
 }
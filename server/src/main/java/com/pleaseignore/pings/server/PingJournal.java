@@ -0,0 +1,645 @@
+package com.pleaseignore.pings.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only history of every ping sent, stored in memory-mapped segment files which are
+ * rolled when full and deleted when too old or when the journal grows too large. A compact
+ * in-memory index of (time, position) pairs for each group allows history queries to find
+ * their starting point by binary search rather than scanning the journal.
+ *
+ * Appends are handed off to a dedicated writer thread so that recording a ping never delays
+ * its dispatch. Each record ends with a CRC-32 of the rest of it, so that recovery stops at a
+ * record torn by a crash instead of indexing garbage.
+ */
+public final class PingJournal {
+	/**
+	 * The character set used for strings in the journal.
+	 */
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	/**
+	 * The length of the checksum which ends each record, absent in version 1 segments.
+	 */
+	private static final int CRC_LEN = 4;
+	/**
+	 * The length of the segment header (magic number, version, creation time).
+	 */
+	private static final int HEADER_LEN = 16;
+	/**
+	 * Logs any unusual errors which occur in this class (most are passed upstream).
+	 */
+	private static final Logger LOGGER = Logger.getLogger(PingJournal.class.getName());
+	/**
+	 * Identifies a valid journal segment ("PING").
+	 */
+	private static final int MAGIC = 0x50494E47;
+	/**
+	 * The fixed overhead of each record (length, ID, time, three string lengths and the
+	 * checksum).
+	 */
+	private static final int RECORD_OVERHEAD = 4 + 8 + 8 + 2 + 2 + 4 + CRC_LEN;
+	/**
+	 * The file name suffix of journal segments.
+	 */
+	private static final String SEGMENT_SUFFIX = ".journal";
+	/**
+	 * The journal format version. Version 1 segments, whose records have no checksum, are
+	 * still read back but never appended to.
+	 */
+	private static final int VERSION = 2;
+
+	/**
+	 * Encodes a segment number and offset into a single index position.
+	 *
+	 * @param segment the segment number
+	 * @param offset the offset within the segment
+	 * @return the index position
+	 */
+	private static long position(final int segment, final int offset) {
+		return ((long)segment << 32) | (offset & 0xFFFFFFFFL);
+	}
+	/**
+	 * Converts a string to bytes, truncating it to the specified maximum length. Text is
+	 * only cut between characters, so that what is kept always decodes.
+	 *
+	 * @param text the text to convert
+	 * @param maxLen the maximum length in bytes
+	 * @return the encoded text
+	 */
+	private static byte[] toBytes(final String text, final int maxLen) {
+		byte[] data = text.getBytes(CHARSET);
+		if (data.length > maxLen) {
+			// The encoder stops before the first character which does not fit whole
+			final ByteBuffer out = ByteBuffer.allocate(maxLen);
+			CHARSET.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).
+				onUnmappableCharacter(CodingErrorAction.REPLACE).encode(CharBuffer.wrap(text),
+				out, true);
+			data = Arrays.copyOf(out.array(), out.position());
+		}
+		return data;
+	}
+
+	/**
+	 * Set once the journal is closed, after which records are dropped. Guarded by the journal
+	 * lock.
+	 */
+	private boolean closed;
+	/**
+	 * The directory containing the segments.
+	 */
+	private final File directory;
+	/**
+	 * Indexes all pings regardless of group.
+	 */
+	private final TimeIndex indexAll;
+	/**
+	 * Indexes the pings sent to each group.
+	 */
+	private final Map<String, TimeIndex> indexByGroup;
+	/**
+	 * The time of the last record written, used to keep the index time-ordered even if the
+	 * clock steps backwards.
+	 */
+	private long lastTime;
+	/**
+	 * The maximum age of a closed segment in milliseconds.
+	 */
+	private final long maxAge;
+	/**
+	 * The maximum total size of all segments in bytes.
+	 */
+	private final long maxSize;
+	/**
+	 * The size of each new segment in bytes.
+	 */
+	private final int segmentSize;
+	/**
+	 * The open segments, in order from oldest to newest.
+	 */
+	private final NavigableMap<Integer, Segment> segments;
+	/**
+	 * Writes records in the background.
+	 */
+	private final ExecutorService writer;
+
+	/**
+	 * Creates a new ping journal. No I/O is performed until open() is called.
+	 *
+	 * @param directory the directory containing the journal segments
+	 * @param segmentSize the size of each segment in bytes
+	 * @param maxAge the maximum age of a closed segment in milliseconds
+	 * @param maxSize the maximum total size of the journal in bytes
+	 */
+	public PingJournal(final File directory, final int segmentSize, final long maxAge,
+					   final long maxSize) {
+		if (directory == null)
+			throw new IllegalArgumentException("directory");
+		if (segmentSize <= HEADER_LEN + RECORD_OVERHEAD)
+			throw new IllegalArgumentException("segmentSize");
+		closed = false;
+		this.directory = directory;
+		this.maxAge = maxAge;
+		this.maxSize = maxSize;
+		this.segmentSize = segmentSize;
+		indexAll = new TimeIndex();
+		indexByGroup = new HashMap<>(32);
+		lastTime = 0L;
+		segments = new TreeMap<>();
+		writer = Executors.newSingleThreadExecutor();
+	}
+	/**
+	 * Appends a record to the active segment, rolling to a new segment if it is full. Must be
+	 * called with the journal locked.
+	 *
+	 * @param id the ping ID
+	 * @param time the time the ping was sent
+	 * @param group the group which was pinged
+	 * @param text the ping text
+	 * @param result the FCM result
+	 * @throws IOException if a new segment cannot be created
+	 */
+	private void append(final long id, final long time, final String group, final String text,
+						final String result) throws IOException {
+		final byte[] groupData = toBytes(group, Short.MAX_VALUE), resultData = toBytes(result,
+			Short.MAX_VALUE), textData = toBytes(text, Math.max(0, segmentSize -
+			HEADER_LEN - RECORD_OVERHEAD - groupData.length - resultData.length));
+		final int len = RECORD_OVERHEAD + groupData.length + resultData.length + textData.length;
+		Segment segment = segments.isEmpty() ? null : segments.lastEntry().getValue();
+		if (segment == null || segment.version != VERSION || segment.buffer.remaining() < len) {
+			// Seal the old segment and roll to a new one
+			if (segment != null)
+				segment.buffer.force();
+			segment = createSegment(segment == null ? 0 : segment.number + 1);
+		}
+		final ByteBuffer buffer = segment.buffer;
+		final int offset = buffer.position();
+		buffer.putInt(len - 4);
+		buffer.putLong(id);
+		buffer.putLong(time);
+		buffer.putShort((short)groupData.length);
+		buffer.put(groupData);
+		buffer.putShort((short)resultData.length);
+		buffer.put(resultData);
+		buffer.putInt(textData.length);
+		buffer.put(textData);
+		buffer.putInt(checksum(buffer, offset, buffer.position()));
+		segment.lastTime = time;
+		addToIndex(group, time, position(segment.number, offset));
+	}
+	/**
+	 * Adds a record to the group index and the global index.
+	 *
+	 * @param group the group which was pinged
+	 * @param time the time the ping was sent
+	 * @param position the record position
+	 */
+	private void addToIndex(final String group, final long time, final long position) {
+		TimeIndex index = indexByGroup.get(group);
+		if (index == null) {
+			index = new TimeIndex();
+			indexByGroup.put(group, index);
+		}
+		index.add(time, position);
+		indexAll.add(time, position);
+		if (time > lastTime)
+			lastTime = time;
+	}
+	/**
+	 * Calculates the checksum of part of a segment.
+	 *
+	 * @param buffer the segment contents
+	 * @param start the offset of the first byte to check
+	 * @param end the offset after the last byte to check
+	 * @return the CRC-32 of those bytes
+	 */
+	private static int checksum(final ByteBuffer buffer, final int start, final int end) {
+		final ByteBuffer data = buffer.duplicate();
+		data.limit(end);
+		data.position(start);
+		final CRC32 crc = new CRC32();
+		crc.update(data);
+		return (int)crc.getValue();
+	}
+	/**
+	 * Closes the journal, waiting for pending records to be written and flushing all segments
+	 * to disk. If interrupted while waiting, records not yet written are dropped.
+	 */
+	public void close() {
+		writer.shutdown();
+		try {
+			while (!writer.awaitTermination(2L, TimeUnit.SECONDS))
+				LOGGER.log(Level.INFO, "Waiting for journal records to be written");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			// Any record still queued must not recreate a segment once they are cleared
+			closed = true;
+			for (final Segment segment : segments.values())
+				segment.buffer.force();
+			segments.clear();
+		}
+	}
+	/**
+	 * Creates a new empty segment and makes it the active segment. Must be called with the
+	 * journal locked.
+	 *
+	 * @param number the segment number
+	 * @return the new segment
+	 * @throws IOException if the segment cannot be created
+	 */
+	private Segment createSegment(final int number) throws IOException {
+		final File file = new File(directory, String.format("%010d", number) + SEGMENT_SUFFIX);
+		final long now = System.currentTimeMillis();
+		final MappedByteBuffer buffer = map(file, segmentSize);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putLong(now);
+		final Segment segment = new Segment(number, file, buffer, VERSION, now);
+		segments.put(number, segment);
+		LOGGER.log(Level.FINE, "Created journal segment " + file.getName());
+		return segment;
+	}
+	/**
+	 * Maps a segment file into memory, creating it if necessary.
+	 *
+	 * @param file the segment file
+	 * @param size the size to map
+	 * @return the mapped buffer
+	 * @throws IOException if an I/O error occurs
+	 */
+	private MappedByteBuffer map(final File file, final int size) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			// The mapping remains valid after the channel is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, size);
+		} finally {
+			raf.close();
+		}
+	}
+	/**
+	 * Opens the journal, creating the directory if needed and rebuilding the index from any
+	 * existing segments.
+	 *
+	 * @throws IOException if the journal cannot be opened
+	 */
+	public synchronized void open() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create journal directory " + directory);
+		final File[] files = directory.listFiles();
+		if (files != null) {
+			Arrays.sort(files);
+			for (final File file : files) {
+				final String name = file.getName();
+				if (name.endsWith(SEGMENT_SUFFIX))
+					try {
+						recoverSegment(Integer.parseInt(name.substring(0, name.length() -
+							SEGMENT_SUFFIX.length())), file);
+					} catch (NumberFormatException e) {
+						LOGGER.log(Level.WARNING, "Ignoring unknown journal file " + name);
+					}
+			}
+		}
+		LOGGER.log(Level.FINE, "Opened journal with " + segments.size() + " segments, " +
+			indexAll.size() + " pings");
+	}
+	/**
+	 * Deletes closed segments which are older than the maximum age, then deletes the oldest
+	 * closed segments until the journal fits within the maximum size. The active segment is
+	 * never deleted.
+	 */
+	public synchronized void purge() {
+		final long now = System.currentTimeMillis();
+		long totalSize = 0L;
+		for (final Segment segment : segments.values())
+			totalSize += segment.buffer.capacity();
+		boolean removed = false;
+		while (segments.size() > 1) {
+			final Segment oldest = segments.firstEntry().getValue();
+			if (now - oldest.lastTime <= maxAge && totalSize <= maxSize)
+				break;
+			segments.remove(oldest.number);
+			totalSize -= oldest.buffer.capacity();
+			if (!oldest.file.delete())
+				LOGGER.log(Level.WARNING, "Unable to delete journal segment " + oldest.file);
+			LOGGER.log(Level.FINE, "Purged journal segment " + oldest.file.getName());
+			removed = true;
+		}
+		if (removed) {
+			// Drop index entries pointing into deleted segments
+			final long minPosition = position(segments.firstKey(), 0);
+			indexAll.trim(minPosition);
+			final Iterator<TimeIndex> it = indexByGroup.values().iterator();
+			while (it.hasNext()) {
+				final TimeIndex index = it.next();
+				index.trim(minPosition);
+				if (index.size() < 1)
+					it.remove();
+			}
+		}
+	}
+	/**
+	 * Finds the pings sent at or after the specified time.
+	 *
+	 * @param group the group to query, or null for all groups
+	 * @param since the earliest ping time to report in milliseconds (UTC)
+	 * @param limit the maximum number of pings to report
+	 * @return the matching pings, oldest first
+	 */
+	public synchronized List<HistoryEntry> query(final String group, final long since,
+												 final int limit) {
+		final TimeIndex index = (group == null) ? indexAll : indexByGroup.get(group);
+		final List<HistoryEntry> ret;
+		if (index == null || limit < 1)
+			ret = Collections.emptyList();
+		else {
+			final int first = index.search(since), end = Math.min(index.end, first + limit);
+			ret = new ArrayList<>(end - first);
+			for (int i = first; i < end; i++) {
+				final HistoryEntry entry = read(index.positions[i]);
+				if (entry != null)
+					ret.add(entry);
+			}
+		}
+		return ret;
+	}
+	/**
+	 * Reads the record at the specified position. Must be called with the journal locked.
+	 *
+	 * @param position the record position
+	 * @return the record, or null if its segment has been deleted
+	 */
+	private HistoryEntry read(final long position) {
+		final Segment segment = segments.get((int)(position >>> 32));
+		HistoryEntry ret = null;
+		if (segment != null) {
+			final ByteBuffer buffer = segment.buffer.duplicate();
+			buffer.position((int)position + 4);
+			final long id = buffer.getLong(), time = buffer.getLong();
+			final String group = readString(buffer, buffer.getShort() & 0xFFFF);
+			final String result = readString(buffer, buffer.getShort() & 0xFFFF);
+			final String text = readString(buffer, buffer.getInt());
+			ret = new HistoryEntry(id, time, group, text, result);
+		}
+		return ret;
+	}
+	/**
+	 * Reads a string from the buffer.
+	 *
+	 * @param buffer the buffer to read
+	 * @param len the encoded length in bytes
+	 * @return the string
+	 */
+	private String readString(final ByteBuffer buffer, final int len) {
+		final byte[] data = new byte[len];
+		buffer.get(data);
+		return new String(data, CHARSET);
+	}
+	/**
+	 * Records a ping in the journal. The record is written in the background, and dropped if
+	 * the journal is closed first.
+	 *
+	 * @param id the ping ID
+	 * @param group the group which was pinged
+	 * @param text the ping text
+	 * @param result the FCM result ("sent" or the failure reason)
+	 */
+	public void record(final long id, final String group, final String text,
+					   final String result) {
+		final long now = System.currentTimeMillis();
+		try {
+			writer.execute(new Runnable() {
+				public void run() {
+					synchronized (PingJournal.this) {
+						if (closed)
+							LOGGER.log(Level.INFO, "Journal closed, not recording ping #" + id);
+						else
+							try {
+								append(id, Math.max(now, lastTime), group, text, result);
+							} catch (IOException e) {
+								LOGGER.log(Level.WARNING, "Unable to record ping #" + id, e);
+							}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			LOGGER.log(Level.INFO, "Journal closed, not recording ping #" + id);
+		}
+	}
+	/**
+	 * Maps an existing segment and adds its records to the index. Must be called with the
+	 * journal locked.
+	 *
+	 * @param number the segment number
+	 * @param file the segment file
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void recoverSegment(final int number, final File file) throws IOException {
+		final long len = file.length();
+		if (len < HEADER_LEN || len > Integer.MAX_VALUE) {
+			LOGGER.log(Level.WARNING, "Ignoring invalid journal segment " + file.getName());
+			return;
+		}
+		final MappedByteBuffer buffer = map(file, (int)len);
+		final int version;
+		if (buffer.getInt() != MAGIC || (version = buffer.getInt()) < 1 || version > VERSION) {
+			LOGGER.log(Level.WARNING, "Ignoring invalid journal segment " + file.getName());
+			return;
+		}
+		final Segment segment = new Segment(number, file, buffer, version, buffer.getLong());
+		final int crcLen = (version < 2) ? 0 : CRC_LEN, minLen = RECORD_OVERHEAD - CRC_LEN -
+			4 + crcLen;
+		// Records are terminated by a zero length (unwritten part of the file); anything
+		// which does not add up is a torn record, and ends the segment just the same
+		while (buffer.remaining() >= minLen + 4) {
+			final int offset = buffer.position(), recordLen = buffer.getInt(), end = offset +
+				4 + recordLen;
+			if (recordLen < minLen || recordLen > buffer.remaining()) {
+				buffer.position(offset);
+				break;
+			}
+			buffer.getLong();
+			final long time = buffer.getLong();
+			final int groupLen = buffer.getShort() & 0xFFFF, groupStart = buffer.position();
+			// Each string length must leave room for the fields after it
+			boolean valid = time >= lastTime && groupStart + groupLen + 6 + crcLen <= end;
+			if (valid) {
+				buffer.position(groupStart + groupLen);
+				final int resultLen = buffer.getShort() & 0xFFFF;
+				valid = buffer.position() + resultLen + 4 + crcLen <= end;
+				if (valid) {
+					buffer.position(buffer.position() + resultLen);
+					final int textLen = buffer.getInt();
+					valid = textLen >= 0 && buffer.position() + textLen + crcLen == end &&
+						(crcLen == 0 || buffer.getInt(end - crcLen) == checksum(buffer,
+						offset, end - crcLen));
+				}
+			}
+			if (!valid) {
+				LOGGER.log(Level.WARNING, "Discarding damaged record at " + offset + " in " +
+					"journal segment " + file.getName());
+				buffer.position(offset);
+				break;
+			}
+			buffer.position(groupStart);
+			final String group = readString(buffer, groupLen);
+			buffer.position(end);
+			segment.lastTime = time;
+			addToIndex(group, time, position(number, offset));
+		}
+		segments.put(number, segment);
+	}
+
+	/**
+	 * A memory-mapped journal segment.
+	 */
+	private static final class Segment {
+		/**
+		 * The mapped segment contents; the position is the end of the last record.
+		 */
+		final MappedByteBuffer buffer;
+		/**
+		 * The segment file.
+		 */
+		final File file;
+		/**
+		 * The time of the newest record in this segment, or the creation time if empty.
+		 */
+		long lastTime;
+		/**
+		 * The segment number.
+		 */
+		final int number;
+		/**
+		 * The format version of the segment.
+		 */
+		final int version;
+
+		Segment(final int number, final File file, final MappedByteBuffer buffer,
+				final int version, final long created) {
+			this.buffer = buffer;
+			this.file = file;
+			this.number = number;
+			this.version = version;
+			lastTime = created;
+		}
+	}
+
+	/**
+	 * A compact, time-ordered index of record positions stored in parallel primitive arrays.
+	 */
+	private static final class TimeIndex {
+		/**
+		 * The index of one past the last entry.
+		 */
+		int end;
+		/**
+		 * The record positions.
+		 */
+		long[] positions;
+		/**
+		 * The index of the first valid entry.
+		 */
+		int start;
+		/**
+		 * The record times, in non-decreasing order.
+		 */
+		long[] times;
+
+		TimeIndex() {
+			end = 0;
+			positions = new long[16];
+			start = 0;
+			times = new long[16];
+		}
+		/**
+		 * Adds an entry to the index.
+		 *
+		 * @param time the record time (must be no earlier than the last entry)
+		 * @param position the record position
+		 */
+		void add(final long time, final long position) {
+			if (end >= times.length) {
+				// Reclaim trimmed space first, then grow if needed
+				final int count = end - start, capacity = (count * 2 > times.length) ?
+					times.length * 2 : times.length;
+				times = compact(times, capacity);
+				positions = compact(positions, capacity);
+				start = 0;
+				end = count;
+			}
+			times[end] = time;
+			positions[end++] = position;
+		}
+		/**
+		 * Copies the valid entries of the array to the start of a new array.
+		 *
+		 * @param array the array to compact
+		 * @param capacity the new array length
+		 * @return the compacted array
+		 */
+		private long[] compact(final long[] array, final int capacity) {
+			final long[] ret = new long[capacity];
+			System.arraycopy(array, start, ret, 0, end - start);
+			return ret;
+		}
+		/**
+		 * Finds the first entry at or after the specified time.
+		 *
+		 * @param time the time to find
+		 * @return the index of the first matching entry, or end if none match
+		 */
+		int search(final long time) {
+			int low = start, high = end;
+			while (low < high) {
+				final int mid = (low + high) >>> 1;
+				if (times[mid] < time)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		}
+		/**
+		 * Reports the number of entries in the index.
+		 *
+		 * @return the number of valid entries
+		 */
+		int size() {
+			return end - start;
+		}
+		/**
+		 * Removes entries whose positions are before the specified position. As positions
+		 * are also in increasing order, this is another binary search.
+		 *
+		 * @param minPosition the first position to keep
+		 */
+		void trim(final long minPosition) {
+			int low = start, high = end;
+			while (low < high) {
+				final int mid = (low + high) >>> 1;
+				if (positions[mid] < minPosition)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			start = low;
+		}
+	}
+}
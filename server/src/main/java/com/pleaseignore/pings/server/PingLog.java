@@ -0,0 +1,281 @@
+package com.pleaseignore.pings.server;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A write-ahead log of accepted pings. A ping is appended and committed to disk before it is
+ * acknowledged, and marked complete once FCM has accepted or rejected it, so that pings which
+ * were accepted but not delivered when the server died are delivered on the next start.
+ *
+ * Commits from concurrent pings are grouped into shared fsyncs (see RecordFile), so a burst of
+ * pings does not pay for one fsync each. Completion markers are not forced; losing one only
+ * means the ping is sent again, and clients drop the duplicate by its ping ID.
+ */
+public final class PingLog {
+	/**
+	 * The file size above which the log is compacted once nothing is pending.
+	 */
+	private static final long COMPACT_SIZE = 1024L * 1024L;
+	/**
+	 * Logs any unusual errors which occur in this class (most are passed upstream).
+	 */
+	private static final Logger LOGGER = Logger.getLogger(PingLog.class.getName());
+	/**
+	 * Record kinds.
+	 */
+	private static final byte RECORD_DONE = 2, RECORD_PING = 1;
+
+	/**
+	 * Encodes a record payload.
+	 *
+	 * @param kind the record kind
+	 * @param id the ping ID
+	 * @param entry the ping to write, or null for a completion marker
+	 * @return the record payload
+	 */
+	private static byte[] toRecord(final byte kind, final long id, final Entry entry) {
+		final ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+		try {
+			final DataOutputStream record = new DataOutputStream(payload);
+			record.writeByte(kind);
+			record.writeLong(id);
+			if (entry != null) {
+				record.writeLong(entry.getTime());
+				record.writeUTF(entry.getGroup());
+				// Ping text may be longer than writeUTF allows
+				final byte[] text = entry.getText().getBytes("UTF-8");
+				record.writeInt(text.length);
+				record.write(text);
+			}
+			record.flush();
+		} catch (IOException e) {
+			// Should never happen
+			throw new IllegalStateException(e);
+		}
+		return payload.toByteArray();
+	}
+
+	/**
+	 * The log file.
+	 */
+	private final RecordFile file;
+	/**
+	 * The pings not yet completed, by ping ID.
+	 */
+	private final Map<Long, Entry> pending;
+
+	/**
+	 * Creates a new ping log. No I/O is performed until open() is called.
+	 *
+	 * @param file the log file
+	 */
+	public PingLog(final File file) {
+		this.file = new RecordFile(file);
+		pending = new LinkedHashMap<>(64);
+	}
+	/**
+	 * Appends a ping to the log and waits until it is on disk. If the ping could not be made
+	 * durable, it is not pending.
+	 *
+	 * @param id the ping ID
+	 * @param group the group pinged
+	 * @param text the ping text
+	 * @return the logged ping
+	 * @throws IOException if the ping could not be made durable
+	 */
+	public Entry append(final long id, final String group, final String text)
+			throws IOException {
+		final Entry entry = new Entry(id, System.currentTimeMillis(), group, text);
+		final long end;
+		synchronized (this) {
+			pending.put(id, entry);
+			try {
+				end = file.append(toRecord(RECORD_PING, id, entry));
+			} catch (IOException e) {
+				pending.remove(id);
+				throw e;
+			}
+		}
+		// Wait outside the lock so that other pings can join the same commit
+		try {
+			file.commit(end);
+		} catch (IOException e) {
+			// The caller reports the ping as failed, so it must not be resent later
+			complete(id);
+			throw e;
+		}
+		return entry;
+	}
+	/**
+	 * Appends several pings to the log and waits until they are all on disk, sharing a single
+	 * commit. If the pings could not be made durable, none of them are pending.
+	 *
+	 * @param entries the pings to log
+	 * @throws IOException if the pings could not be made durable
+	 */
+	public void append(final Collection<Entry> entries) throws IOException {
+		if (entries == null)
+			throw new IllegalArgumentException("entries");
+		long end = 0L;
+		synchronized (this) {
+			try {
+				for (final Entry entry : entries) {
+					pending.put(entry.getID(), entry);
+					end = file.append(toRecord(RECORD_PING, entry.getID(), entry));
+				}
+			} catch (IOException e) {
+				for (final Entry entry : entries)
+					pending.remove(entry.getID());
+				throw e;
+			}
+		}
+		if (end > 0L)
+			try {
+				file.commit(end);
+			} catch (IOException e) {
+				// The caller reports the pings as failed, so they must not be resent later
+				for (final Entry entry : entries)
+					complete(entry.getID());
+				throw e;
+			}
+	}
+	/**
+	 * Flushes and closes the log. Pings still pending will be returned on the next open.
+	 */
+	public void close() {
+		file.close();
+	}
+	/**
+	 * Marks a ping as complete, whether it was sent or permanently rejected.
+	 *
+	 * @param id the ping ID
+	 */
+	public synchronized void complete(final long id) {
+		if (pending.remove(id) != null)
+			try {
+				file.append(toRecord(RECORD_DONE, id, null));
+				if (pending.isEmpty() && file.size() > COMPACT_SIZE)
+					file.rewrite(Collections.<byte[]>emptyList());
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Unable to mark ping " + id + " complete", e);
+			}
+	}
+	/**
+	 * Opens the log, reading any pings which were not completed when it was last closed.
+	 *
+	 * @return the pending pings in the order they were accepted
+	 * @throws IOException if the log cannot be opened
+	 */
+	public synchronized List<Entry> open() throws IOException {
+		pending.clear();
+		for (final byte[] payload : file.open()) {
+			final DataInputStream record = new DataInputStream(new ByteArrayInputStream(
+				payload));
+			try {
+				final byte kind = record.readByte();
+				final long id = record.readLong();
+				if (kind == RECORD_PING) {
+					final long time = record.readLong();
+					final String group = record.readUTF();
+					final byte[] text = new byte[record.readInt()];
+					record.readFully(text);
+					pending.put(id, new Entry(id, time, group, new String(text, "UTF-8")));
+				} else
+					pending.remove(id);
+			} catch (EOFException e) {
+				LOGGER.log(Level.WARNING, "Skipping malformed ping log record");
+			}
+		}
+		final List<byte[]> records = new ArrayList<>(pending.size());
+		for (final Entry entry : pending.values())
+			records.add(toRecord(RECORD_PING, entry.getID(), entry));
+		file.rewrite(records);
+		LOGGER.log(Level.FINE, "Opened ping log with " + pending.size() + " pending pings");
+		return new ArrayList<>(pending.values());
+	}
+	/**
+	 * Reports the number of pings which have not yet been completed.
+	 *
+	 * @return the number of pending pings
+	 */
+	public synchronized int size() {
+		return pending.size();
+	}
+	/**
+	 * Forces completion markers written so far to disk.
+	 */
+	public void sync() {
+		file.sync();
+	}
+
+	/**
+	 * A ping recorded in the log.
+	 */
+	public static final class Entry {
+		/**
+		 * The group pinged.
+		 */
+		private final String group;
+		/**
+		 * The ping ID.
+		 */
+		private final long id;
+		/**
+		 * The ping text.
+		 */
+		private final String text;
+		/**
+		 * The time when the ping was accepted.
+		 */
+		private final long time;
+
+		public Entry(final long id, final long time, final String group, final String text) {
+			if (group == null)
+				throw new IllegalArgumentException("group");
+			if (text == null)
+				throw new IllegalArgumentException("text");
+			this.group = group;
+			this.id = id;
+			this.text = text;
+			this.time = time;
+		}
+		/**
+		 * Retrieves the group pinged.
+		 *
+		 * @return the group name
+		 */
+		public String getGroup() {
+			return group;
+		}
+		/**
+		 * Retrieves the ping ID.
+		 *
+		 * @return the ping ID
+		 */
+		public long getID() {
+			return id;
+		}
+		/**
+		 * Retrieves the ping text.
+		 *
+		 * @return the ping text
+		 */
+		public String getText() {
+			return text;
+		}
+		/**
+		 * Retrieves the time when the ping was accepted.
+		 *
+		 * @return the time in milliseconds (UTC)
+		 */
+		public long getTime() {
+			return time;
+		}
+		public String toString() {
+			return "Ping " + id + " to \"" + group + "\"";
+		}
+	}
+}
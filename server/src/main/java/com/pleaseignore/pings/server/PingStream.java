@@ -0,0 +1,484 @@
+package com.pleaseignore.pings.server;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams sent pings to dashboards and other consumers as Server-Sent Events. Each client
+ * subscribes to some groups (or to all of them) and receives every ping sent to those groups,
+ * with the ping ID as the event ID. Clients which reconnect with Last-Event-ID first receive
+ * the pings they missed, as long as they are still among the most recent pings kept.
+ *
+ * Events are written by a small pool of writer threads, so a client holds no HTTP worker
+ * while it is connected. Each client has a bounded buffer; if it reads too slowly, the oldest
+ * events are dropped and it is told how many were lost, so that publishing a ping never waits
+ * for a client. A client which stops reading altogether holds one writer thread until the
+ * next event for it finds the write blocked past the write timeout, which interrupts the
+ * writer and so closes the connection.
+ */
+public final class PingStream {
+	/**
+	 * Keeps idle connections open through proxies, and detects clients which have gone away.
+	 */
+	private static final byte[] HEARTBEAT = ": keepalive\n\n".getBytes(StandardCharsets.UTF_8);
+	/**
+	 * How often a heartbeat is sent to every client in milliseconds.
+	 */
+	private static final long HEARTBEAT_INTERVAL = 15000L;
+	/**
+	 * Logs any unusual errors which occur in this class (most are passed upstream).
+	 */
+	private static final Logger LOGGER = Logger.getLogger(PingStream.class.getName());
+	/**
+	 * Tells clients how long to wait before reconnecting, in milliseconds.
+	 */
+	private static final byte[] RETRY = "retry: 5000\n\n".getBytes(StandardCharsets.UTF_8);
+	/**
+	 * How long a write to a client may block before the client is disconnected, in
+	 * milliseconds.
+	 */
+	private static final long WRITE_TIMEOUT = 10000L;
+
+	/**
+	 * Encodes a ping as an event.
+	 *
+	 * @param id the ping ID
+	 * @param data the JSON event data, on one line
+	 * @return the event text
+	 */
+	private static byte[] toEvent(final long id, final byte[] data) {
+		final byte[] header = ("id: " + id + "\nevent: ping\ndata: ").getBytes(StandardCharsets.
+			UTF_8);
+		final byte[] event = new byte[header.length + data.length + 2];
+		System.arraycopy(header, 0, event, 0, header.length);
+		System.arraycopy(data, 0, event, header.length, data.length);
+		event[event.length - 2] = '\n';
+		event[event.length - 1] = '\n';
+		return event;
+	}
+
+	/**
+	 * The clients subscribed to all groups.
+	 */
+	private final Set<Subscriber> allGroups;
+	/**
+	 * The maximum number of events buffered for each client.
+	 */
+	private final int bufferSize;
+	/**
+	 * The clients subscribed to each group by group name.
+	 */
+	private final Map<String, Set<Subscriber>> byGroup;
+	/**
+	 * The number of connected clients.
+	 */
+	private int clients;
+	/**
+	 * The number of events dropped for slow clients, counted outside the stream lock.
+	 */
+	private final AtomicLong dropped;
+	/**
+	 * The maximum number of connected clients.
+	 */
+	private final int maxClients;
+	/**
+	 * The number of pings published.
+	 */
+	private long published;
+	/**
+	 * The most recent pings, oldest first, which are replayed to clients that resume.
+	 */
+	private final Deque<Event> recent;
+	/**
+	 * The maximum number of recent pings kept.
+	 */
+	private final int replaySize;
+	/**
+	 * Writes events and heartbeats to the clients.
+	 */
+	private final ScheduledExecutorService writers;
+
+	/**
+	 * Creates a new ping stream.
+	 *
+	 * @param threads the number of writer threads
+	 * @param maxClients the maximum number of connected clients
+	 * @param bufferSize the maximum number of events buffered for each client
+	 * @param replaySize the number of recent pings kept for clients that resume
+	 */
+	public PingStream(final int threads, final int maxClients, final int bufferSize,
+					  final int replaySize) {
+		allGroups = new LinkedHashSet<>(16);
+		this.bufferSize = Math.max(1, bufferSize);
+		byGroup = new HashMap<>(32);
+		clients = 0;
+		dropped = new AtomicLong(0L);
+		this.maxClients = Math.max(0, maxClients);
+		published = 0L;
+		this.replaySize = Math.max(0, replaySize);
+		recent = new ArrayDeque<>(Math.min(this.replaySize, 1024) + 1);
+		writers = new MonitoredThreadPool(Math.max(1, threads));
+		writers.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				heartbeat();
+			}
+		}, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+	/**
+	 * Reports the stream statistics.
+	 *
+	 * @return the stream metrics
+	 */
+	public synchronized StreamMetrics getMetrics() {
+		return new StreamMetrics(clients, published, dropped.get());
+	}
+	/**
+	 * Lists every connected client once, even those subscribed to several groups.
+	 *
+	 * @return the connected clients
+	 */
+	private synchronized Set<Subscriber> getSubscribers() {
+		final Set<Subscriber> all = new HashSet<>(allGroups);
+		for (final Set<Subscriber> subscribers : byGroup.values())
+			all.addAll(subscribers);
+		return all;
+	}
+	/**
+	 * Sends a heartbeat to every client.
+	 */
+	private void heartbeat() {
+		for (final Subscriber subscriber : getSubscribers())
+			subscriber.offer(HEARTBEAT);
+	}
+	/**
+	 * Sends a ping to every client subscribed to its group, and keeps it for clients that
+	 * resume later.
+	 *
+	 * @param id the ping ID
+	 * @param group the group pinged
+	 * @param data the ping as JSON, on one line
+	 */
+	public synchronized void publish(final long id, final String group, final byte[] data) {
+		if (group == null)
+			throw new IllegalArgumentException("group");
+		if (data == null)
+			throw new IllegalArgumentException("data");
+		final Event event = new Event(id, group, toEvent(id, data));
+		if (replaySize > 0) {
+			if (recent.size() >= replaySize)
+				recent.removeFirst();
+			recent.addLast(event);
+		}
+		published++;
+		for (final Subscriber subscriber : allGroups)
+			subscriber.offer(event.text);
+		final Set<Subscriber> subscribers = byGroup.get(group);
+		if (subscribers != null)
+			for (final Subscriber subscriber : subscribers)
+				subscriber.offer(event.text);
+	}
+	/**
+	 * Stops the writer threads and disconnects every client.
+	 */
+	public void shutdown() {
+		writers.shutdownNow();
+		for (final Subscriber subscriber : getSubscribers())
+			subscriber.close();
+	}
+	/**
+	 * Connects a client, sending the response headers and any pings it missed. The exchange
+	 * stays open until the client disconnects or the stream is shut down.
+	 *
+	 * @param exchange the HTTP request of the client
+	 * @param groups the groups to which the client subscribes, or null for all groups
+	 * @param lastID the last ping ID which the client received, or 0 if it is not resuming
+	 * @return true if the client was connected, or false if too many clients are connected
+	 * @throws IOException if an I/O error occurs
+	 */
+	public boolean subscribe(final HttpExchange exchange, final Collection<String> groups,
+							 final long lastID) throws IOException {
+		if (exchange == null)
+			throw new IllegalArgumentException("exchange");
+		final Subscriber subscriber = new Subscriber(exchange, groups);
+		synchronized (this) {
+			if (clients >= maxClients)
+				return false;
+			clients++;
+			if (groups == null)
+				allGroups.add(subscriber);
+			else
+				for (final String group : groups) {
+					Set<Subscriber> subscribers = byGroup.get(group);
+					if (subscribers == null) {
+						subscribers = new LinkedHashSet<>(8);
+						byGroup.put(group, subscribers);
+					}
+					subscribers.add(subscriber);
+				}
+			// Replayed under the lock, so that no ping is missed or sent twice
+			subscriber.offer(RETRY);
+			if (lastID > 0L)
+				for (final Event event : recent)
+					if (event.id > lastID && (groups == null || groups.contains(event.group)))
+						subscriber.offer(event.text);
+		}
+		final Headers headers = exchange.getResponseHeaders();
+		headers.add("Content-Type", "text/event-stream; charset=utf-8");
+		headers.add("Cache-Control", "no-cache");
+		try {
+			exchange.sendResponseHeaders(200, 0);
+		} catch (IOException e) {
+			subscriber.close();
+			throw e;
+		}
+		subscriber.start();
+		return true;
+	}
+	public String toString() {
+		return "Ping stream (" + getMetrics().clients + " clients)";
+	}
+	/**
+	 * Removes a client which has disconnected.
+	 *
+	 * @param subscriber the client to remove
+	 */
+	private synchronized void unsubscribe(final Subscriber subscriber) {
+		boolean removed = false;
+		if (subscriber.groups == null)
+			removed = allGroups.remove(subscriber);
+		else
+			for (final String group : subscriber.groups) {
+				final Set<Subscriber> subscribers = byGroup.get(group);
+				if (subscribers != null && subscribers.remove(subscriber)) {
+					removed = true;
+					if (subscribers.isEmpty())
+						byGroup.remove(group);
+				}
+			}
+		if (removed)
+			clients--;
+	}
+
+	/**
+	 * A ping kept for clients that resume.
+	 */
+	private static final class Event {
+		/**
+		 * The group pinged.
+		 */
+		final String group;
+		/**
+		 * The ping ID.
+		 */
+		final long id;
+		/**
+		 * The event text.
+		 */
+		final byte[] text;
+
+		Event(final long id, final String group, final byte[] text) {
+			this.group = group;
+			this.id = id;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * Reports the statistics of a ping stream.
+	 */
+	public static final class StreamMetrics {
+		/**
+		 * The number of connected clients.
+		 */
+		public int clients;
+		/**
+		 * The number of events dropped for slow clients.
+		 */
+		public long dropped;
+		/**
+		 * The number of pings published.
+		 */
+		public long published;
+
+		public StreamMetrics() {
+			clients = 0;
+			dropped = 0L;
+			published = 0L;
+		}
+		StreamMetrics(final int clients, final long published, final long dropped) {
+			this.clients = clients;
+			this.dropped = dropped;
+			this.published = published;
+		}
+	}
+
+	/**
+	 * A connected client, with its buffer of events not yet written. At most one writer
+	 * thread drains the buffer at a time.
+	 */
+	private final class Subscriber implements Runnable {
+		/**
+		 * Whether the client has disconnected.
+		 */
+		private boolean closed;
+		/**
+		 * The number of events dropped since the last write.
+		 */
+		private int droppedSinceWrite;
+		/**
+		 * The HTTP request of the client.
+		 */
+		private final HttpExchange exchange;
+		/**
+		 * The groups to which the client subscribes, or null for all groups.
+		 */
+		final Set<String> groups;
+		/**
+		 * The events not yet written, oldest first.
+		 */
+		private final Deque<byte[]> pending;
+		/**
+		 * Whether a writer is draining the buffer, or the client has not started yet.
+		 */
+		private boolean scheduled;
+		/**
+		 * Whether the current write was interrupted for blocking too long.
+		 */
+		private boolean timedOut;
+		/**
+		 * The time at which the current write started.
+		 */
+		private long writeStarted;
+		/**
+		 * The thread writing to the client, or null if no write is in progress.
+		 */
+		private Thread writer;
+
+		Subscriber(final HttpExchange exchange, final Collection<String> groups) {
+			closed = false;
+			droppedSinceWrite = 0;
+			this.exchange = exchange;
+			this.groups = (groups == null) ? null : new HashSet<>(groups);
+			pending = new ArrayDeque<>(16);
+			// Nothing may be written before the response headers
+			scheduled = true;
+			timedOut = false;
+			writeStarted = 0L;
+			writer = null;
+		}
+		/**
+		 * Disconnects the client.
+		 */
+		void close() {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+				pending.clear();
+			}
+			unsubscribe(this);
+			exchange.close();
+		}
+		/**
+		 * Adds an event to the buffer, dropping the oldest event if the buffer is full, and
+		 * wakes a writer if none is draining it. If the current write has blocked past the
+		 * write timeout, its writer is interrupted instead, which closes the connection.
+		 *
+		 * @param text the event text
+		 */
+		void offer(final byte[] text) {
+			boolean wake = false;
+			synchronized (this) {
+				if (writer != null && !timedOut && System.currentTimeMillis() - writeStarted >
+						WRITE_TIMEOUT) {
+					// Blocking socket writes only give up when the channel is interrupted
+					LOGGER.log(Level.INFO, "Event stream client stopped reading, disconnecting");
+					timedOut = true;
+					writer.interrupt();
+				}
+				if (!closed && !timedOut) {
+					if (pending.size() >= bufferSize) {
+						pending.removeFirst();
+						droppedSinceWrite++;
+						dropped.incrementAndGet();
+					}
+					pending.addLast(text);
+					if (!scheduled) {
+						scheduled = true;
+						wake = true;
+					}
+				}
+			}
+			if (wake)
+				start();
+		}
+		public void run() {
+			final List<byte[]> batch = new ArrayList<>(16);
+			try {
+				final OutputStream os = exchange.getResponseBody();
+				while (true) {
+					final int lost;
+					boolean late = false;
+					synchronized (this) {
+						if (closed || pending.isEmpty()) {
+							scheduled = false;
+							break;
+						}
+						batch.addAll(pending);
+						pending.clear();
+						lost = droppedSinceWrite;
+						droppedSinceWrite = 0;
+						writer = Thread.currentThread();
+						writeStarted = System.currentTimeMillis();
+					}
+					try {
+						if (lost > 0)
+							// Tell the client that it missed pings, which it may fetch from
+							// history
+							os.write(("event: dropped\ndata: " + lost + "\n\n").getBytes(
+								StandardCharsets.UTF_8));
+						for (final byte[] text : batch)
+							os.write(text);
+						batch.clear();
+						os.flush();
+					} finally {
+						synchronized (this) {
+							writer = null;
+							late = timedOut;
+							if (late)
+								// The interrupt was only meant for this write, not the pool
+								Thread.interrupted();
+						}
+					}
+					if (late)
+						throw new IOException("Write timed out");
+				}
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Event stream client disconnected", e);
+				close();
+			}
+		}
+		/**
+		 * Hands the client to a writer thread.
+		 */
+		void start() {
+			try {
+				writers.execute(this);
+			} catch (RejectedExecutionException e) {
+				// Shutting down
+				close();
+			}
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package com.pleaseignore.pings.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the full text of recent pings which were sent to devices as a compact payload, so
+ * that devices can fetch it by ping ID. Each ping gets a random fetch key which is sent only
+ * in its payload, so the text is not readable by anyone who merely guesses the sequential
+ * ping ID.
+ *
+ * The response body of each ping is encoded once when it is added and never changes, so
+ * lookups take no lock and any number of devices can fetch the same ping cheaply. The cache
+ * is bounded by the total size of the bodies, evicting the oldest pings first.
+ */
+public final class PingTextCache {
+	/**
+	 * The estimated size of an entry besides its body, in bytes.
+	 */
+	private static final int ENTRY_OVERHEAD = 128;
+	/**
+	 * The number of random bytes in a fetch key.
+	 */
+	private static final int KEY_BYTES = 16;
+	/**
+	 * Generates fetch keys.
+	 */
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	/**
+	 * Creates a new random fetch key.
+	 *
+	 * @return the key, in URL-safe Base64
+	 */
+	public static String createKey() {
+		final byte[] key = new byte[KEY_BYTES];
+		RANDOM.nextBytes(key);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(key);
+	}
+
+	/**
+	 * The cached pings by ID.
+	 */
+	private final Map<Long, Entry> entries;
+	/**
+	 * The maximum total size of the cached entries in bytes.
+	 */
+	private final long maxSize;
+	/**
+	 * The cached ping IDs, oldest first. Guarded by itself.
+	 */
+	private final Deque<Long> order;
+	/**
+	 * The total size of the cached entries in bytes. Guarded by the order lock.
+	 */
+	private long size;
+
+	/**
+	 * Creates a new ping text cache.
+	 *
+	 * @param maxSize the maximum total size of the cached entries in bytes
+	 */
+	public PingTextCache(final long maxSize) {
+		entries = new ConcurrentHashMap<>(256);
+		this.maxSize = maxSize;
+		order = new ArrayDeque<>(256);
+		size = 0L;
+	}
+	/**
+	 * Adds a ping, unless it is already cached. The oldest pings are evicted until the cache
+	 * is back within its size limit.
+	 *
+	 * @param id the ping ID
+	 * @param key the fetch key
+	 * @param body the JSON response body
+	 * @return the cached entry, which is the existing one if the ping was already cached
+	 */
+	public Entry add(final long id, final String key, final byte[] body) {
+		if (key == null)
+			throw new IllegalArgumentException("key");
+		if (body == null)
+			throw new IllegalArgumentException("body");
+		final Entry entry = new Entry(id, key, body);
+		Entry ret;
+		synchronized (order) {
+			ret = entries.putIfAbsent(id, entry);
+			if (ret == null) {
+				ret = entry;
+				order.addLast(id);
+				size += entry.size();
+				while (size > maxSize && order.size() > 1)
+					size -= entries.remove(order.removeFirst()).size();
+			}
+		}
+		return ret;
+	}
+	/**
+	 * Looks up a cached ping.
+	 *
+	 * @param id the ping ID
+	 * @return the cached entry, or null if the ping is not cached
+	 */
+	public Entry get(final long id) {
+		return entries.get(id);
+	}
+	/**
+	 * Gets the number of cached pings.
+	 *
+	 * @return the number of pings in the cache
+	 */
+	public int size() {
+		return entries.size();
+	}
+	public String toString() {
+		return "Ping text cache (" + size() + " pings)";
+	}
+
+	/**
+	 * The full text of a ping, encoded as a response body.
+	 */
+	public static final class Entry {
+		/**
+		 * The JSON response body.
+		 */
+		private final byte[] body;
+		/**
+		 * The entity tag, which identifies the body as it never changes.
+		 */
+		private final String etag;
+		/**
+		 * The fetch key.
+		 */
+		private final byte[] key;
+		/**
+		 * The fetch key as sent in the payload.
+		 */
+		private final String keyText;
+
+		Entry(final long id, final String key, final byte[] body) {
+			this.body = body;
+			etag = "\"" + id + "\"";
+			this.key = key.getBytes(StandardCharsets.UTF_8);
+			keyText = key;
+		}
+		/**
+		 * Retrieves the response body. The array must not be modified.
+		 *
+		 * @return the JSON response body
+		 */
+		public byte[] getBody() {
+			return body;
+		}
+		/**
+		 * Retrieves the entity tag of the response.
+		 *
+		 * @return the quoted entity tag
+		 */
+		public String getETag() {
+			return etag;
+		}
+		/**
+		 * Retrieves the fetch key.
+		 *
+		 * @return the key sent in the ping payload
+		 */
+		public String getKey() {
+			return keyText;
+		}
+		/**
+		 * Checks a fetch key in constant time.
+		 *
+		 * @param candidate the key presented by the device
+		 * @return true if the key matches
+		 */
+		public boolean matches(final String candidate) {
+			return candidate != null && MessageDigest.isEqual(key, candidate.getBytes(
+				StandardCharsets.UTF_8));
+		}
+		/**
+		 * Estimates the memory used by the entry.
+		 *
+		 * @return the entry size in bytes
+		 */
+		long size() {
+			return body.length + ENTRY_OVERHEAD;
+		}
+		public String toString() {
+			return "Ping text " + etag;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.pleaseignore.pings.server;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.Date;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Manages Flight Recorder recordings of the server. A continuous recording with the low
+ * overhead "default" settings keeps the most recent window of events, and an on-demand
+ * recording can be started with other settings. Either can be dumped to a file at any time.
+ */
+public final class ProfilingRecorder {
+	/**
+	 * Logs any unusual errors which occur in this class (most are passed upstream).
+	 */
+	private static final Logger LOGGER = Logger.getLogger(ProfilingRecorder.class.getName());
+
+	/**
+	 * The continuous recording, or null if not running.
+	 */
+	private Recording continuous;
+	/**
+	 * The directory to which recordings are dumped.
+	 */
+	private final File dir;
+	/**
+	 * How long the continuous recording keeps events in milliseconds, or 0 to disable it.
+	 */
+	private final long maxAge;
+	/**
+	 * The maximum size of each recording in bytes.
+	 */
+	private final long maxSize;
+	/**
+	 * The on-demand recording, or null if not running.
+	 */
+	private Recording onDemand;
+
+	/**
+	 * Creates a new profiling recorder.
+	 *
+	 * @param dir the directory to which recordings are dumped
+	 * @param maxAge how long the continuous recording keeps events in milliseconds, or 0 to
+	 * disable it
+	 * @param maxSize the maximum size of each recording in bytes
+	 */
+	public ProfilingRecorder(final File dir, final long maxAge, final long maxSize) {
+		if (dir == null)
+			throw new IllegalArgumentException("dir");
+		continuous = null;
+		this.dir = dir;
+		this.maxAge = maxAge;
+		this.maxSize = maxSize;
+		onDemand = null;
+	}
+	/**
+	 * Stops and discards all recordings.
+	 */
+	public synchronized void close() {
+		if (continuous != null) {
+			continuous.close();
+			continuous = null;
+		}
+		if (onDemand != null) {
+			onDemand.close();
+			onDemand = null;
+		}
+	}
+	/**
+	 * Creates a recording with the specified settings.
+	 *
+	 * @param name the recording name
+	 * @param settings the name of the JFR settings, such as "default" or "profile"
+	 * @return the recording, not yet started
+	 * @throws IOException if the settings cannot be found
+	 */
+	private Recording createRecording(final String name, final String settings)
+			throws IOException {
+		final Recording recording;
+		try {
+			recording = new Recording(Configuration.getConfiguration(settings));
+		} catch (ParseException e) {
+			throw new IOException("Invalid JFR settings: " + settings, e);
+		}
+		recording.setName(name);
+		recording.setMaxSize(maxSize);
+		recording.setToDisk(true);
+		return recording;
+	}
+	/**
+	 * Dumps the on-demand recording if one is running, otherwise the continuous recording.
+	 *
+	 * @return the file written
+	 * @throws IOException if no recording is running, or the file cannot be written
+	 */
+	public synchronized File dump() throws IOException {
+		final Recording recording = (onDemand != null) ? onDemand : continuous;
+		if (recording == null)
+			throw new IOException("No recording running");
+		return dump(recording);
+	}
+	/**
+	 * Dumps a recording to a new file in the recording directory.
+	 *
+	 * @param recording the recording to dump
+	 * @return the file written
+	 * @throws IOException if the file cannot be written
+	 */
+	private File dump(final Recording recording) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Unable to create " + dir);
+		final File file = new File(dir, recording.getName() + "-" + new SimpleDateFormat(
+			"yyyyMMdd-HHmmss").format(new Date()) + ".jfr");
+		recording.dump(file.toPath());
+		LOGGER.log(Level.INFO, "Dumped recording to " + file);
+		return file;
+	}
+	/**
+	 * Starts an on-demand recording.
+	 *
+	 * @param settings the name of the JFR settings, such as "default" or "profile"
+	 * @return true if started, or false if an on-demand recording is already running
+	 * @throws IOException if the settings cannot be found
+	 */
+	public synchronized boolean start(final String settings) throws IOException {
+		final boolean ok = onDemand == null;
+		if (ok) {
+			onDemand = createRecording("pings-ondemand", settings);
+			onDemand.start();
+			LOGGER.log(Level.INFO, "Started recording with " + settings + " settings");
+		}
+		return ok;
+	}
+	/**
+	 * Starts the continuous recording, if enabled.
+	 *
+	 * @throws IOException if the recording cannot be started
+	 */
+	public synchronized void startContinuous() throws IOException {
+		if (maxAge > 0L && continuous == null) {
+			continuous = createRecording("pings-continuous", "default");
+			continuous.setMaxAge(Duration.ofMillis(maxAge));
+			continuous.start();
+		}
+	}
+	/**
+	 * Stops the on-demand recording and dumps it.
+	 *
+	 * @return the file written
+	 * @throws IOException if no on-demand recording is running, or the file cannot be written
+	 */
+	public synchronized File stop() throws IOException {
+		if (onDemand == null)
+			throw new IOException("No on-demand recording running");
+		try {
+			onDemand.stop();
+			return dump(onDemand);
+		} finally {
+			onDemand.close();
+			onDemand = null;
+		}
+	}
+	public String toString() {
+		return "Profiling recorder to " + dir;
+	}
+}
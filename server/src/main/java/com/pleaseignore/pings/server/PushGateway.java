@@ -0,0 +1,870 @@
+package com.pleaseignore.pings.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers pings directly to devices over long-lived WebSocket connections, as a second path
+ * which does not depend on FCM. Devices connect to /connect?username={u}&challenge={c} with
+ * the challenge from their last login or refresh, and receive every ping sent to their groups
+ * as a text message with the same JSON as /ping/{id}.
+ *
+ * A single selector thread serves every connection, and idle connections hold no buffers, so
+ * that one server can keep a very large number of devices connected. Each heartbeat interval
+ * the gateway sends every connection a two byte ping frame and drops connections which have
+ * sent nothing (not even a pong) for two intervals. A connection which cannot keep up with
+ * its pings is dropped rather than buffered without limit; the device reconnects and catches
+ * up from /history.
+ */
+public final class PushGateway implements Runnable {
+	/**
+	 * The largest frame accepted from a device in bytes.
+	 */
+	private static final int FRAME_MAX = 4096;
+	/**
+	 * The largest handshake accepted from a device in bytes.
+	 */
+	private static final int HANDSHAKE_MAX = 4096;
+	/**
+	 * Logs any unusual errors which occur in this class (most are passed upstream).
+	 */
+	private static final Logger LOGGER = Logger.getLogger(PushGateway.class.getName());
+	/**
+	 * WebSocket opcodes.
+	 */
+	private static final int OP_CLOSE = 0x8, OP_PING = 0x9, OP_PONG = 0xA, OP_TEXT = 0x1;
+	/**
+	 * The most bytes queued for one connection before it is dropped as too slow.
+	 */
+	private static final int PENDING_MAX = 256 * 1024;
+	/**
+	 * The close frame sent when a user's session ends, with status 1000 (normal closure).
+	 */
+	private static final ByteBuffer CLOSE_FRAME = frame(OP_CLOSE, new byte[] { 0x03,
+		(byte)0xE8 });
+	/**
+	 * The heartbeat frame, shared by every connection.
+	 */
+	private static final ByteBuffer PING_FRAME = frame(OP_PING, new byte[0]);
+	/**
+	 * The size of the buffer into which the selector thread reads.
+	 */
+	private static final int READ_BUFFER = 16384;
+	/**
+	 * The GUID which the WebSocket handshake appends to the client key.
+	 */
+	private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+	/**
+	 * Computes the handshake accept value for a client key.
+	 *
+	 * @param key the Sec-WebSocket-Key sent by the client
+	 * @return the Sec-WebSocket-Accept value
+	 */
+	private static String acceptKey(final String key) {
+		try {
+			return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-1").
+				digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.US_ASCII)));
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM has SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+	/**
+	 * Encodes an unmasked WebSocket frame, as sent by servers.
+	 *
+	 * @param opcode the frame opcode
+	 * @param payload the frame payload
+	 * @return the frame, ready to be written from position 0
+	 */
+	private static ByteBuffer frame(final int opcode, final byte[] payload) {
+		final int n = payload.length;
+		final ByteBuffer frame = ByteBuffer.allocate(n + ((n < 126) ? 2 : ((n < 65536) ? 4 :
+			10)));
+		frame.put((byte)(0x80 | opcode));
+		if (n < 126)
+			frame.put((byte)n);
+		else if (n < 65536) {
+			frame.put((byte)126);
+			frame.putShort((short)n);
+		} else {
+			frame.put((byte)127);
+			frame.putLong(n);
+		}
+		frame.put(payload);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Checks the credentials of connecting devices.
+	 */
+	private final Authenticator authenticator;
+	/**
+	 * The connected devices in each group by group ID.
+	 */
+	private final Map<Integer, Set<Connection>> byGroup;
+	/**
+	 * The connected devices of each user by username.
+	 */
+	private final Map<String, Set<Connection>> byUser;
+	/**
+	 * The number of open connections, including those still in the handshake.
+	 */
+	private final AtomicInteger connections;
+	/**
+	 * How often every connection is sent a heartbeat in milliseconds.
+	 */
+	private final long heartbeatInterval;
+	/**
+	 * The largest number of open connections.
+	 */
+	private final int maxConnections;
+	/**
+	 * The number of pings queued to connections.
+	 */
+	private final AtomicLong pushed;
+	/**
+	 * The buffer into which the selector thread reads.
+	 */
+	private final ByteBuffer readBuffer;
+	/**
+	 * The number of connections refused because the gateway was full.
+	 */
+	private final AtomicLong rejected;
+	/**
+	 * Whether the selector thread should keep running.
+	 */
+	private volatile boolean running;
+	/**
+	 * Waits for connections and data, or null if the gateway is not started.
+	 */
+	private volatile Selector selector;
+	/**
+	 * The listening socket, or null if the gateway is not started.
+	 */
+	private ServerSocketChannel serverChannel;
+	/**
+	 * The number of connections dropped because they could not keep up.
+	 */
+	private final AtomicLong slow;
+	/**
+	 * The selector thread, or null if the gateway is not started.
+	 */
+	private Thread thread;
+	/**
+	 * The number of connections dropped because they stopped answering heartbeats.
+	 */
+	private final AtomicLong timedOut;
+	/**
+	 * Connections with frames waiting to be written by the selector thread.
+	 */
+	private final Queue<Connection> writable;
+
+	/**
+	 * Creates a new push gateway. No connections are accepted until start() is called.
+	 *
+	 * @param authenticator checks the credentials of connecting devices
+	 * @param maxConnections the largest number of open connections
+	 * @param heartbeatInterval how often connections are sent a heartbeat in milliseconds
+	 */
+	public PushGateway(final Authenticator authenticator, final int maxConnections,
+					   final long heartbeatInterval) {
+		if (authenticator == null)
+			throw new IllegalArgumentException("authenticator");
+		this.authenticator = authenticator;
+		byGroup = new HashMap<>(32);
+		byUser = new HashMap<>(1024);
+		connections = new AtomicInteger(0);
+		this.heartbeatInterval = Math.max(1000L, heartbeatInterval);
+		this.maxConnections = Math.max(0, maxConnections);
+		pushed = new AtomicLong(0L);
+		readBuffer = ByteBuffer.allocateDirect(READ_BUFFER);
+		rejected = new AtomicLong(0L);
+		running = false;
+		selector = null;
+		serverChannel = null;
+		slow = new AtomicLong(0L);
+		thread = null;
+		timedOut = new AtomicLong(0L);
+		writable = new ConcurrentLinkedQueue<>();
+	}
+	/**
+	 * Accepts a new connection, unless the gateway is full.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void accept() throws IOException {
+		final SocketChannel channel = serverChannel.accept();
+		if (channel != null) {
+			if (connections.get() >= maxConnections) {
+				rejected.incrementAndGet();
+				channel.close();
+			} else {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				final Connection connection = new Connection(channel);
+				connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+				connections.incrementAndGet();
+			}
+		}
+	}
+	/**
+	 * Closes a connection and removes it from the group index. Only called on the selector
+	 * thread.
+	 *
+	 * @param connection the connection to close
+	 */
+	private void close(final Connection connection) {
+		if (connection.close()) {
+			connection.key.cancel();
+			try {
+				connection.channel.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Error closing gateway connection", e);
+			}
+			if (connection.username != null)
+				unindex(connection);
+			connections.decrementAndGet();
+		}
+	}
+	/**
+	 * Disconnects every device of a user whose session ended, such as when it expired or its
+	 * device was found dead. The devices stop receiving pings at once, and are sent a close
+	 * frame before their connections are closed.
+	 *
+	 * @param username the username
+	 */
+	public void disconnect(final String username) {
+		final Connection[] devices;
+		synchronized (this) {
+			final Set<Connection> set = byUser.get(username);
+			if (set == null || set.isEmpty())
+				return;
+			devices = set.toArray(new Connection[set.size()]);
+			for (final Connection connection : devices)
+				unindex(connection);
+		}
+		for (final Connection connection : devices)
+			connection.sendClose(CLOSE_FRAME.duplicate());
+		final Selector current = selector;
+		if (current != null)
+			current.wakeup();
+	}
+	/**
+	 * Writes as much of a connection's queued frames as the socket accepts, and waits for the
+	 * socket to be writable if any remain. Only called on the selector thread.
+	 *
+	 * @param connection the connection to flush
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void flush(final Connection connection) throws IOException {
+		final boolean done;
+		synchronized (connection) {
+			connection.writeQueued = false;
+			if (connection.overflowed) {
+				done = true;
+				slow.incrementAndGet();
+			} else {
+				final Deque<ByteBuffer> queue = connection.queue;
+				while (queue != null && !queue.isEmpty()) {
+					final ByteBuffer frame = queue.peekFirst();
+					connection.channel.write(frame);
+					if (frame.hasRemaining())
+						break;
+					connection.queued -= frame.limit();
+					queue.removeFirst();
+				}
+				final boolean empty = queue == null || queue.isEmpty();
+				done = empty && connection.closing;
+				if (!done && connection.key.isValid())
+					connection.key.interestOps(empty ? SelectionKey.OP_READ : (SelectionKey.
+						OP_READ | SelectionKey.OP_WRITE));
+			}
+		}
+		if (done)
+			close(connection);
+	}
+	/**
+	 * Reports the gateway statistics.
+	 *
+	 * @return the gateway metrics
+	 */
+	public GatewayMetrics getMetrics() {
+		return new GatewayMetrics(connections.get(), pushed.get(), rejected.get(), slow.get(),
+			timedOut.get());
+	}
+	/**
+	 * Completes the WebSocket handshake of a connection once its request has arrived, or
+	 * refuses it. Only called on the selector thread.
+	 *
+	 * @param connection the connection
+	 * @param data the bytes received so far
+	 */
+	private void handshake(final Connection connection, final ByteBuffer data) {
+		final int n = data.remaining();
+		final byte[] request = new byte[n];
+		data.get(request);
+		final String text = new String(request, StandardCharsets.ISO_8859_1);
+		final int end = text.indexOf("\r\n\r\n");
+		if (end < 0) {
+			// Wait for the rest of the request, within reason
+			if (n < HANDSHAKE_MAX)
+				connection.partial = request;
+			else
+				refuse(connection, "400 Bad Request");
+			return;
+		}
+		final String[] lines = text.substring(0, end).split("\r\n");
+		String key = null, username = null, challenge = null;
+		boolean upgrade = false;
+		for (int i = 1; i < lines.length; i++) {
+			final int colon = lines[i].indexOf(':');
+			if (colon > 0) {
+				final String name = lines[i].substring(0, colon).trim(), value = lines[i].
+					substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Sec-WebSocket-Key"))
+					key = value;
+				else if (name.equalsIgnoreCase("Upgrade"))
+					upgrade = value.equalsIgnoreCase("websocket");
+			}
+		}
+		final String[] requestLine = lines[0].split(" ");
+		if (requestLine.length == 3 && requestLine[0].equals("GET")) {
+			final String target = requestLine[1];
+			final int query = target.indexOf('?');
+			if (query >= 0)
+				for (final String pair : target.substring(query + 1).split("&")) {
+					final int eq = pair.indexOf('=');
+					if (eq > 0)
+						try {
+							final String name = pair.substring(0, eq), value = URLDecoder.
+								decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+							if (name.equals("username"))
+								username = value;
+							else if (name.equals("challenge"))
+								challenge = value;
+						} catch (IllegalArgumentException e) {
+							// Malformed escape, refused below for lack of credentials
+						}
+				}
+		}
+		if (!upgrade || key == null || username == null || challenge == null)
+			refuse(connection, "400 Bad Request");
+		else if (!index(connection, username, challenge, ByteBuffer.wrap((
+				"HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: " +
+				"Upgrade\r\nSec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n").getBytes(
+				StandardCharsets.US_ASCII))))
+			refuse(connection, "401 Unauthorized");
+		// Anything after the handshake is already a frame
+		else if (n > end + 4)
+			readFrames(connection, ByteBuffer.wrap(request, end + 4, n - end - 4));
+	}
+	/**
+	 * Sends a heartbeat to every connection, and drops those which have gone quiet or never
+	 * finished their handshake. Only called on the selector thread.
+	 *
+	 * @param now the current time
+	 */
+	private void heartbeat(final long now) {
+		for (final SelectionKey key : selector.keys()) {
+			final Object attachment = key.attachment();
+			if (attachment instanceof Connection && key.isValid()) {
+				final Connection connection = (Connection)attachment;
+				if (now - connection.lastSeen > 2L * heartbeatInterval || (connection.
+						username == null && now - connection.lastSeen > heartbeatInterval)) {
+					timedOut.incrementAndGet();
+					close(connection);
+				} else if (connection.username != null)
+					connection.send(PING_FRAME.duplicate());
+			}
+		}
+	}
+	/**
+	 * Adds a connection to the group index.
+	 *
+	 * @param connection the connection
+	 * @param username the authenticated username
+	 * @param groups the IDs of the user's groups
+	 */
+	private synchronized void index(final Connection connection, final String username,
+									final int[] groups) {
+		connection.groups = groups;
+		connection.username = username;
+		Set<Connection> devices = byUser.get(username);
+		if (devices == null) {
+			devices = new HashSet<>(4);
+			byUser.put(username, devices);
+		}
+		devices.add(connection);
+		for (final int group : groups) {
+			Set<Connection> members = byGroup.get(group);
+			if (members == null) {
+				members = new HashSet<>(64);
+				byGroup.put(group, members);
+			}
+			members.add(connection);
+		}
+	}
+	/**
+	 * Checks a device's credentials and adds its connection to the group index. The groups
+	 * are read under the gateway lock, so that a regroup or disconnect of the user either
+	 * happened before and is seen here, or finds the connection in the index. Only called on
+	 * the selector thread.
+	 *
+	 * @param connection the connection
+	 * @param username the username
+	 * @param challenge the challenge from the user's last login or refresh
+	 * @param response the handshake response, queued before any ping can be
+	 * @return true if the device was admitted, or false if the credentials are not valid
+	 */
+	private synchronized boolean index(final Connection connection, final String username,
+									   final String challenge, final ByteBuffer response) {
+		final int[] groups = authenticator.authenticate(username, challenge);
+		if (groups != null) {
+			// Queued before the connection is indexed, so that it precedes every ping
+			connection.send(response);
+			index(connection, username, groups);
+		}
+		return groups != null;
+	}
+	/**
+	 * Queues a ping for every connected device in a group.
+	 *
+	 * @param group the group ID
+	 * @param data the ping as JSON
+	 * @return the number of devices to which the ping was queued
+	 */
+	public int publish(final int group, final byte[] data) {
+		if (data == null)
+			throw new IllegalArgumentException("data");
+		final Connection[] members;
+		synchronized (this) {
+			final Set<Connection> set = byGroup.get(group);
+			if (set == null || set.isEmpty())
+				return 0;
+			members = set.toArray(new Connection[set.size()]);
+		}
+		// Encoded once, each connection writes from its own view of the frame
+		final ByteBuffer frame = frame(OP_TEXT, data);
+		int count = 0;
+		for (final Connection connection : members)
+			if (connection.send(frame.duplicate()))
+				count++;
+		pushed.addAndGet(count);
+		final Selector current = selector;
+		if (current != null)
+			current.wakeup();
+		return count;
+	}
+	/**
+	 * Reads whatever a connection has sent. Only called on the selector thread.
+	 *
+	 * @param connection the connection
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void read(final Connection connection) throws IOException {
+		readBuffer.clear();
+		final int n = connection.channel.read(readBuffer);
+		if (n < 0)
+			close(connection);
+		else if (n > 0) {
+			connection.lastSeen = System.currentTimeMillis();
+			readBuffer.flip();
+			ByteBuffer data = readBuffer;
+			if (connection.partial != null) {
+				// Join the incomplete frame left over from the last read
+				data = ByteBuffer.allocate(connection.partial.length + n);
+				data.put(connection.partial).put(readBuffer).flip();
+				connection.partial = null;
+			}
+			if (connection.username == null)
+				handshake(connection, data);
+			else
+				readFrames(connection, data);
+		}
+	}
+	/**
+	 * Handles the frames sent by a device, which are masked as the protocol requires. Pings
+	 * are answered, closes are acknowledged, and everything else only counts as a sign of
+	 * life. Only called on the selector thread.
+	 *
+	 * @param connection the connection
+	 * @param data the bytes received
+	 */
+	private void readFrames(final Connection connection, final ByteBuffer data) {
+		while (data.remaining() >= 2) {
+			final int start = data.position();
+			final int opcode = data.get() & 0x0F, second = data.get() & 0xFF;
+			long length = second & 0x7F;
+			if (length == 126 && data.remaining() >= 2)
+				length = data.getShort() & 0xFFFF;
+			else if (length == 127 && data.remaining() >= 8)
+				length = data.getLong();
+			else if (length >= 126) {
+				data.position(start);
+				break;
+			}
+			if ((second & 0x80) == 0 || length < 0L || length > FRAME_MAX) {
+				// Unmasked or oversized, which no well behaved device sends
+				close(connection);
+				return;
+			}
+			if (data.remaining() < 4 + length) {
+				data.position(start);
+				break;
+			}
+			final byte[] mask = new byte[4], payload = new byte[(int)length];
+			data.get(mask);
+			data.get(payload);
+			for (int i = 0; i < payload.length; i++)
+				payload[i] ^= mask[i & 3];
+			if (opcode == OP_CLOSE) {
+				connection.send(frame(OP_CLOSE, (payload.length >= 2) ? Arrays.copyOf(payload,
+					2) : payload));
+				connection.closing = true;
+				return;
+			} else if (opcode == OP_PING)
+				connection.send(frame(OP_PONG, payload));
+		}
+		if (data.hasRemaining()) {
+			final byte[] partial = new byte[data.remaining()];
+			data.get(partial);
+			connection.partial = partial;
+		}
+	}
+	/**
+	 * Updates the groups of a user's connected devices after the user joins or leaves a
+	 * group.
+	 *
+	 * @param username the username
+	 * @param groups the IDs of the user's groups
+	 */
+	public synchronized void regroup(final String username, final int[] groups) {
+		if (groups == null)
+			throw new IllegalArgumentException("groups");
+		final Set<Connection> devices = byUser.get(username);
+		if (devices != null)
+			for (final Connection connection : new ArrayList<>(devices)) {
+				unindex(connection);
+				index(connection, username, groups);
+			}
+	}
+	/**
+	 * Answers a handshake with an error and closes the connection once it is sent.
+	 *
+	 * @param connection the connection
+	 * @param status the HTTP status line
+	 */
+	private void refuse(final Connection connection, final String status) {
+		connection.send(ByteBuffer.wrap(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\n" +
+			"Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII)));
+		connection.closing = true;
+	}
+	public void run() {
+		long nextHeartbeat = System.currentTimeMillis() + heartbeatInterval;
+		try {
+			while (running) {
+				selector.select(Math.max(1L, nextHeartbeat - System.currentTimeMillis()));
+				final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					final SelectionKey key = it.next();
+					it.remove();
+					final Object attachment = key.attachment();
+					try {
+						if (attachment == null) {
+							if (key.isValid() && key.isAcceptable())
+								accept();
+						} else {
+							final Connection connection = (Connection)attachment;
+							if (key.isValid() && key.isReadable())
+								read(connection);
+							if (key.isValid() && key.isWritable())
+								flush(connection);
+						}
+					} catch (IOException | CancelledKeyException e) {
+						if (attachment != null)
+							close((Connection)attachment);
+						else
+							LOGGER.log(Level.WARNING, "Error accepting gateway connection", e);
+					}
+				}
+				final long now = System.currentTimeMillis();
+				if (now >= nextHeartbeat) {
+					heartbeat(now);
+					nextHeartbeat = now + heartbeatInterval;
+				}
+				Connection connection;
+				while ((connection = writable.poll()) != null)
+					try {
+						flush(connection);
+					} catch (IOException | CancelledKeyException e) {
+						close(connection);
+					}
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Push gateway stopped", e);
+		} finally {
+			for (final SelectionKey key : selector.keys())
+				if (key.attachment() instanceof Connection)
+					close((Connection)key.attachment());
+			try {
+				serverChannel.close();
+				selector.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Error closing push gateway", e);
+			}
+		}
+	}
+	/**
+	 * Stops accepting connections and closes every connection.
+	 */
+	public void shutdown() {
+		final Thread current = thread;
+		if (current != null) {
+			running = false;
+			selector.wakeup();
+			try {
+				current.join(2000L);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	/**
+	 * Starts accepting connections.
+	 *
+	 * @param address the address on which to listen
+	 * @param backlog the TCP connection backlog
+	 * @throws IOException if the gateway cannot listen on the address
+	 */
+	public void start(final InetSocketAddress address, final int backlog) throws IOException {
+		if (address == null)
+			throw new IllegalArgumentException("address");
+		if (thread != null)
+			throw new IllegalStateException("Push gateway already started");
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		serverChannel.bind(address, backlog);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		running = true;
+		thread = new Thread(this, "PushGateway");
+		thread.setDaemon(true);
+		thread.start();
+		LOGGER.log(Level.INFO, "Push gateway listening on " + address);
+	}
+	public String toString() {
+		return "Push gateway (" + connections.get() + " connections)";
+	}
+	/**
+	 * Removes a connection from the group index.
+	 *
+	 * @param connection the connection
+	 */
+	private synchronized void unindex(final Connection connection) {
+		final Set<Connection> devices = byUser.get(connection.username);
+		if (devices != null && devices.remove(connection) && devices.isEmpty())
+			byUser.remove(connection.username);
+		for (final int group : connection.groups) {
+			final Set<Connection> members = byGroup.get(group);
+			if (members != null && members.remove(connection) && members.isEmpty())
+				byGroup.remove(group);
+		}
+	}
+
+	/**
+	 * Checks the credentials of devices connecting to the gateway.
+	 */
+	public interface Authenticator {
+		/**
+		 * Checks a device's credentials. Called on the selector thread while holding the
+		 * gateway lock, so it must not block or call into the gateway.
+		 *
+		 * @param username the username
+		 * @param challenge the challenge from the user's last login or refresh
+		 * @return the IDs of the user's groups, or null if the credentials are not valid
+		 */
+		int[] authenticate(String username, String challenge);
+	}
+
+	/**
+	 * Reports the statistics of a push gateway.
+	 */
+	public static final class GatewayMetrics {
+		/**
+		 * The number of open connections.
+		 */
+		public int connections;
+		/**
+		 * The number of pings queued to connections.
+		 */
+		public long pushed;
+		/**
+		 * The number of connections refused because the gateway was full.
+		 */
+		public long rejected;
+		/**
+		 * The number of connections dropped because they could not keep up.
+		 */
+		public long slow;
+		/**
+		 * The number of connections dropped because they stopped answering heartbeats.
+		 */
+		public long timedOut;
+
+		public GatewayMetrics() {
+			connections = 0;
+			pushed = 0L;
+			rejected = 0L;
+			slow = 0L;
+			timedOut = 0L;
+		}
+		GatewayMetrics(final int connections, final long pushed, final long rejected,
+					   final long slow, final long timedOut) {
+			this.connections = connections;
+			this.pushed = pushed;
+			this.rejected = rejected;
+			this.slow = slow;
+			this.timedOut = timedOut;
+		}
+	}
+
+	/**
+	 * A device connection. Fields other than the write queue are only used on the selector
+	 * thread, except the username and groups which are guarded by the gateway lock.
+	 */
+	private final class Connection {
+		/**
+		 * The socket.
+		 */
+		final SocketChannel channel;
+		/**
+		 * Whether the connection has been closed. Guarded by the connection lock.
+		 */
+		private boolean closed;
+		/**
+		 * Whether the connection is closed once its queued frames are written. Set under the
+		 * connection lock when set off the selector thread.
+		 */
+		boolean closing;
+		/**
+		 * The IDs of the user's groups, or null until the handshake completes.
+		 */
+		int[] groups;
+		/**
+		 * The selection key of the socket.
+		 */
+		SelectionKey key;
+		/**
+		 * When the device last sent anything.
+		 */
+		long lastSeen;
+		/**
+		 * Whether more was queued than the connection may hold. Guarded by the connection
+		 * lock.
+		 */
+		boolean overflowed;
+		/**
+		 * Bytes received which do not yet make up a complete frame or handshake, or null.
+		 */
+		byte[] partial;
+		/**
+		 * The frames waiting to be written, or null if nothing has been queued yet. Guarded by
+		 * the connection lock.
+		 */
+		Deque<ByteBuffer> queue;
+		/**
+		 * The number of bytes waiting to be written. Guarded by the connection lock.
+		 */
+		int queued;
+		/**
+		 * The authenticated username, or null until the handshake completes.
+		 */
+		String username;
+		/**
+		 * Whether the connection is waiting for the selector thread to write. Guarded by the
+		 * connection lock.
+		 */
+		boolean writeQueued;
+
+		Connection(final SocketChannel channel) {
+			this.channel = channel;
+			closed = false;
+			closing = false;
+			groups = null;
+			key = null;
+			lastSeen = System.currentTimeMillis();
+			overflowed = false;
+			partial = null;
+			queue = null;
+			queued = 0;
+			username = null;
+			writeQueued = false;
+		}
+		/**
+		 * Marks the connection closed and drops anything queued.
+		 *
+		 * @return true if the connection was open
+		 */
+		synchronized boolean close() {
+			final boolean wasOpen = !closed;
+			closed = true;
+			queue = null;
+			return wasOpen;
+		}
+		/**
+		 * Queues a frame to be written by the selector thread. If the connection already has
+		 * too much queued, it is dropped instead.
+		 *
+		 * @param frame the frame
+		 * @return true if the frame was queued
+		 */
+		synchronized boolean send(final ByteBuffer frame) {
+			if (closed || overflowed)
+				return false;
+			final int n = frame.remaining();
+			if (queued + n > PENDING_MAX)
+				overflowed = true;
+			else {
+				if (queue == null)
+					queue = new ArrayDeque<>(4);
+				queue.addLast(frame);
+				queued += n;
+			}
+			if (!writeQueued) {
+				writeQueued = true;
+				writable.add(this);
+			}
+			return !overflowed;
+		}
+		/**
+		 * Queues a close frame, after which the connection is closed once everything queued
+		 * is written. May be called from any thread.
+		 *
+		 * @param frame the close frame
+		 */
+		synchronized void sendClose(final ByteBuffer frame) {
+			send(frame);
+			closing = true;
+		}
+	}
+}
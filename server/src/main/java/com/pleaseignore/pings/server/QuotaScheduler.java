@@ -0,0 +1,127 @@
+package com.pleaseignore.pings.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds back traffic to remote services which have asked us to slow down. Each service has a
+ * lane; when a response carries a Retry-After delay, the lane is held until that time, and
+ * every caller of that service waits for the hold to pass instead of retrying on its own
+ * schedule and being throttled harder.
+ */
+public final class QuotaScheduler {
+	/**
+	 * Logs any unusual errors which occur in this class (most are passed upstream).
+	 */
+	private static final Logger LOGGER = Logger.getLogger(QuotaScheduler.class.getName());
+	/**
+	 * The longest hold honored in milliseconds, in case a server sends a nonsensical delay.
+	 */
+	private static final long MAX_HOLD = 600000L;
+
+	/**
+	 * The lanes by service name.
+	 */
+	private final ConcurrentMap<String, Lane> lanes;
+
+	public QuotaScheduler() {
+		lanes = new ConcurrentHashMap<>(8);
+	}
+	/**
+	 * Reports the remaining hold of every lane.
+	 *
+	 * @return the remaining hold in milliseconds by service name
+	 */
+	public Map<String, Long> getMetrics() {
+		final Map<String, Long> ret = new TreeMap<>();
+		for (final Map.Entry<String, Lane> entry : lanes.entrySet())
+			ret.put(entry.getKey(), entry.getValue().getDelay());
+		return ret;
+	}
+	/**
+	 * Retrieves the lane for a service, creating it if necessary.
+	 *
+	 * @param service the service name
+	 * @return the lane for that service
+	 */
+	public Lane lane(final String service) {
+		Lane lane = lanes.get(service);
+		if (lane == null) {
+			final Lane created = new Lane(service);
+			lane = lanes.putIfAbsent(service, created);
+			if (lane == null)
+				lane = created;
+		}
+		return lane;
+	}
+
+	/**
+	 * The hold state of one remote service.
+	 */
+	public static final class Lane {
+		/**
+		 * The time (System.currentTimeMillis()) until which requests are held.
+		 */
+		private long heldUntil;
+		/**
+		 * The service name.
+		 */
+		private final String name;
+
+		private Lane(final String name) {
+			heldUntil = 0L;
+			this.name = name;
+		}
+		/**
+		 * Waits until the service will accept requests again.
+		 *
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		public synchronized void await() throws InterruptedException {
+			long delay;
+			// The hold may be extended while waiting
+			while ((delay = heldUntil - System.currentTimeMillis()) > 0L)
+				wait(delay);
+		}
+		/**
+		 * Reports how long requests will still be held.
+		 *
+		 * @return the remaining hold in milliseconds, or 0 if not held
+		 */
+		public synchronized long getDelay() {
+			return Math.max(0L, heldUntil - System.currentTimeMillis());
+		}
+		/**
+		 * Retrieves the name of the service.
+		 *
+		 * @return the service name
+		 */
+		public String getName() {
+			return name;
+		}
+		/**
+		 * Holds requests to the service for the specified time. Holds never shorten an
+		 * existing hold.
+		 *
+		 * @param delay the time to hold requests in milliseconds
+		 */
+		public synchronized void holdFor(final long delay) {
+			if (delay > 0L) {
+				final long until = System.currentTimeMillis() + Math.min(delay, MAX_HOLD);
+				if (until > heldUntil) {
+					heldUntil = until;
+					LOGGER.log(Level.INFO, "Holding requests to " + name + " for " + delay +
+						" ms");
+					notifyAll();
+				}
+			}
+		}
+		public String toString() {
+			return "Quota lane " + name;
+		}
+	}
+}
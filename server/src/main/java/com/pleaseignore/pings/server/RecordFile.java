@@ -0,0 +1,284 @@
+package com.pleaseignore.pings.server;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of checksummed records, used by the durable logs of the server. Each
+ * record is written as [length][CRC-32][payload] in one call, so a crash tears at most the
+ * last record, which is discarded when the file is read back.
+ *
+ * Records reach the operating system as soon as they are appended, and are forced to disk
+ * either periodically with sync() or on demand with commit(). Concurrent commits are grouped:
+ * one caller forces the file while the others wait, and every record appended before the
+ * force started becomes durable at once, so a burst of writers pays for only a few fsyncs.
+ */
+final class RecordFile {
+	/**
+	 * Logs any unusual errors which occur in this class (most are passed upstream).
+	 */
+	private static final Logger LOGGER = Logger.getLogger(RecordFile.class.getName());
+	/**
+	 * The largest record payload which will be read back.
+	 */
+	private static final int MAX_RECORD = 64 * 1024 * 1024;
+
+	/**
+	 * Whether records have been appended since the last force.
+	 */
+	private boolean dirty;
+	/**
+	 * The position up to which records are known to be on disk.
+	 */
+	private long durable;
+	/**
+	 * The file.
+	 */
+	private final File file;
+	/**
+	 * Guards durable and syncing, and is waited on by commits and rewrites in progress.
+	 */
+	private final Object lock;
+	/**
+	 * The length of the file in bytes.
+	 */
+	private long length;
+	/**
+	 * The open file, or null if not open.
+	 */
+	private FileOutputStream out;
+	/**
+	 * Whether a commit is forcing the file, or a rewrite replacing it, right now.
+	 */
+	private boolean syncing;
+	/**
+	 * The position at the end of the last record appended. Positions count every byte ever
+	 * appended, so they keep increasing even when the file is rewritten.
+	 */
+	private long written;
+
+	/**
+	 * Creates a record file. No I/O is performed until open() is called.
+	 *
+	 * @param file the file to use
+	 */
+	RecordFile(final File file) {
+		if (file == null)
+			throw new IllegalArgumentException("file");
+		dirty = false;
+		durable = 0L;
+		this.file = file;
+		length = 0L;
+		lock = new Object();
+		out = null;
+		syncing = false;
+		written = 0L;
+	}
+	/**
+	 * Appends a record. The record is not necessarily on disk until it is committed.
+	 *
+	 * @param payload the record payload
+	 * @return the position at the end of the record, to be passed to commit()
+	 * @throws IOException if the record cannot be written
+	 */
+	synchronized long append(final byte[] payload) throws IOException {
+		if (out == null)
+			throw new IOException("Record file " + file + " is not open");
+		final CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream(payload.length + 8);
+		final DataOutputStream data = new DataOutputStream(buffer);
+		data.writeInt(payload.length);
+		data.writeInt((int)crc.getValue());
+		data.write(payload);
+		data.flush();
+		buffer.writeTo(out);
+		dirty = true;
+		length += buffer.size();
+		written += buffer.size();
+		return written;
+	}
+	/**
+	 * Closes the file after forcing it to disk.
+	 */
+	void close() {
+		sync();
+		synchronized (this) {
+			if (out != null)
+				try {
+					out.close();
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Unable to close " + file, e);
+				}
+			out = null;
+		}
+	}
+	/**
+	 * Waits until every record up to the specified position is on disk, forcing the file
+	 * if no other commit is already doing so.
+	 *
+	 * @param end the position returned by append()
+	 * @throws IOException if the file cannot be forced
+	 */
+	void commit(final long end) throws IOException {
+		while (true) {
+			synchronized (lock) {
+				while (syncing && durable < end)
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted during commit");
+					}
+				if (durable >= end)
+					break;
+				// Lead the next group commit
+				syncing = true;
+			}
+			long target = 0L;
+			try {
+				final FileChannel channel;
+				synchronized (this) {
+					target = written;
+					dirty = false;
+					channel = (out == null) ? null : out.getChannel();
+				}
+				if (channel == null)
+					throw new IOException("Record file " + file + " is not open");
+				channel.force(false);
+			} catch (IOException e) {
+				target = 0L;
+				throw e;
+			} finally {
+				synchronized (lock) {
+					durable = Math.max(durable, target);
+					syncing = false;
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+	/**
+	 * Opens the file, reading back every intact record. Reading stops at the first damaged
+	 * or incomplete record, which is dropped when the file is next rewritten.
+	 *
+	 * @return the record payloads in the order they were written
+	 * @throws IOException if the file cannot be read or opened for writing
+	 */
+	synchronized List<byte[]> open() throws IOException {
+		final List<byte[]> ret = new ArrayList<>(64);
+		long valid = 0L;
+		if (file.exists()) {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+			final CRC32 crc = new CRC32();
+			try {
+				while (true) {
+					final int len = in.readInt(), checksum = in.readInt();
+					if (len < 0 || len > MAX_RECORD)
+						throw new EOFException("Invalid record length");
+					final byte[] payload = new byte[len];
+					in.readFully(payload);
+					crc.reset();
+					crc.update(payload, 0, len);
+					if ((int)crc.getValue() != checksum)
+						throw new EOFException("Invalid record checksum");
+					ret.add(payload);
+					valid += len + 8;
+				}
+			} catch (EOFException e) {
+				// End of the file, or a torn write from a crash
+				LOGGER.log(Level.FINEST, "End of " + file + ": " + e.getMessage());
+			} finally {
+				in.close();
+			}
+		}
+		if (valid < file.length())
+			LOGGER.log(Level.WARNING, "Discarding " + (file.length() - valid) + " damaged " +
+				"bytes at the end of " + file);
+		out = new FileOutputStream(file, true);
+		// Cut off any torn record so that new records follow the last intact one
+		out.getChannel().truncate(valid);
+		length = valid;
+		written += valid;
+		synchronized (lock) {
+			durable = written;
+		}
+		return ret;
+	}
+	/**
+	 * Atomically replaces the contents of the file with the specified records. Waits for any
+	 * commit forcing the old file to finish, and holds off new ones until the file is
+	 * replaced, so that none forces a stream which has been closed.
+	 *
+	 * @param payloads the records to keep
+	 * @throws IOException if the file cannot be rewritten
+	 */
+	void rewrite(final Collection<byte[]> payloads) throws IOException {
+		synchronized (lock) {
+			while (syncing)
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted during rewrite");
+				}
+			// Commits wait for this like any other group commit
+			syncing = true;
+		}
+		long target = 0L;
+		try {
+			synchronized (this) {
+				if (out != null)
+					out.close();
+				final File temp = new File(file.getPath() + ".tmp");
+				out = new FileOutputStream(temp);
+				length = 0L;
+				for (final byte[] payload : payloads)
+					append(payload);
+				out.getChannel().force(true);
+				out.close();
+				if (!temp.renameTo(file) && (!file.delete() || !temp.renameTo(file)))
+					throw new IOException("Unable to replace " + file);
+				out = new FileOutputStream(file, true);
+				dirty = false;
+				target = written;
+			}
+		} finally {
+			synchronized (lock) {
+				durable = Math.max(durable, target);
+				syncing = false;
+				lock.notifyAll();
+			}
+		}
+	}
+	/**
+	 * Reports the length of the file.
+	 *
+	 * @return the file length in bytes
+	 */
+	synchronized long size() {
+		return length;
+	}
+	/**
+	 * Forces all records appended so far to disk, if any were appended since the last force.
+	 */
+	void sync() {
+		final boolean needed;
+		final long end;
+		synchronized (this) {
+			needed = dirty && out != null;
+			end = written;
+		}
+		if (needed)
+			try {
+				commit(end);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Unable to sync " + file, e);
+			}
+	}
+}
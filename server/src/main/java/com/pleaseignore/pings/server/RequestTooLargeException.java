@@ -0,0 +1,17 @@
+package com.pleaseignore.pings.server;
+
+import java.io.IOException;
+
+/**
+ * A class representing an exception thrown when a request body is longer than the server
+ * accepts.
+ */
+public class RequestTooLargeException extends IOException {
+	private static final long serialVersionUID = 4720913358672214569L;
+
+	public RequestTooLargeException() {
+	}
+	public RequestTooLargeException(String message) {
+		super(message);
+	}
+}
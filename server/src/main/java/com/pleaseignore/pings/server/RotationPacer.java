@@ -0,0 +1,386 @@
+package com.pleaseignore.pings.server;
+
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Spreads the subscription changes of a rotation over time, so that they finish by a target
+ * time instead of reaching the Instance ID API in one burst. Tasks are released to the
+ * executor in the order submitted, each after an interval which spreads the remaining tasks
+ * evenly up to the deadline; if the deadline moves or pacing is paused, the interval is
+ * recomputed from what is left.
+ *
+ * A run lasts from the first task submitted until every released task reports that it is
+ * finished and the queue is empty, at which point the idle callback is invoked. The counts
+ * of the last run are kept until the next one starts.
+ */
+public final class RotationPacer {
+	/**
+	 * Logs any unusual errors which occur in this class (most are passed upstream).
+	 */
+	private static final Logger LOGGER = Logger.getLogger(RotationPacer.class.getName());
+
+	/**
+	 * The number of released tasks which have finished in this run.
+	 */
+	private int completed;
+	/**
+	 * The time by which all queued tasks should be released.
+	 */
+	private long deadline;
+	/**
+	 * The number of tasks dropped by aborts in this run.
+	 */
+	private int dropped;
+	/**
+	 * Runs the released tasks, and times the releases.
+	 */
+	private final ScheduledExecutorService executor;
+	/**
+	 * The next scheduled release, or null if none is scheduled.
+	 */
+	private ScheduledFuture<?> next;
+	/**
+	 * Invoked, outside of the pacer lock, when a run finishes.
+	 */
+	private final Runnable onIdle;
+	/**
+	 * The time at which pacing was paused, or 0 if not paused.
+	 */
+	private long pausedAt;
+	/**
+	 * The total time spent paused in this run in milliseconds.
+	 */
+	private long pausedMillis;
+	/**
+	 * The tasks waiting to be released.
+	 */
+	private final Deque<Runnable> queue;
+	/**
+	 * The number of tasks released in this run.
+	 */
+	private int released;
+	/**
+	 * Releases the next task when scheduled.
+	 */
+	private final Runnable releaser;
+	/**
+	 * The time at which this run started, or 0 if idle.
+	 */
+	private long started;
+	/**
+	 * Whether the pacer has been shut down.
+	 */
+	private boolean stopped;
+	/**
+	 * The number of tasks submitted in this run.
+	 */
+	private int total;
+
+	/**
+	 * Creates a new rotation pacer.
+	 *
+	 * @param executor the executor which runs the tasks and times their release
+	 * @param onIdle invoked when every task of a run has finished, or was dropped
+	 */
+	public RotationPacer(final ScheduledExecutorService executor, final Runnable onIdle) {
+		if (executor == null)
+			throw new IllegalArgumentException("executor");
+		if (onIdle == null)
+			throw new IllegalArgumentException("onIdle");
+		completed = 0;
+		deadline = 0L;
+		dropped = 0;
+		this.executor = executor;
+		next = null;
+		this.onIdle = onIdle;
+		pausedAt = 0L;
+		pausedMillis = 0L;
+		queue = new ArrayDeque<>(64);
+		released = 0;
+		releaser = new Runnable() {
+			public void run() {
+				release();
+			}
+		};
+		started = 0L;
+		stopped = false;
+		total = 0;
+	}
+	/**
+	 * Drops every task which has not been released yet. Tasks already released run to
+	 * completion.
+	 *
+	 * @return the dropped tasks, in the order they would have run
+	 */
+	public List<Runnable> abort() {
+		final List<Runnable> ret;
+		final boolean idle;
+		synchronized (this) {
+			ret = new ArrayList<>(queue);
+			queue.clear();
+			dropped += ret.size();
+			cancelRelease();
+			if (pausedAt > 0L)
+				resumeClock();
+			idle = checkIdle();
+		}
+		if (ret.size() > 0)
+			LOGGER.log(Level.INFO, "Rotation aborted, dropped " + ret.size() + " tasks");
+		if (idle)
+			onIdle.run();
+		return ret;
+	}
+	/**
+	 * Cancels the next scheduled release, if any.
+	 */
+	private void cancelRelease() {
+		if (next != null) {
+			next.cancel(false);
+			next = null;
+		}
+	}
+	/**
+	 * Ends the run if nothing is queued or running. Must hold the pacer lock.
+	 *
+	 * @return true if a run just ended, in which case the idle callback should be invoked
+	 */
+	private boolean checkIdle() {
+		final boolean idle = started > 0L && queue.isEmpty() && completed >= released;
+		if (idle) {
+			LOGGER.log(Level.FINE, "Rotation finished: " + released + " tasks released, " +
+				dropped + " dropped");
+			started = 0L;
+		}
+		return idle;
+	}
+	/**
+	 * Reports that a released task has finished, including any retries.
+	 */
+	public void finished() {
+		final boolean idle;
+		synchronized (this) {
+			if (completed < released)
+				completed++;
+			idle = checkIdle();
+		}
+		if (idle)
+			onIdle.run();
+	}
+	/**
+	 * Reports the progress of the current run.
+	 *
+	 * @return the pacer progress
+	 */
+	public synchronized Progress getProgress() {
+		final long now = System.currentTimeMillis();
+		final String state;
+		long eta = 0L;
+		if (started == 0L)
+			state = "idle";
+		else if (pausedAt > 0L)
+			state = "paused";
+		else {
+			state = "running";
+			// Releases are paced to the deadline, after which the observed throughput decides
+			final long elapsed = now - started - pausedMillis;
+			final int remaining = queue.size() + released - completed;
+			if (now < deadline)
+				eta = deadline;
+			else if (completed > 0 && elapsed > 0L)
+				eta = now + elapsed * remaining / completed;
+			else
+				eta = now;
+		}
+		return new Progress(state, total, released, completed, dropped, started, deadline,
+			eta);
+	}
+	/**
+	 * Checks to see if a run is in progress.
+	 *
+	 * @return true if no tasks are queued or running
+	 */
+	public synchronized boolean isIdle() {
+		return started == 0L;
+	}
+	/**
+	 * Stops releasing tasks until resumed. Queued tasks are kept.
+	 *
+	 * @return true if paused, or false if already paused or idle
+	 */
+	public synchronized boolean pause() {
+		final boolean ok = started > 0L && pausedAt == 0L;
+		if (ok) {
+			pausedAt = System.currentTimeMillis();
+			cancelRelease();
+			LOGGER.log(Level.INFO, "Rotation paused with " + queue.size() + " tasks queued");
+		}
+		return ok;
+	}
+	/**
+	 * Releases the next queued task, then schedules the one after.
+	 */
+	private synchronized void release() {
+		next = null;
+		final Runnable task;
+		if (pausedAt == 0L && !stopped && (task = queue.poll()) != null) {
+			try {
+				executor.execute(task);
+				released++;
+			} catch (RejectedExecutionException e) {
+				queue.addFirst(task);
+			}
+			schedule();
+		}
+	}
+	/**
+	 * Starts releasing tasks again after a pause. The remaining tasks are spread over the
+	 * time left before the deadline, or released at once if it has passed.
+	 *
+	 * @return true if resumed, or false if not paused
+	 */
+	public synchronized boolean resume() {
+		final boolean ok = pausedAt > 0L;
+		if (ok) {
+			resumeClock();
+			schedule();
+			LOGGER.log(Level.INFO, "Rotation resumed with " + queue.size() + " tasks queued");
+		}
+		return ok;
+	}
+	/**
+	 * Adds the time since the pause to the paused total. Must hold the pacer lock.
+	 */
+	private void resumeClock() {
+		pausedMillis += System.currentTimeMillis() - pausedAt;
+		pausedAt = 0L;
+	}
+	/**
+	 * Schedules the next release, spacing the remaining tasks evenly up to the deadline. Must
+	 * hold the pacer lock.
+	 */
+	private void schedule() {
+		cancelRelease();
+		final int remaining = queue.size();
+		if (remaining > 0 && pausedAt == 0L && !stopped) {
+			final long delay = Math.max(0L, deadline - System.currentTimeMillis()) / remaining;
+			try {
+				next = executor.schedule(releaser, delay, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// Shutting down, the tasks stay in the outbox for the next start
+				LOGGER.log(Level.INFO, "Deferring " + remaining + " rotation tasks until " +
+					"restart");
+				stopped = true;
+			}
+		}
+	}
+	/**
+	 * Stops releasing tasks for good, as the server is shutting down. Queued tasks are left
+	 * for the caller to resume on the next start.
+	 *
+	 * @return the number of tasks which were never released
+	 */
+	public synchronized int shutdown() {
+		stopped = true;
+		cancelRelease();
+		return queue.size();
+	}
+	/**
+	 * Queues tasks behind any already waiting and moves the deadline of the whole queue. A
+	 * deadline in the past releases everything at once. With no tasks, only the deadline of
+	 * a run in progress is moved.
+	 *
+	 * @param tasks the tasks to release, possibly none, in order
+	 * @param deadline the time by which every queued task should be released
+	 */
+	public synchronized void submit(final Collection<? extends Runnable> tasks,
+									final long deadline) {
+		if (tasks == null)
+			throw new IllegalArgumentException("tasks");
+		if ((tasks.size() > 0 || started != 0L) && !stopped) {
+			if (started == 0L) {
+				completed = 0;
+				dropped = 0;
+				pausedMillis = 0L;
+				released = 0;
+				started = System.currentTimeMillis();
+				total = 0;
+			}
+			queue.addAll(tasks);
+			total += tasks.size();
+			this.deadline = deadline;
+			if (pausedAt == 0L)
+				schedule();
+		}
+	}
+	public String toString() {
+		return "Rotation pacer (" + getProgress().state + ")";
+	}
+
+	/**
+	 * Reports the progress of a paced rotation.
+	 */
+	public static final class Progress {
+		/**
+		 * The number of released tasks which have finished.
+		 */
+		public int completed;
+		/**
+		 * The time by which every task should be released, in milliseconds since the epoch.
+		 */
+		public long deadline;
+		/**
+		 * The number of tasks dropped by aborts.
+		 */
+		public int dropped;
+		/**
+		 * The estimated completion time in milliseconds since the epoch, from the deadline
+		 * and the observed throughput, or 0 if idle or paused.
+		 */
+		public long eta;
+		/**
+		 * The number of tasks released so far.
+		 */
+		public int released;
+		/**
+		 * The time at which the run started in milliseconds since the epoch, or 0 if idle.
+		 */
+		public long started;
+		/**
+		 * The pacer state: "idle", "running" or "paused". When idle, the counts are those of
+		 * the last run.
+		 */
+		public String state;
+		/**
+		 * The number of tasks submitted.
+		 */
+		public int total;
+
+		public Progress() {
+			completed = 0;
+			deadline = 0L;
+			dropped = 0;
+			eta = 0L;
+			released = 0;
+			started = 0L;
+			state = "idle";
+			total = 0;
+		}
+		Progress(final String state, final int total, final int released, final int completed,
+				 final int dropped, final long started, final long deadline, final long eta) {
+			this.completed = completed;
+			this.deadline = deadline;
+			this.dropped = dropped;
+			this.eta = eta;
+			this.released = released;
+			this.started = started;
+			this.state = state;
+			this.total = total;
+		}
+	}
+}
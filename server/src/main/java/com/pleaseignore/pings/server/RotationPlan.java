@@ -0,0 +1,400 @@
+package com.pleaseignore.pings.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The subscription changes of a rotation, planned from the session table without holding the
+ * groups lock. The session table is split into partitions of records which are planned in
+ * parallel on a fork/join pool, then the partial plans are concatenated in record order. Each
+ * partition reads its sessions one at a time through a cursor, and records the sessions to
+ * change as record numbers and generations in primitive arrays, so planning makes a few
+ * objects per group and partition rather than per session. Handles and device IDs are only
+ * made for the sessions which expire or are evicted; the subscription tasks read the device
+ * IDs of the others when they are created.
+ *
+ * Sessions confirmed on a rotated group's old topic are removed from it, and non-expired
+ * members are added to the new topic. Expired sessions are removed from the current topics
+ * of the other groups as well. Groups resuming an aborted move add the members not yet
+ * confirmed on their current topic. Sessions of dead devices are evicted without any change, as
+ * the Instance ID API no longer knows them.
+ */
+public final class RotationPlan {
+	/**
+	 * The character set of device IDs in the session table.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/**
+	 * The number of session records planned by one fork/join task.
+	 */
+	private static final int PARTITION_SIZE = 4096;
+
+	/**
+	 * Plans a rotation from the sessions in the table.
+	 *
+	 * @param sessions the session table
+	 * @param current the topic of each group when the plan started, null for removed
+	 * groups
+	 * @param rotate whether each group is rotated
+	 * @param resume whether each group resumes an aborted move to its current topic
+	 * @param deadDevices the device IDs of sessions to evict
+	 * @param pool the pool which plans the partitions
+	 * @return the rotation plan
+	 */
+	public static RotationPlan create(final SessionTable sessions, final GroupTopic[] current,
+									  final boolean[] rotate, final boolean[] resume,
+									  final Set<String> deadDevices, final ForkJoinPool pool) {
+		if (sessions == null)
+			throw new IllegalArgumentException("sessions");
+		if (current == null || rotate == null || current.length != rotate.length)
+			throw new IllegalArgumentException("current");
+		if (resume == null || resume.length != rotate.length)
+			throw new IllegalArgumentException("resume");
+		if (deadDevices == null)
+			throw new IllegalArgumentException("deadDevices");
+		// Sessions in records allocated later logged in since the plan started
+		final int limit = sessions.getRecordLimit();
+		final RotationPlan[] parts = new RotationPlan[(limit + PARTITION_SIZE - 1) /
+			PARTITION_SIZE];
+		// Compared with the table's bytes, so that no session's device ID is decoded
+		final Set<ByteBuffer> dead = new HashSet<>(deadDevices.size() * 2);
+		for (final String deviceID : deadDevices)
+			dead.add(ByteBuffer.wrap(deviceID.getBytes(UTF8)));
+		pool.invoke(new PlanTask(sessions, limit, current, rotate, resume, dead, parts, 0,
+			parts.length));
+		return new RotationPlan(current.length, parts);
+	}
+
+	/**
+	 * The sessions to add to the new topic of each rotated group. In partition plans, null
+	 * if none.
+	 */
+	private final Members[] adds;
+	/**
+	 * The sessions evicted because their device is dead.
+	 */
+	private final List<Map.Entry<String, UserSession>> dead;
+	/**
+	 * The sessions which have expired.
+	 */
+	private final List<Map.Entry<String, UserSession>> expired;
+	/**
+	 * The number of partitions planned.
+	 */
+	private final int partitions;
+	/**
+	 * The sessions to remove from the topic of each group as of the plan. In partition plans,
+	 * null if none.
+	 */
+	private final Members[] removes;
+
+	/**
+	 * Creates an empty plan for one partition.
+	 *
+	 * @param groups the number of group slots
+	 */
+	private RotationPlan(final int groups) {
+		// Most partitions only touch a few groups, so members are made as needed
+		adds = new Members[groups];
+		dead = new ArrayList<>(4);
+		expired = new ArrayList<>(16);
+		partitions = 1;
+		removes = new Members[groups];
+	}
+	/**
+	 * Concatenates the plans of the partitions, in order.
+	 *
+	 * @param groups the number of group slots
+	 * @param parts the partition plans
+	 */
+	private RotationPlan(final int groups, final RotationPlan[] parts) {
+		final int[] addCounts = new int[groups], removeCounts = new int[groups];
+		int deadCount = 0, expiredCount = 0;
+		for (final RotationPlan part : parts) {
+			for (int i = 0; i < groups; i++) {
+				if (part.adds[i] != null)
+					addCounts[i] += part.adds[i].size;
+				if (part.removes[i] != null)
+					removeCounts[i] += part.removes[i].size;
+			}
+			deadCount += part.dead.size();
+			expiredCount += part.expired.size();
+		}
+		adds = new Members[groups];
+		dead = new ArrayList<>(deadCount);
+		expired = new ArrayList<>(expiredCount);
+		partitions = parts.length;
+		removes = new Members[groups];
+		for (int i = 0; i < groups; i++) {
+			adds[i] = new Members(addCounts[i]);
+			removes[i] = new Members(removeCounts[i]);
+		}
+		for (final RotationPlan part : parts) {
+			for (int i = 0; i < groups; i++) {
+				if (part.adds[i] != null)
+					adds[i].addAll(part.adds[i]);
+				if (part.removes[i] != null)
+					removes[i].addAll(part.removes[i]);
+			}
+			dead.addAll(part.dead);
+			expired.addAll(part.expired);
+		}
+	}
+	/**
+	 * Adds a session to the members of a group, creating them if needed.
+	 *
+	 * @param members the members by group
+	 * @param group the group ID
+	 * @param record the record number of the session
+	 * @param generation the generation of the session
+	 */
+	private static void add(final Members[] members, final int group, final int record,
+							final int generation) {
+		Members list = members[group];
+		if (list == null) {
+			list = new Members(64);
+			members[group] = list;
+		}
+		list.add(record, generation);
+	}
+	/**
+	 * Retrieves the sessions to add to the new topic of a rotated group, or to the current
+	 * topic of a resumed group.
+	 *
+	 * @param group the group ID
+	 * @return the sessions to subscribe
+	 */
+	public Members getAdds(final int group) {
+		return adds[group];
+	}
+	/**
+	 * Retrieves the sessions whose device was reported dead.
+	 *
+	 * @return the sessions to evict, with their usernames
+	 */
+	public List<Map.Entry<String, UserSession>> getDead() {
+		return dead;
+	}
+	/**
+	 * Retrieves the sessions which have expired.
+	 *
+	 * @return the sessions to remove, with their usernames
+	 */
+	public List<Map.Entry<String, UserSession>> getExpired() {
+		return expired;
+	}
+	/**
+	 * Retrieves the number of partitions which were planned in parallel.
+	 *
+	 * @return the partition count
+	 */
+	public int getPartitions() {
+		return partitions;
+	}
+	/**
+	 * Retrieves the sessions to remove from the topic of a group as of the plan.
+	 *
+	 * @param group the group ID
+	 * @return the sessions to unsubscribe
+	 */
+	public Members getRemoves(final int group) {
+		return removes[group];
+	}
+	/**
+	 * Plans the changes for one session.
+	 *
+	 * @param cursor the cursor, on the session to plan
+	 * @param current the topic of each group, null for removed groups
+	 * @param rotate whether each group is rotated
+	 * @param resume whether each group resumes an aborted move
+	 * @param deadDevices the device IDs of sessions to evict, in UTF-8
+	 */
+	private void plan(final SessionTable.Cursor cursor, final GroupTopic[] current,
+					  final boolean[] rotate, final boolean[] resume,
+					  final Set<ByteBuffer> deadDevices) {
+		if (!deadDevices.isEmpty() && deadDevices.contains(cursor.getDeviceIDBytes()))
+			// Dead devices have no subscriptions left to change
+			dead.add(new AbstractMap.SimpleImmutableEntry<>(cursor.getUsername(), cursor.
+				getSession()));
+		else {
+			final int record = cursor.getRecord(), generation = cursor.getGeneration();
+			final boolean expired = cursor.isExpired();
+			if (expired)
+				// The rotation ends the session, so its device ID is kept in the handle
+				this.expired.add(new AbstractMap.SimpleImmutableEntry<>(cursor.getUsername(),
+					cursor.getSession()));
+			for (int j = 0, n = cursor.getGroupCount(); j < n; j++) {
+				final int id = cursor.getGroup(j), epoch = cursor.getEpoch(j);
+				// Groups created since the plan started are not rotated
+				final GroupTopic topic = (id < current.length) ? current[id] : null;
+				if (topic != null) {
+					// Rotated groups drop everyone on the old topic, others only expired users
+					if ((rotate[id] || expired) && topic.hasTopic() && epoch == topic.
+							getEpoch())
+						add(removes, id, record, generation);
+					// Resumed groups add those left on the previous topic, which is dropped
+					// once the move finishes
+					if (!expired && (rotate[id] || (resume[id] && epoch != topic.getEpoch())))
+						add(adds, id, record, generation);
+				}
+			}
+		}
+	}
+	public String toString() {
+		return "Rotation plan (" + expired.size() + " expired, " + dead.size() + " dead)";
+	}
+
+	/**
+	 * The sessions of one group to change, as record numbers and generations in primitive
+	 * arrays. Handles for them can be made with the session table.
+	 */
+	public static final class Members {
+		/**
+		 * The generation of each session.
+		 */
+		private int[] generations;
+		/**
+		 * The record number of each session.
+		 */
+		private int[] records;
+		/**
+		 * The number of sessions.
+		 */
+		private int size;
+
+		Members(final int capacity) {
+			generations = new int[capacity];
+			records = new int[capacity];
+			size = 0;
+		}
+		/**
+		 * Adds a session, growing the arrays if needed.
+		 *
+		 * @param record the record number
+		 * @param generation the generation of the session
+		 */
+		void add(final int record, final int generation) {
+			if (size >= records.length) {
+				final int capacity = Math.max(16, records.length * 2);
+				generations = Arrays.copyOf(generations, capacity);
+				records = Arrays.copyOf(records, capacity);
+			}
+			generations[size] = generation;
+			records[size] = record;
+			size++;
+		}
+		/**
+		 * Adds every session of another list, which must fit.
+		 *
+		 * @param other the sessions to add
+		 */
+		void addAll(final Members other) {
+			System.arraycopy(other.generations, 0, generations, size, other.size);
+			System.arraycopy(other.records, 0, records, size, other.size);
+			size += other.size;
+		}
+		/**
+		 * Retrieves the generation of a session.
+		 *
+		 * @param i the session index
+		 * @return the generation
+		 */
+		int getGeneration(final int i) {
+			return generations[i];
+		}
+		/**
+		 * Retrieves the record number of a session.
+		 *
+		 * @param i the session index
+		 * @return the record number
+		 */
+		int getRecord(final int i) {
+			return records[i];
+		}
+		/**
+		 * Retrieves the number of sessions.
+		 *
+		 * @return the session count
+		 */
+		public int size() {
+			return size;
+		}
+	}
+
+	/**
+	 * Plans a range of partitions, splitting it in half until only one remains.
+	 */
+	private static final class PlanTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The topic of each group, null for removed groups.
+		 */
+		private final GroupTopic[] current;
+		/**
+		 * The device IDs of sessions to evict, in UTF-8.
+		 */
+		private final Set<ByteBuffer> deadDevices;
+		/**
+		 * The first partition planned.
+		 */
+		private final int from;
+		/**
+		 * Receives the plan of each partition.
+		 */
+		private final RotationPlan[] parts;
+		/**
+		 * Whether each group resumes an aborted move.
+		 */
+		private final boolean[] resume;
+		/**
+		 * Whether each group is rotated.
+		 */
+		private final boolean[] rotate;
+		/**
+		 * The number of records planned.
+		 */
+		private final int limit;
+		/**
+		 * The session table.
+		 */
+		private final SessionTable sessions;
+		/**
+		 * The partition after the last one planned.
+		 */
+		private final int to;
+
+		PlanTask(final SessionTable sessions, final int limit, final GroupTopic[] current,
+				 final boolean[] rotate, final boolean[] resume,
+				 final Set<ByteBuffer> deadDevices, final RotationPlan[] parts, final int from,
+				 final int to) {
+			this.current = current;
+			this.deadDevices = deadDevices;
+			this.from = from;
+			this.limit = limit;
+			this.parts = parts;
+			this.resume = resume;
+			this.rotate = rotate;
+			this.sessions = sessions;
+			this.to = to;
+		}
+		protected void compute() {
+			if (to - from > 1) {
+				final int mid = (from + to) >>> 1;
+				invokeAll(new PlanTask(sessions, limit, current, rotate, resume, deadDevices,
+					parts, from, mid), new PlanTask(sessions, limit, current, rotate, resume,
+					deadDevices, parts, mid, to));
+			} else if (to > from) {
+				final RotationPlan part = new RotationPlan(current.length);
+				final SessionTable.Cursor cursor = sessions.cursor(from * PARTITION_SIZE,
+					Math.min(limit, to * PARTITION_SIZE));
+				while (cursor.next())
+					part.plan(cursor, current, rotate, resume, deadDevices);
+				parts[from] = part;
+			}
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package com.pleaseignore.pings.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder events emitted by the ping server. The events cost almost nothing while
+ * no recording has them enabled, so they are left in place in production and picked up by the
+ * continuous recording or one started from /recording.
+ *
+ * The event duration covers the whole operation; fields break out the parts of interest.
+ */
+public final class ServerEvents {
+	/**
+	 * The JFR category of all server events.
+	 */
+	private static final String CATEGORY = "Pings";
+
+	/**
+	 * Starts timing a request for the groups lock. Call acquired() once inside the
+	 * synchronized block and released() after leaving it, from a finally block around it so
+	 * that the event is recorded even if the block throws.
+	 *
+	 * @param site the code path taking the lock
+	 * @return the lock event
+	 */
+	public static GroupsLockEvent lockGroups(final String site) {
+		final GroupsLockEvent event = new GroupsLockEvent();
+		event.site = site;
+		event.begin();
+		event.requested = System.nanoTime();
+		return event;
+	}
+	/**
+	 * Starts timing a remote call.
+	 *
+	 * @param service the remote service, such as "fcm" or "iid"
+	 * @param method the request method or operation
+	 * @return the remote call event
+	 */
+	public static RemoteCallEvent remoteCall(final String service, final String method) {
+		final RemoteCallEvent event = new RemoteCallEvent();
+		event.service = service;
+		event.method = method;
+		event.begin();
+		return event;
+	}
+	/**
+	 * Starts timing a phase of a group rotation.
+	 *
+	 * @param phase the phase name
+	 * @return the rotation event
+	 */
+	public static RotationEvent rotation(final String phase) {
+		final RotationEvent event = new RotationEvent();
+		event.phase = phase;
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Time spent waiting for and holding the groups monitor, by code path.
+	 */
+	@Name("com.pleaseignore.pings.GroupsLock")
+	@Label("Groups Lock")
+	@Category(CATEGORY)
+	@Description("Wait for and hold of the groups monitor")
+	@StackTrace(false)
+	public static final class GroupsLockEvent extends Event {
+		/**
+		 * When the lock was acquired (System.nanoTime()).
+		 */
+		private transient long acquired;
+		/**
+		 * The time the lock was held.
+		 */
+		@Label("Hold Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long holdTime;
+		/**
+		 * When the lock was requested (System.nanoTime()).
+		 */
+		private transient long requested;
+		/**
+		 * The code path taking the lock.
+		 */
+		@Label("Site")
+		String site;
+		/**
+		 * The time spent waiting for the lock.
+		 */
+		@Label("Wait Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long waitTime;
+
+		GroupsLockEvent() {
+			acquired = 0L;
+			holdTime = 0L;
+			requested = 0L;
+			site = "";
+			waitTime = 0L;
+		}
+		/**
+		 * Marks the lock as acquired.
+		 */
+		public void acquired() {
+			acquired = System.nanoTime();
+			waitTime = acquired - requested;
+		}
+		/**
+		 * Marks the lock as released and records the event.
+		 */
+		public void released() {
+			if (shouldCommit()) {
+				holdTime = System.nanoTime() - acquired;
+				commit();
+			}
+		}
+	}
+
+	/**
+	 * Execution of one HTTP request, including the time spent queued for admission.
+	 */
+	@Name("com.pleaseignore.pings.Handler")
+	@Label("HTTP Handler")
+	@Category(CATEGORY)
+	@Description("Admission and execution of an HTTP request")
+	@StackTrace(false)
+	public static final class HandlerEvent extends Event {
+		/**
+		 * Whether the request was admitted rather than shed.
+		 */
+		@Label("Admitted")
+		boolean admitted;
+		/**
+		 * The endpoint name.
+		 */
+		@Label("Endpoint")
+		String endpoint;
+		/**
+		 * The request method.
+		 */
+		@Label("Method")
+		String method;
+		/**
+		 * The time spent waiting for a worker thread and an admission slot.
+		 */
+		@Label("Queue Time")
+		@Timespan(Timespan.MILLISECONDS)
+		long queueTime;
+
+		HandlerEvent() {
+			admitted = false;
+			endpoint = "";
+			method = "";
+			queueTime = 0L;
+		}
+	}
+
+	/**
+	 * A request to FCM or the Instance ID API, excluding any wait for a quota hold or the
+	 * concurrency limit.
+	 */
+	@Name("com.pleaseignore.pings.RemoteCall")
+	@Label("Remote Call")
+	@Category(CATEGORY)
+	@Description("Round trip to FCM or the Instance ID API")
+	@StackTrace(false)
+	public static final class RemoteCallEvent extends Event {
+		/**
+		 * The request method or operation.
+		 */
+		@Label("Method")
+		String method;
+		/**
+		 * The outcome reported to the concurrency limiter.
+		 */
+		@Label("Outcome")
+		String outcome;
+		/**
+		 * The remote service.
+		 */
+		@Label("Service")
+		String service;
+		/**
+		 * The HTTP status code, or 0 if no response was received.
+		 */
+		@Label("Status")
+		int status;
+
+		RemoteCallEvent() {
+			method = "";
+			outcome = "";
+			service = "";
+			status = 0;
+		}
+		/**
+		 * Records the end of the call.
+		 *
+		 * @param status the HTTP status code, or 0 if no response was received
+		 * @param outcome the outcome of the call
+		 */
+		public void finish(final int status, final AdaptiveLimiter.Outcome outcome) {
+			if (shouldCommit()) {
+				this.outcome = outcome.name();
+				this.status = status;
+				commit();
+			}
+		}
+	}
+
+	/**
+	 * One phase of a group rotation.
+	 */
+	@Name("com.pleaseignore.pings.Rotation")
+	@Label("Rotation Phase")
+	@Category(CATEGORY)
+	@Description("Phase of a group topic rotation")
+	@StackTrace(false)
+	public static final class RotationEvent extends Event {
+		/**
+		 * The phase name.
+		 */
+		@Label("Phase")
+		String phase;
+		/**
+		 * The number of sessions affected by the phase.
+		 */
+		@Label("Sessions")
+		int sessions;
+
+		RotationEvent() {
+			phase = "";
+			sessions = 0;
+		}
+		/**
+		 * Records the end of the phase.
+		 *
+		 * @param sessions the number of sessions affected
+		 */
+		public void finish(final int sessions) {
+			if (shouldCommit()) {
+				this.sessions = sessions;
+				commit();
+			}
+		}
+	}
+
+	/**
+	 * Execution of a task on the server thread pool, with how long it waited past the time it
+	 * was due to start.
+	 */
+	@Name("com.pleaseignore.pings.Task")
+	@Label("Pool Task")
+	@Category(CATEGORY)
+	@Description("Queueing and execution of a thread pool task")
+	@StackTrace(false)
+	public static final class TaskEvent extends Event {
+		/**
+		 * The time from when the task was due until it started.
+		 */
+		@Label("Queue Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long queueTime;
+		/**
+		 * The task class.
+		 */
+		@Label("Task")
+		String task;
+
+		TaskEvent() {
+			queueTime = 0L;
+			task = "";
+		}
+	}
+}
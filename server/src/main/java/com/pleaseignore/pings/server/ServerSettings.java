@@ -0,0 +1,318 @@
+package com.pleaseignore.pings.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tunable settings for the ping server. Settings are read from "pings.properties" in the same
+ * directory as the FCM settings ("user home"/.fcmjava), and any setting which is missing or
+ * malformed falls back to its default.
+ */
+public final class ServerSettings {
+	/**
+	 * Prefix for per-endpoint admission settings, followed by the endpoint path and one of
+	 * ".maxConcurrent", ".maxQueue" or ".maxWaitMillis" (e.g. "admission./login.maxQueue").
+	 */
+	public static final String ADMISSION_PREFIX = "admission.";
+	/**
+	 * The Retry-After value in seconds sent with requests shed by admission control.
+	 */
+	public static final String ADMISSION_RETRY_AFTER = "admission.retryAfterSeconds";
+	/**
+	 * How long the circuit breaker stops group lookups after it opens, in seconds.
+	 */
+	public static final String AUTH_BREAKER_COOLDOWN = "auth.breakerCooldownSeconds";
+	/**
+	 * The number of consecutive failed group lookups which opens the circuit breaker.
+	 */
+	public static final String AUTH_BREAKER_FAILURES = "auth.breakerFailures";
+	/**
+	 * The maximum number of users whose groups are cached.
+	 */
+	public static final String AUTH_CACHE_SIZE = "auth.cacheSize";
+	/**
+	 * How long cached groups remain valid, in seconds.
+	 */
+	public static final String AUTH_CACHE_TTL = "auth.cacheTtlSeconds";
+	/**
+	 * The class name of the authentication provider, or unset to use the local membership
+	 * records.
+	 */
+	public static final String AUTH_PROVIDER = "auth.provider";
+	/**
+	 * How long before expiry cached groups which are used are refreshed, in seconds.
+	 */
+	public static final String AUTH_REFRESH_AHEAD = "auth.refreshAheadSeconds";
+	/**
+	 * The number of threads which look up groups from the authentication provider.
+	 */
+	public static final String AUTH_THREADS = "auth.threads";
+	/**
+	 * The longest time a login waits for a group lookup, in milliseconds.
+	 */
+	public static final String AUTH_TIMEOUT = "auth.timeoutMillis";
+	/**
+	 * The largest number of concurrent requests to FCM.
+	 */
+	public static final String FCM_MAX_CONCURRENCY = "fcm.maxConcurrency";
+	/**
+	 * How often the push gateway sends a heartbeat to each connection in seconds. Connections
+	 * silent for two intervals are dropped.
+	 */
+	public static final String GATEWAY_HEARTBEAT = "gateway.heartbeatSeconds";
+	/**
+	 * The maximum number of connections to the push gateway.
+	 */
+	public static final String GATEWAY_MAX_CONNECTIONS = "gateway.maxConnections";
+	/**
+	 * The port on which the push gateway listens, or 0 to disable it.
+	 */
+	public static final String GATEWAY_PORT = "gateway.port";
+	/**
+	 * The TCP connection backlog of the HTTP server and push gateway.
+	 */
+	public static final String HTTP_BACKLOG = "http.backlog";
+	/**
+	 * The port on which the server listens.
+	 */
+	public static final String HTTP_PORT = "http.port";
+	/**
+	 * The number of HTTP worker threads reserved for priority endpoints (/ping).
+	 */
+	public static final String HTTP_RESERVED_THREADS = "http.reservedThreads";
+	/**
+	 * The number of HTTP worker threads.
+	 */
+	public static final String HTTP_THREADS = "http.threads";
+	/**
+	 * The largest number of concurrent requests to the Instance ID API.
+	 */
+	public static final String IID_MAX_CONCURRENCY = "iid.maxConcurrency";
+	/**
+	 * The base URL of the Instance ID API, which can be pointed at a stub for testing.
+	 */
+	public static final String IID_URL = "iid.url";
+	/**
+	 * The directory to which Flight Recorder recordings are dumped.
+	 */
+	public static final String JFR_DIR = "jfr.dir";
+	/**
+	 * How long the continuous Flight Recorder recording keeps events in minutes.
+	 */
+	public static final String JFR_MAX_AGE = "jfr.maxAgeMinutes";
+	/**
+	 * The maximum size of each Flight Recorder recording in megabytes.
+	 */
+	public static final String JFR_MAX_SIZE = "jfr.maxSizeMB";
+	/**
+	 * The directory in which the ping history journal is stored.
+	 */
+	public static final String JOURNAL_DIR = "journal.dir";
+	/**
+	 * The maximum age in hours of a closed journal segment before it is deleted.
+	 */
+	public static final String JOURNAL_MAX_AGE = "journal.maxAgeHours";
+	/**
+	 * The maximum total size in megabytes of all journal segments.
+	 */
+	public static final String JOURNAL_MAX_SIZE = "journal.maxSizeMB";
+	/**
+	 * The size in megabytes of each memory-mapped journal segment.
+	 */
+	public static final String JOURNAL_SEGMENT_SIZE = "journal.segmentSizeMB";
+	/**
+	 * The file recording the members of each group.
+	 */
+	public static final String MEMBERS_FILE = "members.file";
+	/**
+	 * The file in which pending subscription tasks are recorded.
+	 */
+	public static final String OUTBOX_FILE = "outbox.file";
+	/**
+	 * The maximum number of ping idempotency keys remembered.
+	 */
+	public static final String PING_IDEMPOTENCY_KEYS = "ping.idempotencyKeys";
+	/**
+	 * How long ping idempotency keys are remembered in minutes, within which a ping resent
+	 * with the same key is not sent again.
+	 */
+	public static final String PING_IDEMPOTENCY_WINDOW = "ping.idempotencyMinutes";
+	/**
+	 * The write-ahead log file for pings which have been accepted but not yet delivered.
+	 */
+	public static final String PING_LOG_FILE = "pingLog.file";
+	/**
+	 * The number of characters of ping text sent in the FCM payload, or 0 to always send the
+	 * full text. Longer pings are sent as a preview, and devices fetch the full text by ID.
+	 */
+	public static final String PING_PREVIEW_CHARS = "ping.previewChars";
+	/**
+	 * The memory in megabytes kept for the full text of pings sent as a preview.
+	 */
+	public static final String PING_TEXT_CACHE_SIZE = "ping.textCacheMB";
+	/**
+	 * The length of the rotation window in minutes, over which subscription changes are
+	 * spread. 0 sends them all at once.
+	 */
+	public static final String ROTATION_WINDOW_MINUTES = "rotation.windowMinutes";
+	/**
+	 * The local time of day ("HH:mm") at which the daily rotation window opens, or unset to
+	 * rotate a day after the last rotation.
+	 */
+	public static final String ROTATION_WINDOW_START = "rotation.windowStart";
+	/**
+	 * The maximum time in seconds to wait for subscription tasks to finish on shutdown.
+	 */
+	public static final String SHUTDOWN_DRAIN = "shutdown.drainSeconds";
+	/**
+	 * The maximum number of events buffered for each event stream client, beyond which the
+	 * oldest are dropped.
+	 */
+	public static final String STREAM_BUFFER = "stream.bufferEvents";
+	/**
+	 * The maximum number of connected event stream clients.
+	 */
+	public static final String STREAM_MAX_CLIENTS = "stream.maxClients";
+	/**
+	 * The number of recent pings kept for event stream clients which resume.
+	 */
+	public static final String STREAM_REPLAY = "stream.replayEvents";
+	/**
+	 * The number of threads which write to event stream clients.
+	 */
+	public static final String STREAM_THREADS = "stream.threads";
+	/**
+	 * The file recording the current topic and epoch of each group.
+	 */
+	public static final String TOPICS_FILE = "topics.file";
+	/**
+	 * The file to which trace spans are written.
+	 */
+	public static final String TRACE_FILE = "trace.file";
+	/**
+	 * The number of rolled trace files to keep.
+	 */
+	public static final String TRACE_MAX_FILES = "trace.maxFiles";
+	/**
+	 * The size in megabytes at which the trace file is rolled.
+	 */
+	public static final String TRACE_MAX_SIZE = "trace.maxSizeMB";
+	/**
+	 * The fraction of traces to keep regardless of duration, from 0 to 1.
+	 */
+	public static final String TRACE_SAMPLE_RATE = "trace.sampleRate";
+	/**
+	 * The duration in milliseconds above which traces are always kept.
+	 */
+	public static final String TRACE_SLOW = "trace.slowMillis";
+	/**
+	 * Logs any unusual errors which occur in this class (most are passed upstream).
+	 */
+	private static final Logger LOGGER = Logger.getLogger(ServerSettings.class.getName());
+	/**
+	 * The name of the settings file.
+	 */
+	private static final String SETTINGS_FILE = "pings.properties";
+
+	/**
+	 * Loads the server settings from the default location. If the file does not exist, all
+	 * settings are defaulted.
+	 *
+	 * @return the server settings
+	 */
+	public static ServerSettings createFromDefault() {
+		final File file = new File(new File(System.getProperty("user.home"), ".fcmjava"),
+			SETTINGS_FILE);
+		final Properties props = new Properties();
+		if (file.canRead())
+			try {
+				final InputStream is = new FileInputStream(file);
+				try {
+					props.load(is);
+				} finally {
+					is.close();
+				}
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Unable to read settings from \"" + file + "\"", e);
+			}
+		return new ServerSettings(props);
+	}
+
+	/**
+	 * The raw settings values.
+	 */
+	private final Properties props;
+
+	/**
+	 * Creates server settings from the specified properties.
+	 *
+	 * @param props the settings values
+	 */
+	public ServerSettings(final Properties props) {
+		if (props == null)
+			throw new IllegalArgumentException("props");
+		this.props = props;
+	}
+	/**
+	 * Retrieves a setting as a floating point number.
+	 *
+	 * @param key the setting name
+	 * @param def the default value if the setting is missing or invalid
+	 * @return the setting value
+	 */
+	public double getDouble(final String key, final double def) {
+		double value = def;
+		final String text = props.getProperty(key);
+		if (text != null && text.trim().length() > 0)
+			try {
+				value = Double.parseDouble(text.trim());
+			} catch (NumberFormatException e) {
+				LOGGER.log(Level.WARNING, "Invalid value for setting \"" + key + "\": " + text);
+			}
+		return value;
+	}
+	/**
+	 * Retrieves a setting as an integer.
+	 *
+	 * @param key the setting name
+	 * @param def the default value if the setting is missing or invalid
+	 * @return the setting value
+	 */
+	public int getInt(final String key, final int def) {
+		return (int)getLong(key, def);
+	}
+	/**
+	 * Retrieves a setting as a long integer.
+	 *
+	 * @param key the setting name
+	 * @param def the default value if the setting is missing or invalid
+	 * @return the setting value
+	 */
+	public long getLong(final String key, final long def) {
+		long value = def;
+		final String text = props.getProperty(key);
+		if (text != null && text.trim().length() > 0)
+			try {
+				value = Long.parseLong(text.trim());
+			} catch (NumberFormatException e) {
+				LOGGER.log(Level.WARNING, "Invalid value for setting \"" + key + "\": " + text);
+			}
+		return value;
+	}
+	/**
+	 * Retrieves a setting as a string.
+	 *
+	 * @param key the setting name
+	 * @param def the default value if the setting is missing
+	 * @return the setting value
+	 */
+	public String getString(final String key, final String def) {
+		final String text = props.getProperty(key);
+		return (text == null || text.trim().length() < 1) ? def : text.trim();
+	}
+}
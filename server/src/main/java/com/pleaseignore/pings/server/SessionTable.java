@@ -0,0 +1,1407 @@
+package com.pleaseignore.pings.server;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The active user sessions, keyed by username and stored in direct memory. The garbage
+ * collector only sees a few buffers per thousand sessions, so heap size and collection pauses
+ * stay flat as the user count grows.
+ *
+ * Each session is a fixed-layout header record, whose number stays the same for the life of
+ * the session, pointing to a variable-length blob. The blob holds the UTF-8 username, device ID
+ * and challenge, followed by the session's groups in ascending order, each paired with the
+ * topic epoch on which the session is confirmed subscribed to it. Blobs are carved from
+ * power-of-two size classes and move to a larger class when a join outgrows them, so there is
+ * no fixed limit on the number of groups. Usernames are found through an open-addressed index
+ * of record numbers, using linear probing with backward shift deletion. Freed records and
+ * blobs are reused, but memory is never returned to the system.
+ *
+ * Refreshes take no lock. They read the index optimistically, retrying if an index change
+ * or a blob move raced with them, and renew the lease with a compare-and-set. Only logins and ended sessions
+ * change the index, each holding its lock for one slot update. Changes to a session hold one
+ * of a set of locks striped by record number, so scans over every session, such as evictions
+ * and rotation plans, hold one record at a time.
+ *
+ * Callers see sessions through UserSession handles, which go stale once their session ends.
+ */
+public final class SessionTable {
+	/**
+	 * The character set of stored strings.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/**
+	 * The maximum length in characters of a username or device ID.
+	 */
+	public static final int MAX_LENGTH = 1024;
+	/**
+	 * The number of milliseconds that an inactive user session remains before being removed.
+	 * Should be at least a day.
+	 */
+	private static final long TTL = 86400000L * 2L;
+	/**
+	 * The lease of a session claimed by expiry, which no refresh can renew.
+	 */
+	private static final long ENDED = 0L;
+
+	/**
+	 * Header record field offsets. The first 4 bytes hold the next free record while the
+	 * record is free. The blob field holds the blob reference plus one, or 0 while the record
+	 * is free or not yet set up.
+	 */
+	private static final int OFF_GENERATION = 4, OFF_HASH = 8, OFF_BLOB = 12,
+		OFF_LAST_LOGIN = 16;
+	/**
+	 * The size of each header record in bytes, a multiple of 8 so that leases are aligned.
+	 */
+	private static final int RECORD_LEN = 24;
+	/**
+	 * The number of header records per direct buffer chunk.
+	 */
+	private static final int RECORDS_PER_CHUNK = 1 << 16;
+	/**
+	 * The number of locks which guard the records.
+	 */
+	private static final int STRIPES = 64;
+	/**
+	 * The number of optimistic index reads tried before waiting for the index lock.
+	 */
+	private static final int OPTIMISTIC_ATTEMPTS = 4;
+
+	/**
+	 * Blob field offsets. Strings follow the fixed fields, and the group pairs start at the
+	 * next multiple of 4.
+	 */
+	private static final int OFF_GROUP_COUNT = 0, OFF_USERNAME_LEN = 4, OFF_DEVICE_LEN = 6,
+		OFF_CHALLENGE_LEN = 8, OFF_STRINGS = 10;
+	/**
+	 * The size of each (group ID, epoch) pair in bytes.
+	 */
+	private static final int PAIR_LEN = 8;
+	/**
+	 * The base 2 logarithm of the smallest and largest blob sizes.
+	 */
+	private static final int MIN_BLOB_SHIFT = 6, MAX_BLOB_SHIFT = 20;
+	/**
+	 * The bits of a blob reference which hold the block number; the size class is above them.
+	 */
+	private static final int BLOCK_BITS = 26;
+	/**
+	 * The size of each blob buffer chunk in bytes, which also holds the largest blob.
+	 */
+	private static final int CHUNK_LEN = 1 << MAX_BLOB_SHIFT;
+
+	/**
+	 * Atomic access to int and long fields of header records. Buffers use big-endian order
+	 * like the plain accessors.
+	 */
+	private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class,
+		ByteOrder.BIG_ENDIAN), LONG = MethodHandles.byteBufferViewVarHandle(long[].class,
+		ByteOrder.BIG_ENDIAN);
+
+	/**
+	 * Hashes a username, never returning zero.
+	 *
+	 * @param username the username
+	 * @return the hash code
+	 */
+	private static int hash(final String username) {
+		final int h = username.hashCode() * 0x9E3779B9;
+		return (h == 0) ? 1 : (h ^ (h >>> 16));
+	}
+	/**
+	 * Returns true if a session renewed at the specified time is expired.
+	 *
+	 * @param lastLogin the time of the last login or refresh in milliseconds (UTC)
+	 * @return if the session has not been refreshed since the time configured in TTL
+	 */
+	static boolean isExpired(final long lastLogin) {
+		return System.currentTimeMillis() - lastLogin > TTL;
+	}
+	/**
+	 * Converts a string to UTF-8, checking that its length fits in a blob field.
+	 *
+	 * @param text the text to convert
+	 * @param name the parameter name for errors
+	 * @return the encoded text
+	 */
+	private static byte[] toBytes(final String text, final String name) {
+		if (text == null || text.length() > MAX_LENGTH)
+			throw new IllegalArgumentException(name);
+		return text.getBytes(UTF8);
+	}
+	/**
+	 * Copies bytes from a blob.
+	 *
+	 * @param buffer the buffer holding the blob
+	 * @param offset the offset of the bytes
+	 * @param length the number of bytes
+	 * @return the copied bytes
+	 */
+	private static byte[] readBytes(final ByteBuffer buffer, final int offset,
+									final int length) {
+		final byte[] data = new byte[length];
+		final ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.get(data);
+		return data;
+	}
+	/**
+	 * Reads a string from a blob.
+	 *
+	 * @param buffer the buffer holding the blob
+	 * @param offset the offset of the string
+	 * @param length the length of the string in bytes
+	 * @return the decoded string
+	 */
+	private static String readString(final ByteBuffer buffer, final int offset,
+									 final int length) {
+		return new String(readBytes(buffer, offset, length), UTF8);
+	}
+	/**
+	 * Finds a group in the pairs of a blob.
+	 *
+	 * @param buffer the buffer holding the blob
+	 * @param base the offset of the blob
+	 * @param group the group ID
+	 * @return the index of the group, or (-(insertion point) - 1) if not found
+	 */
+	private static int search(final ByteBuffer buffer, final int base, final int group) {
+		final int pairs = groupsOffset(buffer, base);
+		int low = 0, high = buffer.getInt(base + OFF_GROUP_COUNT) - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1, id = buffer.getInt(pairs + mid * PAIR_LEN);
+			if (id < group)
+				low = mid + 1;
+			else if (id > group)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -(low + 1);
+	}
+	/**
+	 * Computes the offset of the group pairs of a blob.
+	 *
+	 * @param buffer the buffer holding the blob
+	 * @param base the offset of the blob
+	 * @return the offset of the first pair
+	 */
+	private static int groupsOffset(final ByteBuffer buffer, final int base) {
+		return base + ((OFF_STRINGS + (buffer.getShort(base + OFF_USERNAME_LEN) & 0xFFFF) +
+			(buffer.getShort(base + OFF_DEVICE_LEN) & 0xFFFF) + (buffer.getShort(base +
+			OFF_CHALLENGE_LEN) & 0xFFFF) + 3) & ~3);
+	}
+	/**
+	 * Computes the number of bytes used by a blob.
+	 *
+	 * @param buffer the buffer holding the blob
+	 * @param base the offset of the blob
+	 * @return the used length
+	 */
+	private static int usedLength(final ByteBuffer buffer, final int base) {
+		return groupsOffset(buffer, base) - base + buffer.getInt(base + OFF_GROUP_COUNT) *
+			PAIR_LEN;
+	}
+
+	/**
+	 * The blob allocators by size class, the smallest first.
+	 */
+	private final Slab[] blobs;
+	/**
+	 * The open-addressed index of record numbers plus one, 0 for an empty slot. Its capacity
+	 * is a power of two number of slots.
+	 */
+	private volatile ByteBuffer index;
+	/**
+	 * Guards changes to the index. Readers validate an optimistic stamp instead of locking.
+	 */
+	private final StampedLock indexLock;
+	/**
+	 * The header records.
+	 */
+	private final Slab records;
+	/**
+	 * The number of live sessions, changed only with the index lock held.
+	 */
+	private volatile int size;
+	/**
+	 * The locks which guard the records, chosen by record number.
+	 */
+	private final Object[] stripes;
+
+	/**
+	 * Creates an empty session table.
+	 *
+	 * @param expected the expected number of sessions
+	 */
+	public SessionTable(final int expected) {
+		if (expected < 0)
+			throw new IllegalArgumentException("expected");
+		blobs = new Slab[MAX_BLOB_SHIFT - MIN_BLOB_SHIFT + 1];
+		for (int i = 0; i < blobs.length; i++)
+			blobs[i] = new Slab(1 << (i + MIN_BLOB_SHIFT), CHUNK_LEN >> (i + MIN_BLOB_SHIFT));
+		records = new Slab(RECORD_LEN, RECORDS_PER_CHUNK);
+		int slots = 1024;
+		while (slots < expected * 2)
+			slots <<= 1;
+		index = ByteBuffer.allocateDirect(slots * 4);
+		indexLock = new StampedLock();
+		size = 0;
+		stripes = new Object[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Object();
+	}
+	/**
+	 * Allocates a blob large enough for the specified length.
+	 *
+	 * @param length the length in bytes
+	 * @return the blob reference
+	 */
+	private int allocateBlob(final int length) {
+		int sizeClass = 0;
+		while ((1 << (sizeClass + MIN_BLOB_SHIFT)) < length)
+			if (++sizeClass >= blobs.length)
+				throw new IllegalArgumentException("Session too large: " + length + " bytes");
+		return (sizeClass << BLOCK_BITS) | blobs[sizeClass].allocate();
+	}
+	/**
+	 * Retrieves the buffer holding a blob.
+	 *
+	 * @param blob the blob reference
+	 * @return the buffer
+	 */
+	private ByteBuffer blobBuffer(final int blob) {
+		return blobs[blob >>> BLOCK_BITS].buffer(blob & ((1 << BLOCK_BITS) - 1));
+	}
+	/**
+	 * Retrieves the offset of a blob in its buffer.
+	 *
+	 * @param blob the blob reference
+	 * @return the offset
+	 */
+	private int blobOffset(final int blob) {
+		return blobs[blob >>> BLOCK_BITS].offset(blob & ((1 << BLOCK_BITS) - 1));
+	}
+	/**
+	 * Checks a challenge presented by the client against a session's token without locking.
+	 * The comparison takes the same time regardless of how much of the challenge matches, and
+	 * is repeated if a join moved the blob while it was read.
+	 *
+	 * @param record the record number
+	 * @param generation the generation of the session
+	 * @param data the challenge presented by the client in UTF-8
+	 * @return true if the challenge is correct, or false if it is wrong or the session ended
+	 */
+	private boolean checkChallenge(final int record, final int generation, final byte[] data) {
+		boolean ok = false, done = false;
+		while (!done) {
+			final int blob = getBlob(record);
+			if (blob < 0 || getGeneration(record) != generation)
+				done = true;
+			else
+				try {
+					final ByteBuffer buffer = blobBuffer(blob);
+					final int base = blobOffset(blob), length = buffer.getShort(base +
+						OFF_CHALLENGE_LEN) & 0xFFFF, offset = base + OFF_STRINGS + (buffer.
+						getShort(base + OFF_USERNAME_LEN) & 0xFFFF) + (buffer.getShort(base +
+						OFF_DEVICE_LEN) & 0xFFFF);
+					int diff = data.length ^ length;
+					for (int i = 0; i < data.length; i++)
+						diff |= data[i] ^ buffer.get(offset + (i % Math.max(length, 1)));
+					// The bytes read are only valid if the blob still belongs to the session
+					VarHandle.acquireFence();
+					done = getBlob(record) == blob;
+					ok = diff == 0 && getGeneration(record) == generation;
+				} catch (IndexOutOfBoundsException e) {
+					// The blob was reused while it was read, so the lengths were not its own
+				}
+		}
+		return ok;
+	}
+	/**
+	 * Clears the confirmed subscription of a session to a group if it is still on the
+	 * specified epoch.
+	 *
+	 * @param record the record number
+	 * @param generation the generation of the session
+	 * @param group the group ID
+	 * @param epoch the topic epoch from which the session was removed
+	 */
+	void clearSubscription(final int record, final int generation, final int group,
+						   final int epoch) {
+		synchronized (stripe(record)) {
+			if (isLive(record, generation)) {
+				final int blob = getBlob(record);
+				final ByteBuffer buffer = blobBuffer(blob);
+				final int base = blobOffset(blob), i = search(buffer, base, group);
+				if (i >= 0) {
+					final int offset = groupsOffset(buffer, base) + i * PAIR_LEN + 4;
+					if (buffer.getInt(offset) == epoch)
+						buffer.putInt(offset, 0);
+				}
+			}
+		}
+	}
+	/**
+	 * Records that a session is subscribed to the specified topic epoch of a group. Older
+	 * epochs never overwrite newer ones, so late retries cannot regress the state. Groups of
+	 * which the session is not a member are ignored.
+	 *
+	 * @param record the record number
+	 * @param generation the generation of the session
+	 * @param group the group ID
+	 * @param epoch the topic epoch to which the session was added
+	 */
+	void confirmSubscription(final int record, final int generation, final int group,
+							 final int epoch) {
+		synchronized (stripe(record)) {
+			if (isLive(record, generation)) {
+				final int blob = getBlob(record);
+				final ByteBuffer buffer = blobBuffer(blob);
+				final int base = blobOffset(blob), i = search(buffer, base, group);
+				if (i >= 0) {
+					final int offset = groupsOffset(buffer, base) + i * PAIR_LEN + 4;
+					if (epoch > buffer.getInt(offset))
+						buffer.putInt(offset, epoch);
+				}
+			}
+		}
+	}
+	/**
+	 * Creates a handle to a session. The record's lock must be held.
+	 *
+	 * @param record the record number
+	 * @param generation the generation of the session
+	 * @param blob the blob reference of the session
+	 * @return the session handle
+	 */
+	private UserSession createHandle(final int record, final int generation, final int blob) {
+		final ByteBuffer buffer = blobBuffer(blob);
+		final int base = blobOffset(blob);
+		return new UserSession(this, record, generation, readString(buffer, base +
+			OFF_STRINGS + (buffer.getShort(base + OFF_USERNAME_LEN) & 0xFFFF), buffer.
+			getShort(base + OFF_DEVICE_LEN) & 0xFFFF));
+	}
+	/**
+	 * Creates a cursor over the live sessions in a range of records.
+	 *
+	 * @param from the first record
+	 * @param to the record after the last one
+	 * @return the cursor, before the first session
+	 */
+	Cursor cursor(final int from, final int to) {
+		return new Cursor(this, from, Math.min(to, records.getLimit()));
+	}
+	/**
+	 * Ends a session if it is still in the index, then frees its record.
+	 *
+	 * @param record the record number
+	 * @param generation the generation of the session
+	 * @return true if the session was ended, or false if it had already ended or was replaced
+	 */
+	private boolean end(final int record, final int generation) {
+		boolean ok = false;
+		final long stamp = indexLock.writeLock();
+		try {
+			if (isLive(record, generation)) {
+				final ByteBuffer index = this.index;
+				final int mask = (index.capacity() >> 2) - 1;
+				int slot = getHash(record) & mask, entry;
+				while (!ok && (entry = index.getInt(slot * 4)) != 0)
+					if (entry == record + 1)
+						ok = true;
+					else
+						slot = (slot + 1) & mask;
+				// Replaced sessions are no longer indexed, and the login frees them
+				if (ok) {
+					removeSlot(slot);
+					size--;
+				}
+			}
+		} finally {
+			indexLock.unlockWrite(stamp);
+		}
+		if (ok)
+			free(record);
+		return ok;
+	}
+	/**
+	 * Ends a session if it is still expired, unless the user has logged in again since the
+	 * handle was obtained. The lease is claimed first, so a refresh racing with the expiry
+	 * fails instead of renewing a session which then ends.
+	 *
+	 * @param username the username
+	 * @param session the session to expire
+	 * @return true if the session was ended, or false if it was refreshed or had already ended
+	 */
+	public boolean expire(final String username, final UserSession session) {
+		final int record = session.getRecord(), generation = session.getGeneration();
+		boolean ok = session.getTable() == this && isLive(record, generation);
+		if (ok) {
+			final ByteBuffer header = header(record);
+			final int offset = recordOffset(record) + OFF_LAST_LOGIN;
+			long lastLogin;
+			do {
+				lastLogin = (long)LONG.getVolatile(header, offset);
+				ok = isExpired(lastLogin);
+			} while (ok && lastLogin != ENDED && !LONG.compareAndSet(header, offset, lastLogin,
+				ENDED));
+			ok = ok && end(record, generation);
+		}
+		return ok;
+	}
+	/**
+	 * Finds the index slot of a username. The index lock need not be held if the result is
+	 * validated afterwards, as the search never probes more than every slot.
+	 *
+	 * @param index the index to search
+	 * @param h the hash of the username
+	 * @param key the username in UTF-8
+	 * @return the slot, or -1 if there is no session for that user
+	 */
+	private int find(final ByteBuffer index, final int h, final byte[] key) {
+		final int capacity = index.capacity() >> 2, mask = capacity - 1;
+		int slot = h & mask, ret = -1, entry;
+		for (int probes = 0; ret < 0 && probes < capacity && (entry = index.getInt(slot *
+				4)) != 0; probes++) {
+			final int record = entry - 1;
+			if (getHash(record) == h && matches(record, key))
+				ret = slot;
+			else
+				slot = (slot + 1) & mask;
+		}
+		return ret;
+	}
+	/**
+	 * Frees a record and its blob, leaving its handles stale. The record must be live and
+	 * already be removed from the index.
+	 *
+	 * @param record the record number
+	 */
+	private void free(final int record) {
+		final int blob;
+		synchronized (stripe(record)) {
+			blob = getBlob(record);
+			final ByteBuffer header = header(record);
+			final int offset = recordOffset(record) + OFF_GENERATION;
+			INT.setVolatile(header, offset, (int)INT.getVolatile(header, offset) + 1);
+			setBlob(record, -1);
+		}
+		blobs[blob >>> BLOCK_BITS].release(blob & ((1 << BLOCK_BITS) - 1));
+		records.release(record);
+	}
+	/**
+	 * Retrieves a session.
+	 *
+	 * @param username the username to look up
+	 * @return a handle to the session, or null if there is no session for that user
+	 */
+	public UserSession get(final String username) {
+		final long found = lookup(username);
+		UserSession session = null;
+		if (found != -1L) {
+			final int record = (int)found, generation = (int)(found >>> 32);
+			synchronized (stripe(record)) {
+				// The session may have ended since it was found
+				if (isLive(record, generation))
+					session = createHandle(record, generation, getBlob(record));
+			}
+		}
+		return session;
+	}
+	/**
+	 * Retrieves the blob reference of a record.
+	 *
+	 * @param record the record number
+	 * @return the blob reference, or -1 if the record is free
+	 */
+	private int getBlob(final int record) {
+		return (int)INT.getAcquire(header(record), recordOffset(record) + OFF_BLOB) - 1;
+	}
+	/**
+	 * Retrieves the challenge token of a session.
+	 *
+	 * @param record the record number
+	 * @param generation the generation of the session
+	 * @return the token used to challenge a client on refresh, or null if the session ended
+	 */
+	String getChallengeToken(final int record, final int generation) {
+		String token = null;
+		synchronized (stripe(record)) {
+			if (isLive(record, generation)) {
+				final int blob = getBlob(record);
+				final ByteBuffer buffer = blobBuffer(blob);
+				final int base = blobOffset(blob);
+				token = readString(buffer, base + OFF_STRINGS + (buffer.getShort(base +
+					OFF_USERNAME_LEN) & 0xFFFF) + (buffer.getShort(base + OFF_DEVICE_LEN) &
+					0xFFFF), buffer.getShort(base + OFF_CHALLENGE_LEN) & 0xFFFF);
+			}
+		}
+		return token;
+	}
+	/**
+	 * Retrieves the device ID of a session.
+	 *
+	 * @param record the record number
+	 * @param generation the generation of the session
+	 * @return the device ID for server side subscriptions, or null if the session ended
+	 */
+	String getDeviceID(final int record, final int generation) {
+		String deviceID = null;
+		synchronized (stripe(record)) {
+			if (isLive(record, generation)) {
+				final int blob = getBlob(record);
+				final ByteBuffer buffer = blobBuffer(blob);
+				final int base = blobOffset(blob);
+				deviceID = readString(buffer, base + OFF_STRINGS + (buffer.getShort(base +
+					OFF_USERNAME_LEN) & 0xFFFF), buffer.getShort(base + OFF_DEVICE_LEN) &
+					0xFFFF);
+			}
+		}
+		return deviceID;
+	}
+	/**
+	 * Retrieves the generation of a record, which changes each time it is freed.
+	 *
+	 * @param record the record number
+	 * @return the generation
+	 */
+	private int getGeneration(final int record) {
+		return (int)INT.getAcquire(header(record), recordOffset(record) + OFF_GENERATION);
+	}
+	/**
+	 * Retrieves the groups of a session.
+	 *
+	 * @param record the record number
+	 * @param generation the generation of the session
+	 * @return the IDs of the groups from which the user receives pings, in ascending order,
+	 * or an empty array if the session ended
+	 */
+	int[] getGroups(final int record, final int generation) {
+		int[] groups = new int[0];
+		synchronized (stripe(record)) {
+			if (isLive(record, generation)) {
+				final int blob = getBlob(record);
+				final ByteBuffer buffer = blobBuffer(blob);
+				final int base = blobOffset(blob), pairs = groupsOffset(buffer, base);
+				groups = new int[buffer.getInt(base + OFF_GROUP_COUNT)];
+				for (int i = 0; i < groups.length; i++)
+					groups[i] = buffer.getInt(pairs + i * PAIR_LEN);
+			}
+		}
+		return groups;
+	}
+	/**
+	 * Retrieves the username hash of a record.
+	 *
+	 * @param record the record number
+	 * @return the hash, set when the session started
+	 */
+	private int getHash(final int record) {
+		return (int)INT.getAcquire(header(record), recordOffset(record) + OFF_HASH);
+	}
+	/**
+	 * Retrieves the number of bytes of direct memory which the table has allocated.
+	 *
+	 * @return the allocated size in bytes
+	 */
+	public long getMemoryUsed() {
+		long used = (long)index.capacity() + records.getCapacity();
+		for (final Slab slab : blobs)
+			used += slab.getCapacity();
+		return used;
+	}
+	/**
+	 * Retrieves the number of header records ever allocated. Every record number of a live
+	 * session is below it.
+	 *
+	 * @return the record limit
+	 */
+	int getRecordLimit() {
+		return records.getLimit();
+	}
+	/**
+	 * Retrieves the topic epoch on which a session is confirmed subscribed to a group.
+	 *
+	 * @param record the record number
+	 * @param generation the generation of the session
+	 * @param group the group ID
+	 * @return the confirmed epoch, or 0 if not subscribed or the session ended
+	 */
+	int getSubscribedEpoch(final int record, final int generation, final int group) {
+		int epoch = 0;
+		synchronized (stripe(record)) {
+			if (isLive(record, generation)) {
+				final int blob = getBlob(record);
+				final ByteBuffer buffer = blobBuffer(blob);
+				final int base = blobOffset(blob), i = search(buffer, base, group);
+				if (i >= 0)
+					epoch = buffer.getInt(groupsOffset(buffer, base) + i * PAIR_LEN + 4);
+			}
+		}
+		return epoch;
+	}
+	/**
+	 * Retrieves the buffer holding a header record.
+	 *
+	 * @param record the record number
+	 * @return the buffer
+	 */
+	private ByteBuffer header(final int record) {
+		return records.buffer(record);
+	}
+	/**
+	 * Adds a record to the index, growing it first if it would be more than half full. The
+	 * index write lock must be held.
+	 *
+	 * @param record the record number
+	 */
+	private void insert(final int record) {
+		ByteBuffer index = this.index;
+		final int capacity = index.capacity() >> 2;
+		if ((size + 1) * 2 > capacity) {
+			final ByteBuffer grown = ByteBuffer.allocateDirect(capacity * 8);
+			for (int slot = 0; slot < capacity; slot++) {
+				final int entry = index.getInt(slot * 4);
+				if (entry != 0)
+					place(grown, entry - 1);
+			}
+			// Optimistic readers of the old index fail validation and look again
+			this.index = index = grown;
+		}
+		place(index, record);
+	}
+	/**
+	 * Returns true if a session is expired or ended.
+	 *
+	 * @param record the record number
+	 * @param generation the generation of the session
+	 * @return if the session ended or has not been refreshed since the time configured in TTL
+	 */
+	boolean isExpired(final int record, final int generation) {
+		return !isLive(record, generation) || isExpired((long)LONG.getVolatile(header(record),
+			recordOffset(record) + OFF_LAST_LOGIN));
+	}
+	/**
+	 * Returns true if a session has not ended.
+	 *
+	 * @param record the record number
+	 * @param generation the generation of the session
+	 * @return whether the record still holds that session
+	 */
+	private boolean isLive(final int record, final int generation) {
+		return record >= 0 && record < records.getLimit() && getGeneration(record) ==
+			generation && getBlob(record) >= 0;
+	}
+	/**
+	 * Returns true if a session is a member of the specified group.
+	 *
+	 * @param record the record number
+	 * @param generation the generation of the session
+	 * @param group the group ID
+	 * @return whether the user receives pings from that group, false if the session ended
+	 */
+	boolean isMember(final int record, final int generation, final int group) {
+		boolean member = false;
+		synchronized (stripe(record)) {
+			if (isLive(record, generation)) {
+				final int blob = getBlob(record);
+				member = search(blobBuffer(blob), blobOffset(blob), group) >= 0;
+			}
+		}
+		return member;
+	}
+	/**
+	 * Adds a session to a group, with no confirmed subscription to it yet. The blob moves to
+	 * a larger size class if the group does not fit.
+	 *
+	 * @param record the record number
+	 * @param generation the generation of the session
+	 * @param group the group ID
+	 * @return true if added, or false if already a member or the session ended
+	 */
+	boolean join(final int record, final int generation, final int group) {
+		boolean ok = false;
+		synchronized (stripe(record)) {
+			if (isLive(record, generation)) {
+				int blob = getBlob(record);
+				ByteBuffer buffer = blobBuffer(blob);
+				int base = blobOffset(blob);
+				final int i = search(buffer, base, group), used = usedLength(buffer, base);
+				ok = i < 0;
+				if (ok) {
+					if (used + PAIR_LEN > (1 << ((blob >>> BLOCK_BITS) + MIN_BLOB_SHIFT))) {
+						final int newBlob = allocateBlob(used + PAIR_LEN);
+						final ByteBuffer newBuffer = blobBuffer(newBlob);
+						final int newBase = blobOffset(newBlob);
+						for (int j = 0; j < used; j++)
+							newBuffer.put(newBase + j, buffer.get(base + j));
+						// Lock-free readers of the old blob see the move and read it again
+						setBlob(record, newBlob);
+						blobs[blob >>> BLOCK_BITS].release(blob & ((1 << BLOCK_BITS) - 1));
+						blob = newBlob;
+						buffer = newBuffer;
+						base = newBase;
+					}
+					final int insert = -i - 1, count = buffer.getInt(base + OFF_GROUP_COUNT),
+						pairs = groupsOffset(buffer, base);
+					for (int j = count; j > insert; j--) {
+						final int to = pairs + j * PAIR_LEN;
+						buffer.putLong(to, buffer.getLong(to - PAIR_LEN));
+					}
+					buffer.putInt(pairs + insert * PAIR_LEN, group);
+					buffer.putInt(pairs + insert * PAIR_LEN + 4, 0);
+					buffer.putInt(base + OFF_GROUP_COUNT, count + 1);
+				}
+			}
+		}
+		return ok;
+	}
+	/**
+	 * Removes a session from a group, forgetting any confirmed subscription to it.
+	 *
+	 * @param record the record number
+	 * @param generation the generation of the session
+	 * @param group the group ID
+	 * @return true if removed, or false if not a member or the session ended
+	 */
+	boolean leave(final int record, final int generation, final int group) {
+		boolean ok = false;
+		synchronized (stripe(record)) {
+			if (isLive(record, generation)) {
+				final int blob = getBlob(record);
+				final ByteBuffer buffer = blobBuffer(blob);
+				final int base = blobOffset(blob), i = search(buffer, base, group);
+				ok = i >= 0;
+				if (ok) {
+					final int count = buffer.getInt(base + OFF_GROUP_COUNT) - 1,
+						pairs = groupsOffset(buffer, base);
+					for (int j = i; j < count; j++) {
+						final int to = pairs + j * PAIR_LEN;
+						buffer.putLong(to, buffer.getLong(to + PAIR_LEN));
+					}
+					buffer.putInt(base + OFF_GROUP_COUNT, count);
+				}
+			}
+		}
+		return ok;
+	}
+	/**
+	 * Removes a group from every session which has it. Each session is locked on its own, so
+	 * refreshes and other sessions' changes proceed during the scan.
+	 *
+	 * @param group the group ID
+	 * @return handles to the sessions which left the group
+	 */
+	public List<UserSession> leaveAll(final int group) {
+		final List<UserSession> left = new ArrayList<>(64);
+		final int limit = records.getLimit();
+		for (int record = 0; record < limit; record++)
+			synchronized (stripe(record)) {
+				final int generation = getGeneration(record);
+				if (leave(record, generation, group))
+					left.add(createHandle(record, generation, getBlob(record)));
+			}
+		return left;
+	}
+	/**
+	 * Starts a session, replacing any session which the user already has. The new session
+	 * gets a new challenge token and no confirmed subscriptions.
+	 *
+	 * @param username the username
+	 * @param deviceID the device ID for server side subscriptions
+	 * @param groups the IDs of the groups from which the user receives pings
+	 * @return a handle to the new session
+	 */
+	public UserSession login(final String username, final String deviceID, final int[] groups) {
+		final byte[] key = toBytes(username, "username"), device = toBytes(deviceID,
+			"deviceID"), challenge = PingBroadcastServer.createTopicID().getBytes(UTF8);
+		if (groups == null)
+			throw new IllegalArgumentException("groups");
+		final int[] sorted = groups.clone();
+		Arrays.sort(sorted);
+		final int stringsLen = key.length + device.length + challenge.length, h = hash(
+			username);
+		final int blob = allocateBlob(((OFF_STRINGS + stringsLen + 3) & ~3) + sorted.length *
+			PAIR_LEN);
+		final ByteBuffer buffer = blobBuffer(blob);
+		final int base = blobOffset(blob);
+		buffer.putInt(base + OFF_GROUP_COUNT, sorted.length);
+		buffer.putShort(base + OFF_USERNAME_LEN, (short)key.length);
+		buffer.putShort(base + OFF_DEVICE_LEN, (short)device.length);
+		buffer.putShort(base + OFF_CHALLENGE_LEN, (short)challenge.length);
+		int offset = base + OFF_STRINGS;
+		for (final byte[] data : new byte[][] { key, device, challenge })
+			for (final byte b : data)
+				buffer.put(offset++, b);
+		final int pairs = groupsOffset(buffer, base);
+		for (int i = 0; i < sorted.length; i++) {
+			buffer.putInt(pairs + i * PAIR_LEN, sorted[i]);
+			buffer.putInt(pairs + i * PAIR_LEN + 4, 0);
+		}
+		final int record = records.allocate(), generation;
+		synchronized (stripe(record)) {
+			final ByteBuffer header = header(record);
+			final int headerOffset = recordOffset(record);
+			INT.setRelease(header, headerOffset + OFF_HASH, h);
+			LONG.setVolatile(header, headerOffset + OFF_LAST_LOGIN, System.currentTimeMillis());
+			setBlob(record, blob);
+			generation = getGeneration(record);
+		}
+		int old = -1;
+		final long stamp = indexLock.writeLock();
+		try {
+			final ByteBuffer index = this.index;
+			final int slot = find(index, h, key);
+			if (slot >= 0) {
+				// Same username and hash, so the new record takes over the slot
+				old = index.getInt(slot * 4) - 1;
+				index.putInt(slot * 4, record + 1);
+			} else {
+				insert(record);
+				size++;
+			}
+		} finally {
+			indexLock.unlockWrite(stamp);
+		}
+		// The old session ends, so that tasks holding its handle leave the new one alone
+		if (old >= 0)
+			free(old);
+		return new UserSession(this, record, generation, deviceID);
+	}
+	/**
+	 * Looks up the record of a username without blocking. If an index change races with the
+	 * lookup, it is tried again, and after a few attempts it waits for the change instead.
+	 * Blob moves by joins are not index changes, so each username comparison checks on its
+	 * own that the blob it read was not moved meanwhile.
+	 *
+	 * @param username the username to look up
+	 * @return the generation in the upper 32 bits and the record number in the lower 32 bits,
+	 * or -1 if there is no session for that user
+	 */
+	private long lookup(final String username) {
+		final byte[] key = username.getBytes(UTF8);
+		final int h = hash(username);
+		long found = -1L;
+		boolean valid = false;
+		for (int attempt = 0; !valid && attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+			final long stamp = indexLock.tryOptimisticRead();
+			if (stamp != 0L)
+				try {
+					found = locate(h, key);
+					valid = indexLock.validate(stamp);
+				} catch (IndexOutOfBoundsException e) {
+					// Read a record or blob while it was reused, so look again
+				}
+		}
+		if (!valid) {
+			final long stamp = indexLock.readLock();
+			try {
+				found = locate(h, key);
+			} finally {
+				indexLock.unlockRead(stamp);
+			}
+		}
+		return found;
+	}
+	/**
+	 * Looks up the record of a username in the current index.
+	 *
+	 * @param h the hash of the username
+	 * @param key the username in UTF-8
+	 * @return the generation and record number as returned by lookup, or -1 if not found
+	 */
+	private long locate(final int h, final byte[] key) {
+		final ByteBuffer index = this.index;
+		final int slot = find(index, h, key);
+		long found = -1L;
+		if (slot >= 0) {
+			final int record = index.getInt(slot * 4) - 1;
+			found = ((long)getGeneration(record) << 32) | (record & 0xFFFFFFFFL);
+		}
+		return found;
+	}
+	/**
+	 * Checks whether a session holds the specified username without locking. The comparison
+	 * is repeated if a join moved the blob while it was read, as the old blob may already hold
+	 * another session's bytes.
+	 *
+	 * @param record the record number
+	 * @param key the username in UTF-8
+	 * @return true if the usernames are equal, or false if they differ or the record is free
+	 */
+	private boolean matches(final int record, final byte[] key) {
+		boolean ok = false, done = false;
+		while (!done) {
+			final int blob = getBlob(record);
+			if (blob < 0)
+				done = true;
+			else
+				try {
+					final ByteBuffer buffer = blobBuffer(blob);
+					final int base = blobOffset(blob);
+					ok = (buffer.getShort(base + OFF_USERNAME_LEN) & 0xFFFF) == key.length;
+					for (int i = 0; ok && i < key.length; i++)
+						ok = buffer.get(base + OFF_STRINGS + i) == key[i];
+					// The bytes read are only valid if the blob still belongs to the session
+					VarHandle.acquireFence();
+					done = getBlob(record) == blob;
+				} catch (IndexOutOfBoundsException e) {
+					// The blob was reused while it was read, so the lengths were not its own
+				}
+		}
+		return ok;
+	}
+	/**
+	 * Places a record in the first free index slot after its hash.
+	 *
+	 * @param index the index to change
+	 * @param record the record number
+	 */
+	private void place(final ByteBuffer index, final int record) {
+		final int mask = (index.capacity() >> 2) - 1;
+		int slot = getHash(record) & mask;
+		while (index.getInt(slot * 4) != 0)
+			slot = (slot + 1) & mask;
+		index.putInt(slot * 4, record + 1);
+	}
+	/**
+	 * Retrieves the offset of a header record in its buffer.
+	 *
+	 * @param record the record number
+	 * @return the offset
+	 */
+	private int recordOffset(final int record) {
+		return records.offset(record);
+	}
+	/**
+	 * Renews a session if the challenge is correct and it has not expired, without locking.
+	 * The lease is never moved backwards if refreshes race.
+	 *
+	 * @param username the user refreshing
+	 * @param challenge the challenge token presented
+	 * @return true if the session was renewed, or false if the user is unknown, expired, or
+	 * the challenge is wrong
+	 */
+	public boolean refresh(final String username, final String challenge) {
+		final long found = (challenge != null) ? lookup(username) : -1L;
+		boolean ok = false;
+		if (found != -1L) {
+			final int record = (int)found, generation = (int)(found >>> 32);
+			if (checkChallenge(record, generation, challenge.getBytes(UTF8))) {
+				final ByteBuffer header = header(record);
+				final int offset = recordOffset(record) + OFF_LAST_LOGIN;
+				final long now = System.currentTimeMillis();
+				long lastLogin = (long)LONG.getVolatile(header, offset);
+				ok = !isExpired(lastLogin);
+				while (ok && lastLogin < now && !LONG.compareAndSet(header, offset, lastLogin,
+						now)) {
+					lastLogin = (long)LONG.getVolatile(header, offset);
+					ok = !isExpired(lastLogin);
+				}
+				// If the session ended at the same moment, the client must log in again
+				ok = ok && isLive(record, generation);
+			}
+		}
+		return ok;
+	}
+	/**
+	 * Ends a session, unless the user has logged in again since the handle was obtained.
+	 *
+	 * @param username the username
+	 * @param session the session to end
+	 * @return true if the session was ended, or false if it had already ended
+	 */
+	public boolean remove(final String username, final UserSession session) {
+		return session.getTable() == this && end(session.getRecord(), session.getGeneration());
+	}
+	/**
+	 * Ends the sessions of the specified devices. Each session is locked on its own while its
+	 * device ID is read, so refreshes and other sessions' changes proceed during the scan.
+	 *
+	 * @param deviceIDs the device IDs
+	 * @return the usernames whose sessions ended
+	 */
+	public List<String> removeDevices(final Set<String> deviceIDs) {
+		final List<String> removed = new ArrayList<>(deviceIDs.size());
+		final int limit = records.getLimit();
+		for (int record = 0; record < limit; record++) {
+			byte[] key = null, device = null;
+			int generation = 0;
+			synchronized (stripe(record)) {
+				final int blob = getBlob(record);
+				if (blob >= 0) {
+					final ByteBuffer buffer = blobBuffer(blob);
+					final int base = blobOffset(blob), keyLen = buffer.getShort(base +
+						OFF_USERNAME_LEN) & 0xFFFF;
+					generation = getGeneration(record);
+					key = readBytes(buffer, base + OFF_STRINGS, keyLen);
+					device = readBytes(buffer, base + OFF_STRINGS + keyLen, buffer.getShort(
+						base + OFF_DEVICE_LEN) & 0xFFFF);
+				}
+			}
+			if (device != null && deviceIDs.contains(new String(device, UTF8)) && end(record,
+					generation))
+				removed.add(new String(key, UTF8));
+		}
+		return removed;
+	}
+	/**
+	 * Empties an index slot, shifting back later entries of the same probe run so that
+	 * lookups never stop early. The index write lock must be held.
+	 *
+	 * @param slot the slot to empty
+	 */
+	private void removeSlot(final int slot) {
+		final ByteBuffer index = this.index;
+		final int mask = (index.capacity() >> 2) - 1;
+		int hole = slot, next = slot, entry;
+		while ((entry = index.getInt(((next = (next + 1) & mask)) * 4)) != 0) {
+			final int home = getHash(entry - 1) & mask;
+			// Entries whose probe run starts at or before the hole move back into it
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				index.putInt(hole * 4, entry);
+				hole = next;
+			}
+		}
+		index.putInt(hole * 4, 0);
+	}
+	/**
+	 * Sets the blob reference of a record, publishing the blob's contents to lock-free
+	 * readers.
+	 *
+	 * @param record the record number
+	 * @param blob the blob reference, or -1 to mark the record free
+	 */
+	private void setBlob(final int record, final int blob) {
+		INT.setRelease(header(record), recordOffset(record) + OFF_BLOB, blob + 1);
+	}
+	/**
+	 * Retrieves the number of active sessions.
+	 *
+	 * @return the session count
+	 */
+	public int size() {
+		return size;
+	}
+	/**
+	 * Retrieves the lock which guards a record.
+	 *
+	 * @param record the record number
+	 * @return the lock object
+	 */
+	private Object stripe(final int record) {
+		return stripes[record & (STRIPES - 1)];
+	}
+	public String toString() {
+		return "Session table (" + size() + " sessions)";
+	}
+
+	/**
+	 * Reads the live sessions in a range of records one at a time. Each session is copied
+	 * under its lock into buffers which are reused for the next, so a scan of every session
+	 * makes no objects unless asked for a session's strings or handle. What is read describes
+	 * the current session until the next call to next().
+	 */
+	static final class Cursor {
+		/**
+		 * The length of the current session's device ID in bytes.
+		 */
+		private int deviceLen;
+		/**
+		 * The record after the last one read.
+		 */
+		private final int end;
+		/**
+		 * The confirmed epoch of each group of the current session.
+		 */
+		private int[] epochs;
+		/**
+		 * The generation of the current session.
+		 */
+		private int generation;
+		/**
+		 * The number of groups of the current session.
+		 */
+		private int groupCount;
+		/**
+		 * The groups of the current session, in ascending order.
+		 */
+		private int[] groups;
+		/**
+		 * The time of the current session's last login or refresh.
+		 */
+		private long lastLogin;
+		/**
+		 * The record of the current session.
+		 */
+		private int record;
+		/**
+		 * The current session's username followed by its device ID, in UTF-8.
+		 */
+		private byte[] strings;
+		/**
+		 * The table being read.
+		 */
+		private final SessionTable table;
+		/**
+		 * The length of the current session's username in bytes.
+		 */
+		private int usernameLen;
+		/**
+		 * A view of the device ID in the strings, reset for each session.
+		 */
+		private ByteBuffer view;
+
+		Cursor(final SessionTable table, final int from, final int to) {
+			deviceLen = 0;
+			end = to;
+			epochs = new int[16];
+			generation = 0;
+			groupCount = 0;
+			groups = new int[16];
+			lastLogin = 0L;
+			record = from - 1;
+			strings = new byte[256];
+			this.table = table;
+			usernameLen = 0;
+			view = ByteBuffer.wrap(strings);
+		}
+		/**
+		 * Retrieves the device ID of the current session.
+		 *
+		 * @return the device ID
+		 */
+		String getDeviceID() {
+			return new String(strings, usernameLen, deviceLen, UTF8);
+		}
+		/**
+		 * Retrieves the device ID of the current session without decoding it. The buffer is
+		 * reused for the next session.
+		 *
+		 * @return the device ID in UTF-8, between the buffer's position and limit
+		 */
+		ByteBuffer getDeviceIDBytes() {
+			view.limit(usernameLen + deviceLen).position(usernameLen);
+			return view;
+		}
+		/**
+		 * Retrieves the topic epoch on which the current session was confirmed subscribed to
+		 * one of its groups.
+		 *
+		 * @param j the group index
+		 * @return the confirmed epoch, or 0 if not subscribed
+		 */
+		int getEpoch(final int j) {
+			return epochs[j];
+		}
+		/**
+		 * Retrieves the generation of the current session.
+		 *
+		 * @return the generation
+		 */
+		int getGeneration() {
+			return generation;
+		}
+		/**
+		 * Retrieves one of the groups of the current session.
+		 *
+		 * @param j the group index
+		 * @return the group ID
+		 */
+		int getGroup(final int j) {
+			return groups[j];
+		}
+		/**
+		 * Retrieves the number of groups of the current session.
+		 *
+		 * @return the group count
+		 */
+		int getGroupCount() {
+			return groupCount;
+		}
+		/**
+		 * Retrieves the record of the current session.
+		 *
+		 * @return the record number
+		 */
+		int getRecord() {
+			return record;
+		}
+		/**
+		 * Creates a handle to the current session. The handle goes stale if the session has
+		 * ended since it was read.
+		 *
+		 * @return the session handle
+		 */
+		UserSession getSession() {
+			return new UserSession(table, record, generation, getDeviceID());
+		}
+		/**
+		 * Retrieves the username of the current session.
+		 *
+		 * @return the username
+		 */
+		String getUsername() {
+			return new String(strings, 0, usernameLen, UTF8);
+		}
+		/**
+		 * Returns true if the current session was expired.
+		 *
+		 * @return if the session had not been refreshed since the time configured in TTL
+		 */
+		boolean isExpired() {
+			return SessionTable.isExpired(lastLogin);
+		}
+		/**
+		 * Moves to the next live session.
+		 *
+		 * @return true if there is one, or false once the range is exhausted
+		 */
+		boolean next() {
+			boolean found = false;
+			while (!found && ++record < end)
+				synchronized (table.stripe(record)) {
+					final int blob = table.getBlob(record);
+					if (blob >= 0) {
+						final ByteBuffer buffer = table.blobBuffer(blob);
+						final int base = table.blobOffset(blob), pairs = groupsOffset(buffer,
+							base);
+						generation = table.getGeneration(record);
+						lastLogin = (long)LONG.getVolatile(table.header(record), table.
+							recordOffset(record) + OFF_LAST_LOGIN);
+						usernameLen = buffer.getShort(base + OFF_USERNAME_LEN) & 0xFFFF;
+						deviceLen = buffer.getShort(base + OFF_DEVICE_LEN) & 0xFFFF;
+						if (usernameLen + deviceLen > strings.length) {
+							strings = new byte[Math.max(strings.length * 2, usernameLen +
+								deviceLen)];
+							view = ByteBuffer.wrap(strings);
+						}
+						for (int i = 0; i < usernameLen + deviceLen; i++)
+							strings[i] = buffer.get(base + OFF_STRINGS + i);
+						groupCount = buffer.getInt(base + OFF_GROUP_COUNT);
+						if (groupCount > groups.length) {
+							epochs = new int[Math.max(groups.length * 2, groupCount)];
+							groups = new int[epochs.length];
+						}
+						for (int j = 0; j < groupCount; j++) {
+							groups[j] = buffer.getInt(pairs + j * PAIR_LEN);
+							epochs[j] = buffer.getInt(pairs + j * PAIR_LEN + 4);
+						}
+						found = true;
+					}
+				}
+			return found;
+		}
+	}
+
+	/**
+	 * Allocates fixed-size blocks from chunks of direct memory. Freed blocks are chained
+	 * through their first 4 bytes and reused before new ones are carved. Blocks are allocated
+	 * and freed under the slab's lock, but found without it.
+	 */
+	private static final class Slab {
+		/**
+		 * The number of blocks in each chunk.
+		 */
+		private final int blocksPerChunk;
+		/**
+		 * The size of each block in bytes.
+		 */
+		private final int blockLen;
+		/**
+		 * The chunks allocated so far, replaced by a longer copy when a chunk is added.
+		 */
+		private volatile ByteBuffer[] chunks;
+		/**
+		 * The first free block, or -1 if there is none.
+		 */
+		private int free;
+		/**
+		 * The number of blocks ever allocated.
+		 */
+		private volatile int limit;
+
+		Slab(final int blockLen, final int blocksPerChunk) {
+			this.blockLen = blockLen;
+			this.blocksPerChunk = blocksPerChunk;
+			chunks = new ByteBuffer[0];
+			free = -1;
+			limit = 0;
+		}
+		/**
+		 * Allocates a block, reusing a freed one if possible.
+		 *
+		 * @return the block number
+		 */
+		synchronized int allocate() {
+			final int block;
+			if (free >= 0) {
+				block = free;
+				free = buffer(block).getInt(offset(block));
+			} else {
+				block = limit;
+				final int chunk = block / blocksPerChunk;
+				if (chunk >= chunks.length) {
+					if (chunk >= (1 << BLOCK_BITS) / blocksPerChunk)
+						throw new IllegalStateException("Session table is full");
+					final ByteBuffer[] grown = Arrays.copyOf(chunks, chunk + 1);
+					grown[chunk] = ByteBuffer.allocateDirect(blocksPerChunk * blockLen);
+					chunks = grown;
+				}
+				// Published after its chunk, so that scans below the limit can read it
+				limit = block + 1;
+			}
+			return block;
+		}
+		/**
+		 * Retrieves the buffer holding a block.
+		 *
+		 * @param block the block number
+		 * @return the buffer
+		 */
+		ByteBuffer buffer(final int block) {
+			return chunks[block / blocksPerChunk];
+		}
+		/**
+		 * Retrieves the number of bytes of direct memory allocated.
+		 *
+		 * @return the allocated size in bytes
+		 */
+		long getCapacity() {
+			return (long)chunks.length * blocksPerChunk * blockLen;
+		}
+		/**
+		 * Retrieves the number of blocks ever allocated.
+		 *
+		 * @return the block limit
+		 */
+		int getLimit() {
+			return limit;
+		}
+		/**
+		 * Retrieves the offset of a block in its buffer.
+		 *
+		 * @param block the block number
+		 * @return the offset
+		 */
+		int offset(final int block) {
+			return (block % blocksPerChunk) * blockLen;
+		}
+		/**
+		 * Frees a block for reuse.
+		 *
+		 * @param block the block number
+		 */
+		synchronized void release(final int block) {
+			buffer(block).putInt(offset(block), free);
+			free = block;
+		}
+	}
+}
@@ -0,0 +1,324 @@
+package com.pleaseignore.pings.server;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A durable record of subscription work (topic adds, removes and user updates). Each task is
+ * written to the outbox before it runs and marked done when it finishes, so that tasks which
+ * were pending or waiting to retry when the server stopped or crashed can be resumed on the
+ * next start.
+ *
+ * Records are written to the operating system immediately, but are only forced to disk when
+ * sync() is called, so that many tasks share each fsync. A torn record at the end of the file
+ * is discarded rather than replayed.
+ */
+public final class SubscriptionOutbox {
+	/**
+	 * The file size above which the outbox is compacted once nothing is pending.
+	 */
+	private static final long COMPACT_SIZE = 1024L * 1024L;
+	/**
+	 * Logs any unusual errors which occur in this class (most are passed upstream).
+	 */
+	private static final Logger LOGGER = Logger.getLogger(SubscriptionOutbox.class.getName());
+	/**
+	 * Record kinds.
+	 */
+	private static final byte RECORD_DONE = 2, RECORD_ENTRY = 1;
+	/**
+	 * Task types.
+	 */
+	public static final byte TYPE_ADD = 1, TYPE_REMOVE = 2, TYPE_UPDATE = 3;
+
+	/**
+	 * Decodes an entry record payload.
+	 *
+	 * @param in the payload, positioned after the record kind and ID
+	 * @return the entry
+	 * @throws IOException if the payload is invalid
+	 */
+	private static Entry readEntry(final DataInputStream in) throws IOException {
+		final byte type = in.readByte();
+		final int group = in.readInt(), epoch = in.readInt();
+		final String name = in.readUTF(), topic = in.readUTF();
+		final String[] deviceIDs = new String[in.readInt()];
+		for (int i = 0; i < deviceIDs.length; i++)
+			deviceIDs[i] = in.readUTF();
+		final int[] groups = new int[in.readInt()];
+		for (int i = 0; i < groups.length; i++)
+			groups[i] = in.readInt();
+		return new Entry(type, group, epoch, name, topic, deviceIDs, groups);
+	}
+	/**
+	 * Encodes a record payload.
+	 *
+	 * @param kind the record kind
+	 * @param id the entry ID
+	 * @param entry the entry to write, or null for a done marker
+	 * @return the record payload
+	 */
+	private static byte[] toRecord(final byte kind, final long id, final Entry entry) {
+		final ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+		try {
+			final DataOutputStream record = new DataOutputStream(payload);
+			record.writeByte(kind);
+			record.writeLong(id);
+			if (entry != null)
+				entry.write(record);
+			record.flush();
+		} catch (IOException e) {
+			// Should never happen
+			throw new IllegalStateException(e);
+		}
+		return payload.toByteArray();
+	}
+
+	/**
+	 * The outbox file.
+	 */
+	private final RecordFile file;
+	/**
+	 * The next entry ID.
+	 */
+	private long nextID;
+	/**
+	 * The entries not yet marked done, in the order they were added.
+	 */
+	private final Map<Long, Entry> pending;
+
+	/**
+	 * Creates a new subscription outbox. No I/O is performed until open() is called.
+	 *
+	 * @param file the outbox file
+	 */
+	public SubscriptionOutbox(final File file) {
+		this.file = new RecordFile(file);
+		nextID = 1L;
+		pending = new LinkedHashMap<>(64);
+	}
+	/**
+	 * Records a task before it runs. If the record cannot be written, the task should still
+	 * run; it just will not survive a restart.
+	 *
+	 * @param entry the task to record
+	 * @return the outbox ID of the task, used to mark it done
+	 */
+	public synchronized long add(final Entry entry) {
+		if (entry == null)
+			throw new IllegalArgumentException("entry");
+		final long id = nextID++;
+		pending.put(id, entry);
+		write(toRecord(RECORD_ENTRY, id, entry));
+		return id;
+	}
+	/**
+	 * Flushes and closes the outbox. Entries still pending will be resumed on the next open.
+	 */
+	public void close() {
+		file.close();
+	}
+	/**
+	 * Rewrites the outbox file with only the pending entries. Must be called with the outbox
+	 * locked.
+	 *
+	 * @throws IOException if the file cannot be rewritten
+	 */
+	private void compact() throws IOException {
+		final List<byte[]> records = new ArrayList<>(pending.size());
+		for (final Map.Entry<Long, Entry> entry : pending.entrySet())
+			records.add(toRecord(RECORD_ENTRY, entry.getKey(), entry.getValue()));
+		file.rewrite(records);
+	}
+	/**
+	 * Marks a task as done, whether it succeeded or ran out of retries.
+	 *
+	 * @param id the outbox ID of the task
+	 */
+	public synchronized void complete(final long id) {
+		if (pending.remove(id) != null) {
+			write(toRecord(RECORD_DONE, id, null));
+			try {
+				if (pending.isEmpty() && file.size() > COMPACT_SIZE)
+					compact();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Unable to compact outbox", e);
+			}
+		}
+	}
+	/**
+	 * Opens the outbox, reading any tasks which were pending when it was last closed.
+	 *
+	 * @return the pending tasks by outbox ID, in the order they were added
+	 * @throws IOException if the outbox cannot be opened
+	 */
+	public synchronized Map<Long, Entry> open() throws IOException {
+		pending.clear();
+		for (final byte[] payload : file.open()) {
+			final DataInputStream record = new DataInputStream(new ByteArrayInputStream(
+				payload));
+			try {
+				final byte kind = record.readByte();
+				final long id = record.readLong();
+				if (kind == RECORD_ENTRY)
+					pending.put(id, readEntry(record));
+				else
+					pending.remove(id);
+				nextID = Math.max(nextID, id + 1L);
+			} catch (EOFException e) {
+				LOGGER.log(Level.WARNING, "Skipping malformed outbox record");
+			}
+		}
+		compact();
+		LOGGER.log(Level.FINE, "Opened outbox with " + pending.size() + " pending tasks");
+		return new LinkedHashMap<>(pending);
+	}
+	/**
+	 * Reports the number of tasks which have not yet been marked done.
+	 *
+	 * @return the number of pending tasks
+	 */
+	public synchronized int size() {
+		return pending.size();
+	}
+	/**
+	 * Forces all records written so far to disk. Intended to be called periodically so that
+	 * many tasks share one fsync.
+	 */
+	public void sync() {
+		file.sync();
+	}
+	/**
+	 * Writes a record to the outbox file. Must be called with the outbox locked.
+	 *
+	 * @param record the record payload
+	 */
+	private void write(final byte[] record) {
+		try {
+			file.append(record);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to write to outbox", e);
+		}
+	}
+
+	/**
+	 * A subscription task recorded in the outbox.
+	 */
+	public static final class Entry {
+		/**
+		 * The device IDs to change.
+		 */
+		private final String[] deviceIDs;
+		/**
+		 * The topic epoch to change (add and remove only).
+		 */
+		private final int epoch;
+		/**
+		 * The group ID to change (add and remove only).
+		 */
+		private final int group;
+		/**
+		 * The group IDs of the user (update only).
+		 */
+		private final int[] groups;
+		/**
+		 * The group name (add and remove only).
+		 */
+		private final String name;
+		/**
+		 * The FCM topic ID (add and remove only).
+		 */
+		private final String topic;
+		/**
+		 * The task type.
+		 */
+		private final byte type;
+
+		/**
+		 * Creates an entry for adding clients to or removing them from a topic.
+		 *
+		 * @param type TYPE_ADD or TYPE_REMOVE
+		 * @param topic the group topic
+		 * @param deviceIDs the device IDs to change
+		 */
+		public Entry(final byte type, final GroupTopic topic, final Collection<String> deviceIDs) {
+			this(type, topic.getID(), topic.getEpoch(), topic.getName(), topic.getTopic(),
+				deviceIDs.toArray(new String[deviceIDs.size()]), new int[0]);
+		}
+		/**
+		 * Creates an entry for updating the subscriptions of one device.
+		 *
+		 * @param deviceID the device ID
+		 * @param groups the IDs of the groups the user belongs to
+		 */
+		public Entry(final String deviceID, final int[] groups) {
+			this(TYPE_UPDATE, 0, 0, "", "", new String[] { deviceID }, groups);
+		}
+		private Entry(final byte type, final int group, final int epoch, final String name,
+					  final String topic, final String[] deviceIDs, final int[] groups) {
+			this.deviceIDs = deviceIDs;
+			this.epoch = epoch;
+			this.group = group;
+			this.groups = groups;
+			this.name = name;
+			this.topic = topic;
+			this.type = type;
+		}
+		/**
+		 * Retrieves the device IDs to change.
+		 *
+		 * @return the device IDs
+		 */
+		public List<String> getDeviceIDs() {
+			return Arrays.asList(deviceIDs);
+		}
+		/**
+		 * Retrieves the group IDs of the user for an update.
+		 *
+		 * @return the group IDs
+		 */
+		public int[] getGroups() {
+			return groups.clone();
+		}
+		/**
+		 * Retrieves the group topic which was being changed for an add or remove.
+		 *
+		 * @return the group topic
+		 */
+		public GroupTopic getTopic() {
+			return new GroupTopic(group, name, topic, epoch);
+		}
+		/**
+		 * Retrieves the task type.
+		 *
+		 * @return TYPE_ADD, TYPE_REMOVE or TYPE_UPDATE
+		 */
+		public byte getType() {
+			return type;
+		}
+		/**
+		 * Encodes this entry.
+		 *
+		 * @param out the stream to write
+		 * @throws IOException if an I/O error occurs
+		 */
+		void write(final DataOutputStream out) throws IOException {
+			out.writeByte(type);
+			out.writeInt(group);
+			out.writeInt(epoch);
+			out.writeUTF(name);
+			out.writeUTF(topic);
+			out.writeInt(deviceIDs.length);
+			for (final String deviceID : deviceIDs)
+				out.writeUTF(deviceID);
+			out.writeInt(groups.length);
+			for (final int id : groups)
+				out.writeInt(id);
+		}
+		public String toString() {
+			return "Outbox task type " + type + " for " + deviceIDs.length + " devices";
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package com.pleaseignore.pings.server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the FCM topics of lists of groups, so that device updates do not look up the same
+ * topics for every member. Most users share their group list with many others, so the cache
+ * is keyed by the list of group IDs, not by session, and holds the topics of one group
+ * snapshot: the first lookup from a newer snapshot starts the cache over.
+ *
+ * Lookups take no lock. The number of lists cached for one snapshot is bounded; lists beyond
+ * it are looked up each time.
+ */
+public final class TopicCodeCache {
+	/**
+	 * The cached topics of the latest snapshot looked up.
+	 */
+	private volatile Entries current;
+	/**
+	 * The most group lists cached for one snapshot.
+	 */
+	private final int maxSize;
+
+	/**
+	 * Creates a new topic code cache.
+	 *
+	 * @param maxSize the most group lists cached for one snapshot
+	 */
+	public TopicCodeCache(final int maxSize) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException("maxSize");
+		current = new Entries(-1L);
+		this.maxSize = maxSize;
+	}
+	/**
+	 * Looks up the topic codes of the specified groups in a group snapshot.
+	 *
+	 * @param snapshot the group snapshot
+	 * @param groupIDs the group IDs
+	 * @return the FCM topic IDs of the groups which exist and have a topic, mapped to the
+	 * group topic that they represent
+	 */
+	private static Map<String, GroupTopic> find(final GroupSnapshot snapshot,
+												final int[] groupIDs) {
+		// Add to map for fast lookup by topic code
+		final Map<String, GroupTopic> topics = new HashMap<>(groupIDs.length * 2);
+		for (final int id : groupIDs) {
+			final GroupTopic topic = snapshot.get(id);
+			if (topic != null && topic.hasTopic())
+				topics.put(topic.getTopic(), topic);
+		}
+		return Collections.unmodifiableMap(topics);
+	}
+	/**
+	 * Retrieves the topic codes to which a member of the specified groups should be
+	 * subscribed, as of a group snapshot.
+	 *
+	 * @param snapshot the group snapshot, usually the current one
+	 * @param groupIDs the IDs of the groups, in ascending order, which must not be modified
+	 * afterwards
+	 * @return the FCM topic IDs of the groups which exist and have a topic, mapped to the
+	 * group topic that they represent (cannot be modified)
+	 */
+	public Map<String, GroupTopic> get(final GroupSnapshot snapshot, final int[] groupIDs) {
+		if (snapshot == null)
+			throw new IllegalArgumentException("snapshot");
+		if (groupIDs == null)
+			throw new IllegalArgumentException("groupIDs");
+		final long version = snapshot.getVersion();
+		Entries entries = current;
+		if (entries.version < version)
+			// Racing threads may each start over, which only costs a few lookups
+			current = entries = new Entries(version);
+		Map<String, GroupTopic> topics;
+		if (entries.version != version)
+			// Looked up from an older snapshot than the cache holds
+			topics = find(snapshot, groupIDs);
+		else {
+			final GroupList key = new GroupList(groupIDs);
+			topics = entries.topics.get(key);
+			if (topics == null) {
+				topics = find(snapshot, groupIDs);
+				if (entries.topics.size() < maxSize)
+					entries.topics.putIfAbsent(key, topics);
+			}
+		}
+		return topics;
+	}
+	/**
+	 * Reports the number of group lists cached for the latest snapshot.
+	 *
+	 * @return the number of cached group lists
+	 */
+	public int size() {
+		return current.topics.size();
+	}
+
+	/**
+	 * The topics cached for one group snapshot.
+	 */
+	private static final class Entries {
+		/**
+		 * The topic codes by group list.
+		 */
+		private final Map<GroupList, Map<String, GroupTopic>> topics;
+		/**
+		 * The version of the group snapshot from which the topics were looked up.
+		 */
+		private final long version;
+
+		Entries(final long version) {
+			topics = new ConcurrentHashMap<>(64);
+			this.version = version;
+		}
+	}
+
+	/**
+	 * A list of group IDs compared by content, as group lists are read anew from the session
+	 * table for every update.
+	 */
+	private static final class GroupList {
+		/**
+		 * The group IDs.
+		 */
+		private final int[] groups;
+		/**
+		 * The hash code of the group IDs.
+		 */
+		private final int hash;
+
+		GroupList(final int[] groups) {
+			this.groups = groups;
+			hash = Arrays.hashCode(groups);
+		}
+		public boolean equals(final Object o) {
+			return o instanceof GroupList && Arrays.equals(groups, ((GroupList)o).groups);
+		}
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package com.pleaseignore.pings.server;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import java.util.*;
+
+/**
+ * A JSON wrapper class for the response to adding or removing clients to a topic, which holds
+ * a result for each registration token in the order they were sent.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public final class TopicModifyResponse {
+	/**
+	 * The result of each registration token, in request order.
+	 */
+	public List<TokenResult> results;
+
+	public TopicModifyResponse() {
+		results = new ArrayList<>(0);
+	}
+
+	/**
+	 * Wrapper class for the result of one registration token.
+	 */
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	public static final class TokenResult {
+		/**
+		 * The error for this token, such as "NOT_FOUND" or "INVALID_ARGUMENT", or null if it
+		 * succeeded.
+		 */
+		public String error;
+
+		public TokenResult() {
+			error = null;
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package com.pleaseignore.pings.server;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A durable record of the current topic and epoch of each group. Every rotation appends the
+ * new bindings and waits until they are on disk, so that after a restart the server keeps
+ * using the topics to which devices are already subscribed instead of minting new ones and
+ * resubscribing everyone.
+ *
+ * Only the latest binding of each group matters; the file is compacted to one record per
+ * group when it grows past a small size. Records written before groups remembered their
+ * previous topic lack the trailing field and are read as not migrating. Removed and renamed
+ * groups leave a tombstone record (ID -1) which drops the old name.
+ */
+public final class TopicStore {
+	/**
+	 * The file size above which the store is compacted.
+	 */
+	private static final long COMPACT_SIZE = 64L * 1024L;
+	/**
+	 * Logs any unusual errors which occur in this class (most are passed upstream).
+	 */
+	private static final Logger LOGGER = Logger.getLogger(TopicStore.class.getName());
+
+	/**
+	 * Encodes a tombstone record payload.
+	 *
+	 * @param name the name of the group which no longer exists
+	 * @return the record payload
+	 */
+	private static byte[] toTombstone(final String name) {
+		final ByteArrayOutputStream payload = new ByteArrayOutputStream(32);
+		try {
+			final DataOutputStream record = new DataOutputStream(payload);
+			record.writeInt(-1);
+			record.writeUTF(name);
+			record.flush();
+		} catch (IOException e) {
+			// Should never happen
+			throw new IllegalStateException(e);
+		}
+		return payload.toByteArray();
+	}
+	/**
+	 * Encodes a record payload.
+	 *
+	 * @param entry the binding to write
+	 * @return the record payload
+	 */
+	private static byte[] toRecord(final Entry entry) {
+		final ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+		try {
+			final DataOutputStream record = new DataOutputStream(payload);
+			final GroupTopic topic = entry.getTopic();
+			record.writeInt(topic.getID());
+			record.writeUTF(topic.getName());
+			record.writeUTF(topic.getTopic());
+			record.writeInt(topic.getEpoch());
+			record.writeLong(entry.getRotated());
+			record.writeUTF(topic.getPrevious());
+			record.flush();
+		} catch (IOException e) {
+			// Should never happen
+			throw new IllegalStateException(e);
+		}
+		return payload.toByteArray();
+	}
+
+	/**
+	 * The latest binding of each group, by group name.
+	 */
+	private final Map<String, Entry> current;
+	/**
+	 * The store file.
+	 */
+	private final RecordFile file;
+
+	/**
+	 * Creates a new topic store. No I/O is performed until open() is called.
+	 *
+	 * @param file the store file
+	 */
+	public TopicStore(final File file) {
+		current = new LinkedHashMap<>(16);
+		this.file = new RecordFile(file);
+	}
+	/**
+	 * Flushes and closes the store.
+	 */
+	public void close() {
+		file.close();
+	}
+	/**
+	 * Appends bindings, compacting the file if it has grown too large.
+	 *
+	 * @param entries the bindings to write
+	 * @return the position to commit, or 0 if the file was rewritten and is already durable
+	 * @throws IOException if the bindings could not be written
+	 */
+	private long append(final Collection<Entry> entries) throws IOException {
+		long end = 0L;
+		for (final Entry entry : entries) {
+			current.put(entry.getTopic().getName(), entry);
+			end = file.append(toRecord(entry));
+		}
+		if (file.size() > COMPACT_SIZE) {
+			final List<byte[]> records = new ArrayList<>(current.size());
+			for (final Entry entry : current.values())
+				records.add(toRecord(entry));
+			// Rewriting forces the file, so there is nothing left to commit
+			file.rewrite(records);
+			end = 0L;
+		}
+		return end;
+	}
+	/**
+	 * Opens the store, reading the latest binding of each group.
+	 *
+	 * @return the bindings which were current when the store was last closed, in group ID
+	 * order
+	 * @throws IOException if the store cannot be opened
+	 */
+	public synchronized List<Entry> open() throws IOException {
+		current.clear();
+		for (final byte[] payload : file.open()) {
+			final DataInputStream record = new DataInputStream(new ByteArrayInputStream(
+				payload));
+			try {
+				final int id = record.readInt();
+				if (id < 0) {
+					current.remove(record.readUTF());
+					continue;
+				}
+				final String name = record.readUTF(), topic = record.readUTF();
+				final int epoch = record.readInt();
+				final long rotated = record.readLong();
+				final String previous = (record.available() > 0) ? record.readUTF() : "";
+				current.put(name, new Entry(new GroupTopic(id, name, topic, epoch, previous),
+					rotated));
+			} catch (EOFException | IllegalArgumentException e) {
+				LOGGER.log(Level.WARNING, "Skipping malformed topic record");
+			}
+		}
+		final List<Entry> ret = new ArrayList<>(current.values());
+		Collections.sort(ret, new Comparator<Entry>() {
+			public int compare(final Entry o1, final Entry o2) {
+				return Integer.compare(o1.getTopic().getID(), o2.getTopic().getID());
+			}
+		});
+		LOGGER.log(Level.FINE, "Opened topic store with " + ret.size() + " groups");
+		return ret;
+	}
+	/**
+	 * Records new group bindings and waits until they are on disk. Called when groups are
+	 * rotated, before any device is subscribed to the new topics.
+	 *
+	 * @param topics the new bindings
+	 * @param rotated the time of the rotation
+	 * @throws IOException if the bindings could not be made durable
+	 */
+	public void record(final Collection<GroupTopic> topics, final long rotated)
+			throws IOException {
+		if (topics == null)
+			throw new IllegalArgumentException("topics");
+		final List<Entry> entries = new ArrayList<>(topics.size());
+		for (final GroupTopic topic : topics)
+			entries.add(new Entry(topic, rotated));
+		final long end;
+		synchronized (this) {
+			end = append(entries);
+		}
+		if (end > 0L)
+			file.commit(end);
+	}
+	/**
+	 * Records that a group was removed, and waits until it is on disk.
+	 *
+	 * @param name the group name
+	 * @throws IOException if the removal could not be made durable
+	 */
+	public void remove(final String name) throws IOException {
+		rename(name, null);
+	}
+	/**
+	 * Records that a group was renamed, keeping its topic and the time it was last rotated,
+	 * and waits until it is on disk.
+	 *
+	 * @param oldName the previous group name
+	 * @param topic the renamed group, or null if the group was removed
+	 * @throws IOException if the change could not be made durable
+	 */
+	public void rename(final String oldName, final GroupTopic topic) throws IOException {
+		if (oldName == null)
+			throw new IllegalArgumentException("oldName");
+		long end;
+		synchronized (this) {
+			final Entry old = current.remove(oldName);
+			end = file.append(toTombstone(oldName));
+			if (topic != null)
+				end = Math.max(end, append(Collections.singletonList(new Entry(topic,
+					(old == null) ? 0L : old.getRotated()))));
+		}
+		if (end > 0L)
+			file.commit(end);
+	}
+	/**
+	 * Records changes to group bindings which are not rotations, such as the end of a move
+	 * from the previous topic, keeping the time each group was last rotated.
+	 *
+	 * @param topics the changed bindings
+	 * @throws IOException if the bindings could not be made durable
+	 */
+	public void update(final Collection<GroupTopic> topics) throws IOException {
+		if (topics == null)
+			throw new IllegalArgumentException("topics");
+		final long end;
+		synchronized (this) {
+			final List<Entry> entries = new ArrayList<>(topics.size());
+			for (final GroupTopic topic : topics) {
+				final Entry old = current.get(topic.getName());
+				entries.add(new Entry(topic, (old == null) ? 0L : old.getRotated()));
+			}
+			end = append(entries);
+		}
+		if (end > 0L)
+			file.commit(end);
+	}
+
+	/**
+	 * The binding of a group to a topic, and when it was made.
+	 */
+	public static final class Entry {
+		/**
+		 * The time at which the group was rotated to this topic.
+		 */
+		private final long rotated;
+		/**
+		 * The group topic.
+		 */
+		private final GroupTopic topic;
+
+		public Entry(final GroupTopic topic, final long rotated) {
+			if (topic == null)
+				throw new IllegalArgumentException("topic");
+			this.rotated = rotated;
+			this.topic = topic;
+		}
+		/**
+		 * Retrieves the time at which the group was rotated to this topic.
+		 *
+		 * @return the rotation time in milliseconds since the epoch
+		 */
+		public long getRotated() {
+			return rotated;
+		}
+		/**
+		 * Retrieves the group topic.
+		 *
+		 * @return the group, with its topic and epoch
+		 */
+		public GroupTopic getTopic() {
+			return topic;
+		}
+		public String toString() {
+			return topic.toString();
+		}
+	}
+}
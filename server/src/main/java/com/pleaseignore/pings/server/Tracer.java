@@ -0,0 +1,470 @@
+package com.pleaseignore.pings.server;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the time spent in each stage of a request as trace spans. Spans are written to a
+ * rolling local file, one Zipkin v2 JSON span per line, so that they can be loaded into Zipkin
+ * or read directly when hunting down tail latency.
+ *
+ * A trace is kept if its ID falls within the sample rate, which is decided from the ID so that
+ * retries joining the same trace make the same choice, or if it took longer than the slow
+ * threshold. Spans of a trace are buffered until its root span finishes, and are dropped
+ * there if the trace is not kept. Tracing problems are logged and never fail the request.
+ */
+public final class Tracer {
+	/**
+	 * Logs any unusual errors which occur in this class (most are passed upstream).
+	 */
+	private static final Logger LOGGER = Logger.getLogger(Tracer.class.getName());
+	/**
+	 * Used to convert spans to JSON.
+	 */
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	/**
+	 * The service name reported in every span.
+	 */
+	private static final String SERVICE_NAME = "pings";
+
+	/**
+	 * Creates a random 64-bit span or trace ID.
+	 *
+	 * @return the ID as 16 hex digits
+	 */
+	private static String createID() {
+		final String hex = Long.toHexString(ThreadLocalRandom.current().nextLong());
+		return "0000000000000000".substring(hex.length()) + hex;
+	}
+
+	/**
+	 * Whether any traces can be kept.
+	 */
+	private final boolean enabled;
+	/**
+	 * The file currently being written.
+	 */
+	private final File file;
+	/**
+	 * The number of rolled files kept in addition to the current file.
+	 */
+	private final int maxFiles;
+	/**
+	 * The size at which the current file is rolled in bytes.
+	 */
+	private final long maxSize;
+	/**
+	 * The output stream of the current file, or null if not open.
+	 */
+	private OutputStream out;
+	/**
+	 * The fraction of traces kept regardless of their duration.
+	 */
+	private final double sampleRate;
+	/**
+	 * The number of bytes in the current file.
+	 */
+	private long size;
+	/**
+	 * The duration in microseconds above which traces are always kept, or 0 to disable.
+	 */
+	private final long slowMicros;
+
+	/**
+	 * Creates a new tracer. Nothing is written unless the sample rate or slow threshold is
+	 * positive.
+	 *
+	 * @param file the span file
+	 * @param sampleRate the fraction of traces to keep from 0 to 1
+	 * @param slowMillis the duration in milliseconds above which traces are always kept, or
+	 * 0 to keep only sampled traces
+	 * @param maxSize the size in bytes at which the span file is rolled
+	 * @param maxFiles the number of rolled span files to keep
+	 */
+	public Tracer(final File file, final double sampleRate, final long slowMillis,
+				  final long maxSize, final int maxFiles) {
+		if (file == null)
+			throw new IllegalArgumentException("file");
+		if (maxSize <= 0L)
+			throw new IllegalArgumentException("maxSize");
+		enabled = sampleRate > 0.0 || slowMillis > 0L;
+		this.file = file;
+		this.maxFiles = Math.max(0, maxFiles);
+		this.maxSize = maxSize;
+		out = null;
+		this.sampleRate = sampleRate;
+		size = 0L;
+		slowMicros = Math.max(0L, slowMillis) * 1000L;
+	}
+	/**
+	 * Closes the span file. Later traces reopen it.
+	 */
+	public synchronized void close() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Unable to close span file", e);
+			}
+			out = null;
+		}
+	}
+	/**
+	 * Flushes buffered spans to the span file.
+	 */
+	public synchronized void flush() {
+		if (out != null)
+			try {
+				out.flush();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Unable to flush span file", e);
+			}
+	}
+	/**
+	 * Reports whether the trace with the specified ID falls within the sample rate.
+	 *
+	 * @param traceID the trace ID
+	 * @return true if the trace is sampled
+	 */
+	private boolean isSampled(final String traceID) {
+		boolean sampled = sampleRate >= 1.0;
+		if (!sampled && sampleRate > 0.0)
+			try {
+				// Top 53 bits of the ID as a uniform fraction
+				sampled = (Long.parseUnsignedLong(traceID, 16) >>> 11) * 0x1.0p-53 <
+					sampleRate;
+			} catch (NumberFormatException ignore) { }
+		return sampled;
+	}
+	/**
+	 * Moves the current span file to the first rolled file, shifting the older files up and
+	 * deleting the oldest.
+	 *
+	 * @throws IOException if the files cannot be renamed
+	 */
+	private void roll() throws IOException {
+		close();
+		final String name = file.getPath();
+		if (maxFiles > 0) {
+			final File oldest = new File(name + "." + maxFiles);
+			if (oldest.exists() && !oldest.delete())
+				throw new IOException("Unable to delete " + oldest);
+			for (int i = maxFiles - 1; i > 0; i--) {
+				final File older = new File(name + "." + i);
+				if (older.exists() && !older.renameTo(new File(name + "." + (i + 1))))
+					throw new IOException("Unable to rename " + older);
+			}
+			if (!file.renameTo(new File(name + ".1")))
+				throw new IOException("Unable to rename " + file);
+		} else if (!file.delete())
+			throw new IOException("Unable to delete " + file);
+	}
+	/**
+	 * Starts a new trace.
+	 *
+	 * @param name the name of the root span
+	 * @return the trace
+	 */
+	public Trace start(final String name) {
+		return start(name, null);
+	}
+	/**
+	 * Starts a trace which continues an earlier one, such as a retry of the same request.
+	 * The root span of the continuation becomes a new root within the same trace.
+	 *
+	 * @param name the name of the root span
+	 * @param traceID the trace ID to continue, or null to start a new trace
+	 * @return the trace
+	 */
+	public Trace start(final String name, final String traceID) {
+		if (name == null)
+			throw new IllegalArgumentException("name");
+		final String id = (traceID == null) ? createID() : traceID;
+		return new Trace(name, id, isSampled(id));
+	}
+	public String toString() {
+		return "Tracer to " + file + " (sample rate " + sampleRate + ", slow " +
+			(slowMicros / 1000L) + " ms)";
+	}
+	/**
+	 * Writes the spans of a finished trace, rolling the span file if it is full.
+	 *
+	 * @param spans the spans to write
+	 */
+	private synchronized void write(final List<SpanRecord> spans) {
+		try {
+			if (out == null) {
+				size = file.length();
+				out = new BufferedOutputStream(new FileOutputStream(file, true), 8192);
+			}
+			for (final SpanRecord span : spans) {
+				final byte[] data = MAPPER.writeValueAsBytes(span);
+				if (size > 0L && size + data.length + 1L > maxSize) {
+					roll();
+					size = 0L;
+					out = new BufferedOutputStream(new FileOutputStream(file, true), 8192);
+				}
+				out.write(data);
+				out.write('\n');
+				size += data.length + 1L;
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to write spans", e);
+			close();
+		}
+	}
+
+	/**
+	 * A timed stage within a trace. Spans must be finished to be recorded.
+	 */
+	public static final class Span {
+		/**
+		 * The span ID.
+		 */
+		private final String id;
+		/**
+		 * The span name.
+		 */
+		private final String name;
+		/**
+		 * The parent span ID, or null for a root span.
+		 */
+		private final String parentID;
+		/**
+		 * The start time (System.nanoTime()).
+		 */
+		private final long start;
+		/**
+		 * The span tags, or null if none were added.
+		 */
+		private Map<String, String> tags;
+		/**
+		 * The trace to which this span belongs.
+		 */
+		private final Trace trace;
+
+		private Span(final Trace trace, final String name, final String parentID) {
+			id = createID();
+			this.name = name;
+			this.parentID = parentID;
+			start = System.nanoTime();
+			tags = null;
+			this.trace = trace;
+		}
+		/**
+		 * Ends this span and records it in the trace.
+		 */
+		public void finish() {
+			trace.record(this, System.nanoTime());
+		}
+		/**
+		 * Adds a tag to this span.
+		 *
+		 * @param key the tag name
+		 * @param value the tag value
+		 * @return this span
+		 */
+		public Span tag(final String key, final Object value) {
+			if (trace.isRecording()) {
+				if (tags == null)
+					tags = new LinkedHashMap<>(4);
+				tags.put(key, String.valueOf(value));
+			}
+			return this;
+		}
+		public String toString() {
+			return "Span " + name + " (" + id + ")";
+		}
+	}
+
+	/**
+	 * A Zipkin v2 JSON wrapper class for a finished span.
+	 */
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public static final class SpanRecord {
+		/**
+		 * The duration in microseconds.
+		 */
+		public long duration;
+		/**
+		 * The span ID.
+		 */
+		public String id;
+		/**
+		 * The service which recorded the span.
+		 */
+		public Map<String, String> localEndpoint;
+		/**
+		 * The span name.
+		 */
+		public String name;
+		/**
+		 * The parent span ID, or null for a root span.
+		 */
+		public String parentId;
+		/**
+		 * The span tags, or null if none.
+		 */
+		public Map<String, String> tags;
+		/**
+		 * The start time in microseconds since the epoch.
+		 */
+		public long timestamp;
+		/**
+		 * The trace ID.
+		 */
+		public String traceId;
+
+		public SpanRecord() {
+			duration = 0L;
+			id = "";
+			localEndpoint = null;
+			name = "";
+			parentId = null;
+			tags = null;
+			timestamp = 0L;
+			traceId = "";
+		}
+	}
+
+	/**
+	 * A trace in progress. Child spans may be started and finished from any thread until the
+	 * trace itself is finished.
+	 */
+	public final class Trace {
+		/**
+		 * The epoch time at which the trace started in microseconds.
+		 */
+		private final long epochMicros;
+		/**
+		 * The finished spans.
+		 */
+		private final List<SpanRecord> finished;
+		/**
+		 * The root span.
+		 */
+		private final Span root;
+		/**
+		 * Whether the trace was sampled when it started.
+		 */
+		private final boolean sampled;
+		/**
+		 * The trace ID.
+		 */
+		private final String traceID;
+
+		private Trace(final String name, final String traceID, final boolean sampled) {
+			epochMicros = System.currentTimeMillis() * 1000L;
+			finished = new ArrayList<>(8);
+			this.sampled = sampled;
+			this.traceID = traceID;
+			root = new Span(this, name, null);
+		}
+		/**
+		 * Ends the root span, and writes the trace if it is sampled or slow.
+		 */
+		public void finish() {
+			final long end = System.nanoTime();
+			if (enabled) {
+				final List<SpanRecord> spans;
+				synchronized (finished) {
+					finished.add(toRecord(root, end));
+					spans = new ArrayList<>(finished);
+					finished.clear();
+				}
+				if (sampled || (slowMicros > 0L && (end - root.start) / 1000L >= slowMicros))
+					write(spans);
+			}
+		}
+		/**
+		 * Retrieves the trace ID, which can be reported to clients or logged to find the
+		 * trace later.
+		 *
+		 * @return the trace ID
+		 */
+		public String getTraceID() {
+			return traceID;
+		}
+		/**
+		 * Reports whether spans are being collected for this trace.
+		 *
+		 * @return true if the trace could be written
+		 */
+		private boolean isRecording() {
+			return enabled;
+		}
+		/**
+		 * Records a finished child span.
+		 *
+		 * @param span the span
+		 * @param end the end time (System.nanoTime())
+		 */
+		private void record(final Span span, final long end) {
+			if (enabled && span != root) {
+				final SpanRecord record = toRecord(span, end);
+				synchronized (finished) {
+					finished.add(record);
+				}
+			}
+		}
+		/**
+		 * Starts a stage of this trace as a child of the root span.
+		 *
+		 * @param name the stage name
+		 * @return the span, which must be finished
+		 */
+		public Span span(final String name) {
+			if (name == null)
+				throw new IllegalArgumentException("name");
+			return new Span(this, name, root.id);
+		}
+		/**
+		 * Adds a tag to the root span.
+		 *
+		 * @param key the tag name
+		 * @param value the tag value
+		 * @return this trace
+		 */
+		public Trace tag(final String key, final Object value) {
+			root.tag(key, value);
+			return this;
+		}
+		/**
+		 * Converts a span to its JSON form.
+		 *
+		 * @param span the span
+		 * @param end the end time (System.nanoTime())
+		 * @return the span record
+		 */
+		private SpanRecord toRecord(final Span span, final long end) {
+			final SpanRecord record = new SpanRecord();
+			// Derive wall clock times from the monotonic clock so stages line up
+			record.duration = Math.max(1L, (end - span.start) / 1000L);
+			record.id = span.id;
+			record.localEndpoint = new LinkedHashMap<>(2);
+			record.localEndpoint.put("serviceName", SERVICE_NAME);
+			record.name = span.name;
+			record.parentId = span.parentID;
+			record.tags = span.tags;
+			record.timestamp = epochMicros + (span.start - root.start) / 1000L;
+			record.traceId = traceID;
+			return record;
+		}
+		public String toString() {
+			return "Trace " + traceID;
+		}
+	}
+}
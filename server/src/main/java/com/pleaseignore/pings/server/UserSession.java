@@ -1,62 +1,87 @@
 package com.pleaseignore.pings.server;
 
-import java.util.*;
-
 /**
- * A skeleton class wrapping a user's session. This stores their last login, a cached final list
- * of the groups they are in, and the challenge token to be used.
+ * A handle to a user's session in the session table, which stores their last login, the
+ * groups they are in, and the challenge token to be used. The group list changes only when an
+ * administrator changes group membership while the session is active.
+ *
+ * Handles are cheap and may be obtained many times for the same session. Once the session
+ * expires, is evicted or is replaced by a new login, the handle goes stale: it reports the
+ * session as expired with no groups, and changes through it are ignored. The device ID is read
+ * when the handle is created, so it remains available for unsubscribing the device.
  */
 public final class UserSession {
 	/**
-	 * The number of milliseconds that an inactive user session remains before being removed.
-	 * Should be at least a day.
+	 * The client's Firebase device ID for server side subscriptions.
 	 */
-	private static final long TTL = 86400000L * 2L;
-
+	private final String deviceID;
 	/**
-	 * Retrieves the current time in UTC.
-	 *
-	 * @return the current system time in milliseconds (UTC)
+	 * The generation of the record when the handle was created, which changes once the session
+	 * ends.
 	 */
-	private static long now() {
-		return System.currentTimeMillis();
-	}
-
+	private final int generation;
 	/**
-	 * Generated at login, used to allow client to throw out username and password.
+	 * The number of the session's record in the table.
 	 */
-	private final String challengeToken;
+	private final int record;
 	/**
-	 * The client's Firebase device ID for server side subscriptions.
+	 * The table which stores the session.
 	 */
-	private final String deviceID;
+	private final SessionTable table;
+
 	/**
-	 * The groups to which this user has a subscription.
+	 * Creates a session handle.
+	 *
+	 * @param table the table which stores the session
+	 * @param record the record number
+	 * @param generation the generation of the record
+	 * @param deviceID the device ID of the session
 	 */
-	private final Collection<String> groups;
+	UserSession(final SessionTable table, final int record, final int generation,
+				final String deviceID) {
+		if (table == null)
+			throw new IllegalArgumentException("table");
+		if (deviceID == null)
+			throw new IllegalArgumentException("deviceID");
+		this.deviceID = deviceID;
+		this.generation = generation;
+		this.record = record;
+		this.table = table;
+	}
 	/**
-	 * When the user last logged in.
+	 * Clears the confirmed subscription to a group if it is still on the specified epoch.
+	 *
+	 * @param group the group ID
+	 * @param epoch the topic epoch from which the session was removed
 	 */
-	private long lastLogin;
-
+	public void clearSubscription(final int group, final int epoch) {
+		table.clearSubscription(record, generation, group, epoch);
+	}
 	/**
-	 * Creates a user session.
+	 * Records that this session is subscribed to the specified topic epoch of a group. Older
+	 * epochs never overwrite newer ones, so late retries cannot regress the state. Groups of
+	 * which the session is not a member are ignored.
 	 *
-	 * @param groups the groups from which that this user receives pings (no need for "all")
+	 * @param group the group ID
+	 * @param epoch the topic epoch to which the session was added
 	 */
-	public UserSession(final String deviceID, final Collection<String> groups) {
-		challengeToken = PingBroadcastServer.createTopicID();
-		this.deviceID = deviceID;
-		this.groups = groups;
-		updateLogin();
+	public void confirmSubscription(final int group, final int epoch) {
+		table.confirmSubscription(record, generation, group, epoch);
+	}
+	public boolean equals(final Object o) {
+		if (!(o instanceof UserSession))
+			return false;
+		final UserSession other = (UserSession)o;
+		return table == other.table && record == other.record && generation == other.
+			generation;
 	}
 	/**
 	 * Retrieves the challenge token.
 	 *
-	 * @return the token used to challenge a client on refresh
+	 * @return the token used to challenge a client on refresh, or null if the session ended
 	 */
 	public String getChallengeToken() {
-		return challengeToken;
+		return table.getChallengeToken(record, generation);
 	}
 	/**
 	 * Retrieves the user's device ID.
@@ -66,27 +91,86 @@ public final class UserSession {
 	public String getDeviceID() {
 		return deviceID;
 	}
+	/**
+	 * Retrieves the generation of the session's record.
+	 *
+	 * @return the generation when the handle was created
+	 */
+	int getGeneration() {
+		return generation;
+	}
 	/**
 	 * Retrieves the user's group list.
 	 *
-	 * @return the groups from which that this user receives pings
+	 * @return the IDs of the groups from which that this user receives pings, in ascending
+	 * order, or an empty array if the session ended
 	 */
-	public Collection<String> getGroups() {
-		return groups;
+	public int[] getGroups() {
+		return table.getGroups(record, generation);
+	}
+	/**
+	 * Retrieves the number of the session's record.
+	 *
+	 * @return the record number
+	 */
+	int getRecord() {
+		return record;
+	}
+	/**
+	 * Retrieves the topic epoch on which this session is confirmed subscribed to a group.
+	 *
+	 * @param group the group ID
+	 * @return the confirmed epoch, or 0 if not subscribed
+	 */
+	public int getSubscribedEpoch(final int group) {
+		return table.getSubscribedEpoch(record, generation, group);
+	}
+	/**
+	 * Retrieves the table which stores the session.
+	 *
+	 * @return the session table
+	 */
+	SessionTable getTable() {
+		return table;
+	}
+	public int hashCode() {
+		return record * 31 + generation;
+	}
+	/**
+	 * Returns true if this user is a member of the specified group.
+	 *
+	 * @param group the group ID
+	 * @return whether the user receives pings from that group
+	 */
+	public boolean isMember(final int group) {
+		return table.isMember(record, generation, group);
 	}
 	/**
 	 * Returns true if this session is expired.
 	 *
-	 * @return if the session has not been refreshed since the time configured in TTL
+	 * @return if the session ended or has not been refreshed since the time configured in the
+	 * session table
 	 */
 	public boolean isExpired() {
-		return lastLogin - now() > TTL;
+		return table.isExpired(record, generation);
 	}
 	/**
-	 * Updates the last login data on a successful challenge and refresh.
+	 * Adds this user to a group, with no confirmed subscription to it yet.
+	 *
+	 * @param group the group ID
+	 * @return true if added, or false if already a member
+	 */
+	public boolean join(final int group) {
+		return table.join(record, generation, group);
+	}
+	/**
+	 * Removes this user from a group, forgetting any confirmed subscription to it.
+	 *
+	 * @param group the group ID
+	 * @return true if removed, or false if not a member
 	 */
-	public void updateLogin() {
-		lastLogin = now();
+	public boolean leave(final int group) {
+		return table.leave(record, generation, group);
 	}
 	public String toString() {
 		return "Device ID #" + deviceID;